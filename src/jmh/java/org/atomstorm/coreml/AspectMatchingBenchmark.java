@@ -0,0 +1,97 @@
+package org.atomstorm.coreml;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.atomstorm.coreml.CoreMLJNI.CoreMLResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Letterboxing every frame into a model's 640x640 default input against the input chosen by
+ * {@link InputShapes} from the model's enumerated sizes, then running it. Preprocessing is
+ * stood in for by a Java nearest-neighbour letterbox of a BGR frame into a BGRA buffer. The
+ * replayed inference takes its recorded time scaled by the input's area relative to 640x640,
+ * as the model's cost grows with the pixels it reads; without {@code timed} only the
+ * preprocessing difference remains.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AspectMatchingBenchmark {
+    private static final int INPUT_SIZE = 640;
+
+    /** Camera frame size. */
+    @Param({"1280x720", "640x480"})
+    public String frameSize;
+
+    /** Whether inference takes the recorded time. */
+    @Param({"false", "true"})
+    public boolean timed;
+
+    private ReplayBackend backend;
+    private InputShapes shapes;
+    private int width;
+    private int height;
+    private byte[] image;
+    private byte[] paddedInput;
+    private byte[] matchedInput;
+    private long frame;
+
+    @Setup
+    public void setup() {
+        String[] size = frameSize.split("x");
+        width = Integer.parseInt(size[0]);
+        height = Integer.parseInt(size[1]);
+        backend = ReplayBackend.load(ReplayBackend.SAMPLE, timed);
+        shapes = InputShapes.enumerated(INPUT_SIZE, INPUT_SIZE, 640, 384, 640, 480, 384, 640);
+        image = new byte[width * height * 3];
+        new Random(11).nextBytes(image);
+        paddedInput = new byte[INPUT_SIZE * INPUT_SIZE * 4];
+        LetterboxGeometry matched = shapes.select(width, height);
+        matchedInput = new byte[matched.inputWidth * matched.inputHeight * 4];
+    }
+
+    @Benchmark
+    public CoreMLResult[] padded() {
+        LetterboxGeometry geometry = LetterboxGeometry.of(width, height, INPUT_SIZE, INPUT_SIZE);
+        letterbox(geometry, paddedInput);
+        return backend.detect(frame++, 0.45, 0.25);
+    }
+
+    @Benchmark
+    public CoreMLResult[] aspectMatched() {
+        LetterboxGeometry geometry = shapes.select(width, height);
+        letterbox(geometry, matchedInput);
+        double costScale = (double) geometry.inputWidth * geometry.inputHeight / (INPUT_SIZE * INPUT_SIZE);
+        return backend.detect(frame++, 0.45, 0.25, costScale);
+    }
+
+    // Fill the input with grey padding, then scale the BGR frame into its region as BGRA
+    private void letterbox(LetterboxGeometry geometry, byte[] input) {
+        Arrays.fill(input, (byte) 114);
+        for (int y = 0; y < geometry.scaledHeight; y++) {
+            int srcRow = Math.min((int) (y / geometry.scale), height - 1) * width * 3;
+            int dst = ((y + geometry.roiY) * geometry.inputWidth + geometry.roiX) * 4;
+            for (int x = 0; x < geometry.scaledWidth; x++, dst += 4) {
+                int src = srcRow + Math.min((int) (x / geometry.scale), width - 1) * 3;
+                input[dst] = image[src];
+                input[dst + 1] = image[src + 1];
+                input[dst + 2] = image[src + 2];
+                input[dst + 3] = (byte) 255;
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package org.atomstorm.coreml;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.atomstorm.coreml.CoreMLJNI.CoreMLResult;
+import org.atomstorm.coreml.CoreMLPipeline.OverflowPolicy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Four camera threads sharing one detector, each calling it directly, through a
+ * {@link CoreMLMicroBatcher} or through a {@link CoreMLPipeline}. With {@code timed} the
+ * replayed model takes its recorded inference time and serializes predictions; without it
+ * only the Java-side overhead and contention remain. SampleTime mode reports tail latency.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class ConcurrentDetectBenchmark {
+    /** Whether inference takes the recorded time. */
+    @Param({"false", "true"})
+    public boolean timed;
+
+    private ReplayBackend backend;
+    private CoreMLMicroBatcher batcher;
+    private CoreMLPipeline pipeline;
+    private final AtomicLong frames = new AtomicLong();
+
+    @Setup
+    public void setup() {
+        backend = ReplayBackend.load(ReplayBackend.SAMPLE, timed);
+        batcher = new CoreMLMicroBatcher(backend, 4, 2, TimeUnit.MILLISECONDS, 0.45, 0.25);
+        pipeline = new CoreMLPipeline(backend, 8, OverflowPolicy.BLOCK);
+    }
+
+    @TearDown
+    public void tearDown() {
+        batcher.close();
+        pipeline.close();
+    }
+
+    @Benchmark
+    public CoreMLResult[] direct() {
+        return backend.detect(frames.getAndIncrement(), 0.45, 0.25);
+    }
+
+    @Benchmark
+    public CoreMLResult[] microBatcher() {
+        return batcher.detect(frames.getAndIncrement());
+    }
+
+    @Benchmark
+    public CoreMLResult[] pipeline() {
+        return pipeline.submit(frames.getAndIncrement(), 0.45, 0.25).join();
+    }
+}
@@ -0,0 +1,93 @@
+package org.atomstorm.coreml;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.atomstorm.coreml.CoreMLJNI.CoreMLResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Four camera threads sharing one detector, guarding it against a concurrent destroy with a
+ * {@code synchronized} block around every call or with a {@link CoreMLDetector} handle, next
+ * to unguarded calls. Each call spends {@code workMicros} outside the model, standing in for
+ * letterboxing and decoding, which the native detector runs concurrently but a
+ * {@code synchronized} block serializes. With {@code timed} the replayed model also takes its
+ * recorded inference time, one prediction at a time.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class DetectorHandleBenchmark {
+    /** Whether inference takes the recorded time. */
+    @Param({"false", "true"})
+    public boolean timed;
+
+    /** Time each call spends outside the model, in microseconds. */
+    @Param({"0", "2000"})
+    public long workMicros;
+
+    private ReplayBackend backend;
+    private CoreMLDetector handle;
+    private final Object lock = new Object();
+    private final AtomicLong frames = new AtomicLong();
+
+    @Setup
+    public void setup() {
+        backend = ReplayBackend.load(ReplayBackend.SAMPLE, timed);
+        handle = new CoreMLDetector(1, new CoreMLDetector.Natives() {
+            @Override
+            public CoreMLResult[] detect(long ptr, long imagePtr, double nmsThresh, double boxThresh) {
+                return replay(imagePtr);
+            }
+
+            @Override
+            public void destroy(long ptr) {}
+        });
+    }
+
+    @TearDown
+    public void tearDown() {
+        handle.close();
+    }
+
+    @Benchmark
+    public CoreMLResult[] unguarded() {
+        return replay(frames.getAndIncrement());
+    }
+
+    @Benchmark
+    public CoreMLResult[] synchronizedBlock() {
+        long frame = frames.getAndIncrement();
+        synchronized (lock) {
+            return replay(frame);
+        }
+    }
+
+    @Benchmark
+    public CoreMLResult[] handle() {
+        return handle.detect(frames.getAndIncrement(), 0.45, 0.25);
+    }
+
+    private CoreMLResult[] replay(long imagePtr) {
+        long deadline = System.nanoTime() + workMicros * 1000;
+        while (System.nanoTime() < deadline) {
+            Thread.onSpinWait();
+        }
+        return backend.detect(imagePtr, 0.45, 0.25);
+    }
+}
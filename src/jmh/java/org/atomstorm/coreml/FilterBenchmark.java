@@ -0,0 +1,88 @@
+package org.atomstorm.coreml;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.atomstorm.coreml.CoreMLJNI.CoreMLResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Filtering one frame's detections before they become Java objects, as the native
+ * {@link DetectionFilter} does, against marshalling every detection and filtering the
+ * objects afterwards. {@code filterRows} is the reference filter alone.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FilterBenchmark {
+    /** Maximum detections kept per frame, 0 for no limit. */
+    @Param({"0", "2"})
+    public int topK;
+
+    private ReplayBackend backend;
+    private DetectionFilter filter;
+    private float[] rows;
+    private long frame;
+
+    @Setup
+    public void setup() {
+        backend = ReplayBackend.load(ReplayBackend.SAMPLE, false);
+        filter = new DetectionFilter(0.5f, null, new int[] {0, 1}, 400, 0, topK);
+        rows = new float[100 * DetectionView.STRIDE];
+    }
+
+    @Benchmark
+    public List<CoreMLResult> marshalThenFilter() {
+        CoreMLResult[] results = backend.detect(frame++, 0.45, 0.25);
+        List<CoreMLResult> kept = new ArrayList<>();
+        for (CoreMLResult result : results) {
+            if (filter.accepts((float) result.rect.x, (float) result.rect.y, (float) (result.rect.x + result.rect.width),
+                    (float) (result.rect.y + result.rect.height), result.conf, result.class_id)) {
+                kept.add(result);
+            }
+        }
+        if (topK > 0 && kept.size() > topK) {
+            kept.sort((a, b) -> Float.compare(b.conf, a.conf));
+            return new ArrayList<>(kept.subList(0, topK));
+        }
+        return kept;
+    }
+
+    @Benchmark
+    public CoreMLResult[] filterThenMarshal() {
+        int count = filterRows();
+        CoreMLResult[] results = new CoreMLResult[count];
+        for (int i = 0; i < count; i++) {
+            int r = i * DetectionView.STRIDE;
+            results[i] = new CoreMLResult((int) rows[r + DetectionView.X1], (int) rows[r + DetectionView.Y1],
+                (int) rows[r + DetectionView.X2], (int) rows[r + DetectionView.Y2], rows[r + DetectionView.CONF],
+                (int) rows[r + DetectionView.CLASS_ID]);
+        }
+        return results;
+    }
+
+    @Benchmark
+    public int filterRows() {
+        float[] src = backend.rows(frame++);
+        int count = 0;
+        for (int r = 0; r < src.length && count * DetectionView.STRIDE < rows.length; r += DetectionView.STRIDE) {
+            if (src[r + DetectionView.CONF] >= 0.25f) {
+                System.arraycopy(src, r, rows, count++ * DetectionView.STRIDE, DetectionView.STRIDE);
+            }
+        }
+        return filter.apply(rows, count);
+    }
+}
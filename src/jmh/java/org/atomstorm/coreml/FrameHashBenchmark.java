@@ -0,0 +1,79 @@
+package org.atomstorm.coreml;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.atomstorm.coreml.CoreMLJNI.CoreMLResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The per-frame cost of {@link FrameChangeCache}: hashing a thumbnail, and sampling a 1280x720
+ * BGR frame with the Java {@link FrameChangeCache#sample} before hashing it, against one timed
+ * replayed inference. {@code cachedStaticFrame} is a cache hit end to end.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FrameHashBenchmark {
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 720;
+
+    private byte[] image;
+    private byte[] thumbnail;
+    private ReplayBackend backend;
+    private FrameChangeCache cache;
+
+    @Setup
+    public void setup() {
+        image = new byte[WIDTH * HEIGHT * 3];
+        new Random(9).nextBytes(image);
+        thumbnail = new byte[FrameChangeCache.THUMBNAIL_WIDTH * FrameChangeCache.THUMBNAIL_HEIGHT];
+        FrameChangeCache.sample(image, WIDTH, HEIGHT, 3, thumbnail);
+
+        backend = ReplayBackend.load(ReplayBackend.SAMPLE, true);
+        CoreMLDetectorPool.Detector detector = new CoreMLDetectorPool.Detector() {
+            @Override
+            public CoreMLResult[] detect(long imagePtr, double nmsThresh, double boxThresh) {
+                return backend.detect(imagePtr, nmsThresh, boxThresh);
+            }
+
+            @Override
+            public void close() {}
+        };
+        cache = new FrameChangeCache(detector, (imagePtr, out) -> FrameChangeCache.sample(image, WIDTH, HEIGHT, 3, out),
+            0, Integer.MAX_VALUE);
+        cache.detect(0, 0.45, 0.25);
+    }
+
+    @Benchmark
+    public long hash() {
+        return FrameChangeCache.differenceHash(thumbnail);
+    }
+
+    @Benchmark
+    public long sampleAndHash() {
+        FrameChangeCache.sample(image, WIDTH, HEIGHT, 3, thumbnail);
+        return FrameChangeCache.differenceHash(thumbnail);
+    }
+
+    @Benchmark
+    public CoreMLResult[] cachedStaticFrame() {
+        return cache.detect(0, 0.45, 0.25);
+    }
+
+    @Benchmark
+    public CoreMLResult[] inference() {
+        return backend.detect(0, 0.45, 0.25);
+    }
+}
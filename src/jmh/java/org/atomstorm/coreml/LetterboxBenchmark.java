@@ -0,0 +1,85 @@
+package org.atomstorm.coreml;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.atomstorm.coreml.CoreMLJNI.CoreMLResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Mapping boxes from model input coordinates back to the original image with
+ * {@link LetterboxGeometry}, into rows or into result objects.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LetterboxBenchmark {
+    /** Boxes per frame. */
+    @Param({"10", "100"})
+    public int boxes;
+
+    private LetterboxGeometry geometry;
+    private float[] input; // x1, y1, x2, y2 in input coordinates
+    private DetectionView view;
+
+    @Setup
+    public void setup() {
+        geometry = LetterboxGeometry.of(1280, 720, 640, 640);
+        view = new DetectionView(boxes);
+        input = new float[boxes * 4];
+        Random random = new Random(3);
+        for (int i = 0; i < boxes; i++) {
+            float x = random.nextFloat() * 600;
+            float y = 140 + random.nextFloat() * 320;
+            input[4 * i] = x;
+            input[4 * i + 1] = y;
+            input[4 * i + 2] = x + 5 + random.nextFloat() * 40;
+            input[4 * i + 3] = y + 5 + random.nextFloat() * 40;
+        }
+    }
+
+    @Benchmark
+    public int mapIntoView() {
+        var rows = view.buffer();
+        for (int i = 0; i < boxes; i++) {
+            int row = i * DetectionView.STRIDE;
+            rows.put(row + DetectionView.X1, geometry.toImageX(input[4 * i]));
+            rows.put(row + DetectionView.Y1, geometry.toImageY(input[4 * i + 1]));
+            rows.put(row + DetectionView.X2, geometry.toImageX(input[4 * i + 2]));
+            rows.put(row + DetectionView.Y2, geometry.toImageY(input[4 * i + 3]));
+        }
+        view.setSize(boxes);
+        return boxes;
+    }
+
+    @Benchmark
+    public CoreMLResult[] mapToResults() {
+        CoreMLResult[] results = new CoreMLResult[boxes];
+        for (int i = 0; i < boxes; i++) {
+            results[i] = new CoreMLResult(
+                (int) geometry.toImageX(input[4 * i]), (int) geometry.toImageY(input[4 * i + 1]),
+                (int) geometry.toImageX(input[4 * i + 2]), (int) geometry.toImageY(input[4 * i + 3]),
+                1.0f, 0);
+        }
+        return results;
+    }
+
+    /** Geometry computed per frame rather than once per stream. */
+    @Benchmark
+    public int mapWithFreshGeometry() {
+        geometry = LetterboxGeometry.of(1280, 720, 640, 640);
+        return mapIntoView();
+    }
+}
@@ -0,0 +1,73 @@
+package org.atomstorm.coreml;
+
+import java.util.concurrent.TimeUnit;
+import org.atomstorm.coreml.CoreMLJNI.CoreMLResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of handing one frame's detections to Java: a {@link CoreMLResult} per detection, as
+ * {@link CoreMLJNI#detect} returns, against rows in a reused {@link DetectionView}. Run with
+ * the gc profiler to compare allocation per frame.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MarshallingBenchmark {
+    private ReplayBackend backend;
+    private DetectionView view;
+    private long frame;
+
+    /** Box threshold; lower keeps more detections per frame. */
+    @Param({"0.25", "0.5"})
+    public double boxThresh;
+
+    @Setup
+    public void setup() {
+        backend = ReplayBackend.load(ReplayBackend.SAMPLE, false);
+        view = new DetectionView(100);
+    }
+
+    @Benchmark
+    public CoreMLResult[] objects() {
+        return backend.detect(frame++, 0.45, boxThresh);
+    }
+
+    @Benchmark
+    public int flatBuffer() {
+        int count = backend.detectInto(frame++, 0.45, boxThresh, view.buffer());
+        view.setSize(count);
+        return count;
+    }
+
+    @Benchmark
+    public float flatBufferRead() {
+        int count = flatBuffer();
+        float sum = 0;
+        for (int i = 0; i < count; i++) {
+            sum += view.width(i) * view.height(i) * view.confidence(i);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public double objectsRead() {
+        double sum = 0;
+        for (CoreMLResult result : objects()) {
+            sum += result.rect.width * result.rect.height * result.conf;
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,134 @@
+package org.atomstorm.coreml;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.atomstorm.coreml.CoreMLJNI.CoreMLResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Several models with the same input size on one frame: a separate detect per model, which
+ * letterboxes the frame every time, against {@link CoreMLJNI#detectAll}, which letterboxes it
+ * once and shares the result, run sequentially or in parallel. Preprocessing is stood in for by
+ * a Java nearest-neighbour letterbox of a 1280x720 BGR frame into a 640x640 BGRA buffer, and
+ * each model is its own replayed backend. With {@code timed} the models take their recorded
+ * inference time, so the parallel variant shows overlapping predictions too.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MultiModelBenchmark {
+    private static final int IMAGE_WIDTH = 1280;
+    private static final int IMAGE_HEIGHT = 720;
+    private static final int INPUT_SIZE = 640;
+
+    /** Models run on each frame. */
+    @Param({"2", "3"})
+    public int models;
+
+    /** Whether inference takes the recorded time. */
+    @Param({"false", "true"})
+    public boolean timed;
+
+    private ReplayBackend[] backends;
+    private ExecutorService executor;
+    private byte[] image;
+    private byte[] input;
+    private long frame;
+
+    @Setup
+    public void setup() {
+        backends = new ReplayBackend[models];
+        for (int i = 0; i < models; i++) {
+            backends[i] = ReplayBackend.load(ReplayBackend.SAMPLE, timed);
+        }
+        executor = Executors.newFixedThreadPool(models);
+        image = new byte[IMAGE_WIDTH * IMAGE_HEIGHT * 3];
+        new Random(5).nextBytes(image);
+        input = new byte[INPUT_SIZE * INPUT_SIZE * 4];
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public CoreMLResult[][] separate() {
+        long imagePtr = frame++;
+        CoreMLResult[][] results = new CoreMLResult[models][];
+        for (int i = 0; i < models; i++) {
+            letterbox();
+            results[i] = backends[i].detect(imagePtr, 0.45, 0.25);
+        }
+        return results;
+    }
+
+    @Benchmark
+    public CoreMLResult[][] shared() {
+        long imagePtr = frame++;
+        letterbox();
+        CoreMLResult[][] results = new CoreMLResult[models][];
+        for (int i = 0; i < models; i++) {
+            results[i] = backends[i].detect(imagePtr, 0.45, 0.25);
+        }
+        return results;
+    }
+
+    @Benchmark
+    public CoreMLResult[][] sharedParallel() {
+        long imagePtr = frame++;
+        letterbox();
+        List<CompletableFuture<CoreMLResult[]>> futures = new ArrayList<>(models);
+        for (int i = 0; i < models; i++) {
+            ReplayBackend backend = backends[i];
+            futures.add(CompletableFuture.supplyAsync(() -> backend.detect(imagePtr, 0.45, 0.25), executor));
+        }
+        CoreMLResult[][] results = new CoreMLResult[models][];
+        for (int i = 0; i < models; i++) {
+            results[i] = futures.get(i).join();
+        }
+        return results;
+    }
+
+    // Scale the image to fit the input, centre it on grey padding and expand BGR to BGRA
+    private void letterbox() {
+        float scale = Math.min((float) INPUT_SIZE / IMAGE_WIDTH, (float) INPUT_SIZE / IMAGE_HEIGHT);
+        int scaledWidth = Math.round(IMAGE_WIDTH * scale);
+        int scaledHeight = Math.round(IMAGE_HEIGHT * scale);
+        int padX = (INPUT_SIZE - scaledWidth) / 2;
+        int padY = (INPUT_SIZE - scaledHeight) / 2;
+
+        Arrays.fill(input, (byte) 114);
+        for (int y = 0; y < scaledHeight; y++) {
+            int srcRow = Math.min((int) (y / scale), IMAGE_HEIGHT - 1) * IMAGE_WIDTH * 3;
+            int dst = ((y + padY) * INPUT_SIZE + padX) * 4;
+            for (int x = 0; x < scaledWidth; x++, dst += 4) {
+                int src = srcRow + Math.min((int) (x / scale), IMAGE_WIDTH - 1) * 3;
+                input[dst] = image[src];
+                input[dst + 1] = image[src + 1];
+                input[dst + 2] = image[src + 2];
+                input[dst + 3] = (byte) 255;
+            }
+        }
+    }
+}
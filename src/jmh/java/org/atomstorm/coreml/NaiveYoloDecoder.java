@@ -0,0 +1,86 @@
+package org.atomstorm.coreml;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Straightforward YOLOv8 decoder used as a baseline for {@link YoloDecoder}: reads the tensor
+ * through the buffer one element at a time, boxes every candidate, sorts them all and runs
+ * NMS over the full list.
+ */
+final class NaiveYoloDecoder {
+    private static final class Candidate {
+        final float x1, y1, x2, y2, score;
+        final int classId;
+
+        Candidate(float x1, float y1, float x2, float y2, float score, int classId) {
+            this.x1 = x1;
+            this.y1 = y1;
+            this.x2 = x2;
+            this.y2 = y2;
+            this.score = score;
+            this.classId = classId;
+        }
+    }
+
+    private final int numClasses;
+    private final int numAnchors;
+
+    NaiveYoloDecoder(int numClasses, int numAnchors) {
+        this.numClasses = numClasses;
+        this.numAnchors = numAnchors;
+    }
+
+    List<CoreMLJNI.CoreMLResult> decode(FloatBuffer output, LetterboxGeometry geometry, double nmsThresh, double boxThresh) {
+        int n = numAnchors;
+        List<Candidate> candidates = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            float best = -1;
+            int bestClass = -1;
+            for (int c = 0; c < numClasses; c++) {
+                float s = output.get((4 + c) * n + i);
+                if (s > best) {
+                    best = s;
+                    bestClass = c;
+                }
+            }
+            if (best < boxThresh) {
+                continue;
+            }
+            float cx = output.get(i);
+            float cy = output.get(n + i);
+            float w = output.get(2 * n + i);
+            float h = output.get(3 * n + i);
+            candidates.add(new Candidate(cx - w / 2, cy - h / 2, cx + w / 2, cy + h / 2, best, bestClass));
+        }
+
+        candidates.sort((a, b) -> Float.compare(b.score, a.score));
+        boolean[] suppressed = new boolean[candidates.size()];
+        List<CoreMLJNI.CoreMLResult> results = new ArrayList<>();
+        for (int i = 0; i < candidates.size(); i++) {
+            if (suppressed[i]) {
+                continue;
+            }
+            Candidate a = candidates.get(i);
+            results.add(new CoreMLJNI.CoreMLResult(
+                (int) geometry.toImageX(a.x1), (int) geometry.toImageY(a.y1),
+                (int) geometry.toImageX(a.x2), (int) geometry.toImageY(a.y2), a.score, a.classId));
+            for (int j = i + 1; j < candidates.size(); j++) {
+                Candidate b = candidates.get(j);
+                if (!suppressed[j] && a.classId == b.classId && iou(a, b) > nmsThresh) {
+                    suppressed[j] = true;
+                }
+            }
+        }
+        return results;
+    }
+
+    private static float iou(Candidate a, Candidate b) {
+        float iw = Math.max(0, Math.min(a.x2, b.x2) - Math.max(a.x1, b.x1));
+        float ih = Math.max(0, Math.min(a.y2, b.y2) - Math.max(a.y1, b.y1));
+        float inter = iw * ih;
+        float union = (a.x2 - a.x1) * (a.y2 - a.y1) + (b.x2 - b.x1) * (b.y2 - b.y1) - inter;
+        return union > 0 ? inter / union : 0;
+    }
+}
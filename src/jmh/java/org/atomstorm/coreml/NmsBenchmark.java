@@ -0,0 +1,78 @@
+package org.atomstorm.coreml;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** {@link NonMaxSuppression} over candidates clustered around a few objects. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class NmsBenchmark {
+    /** Candidates above the box threshold. */
+    @Param({"100", "1000", "8400"})
+    public int candidates;
+
+    /** Candidates kept for suppression. */
+    @Param({"300", "1024"})
+    public int topK;
+
+    private float[] boxes;
+    private float[] scores;
+    private int[] classes;
+    private long[] keys;
+    private int[] order;
+    private int[] keep;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(5);
+        boxes = new float[candidates * 4];
+        scores = new float[candidates];
+        classes = new int[candidates];
+        for (int i = 0; i < candidates; i++) {
+            int object = random.nextInt(30);
+            float x = (object % 6) * 100 + random.nextFloat() * 10;
+            float y = (object / 6) * 100 + random.nextFloat() * 10;
+            boxes[4 * i] = x;
+            boxes[4 * i + 1] = y;
+            boxes[4 * i + 2] = x + 60 + random.nextFloat() * 10;
+            boxes[4 * i + 3] = y + 60 + random.nextFloat() * 10;
+            scores[i] = 0.25f + random.nextFloat() * 0.75f;
+            classes[i] = object % 3;
+        }
+        keys = new long[candidates];
+        order = new int[topK];
+        keep = new int[100];
+    }
+
+    @Benchmark
+    public int classAware() {
+        int sorted = NonMaxSuppression.sortByScore(scores, candidates, topK, keys, order);
+        return NonMaxSuppression.suppress(boxes, classes, order, sorted, 0.45f, keep.length, keep);
+    }
+
+    @Benchmark
+    public int agnostic() {
+        int sorted = NonMaxSuppression.sortByScore(scores, candidates, topK, keys, order);
+        return NonMaxSuppression.suppress(boxes, null, order, sorted, 0.45f, keep.length, keep);
+    }
+
+    @Benchmark
+    public int sortOnly() {
+        return NonMaxSuppression.sortByScore(scores, candidates, topK, keys, order);
+    }
+}
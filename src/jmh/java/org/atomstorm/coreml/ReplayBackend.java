@@ -0,0 +1,248 @@
+package org.atomstorm.coreml;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.FloatBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.locks.ReentrantLock;
+import org.atomstorm.coreml.CoreMLJNI.CoreMLResult;
+
+/**
+ * Stand-in for the native detector that replays recorded model outputs, so the Java side of
+ * the hot path can be benchmarked on machines without Core ML.
+ *
+ * <p>A recording is a text file of frames. Each frame starts with {@code F,<latencyMicros>},
+ * the measured inference time, followed by one {@code D,x1,y1,x2,y2,conf,classId} line per
+ * detection in original image coordinates. Lines starting with {@code #} are comments.
+ * {@link #write} produces the format from detections captured on a Mac.
+ *
+ * <p>The image pointer passed to a call selects the frame, modulo the number of frames.
+ * Detections below the box threshold are dropped, as the model would; the NMS threshold is
+ * ignored because recordings are taken after NMS. When timing is enabled each inference
+ * holds a lock for the recorded latency, as predictions on one model run one at a time.
+ */
+final class ReplayBackend implements CoreMLPipeline.Stages, CoreMLMicroBatcher.BatchDetector {
+    /** Bundled synthetic sample: 1280x720 frames, up to 8 detections each, about 9 ms per inference. */
+    static final String SAMPLE = "/replay/sample.replay";
+
+    // Assumed extra cost of each additional frame in a batched prediction, relative to one frame
+    private static final double BATCH_FRAME_COST = 0.25;
+
+    private final float[][] rows; // Per frame, DetectionView.STRIDE floats per detection
+    private final long[] latencyNanos;
+    private final boolean timed;
+    private final ReentrantLock model = new ReentrantLock();
+
+    private ReplayBackend(float[][] rows, long[] latencyNanos, boolean timed) {
+        this.rows = rows;
+        this.latencyNanos = latencyNanos;
+        this.timed = timed;
+    }
+
+    /**
+     * Load a recording from the classpath.
+     *
+     * @param resource Resource name, e.g. {@link #SAMPLE}
+     * @param timed Whether inference takes the recorded time
+     * @return The backend
+     */
+    static ReplayBackend load(String resource, boolean timed) {
+        try (InputStream in = ReplayBackend.class.getResourceAsStream(resource)) {
+            if (in == null) {
+                throw new IllegalArgumentException("No recording at " + resource);
+            }
+            return read(in, timed);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static ReplayBackend read(InputStream in, boolean timed) throws IOException {
+        List<float[]> frames = new ArrayList<>();
+        List<Long> latencies = new ArrayList<>();
+        List<Float> current = null;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split(",");
+            if (fields[0].equals("F")) {
+                if (current != null) {
+                    frames.add(toArray(current));
+                }
+                current = new ArrayList<>();
+                latencies.add(Long.parseLong(fields[1]) * 1000);
+            } else if (fields[0].equals("D") && current != null && fields.length == 1 + DetectionView.STRIDE) {
+                for (int i = 1; i < fields.length; i++) {
+                    current.add(Float.parseFloat(fields[i]));
+                }
+            } else {
+                throw new IOException("Malformed recording line: " + line);
+            }
+        }
+        if (current != null) {
+            frames.add(toArray(current));
+        }
+        if (frames.isEmpty()) {
+            throw new IOException("Recording has no frames");
+        }
+        long[] latencyNanos = latencies.stream().mapToLong(Long::longValue).toArray();
+        return new ReplayBackend(frames.toArray(new float[0][]), latencyNanos, timed);
+    }
+
+    /**
+     * Write detections in the recording format.
+     *
+     * @param out Destination
+     * @param frames Detections of each frame
+     * @param latencyMicros Inference time of each frame
+     * @throws IOException If writing fails
+     */
+    static void write(Writer out, List<CoreMLResult[]> frames, long[] latencyMicros) throws IOException {
+        for (int f = 0; f < frames.size(); f++) {
+            out.write("F," + latencyMicros[f] + "\n");
+            for (CoreMLResult r : frames.get(f)) {
+                out.write(String.format(Locale.ROOT, "D,%.1f,%.1f,%.1f,%.1f,%.4f,%d%n",
+                    r.rect.x, r.rect.y, r.rect.x + r.rect.width, r.rect.y + r.rect.height, r.conf, r.class_id));
+            }
+        }
+    }
+
+    /** @return Number of recorded frames. */
+    int frameCount() {
+        return rows.length;
+    }
+
+    /** @return The recorded rows of a frame, {@link DetectionView#STRIDE} floats per detection. */
+    float[] rows(long imagePtr) {
+        return rows[frame(imagePtr)];
+    }
+
+    /** Replays {@link CoreMLJNI#detect}: one object per detection, coordinates truncated to int. */
+    CoreMLResult[] detect(long imagePtr, double nmsThresh, double boxThresh) {
+        return detect(imagePtr, nmsThresh, boxThresh, 1.0);
+    }
+
+    /**
+     * Replays {@link CoreMLJNI#detect} on an input of a different size than the recording's.
+     * Inference takes the recorded time multiplied by {@code costScale}, e.g. the ratio of
+     * input areas, as the model's cost grows with the pixels it reads.
+     */
+    CoreMLResult[] detect(long imagePtr, double nmsThresh, double boxThresh, double costScale) {
+        int frame = frame(imagePtr);
+        simulateInference((long) (latencyNanos[frame] * costScale));
+        return toResults(rows[frame], boxThresh);
+    }
+
+    /** Replays {@link CoreMLJNI#detectInto(long, long, double, double, FloatBuffer)}. */
+    int detectInto(long imagePtr, double nmsThresh, double boxThresh, FloatBuffer out) {
+        int frame = frame(imagePtr);
+        simulateInference(latencyNanos[frame]);
+        float[] src = rows[frame];
+        int capacity = out.capacity() / DetectionView.STRIDE;
+        int count = 0;
+        for (int r = 0; r < src.length && count < capacity; r += DetectionView.STRIDE) {
+            if (src[r + DetectionView.CONF] < boxThresh) {
+                continue;
+            }
+            int base = count * DetectionView.STRIDE;
+            for (int k = 0; k < DetectionView.STRIDE; k++) {
+                out.put(base + k, src[r + k]);
+            }
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public long preprocess(long imagePtr) {
+        return frame(imagePtr) + 1L; // 0 means failure
+    }
+
+    @Override
+    public CoreMLResult[] infer(long prepared, double nmsThresh, double boxThresh) {
+        int frame = (int) (prepared - 1);
+        simulateInference(latencyNanos[frame]);
+        return toResults(rows[frame], boxThresh);
+    }
+
+    @Override
+    public void release(long prepared) {}
+
+    @Override
+    public CoreMLResult[][] detectBatch(long[] imagePtrs, double nmsThresh, double boxThresh) {
+        long longest = 0;
+        for (long imagePtr : imagePtrs) {
+            longest = Math.max(longest, latencyNanos[frame(imagePtr)]);
+        }
+        simulateInference((long) (longest * (1 + BATCH_FRAME_COST * (imagePtrs.length - 1))));
+
+        CoreMLResult[][] results = new CoreMLResult[imagePtrs.length][];
+        for (int i = 0; i < imagePtrs.length; i++) {
+            results[i] = toResults(rows[frame(imagePtrs[i])], boxThresh);
+        }
+        return results;
+    }
+
+    private int frame(long imagePtr) {
+        return (int) Math.floorMod(imagePtr, (long) rows.length);
+    }
+
+    private void simulateInference(long nanos) {
+        if (!timed) {
+            return;
+        }
+        model.lock();
+        try {
+            long deadline = System.nanoTime() + nanos;
+            while (System.nanoTime() < deadline) {
+                Thread.onSpinWait();
+            }
+        } finally {
+            model.unlock();
+        }
+    }
+
+    private static CoreMLResult[] toResults(float[] src, double boxThresh) {
+        int count = 0;
+        for (int r = 0; r < src.length; r += DetectionView.STRIDE) {
+            if (src[r + DetectionView.CONF] >= boxThresh) {
+                count++;
+            }
+        }
+        CoreMLResult[] results = new CoreMLResult[count];
+        int i = 0;
+        for (int r = 0; r < src.length; r += DetectionView.STRIDE) {
+            if (src[r + DetectionView.CONF] >= boxThresh) {
+                results[i++] = new CoreMLResult(
+                    (int) src[r + DetectionView.X1], (int) src[r + DetectionView.Y1],
+                    (int) src[r + DetectionView.X2], (int) src[r + DetectionView.Y2],
+                    src[r + DetectionView.CONF], (int) src[r + DetectionView.CLASS_ID]);
+            }
+        }
+        return results;
+    }
+
+    private static float[] toArray(List<Float> values) {
+        float[] array = new float[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
+        }
+        return array;
+    }
+
+    @Override
+    public String toString() {
+        return "ReplayBackend [frames=" + rows.length + ", timed=" + timed + "]";
+    }
+}
@@ -0,0 +1,99 @@
+package org.atomstorm.coreml;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.atomstorm.coreml.CoreMLJNI.CoreMLResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The Java side of {@link TiledDetector}: mapping each tile's detections into the frame and
+ * merging the duplicates of overlapping tiles, for a 1920x1080 frame cut into 640x640 tiles
+ * plus the full frame. Tiles replay synthetic detections instead of running a model.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TilingBenchmark {
+    /** Objects in the frame. */
+    @Param({"10", "100"})
+    public int objects;
+
+    /** How duplicates are merged. */
+    @Param({"NMS", "WEIGHTED_FUSION"})
+    public TileMerger.Mode mode;
+
+    private TiledDetector detector;
+    private TilePlan plan;
+    private long[] tilePtrs;
+
+    @Setup
+    public void setup() {
+        plan = TilePlan.create(1920, 1080, 640, 640, 0.2f, true);
+        Random random = new Random(21);
+        float[] boxes = new float[objects * 4];
+        for (int o = 0; o < objects; o++) {
+            float x = random.nextFloat() * 1880;
+            float y = random.nextFloat() * 1040;
+            float size = 8 + random.nextFloat() * 40;
+            boxes[4 * o] = x;
+            boxes[4 * o + 1] = y;
+            boxes[4 * o + 2] = Math.min(1920, x + size);
+            boxes[4 * o + 3] = Math.min(1080, y + size);
+        }
+        // Each tile reports the objects it overlaps, clipped to the tile, with a little jitter
+        CoreMLResult[][] tiles = new CoreMLResult[plan.count()][];
+        for (int t = 0; t < plan.count(); t++) {
+            List<CoreMLResult> seen = new ArrayList<>();
+            for (int o = 0; o < objects; o++) {
+                float x1 = Math.max(boxes[4 * o], plan.x(t)) - plan.x(t);
+                float y1 = Math.max(boxes[4 * o + 1], plan.y(t)) - plan.y(t);
+                float x2 = Math.min(boxes[4 * o + 2], plan.x(t) + plan.width(t)) - plan.x(t);
+                float y2 = Math.min(boxes[4 * o + 3], plan.y(t) + plan.height(t)) - plan.y(t);
+                if (x2 - x1 < 4 || y2 - y1 < 4) {
+                    continue;
+                }
+                int jitter = random.nextInt(3) - 1;
+                seen.add(new CoreMLResult((int) x1 + jitter, (int) y1, (int) x2 + jitter, (int) y2,
+                    0.3f + random.nextFloat() * 0.7f, o % 4));
+            }
+            tiles[t] = seen.toArray(new CoreMLResult[0]);
+        }
+        tilePtrs = new long[plan.count()];
+        for (int t = 0; t < tilePtrs.length; t++) {
+            tilePtrs[t] = t;
+        }
+        CoreMLMicroBatcher.BatchDetector replay = (ptrs, nms, box) -> {
+            CoreMLResult[][] results = new CoreMLResult[ptrs.length][];
+            for (int i = 0; i < ptrs.length; i++) {
+                results[i] = tiles[(int) ptrs[i]];
+            }
+            return results;
+        };
+        detector = TiledDetector.batched(replay, 640, 640, 0.2f, true, new TileMerger(mode, 0.5f, 300));
+    }
+
+    @Benchmark
+    public CoreMLResult[] mapAndMerge() {
+        return detector.detect(plan, tilePtrs, 0.45, 0.25);
+    }
+
+    @Benchmark
+    public TilePlan plan() {
+        return TilePlan.create(1920, 1080, 640, 640, 0.2f, true);
+    }
+}
@@ -0,0 +1,108 @@
+package org.atomstorm.coreml;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.atomstorm.coreml.CoreMLJNI.CoreMLResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link TrackingDetector} over a synthetic camera feed, one frame per operation.
+ *
+ * <p>The feed loops over frames of objects moving smoothly across a 1280x720 image, with a
+ * couple of pixels of detection jitter. {@code everyFrame} detects on every frame, as a plain
+ * {@link CoreMLJNI#detect} loop would; {@code tracked} detects every {@code detectInterval}
+ * frames and tracks in between. With {@code inferenceMicros} at 0 the difference is the
+ * tracker's own per-frame cost; with a realistic inference time it is the compute saved.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TrackingBenchmark {
+    private static final int FRAMES = 300;
+
+    /** Objects in view. */
+    @Param({"4", "16"})
+    public int objects;
+
+    /** Frames between detections of the tracked detector. */
+    @Param({"3", "6"})
+    public int detectInterval;
+
+    /** Simulated inference time of one detection. */
+    @Param({"0", "9000"})
+    public int inferenceMicros;
+
+    /** Replays the synthetic feed; the image pointer is the frame number. */
+    private static final class SyntheticDetector implements CoreMLDetectorPool.Detector {
+        final CoreMLResult[][] frames;
+        final long inferenceNanos;
+
+        SyntheticDetector(CoreMLResult[][] frames, long inferenceNanos) {
+            this.frames = frames;
+            this.inferenceNanos = inferenceNanos;
+        }
+
+        @Override
+        public CoreMLResult[] detect(long imagePtr, double nmsThresh, double boxThresh) {
+            long deadline = System.nanoTime() + inferenceNanos;
+            while (System.nanoTime() < deadline) {
+                Thread.onSpinWait();
+            }
+            return frames[(int) (imagePtr % frames.length)];
+        }
+
+        @Override
+        public void close() {}
+    }
+
+    private SyntheticDetector detector;
+    private TrackingDetector tracking;
+    private long frame;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(13);
+        CoreMLResult[][] frames = new CoreMLResult[FRAMES][objects];
+        for (int o = 0; o < objects; o++) {
+            // Sinusoidal paths whose periods divide the feed length, so it loops seamlessly
+            double cx = 200 + random.nextDouble() * 880;
+            double cy = 150 + random.nextDouble() * 420;
+            double ax = 30 + random.nextDouble() * 120;
+            double ay = 20 + random.nextDouble() * 80;
+            int periods = 1 + random.nextInt(2);
+            double phase = random.nextDouble() * 2 * Math.PI;
+            int size = 40 + random.nextInt(60);
+            for (int f = 0; f < FRAMES; f++) {
+                double angle = 2 * Math.PI * periods * f / FRAMES + phase;
+                int x = (int) (cx + ax * Math.sin(angle) + random.nextGaussian() * 2);
+                int y = (int) (cy + ay * Math.cos(angle) + random.nextGaussian() * 2);
+                frames[f][o] = new CoreMLResult(x, y, x + size, y + size, 0.6f + random.nextFloat() * 0.4f, o % 3);
+            }
+        }
+        detector = new SyntheticDetector(frames, TimeUnit.MICROSECONDS.toNanos(inferenceMicros));
+        tracking = new TrackingDetector(detector, new BoxTracker(64, 0.3f, 2, 0.95f), detectInterval, 0);
+    }
+
+    @Benchmark
+    public CoreMLResult[] everyFrame() {
+        return detector.detect(frame++, 0.45, 0.25);
+    }
+
+    @Benchmark
+    public boolean tracked() {
+        return tracking.process(frame++, 0.45, 0.25);
+    }
+}
@@ -0,0 +1,83 @@
+package org.atomstorm.coreml;
+
+import java.nio.FloatBuffer;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.atomstorm.coreml.CoreMLJNI.ModelVersion;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decoding a YOLOv8 640x640, 80 class output tensor: {@link YoloDecoder} against
+ * {@link NaiveYoloDecoder}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class YoloDecodeBenchmark {
+    private static final int NUM_CLASSES = 80;
+    private static final int INPUT_SIZE = 640;
+
+    /** Number of predictions above the box threshold. */
+    @Param({"50", "1000", "8400"})
+    public int candidates;
+
+    private YoloDecoder decoder;
+    private NaiveYoloDecoder naive;
+    private FloatBuffer output;
+    private LetterboxGeometry geometry;
+    private DetectionView view;
+
+    @Setup
+    public void setup() {
+        decoder = new YoloDecoder(ModelVersion.YOLO_V8, NUM_CLASSES, INPUT_SIZE, INPUT_SIZE);
+        int n = decoder.numAnchors();
+        naive = new NaiveYoloDecoder(NUM_CLASSES, n);
+        geometry = LetterboxGeometry.of(1280, 720, INPUT_SIZE, INPUT_SIZE);
+        view = new DetectionView(100);
+
+        // Background class scores stay below threshold; a random subset of anchors gets a
+        // confident class and a box clustered around a few objects, as a real frame would
+        Random random = new Random(7);
+        output = DetectionView.allocate(decoder.outputSize() / DetectionView.STRIDE + 1);
+        for (int i = 0; i < n; i++) {
+            output.put(i, random.nextFloat() * INPUT_SIZE);
+            output.put(n + i, random.nextFloat() * INPUT_SIZE);
+            output.put(2 * n + i, 10 + random.nextFloat() * 100);
+            output.put(3 * n + i, 10 + random.nextFloat() * 100);
+            for (int c = 0; c < NUM_CLASSES; c++) {
+                output.put((4 + c) * n + i, random.nextFloat() * 0.2f);
+            }
+        }
+        for (int k = 0; k < candidates; k++) {
+            int i = (int) ((long) k * n / candidates);
+            int object = random.nextInt(20);
+            output.put(i, 32 + object * 28 + random.nextFloat() * 8);
+            output.put(n + i, 100 + object * 20 + random.nextFloat() * 8);
+            output.put((4 + object % NUM_CLASSES) * n + i, 0.3f + random.nextFloat() * 0.7f);
+        }
+    }
+
+    @Benchmark
+    public int decoder() {
+        return decoder.decode(output, geometry, 0.45, 0.25, view);
+    }
+
+    @Benchmark
+    public List<CoreMLJNI.CoreMLResult> naive() {
+        return naive.decode(output, geometry, 0.45, 0.25);
+    }
+}
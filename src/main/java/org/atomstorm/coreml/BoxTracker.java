@@ -0,0 +1,400 @@
+/*
+ * Copyright (C) AtomStorm.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.atomstorm.coreml;
+
+/**
+ * Lightweight multi-object tracker over primitive arrays, for propagating detections across
+ * frames that are not run through the model.
+ *
+ * <p>Each track filters its box center, width and height with independent constant-velocity
+ * Kalman filters, with noise proportional to the box size. Every frame call {@link #predict()};
+ * on frames that ran detection follow it with {@link #update}, which matches detections to the
+ * predicted boxes greedily by IoU, best scoring detection first and only within a class.
+ * Matched tracks take the detection's confidence, unmatched detections start new tracks, and
+ * tracks that go unmatched for too many updates are dropped. Track IDs are stable for the
+ * life of a track and never reused.
+ *
+ * <p>A track's confidence decays by a constant factor at every prediction, so it measures how
+ * stale the track is. Nothing allocates once the detection scratch space has grown to the
+ * largest detection count seen. A tracker is not thread-safe.
+ */
+public final class BoxTracker {
+    // State per track: cx, cy, w, h, then their velocities in pixels per frame
+    private static final int STATE = 8;
+    // Covariance per track: p00, p01, p11 of each of the four axes
+    private static final int COV = 12;
+
+    // Noise standard deviations relative to the larger box side, per frame
+    private static final float POSITION_NOISE = 1.0f / 20;
+    private static final float VELOCITY_NOISE = 1.0f / 160;
+    private static final float MEASUREMENT_NOISE = 1.0f / 20;
+    // Initial velocity uncertainty of a new track, relative to the larger box side
+    private static final float INITIAL_VELOCITY_STD = 1.0f / 8;
+
+    private final int maxTracks;
+    private final float iouThresh;
+    private final int maxMisses;
+    private final float confidenceDecay;
+
+    private final float[] state;
+    private final float[] cov;
+    private final float[] boxes;
+    private final float[] conf;
+    private final float[] scores;
+    private final int[] classIds;
+    private final int[] ids;
+    private final int[] misses;
+    private final int[] age;
+    private final boolean[] matched;
+    private int size;
+    private int nextId = 1;
+
+    // Detection scratch, grown on demand
+    private long[] keys = new long[0];
+    private int[] order = new int[0];
+
+    /**
+     * Creates a tracker.
+     *
+     * @param maxTracks Maximum number of live tracks; further detections are not tracked
+     * @param iouThresh Minimum IoU between a predicted box and a detection to match them
+     * @param maxMisses Number of consecutive updates a track may go unmatched before it is dropped
+     * @param confidenceDecay Factor applied to every track's confidence at each prediction, in (0, 1]
+     */
+    public BoxTracker(int maxTracks, float iouThresh, int maxMisses, float confidenceDecay) {
+        if (maxTracks <= 0) {
+            throw new IllegalArgumentException("maxTracks must be positive");
+        }
+        if (!(confidenceDecay > 0 && confidenceDecay <= 1)) {
+            throw new IllegalArgumentException("confidenceDecay must be in (0, 1]");
+        }
+        this.maxTracks = maxTracks;
+        this.iouThresh = iouThresh;
+        this.maxMisses = maxMisses;
+        this.confidenceDecay = confidenceDecay;
+        state = new float[maxTracks * STATE];
+        cov = new float[maxTracks * COV];
+        boxes = new float[maxTracks * 4];
+        conf = new float[maxTracks];
+        scores = new float[maxTracks];
+        classIds = new int[maxTracks];
+        ids = new int[maxTracks];
+        misses = new int[maxTracks];
+        age = new int[maxTracks];
+        matched = new boolean[maxTracks];
+    }
+
+    /** Advance every track by one frame and decay its confidence. */
+    public void predict() {
+        for (int t = 0; t < size; t++) {
+            int s = t * STATE;
+            float scale = Math.max(state[s + 2], state[s + 3]);
+            float qPos = square(POSITION_NOISE * scale);
+            float qVel = square(VELOCITY_NOISE * scale);
+            for (int axis = 0; axis < 4; axis++) {
+                int c = t * COV + axis * 3;
+                state[s + axis] += state[s + 4 + axis];
+                float p01 = cov[c + 1];
+                float p11 = cov[c + 2];
+                cov[c] += 2 * p01 + p11 + qPos;
+                cov[c + 1] = p01 + p11;
+                cov[c + 2] = p11 + qVel;
+            }
+            // Keep boxes from collapsing under a shrinking velocity estimate
+            state[s + 2] = Math.max(state[s + 2], 1);
+            state[s + 3] = Math.max(state[s + 3], 1);
+            conf[t] *= confidenceDecay;
+            age[t]++;
+            writeBox(t);
+        }
+    }
+
+    /**
+     * Correct the tracks with a frame's detections. Call after {@link #predict()}.
+     *
+     * @param detBoxes Detected boxes, four floats each: {@code [x1, y1, x2, y2]}
+     * @param scores Detection confidences
+     * @param detClassIds Detection classes
+     * @param count Number of detections
+     */
+    public void update(float[] detBoxes, float[] scores, int[] detClassIds, int count) {
+        if (keys.length < count) {
+            keys = new long[count];
+            order = new int[count];
+        }
+        for (int t = 0; t < size; t++) {
+            matched[t] = false;
+        }
+        int tracked = size;
+        int sorted = NonMaxSuppression.sortByScore(scores, count, count, keys, order);
+        for (int n = 0; n < sorted; n++) {
+            int d = order[n];
+            int best = -1;
+            float bestIou = iouThresh;
+            for (int t = 0; t < tracked; t++) {
+                if (matched[t] || classIds[t] != detClassIds[d]) {
+                    continue;
+                }
+                float iou = iou(boxes, t, detBoxes, d);
+                if (iou >= bestIou) {
+                    best = t;
+                    bestIou = iou;
+                }
+            }
+            if (best >= 0) {
+                correct(best, detBoxes, d);
+                conf[best] = scores[d];
+                this.scores[best] = scores[d];
+                misses[best] = 0;
+                matched[best] = true;
+            } else if (size < maxTracks) {
+                start(size, detBoxes, d, scores[d], detClassIds[d]);
+                matched[size] = true;
+                size++;
+            }
+        }
+        // Drop stale tracks, filling each hole from the end
+        for (int t = 0; t < size;) {
+            if (!matched[t] && ++misses[t] > maxMisses) {
+                move(--size, t);
+            } else {
+                t++;
+            }
+        }
+    }
+
+    /** Drop every track. IDs keep counting up. */
+    public void clear() {
+        size = 0;
+    }
+
+    /** @return Number of live tracks. */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param track Track index, below {@link #size()}
+     * @return Stable ID of the track
+     */
+    public int id(int track) {
+        return ids[track];
+    }
+
+    /**
+     * @param track Track index, below {@link #size()}
+     * @return Confidence of the last matched detection, decayed once per prediction since
+     */
+    public float confidence(int track) {
+        return conf[track];
+    }
+
+    /**
+     * @param track Track index, below {@link #size()}
+     * @return Confidence of the last matched detection, without decay
+     */
+    public float score(int track) {
+        return scores[track];
+    }
+
+    /**
+     * @param track Track index, below {@link #size()}
+     * @return Class of the track
+     */
+    public int classId(int track) {
+        return classIds[track];
+    }
+
+    /**
+     * @param track Track index, below {@link #size()}
+     * @return Consecutive updates the track went unmatched
+     */
+    public int misses(int track) {
+        return misses[track];
+    }
+
+    /**
+     * @param track Track index, below {@link #size()}
+     * @return Number of predictions since the track started
+     */
+    public int age(int track) {
+        return age[track];
+    }
+
+    /**
+     * @param track Track index, below {@link #size()}
+     * @return Estimated x-coordinate of the top-left corner
+     */
+    public float x1(int track) {
+        return boxes[track * 4];
+    }
+
+    /**
+     * @param track Track index, below {@link #size()}
+     * @return Estimated y-coordinate of the top-left corner
+     */
+    public float y1(int track) {
+        return boxes[track * 4 + 1];
+    }
+
+    /**
+     * @param track Track index, below {@link #size()}
+     * @return Estimated x-coordinate of the bottom-right corner
+     */
+    public float x2(int track) {
+        return boxes[track * 4 + 2];
+    }
+
+    /**
+     * @param track Track index, below {@link #size()}
+     * @return Estimated y-coordinate of the bottom-right corner
+     */
+    public float y2(int track) {
+        return boxes[track * 4 + 3];
+    }
+
+    /** @return Lowest confidence of any track, or 1 if there are none. */
+    public float lowestConfidence() {
+        float lowest = 1.0f;
+        for (int t = 0; t < size; t++) {
+            lowest = Math.min(lowest, conf[t]);
+        }
+        return lowest;
+    }
+
+    /**
+     * Whether any track has decayed below a confidence it was last matched at or above.
+     * Tracks last matched below the threshold do not count, as decay cannot be what took
+     * them there.
+     *
+     * @param threshold Confidence threshold
+     * @return Whether such a track exists
+     */
+    public boolean decayedBelow(float threshold) {
+        for (int t = 0; t < size; t++) {
+            if (conf[t] < threshold && scores[t] >= threshold) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void start(int t, float[] detBoxes, int d, float score, int classId) {
+        int s = t * STATE;
+        int b = d * 4;
+        float w = detBoxes[b + 2] - detBoxes[b];
+        float h = detBoxes[b + 3] - detBoxes[b + 1];
+        state[s] = detBoxes[b] + w / 2;
+        state[s + 1] = detBoxes[b + 1] + h / 2;
+        state[s + 2] = w;
+        state[s + 3] = h;
+        float scale = Math.max(w, h);
+        float pPos = square(MEASUREMENT_NOISE * scale);
+        float pVel = square(INITIAL_VELOCITY_STD * scale);
+        for (int axis = 0; axis < 4; axis++) {
+            state[s + 4 + axis] = 0;
+            int c = t * COV + axis * 3;
+            cov[c] = pPos;
+            cov[c + 1] = 0;
+            cov[c + 2] = pVel;
+        }
+        conf[t] = score;
+        scores[t] = score;
+        classIds[t] = classId;
+        ids[t] = nextId++;
+        misses[t] = 0;
+        age[t] = 0;
+        writeBox(t);
+    }
+
+    private void correct(int t, float[] detBoxes, int d) {
+        int s = t * STATE;
+        int b = d * 4;
+        float w = detBoxes[b + 2] - detBoxes[b];
+        float h = detBoxes[b + 3] - detBoxes[b + 1];
+        float r = square(MEASUREMENT_NOISE * Math.max(w, h));
+        correctAxis(t, 0, detBoxes[b] + w / 2, r);
+        correctAxis(t, 1, detBoxes[b + 1] + h / 2, r);
+        correctAxis(t, 2, w, r);
+        correctAxis(t, 3, h, r);
+        writeBox(t);
+    }
+
+    private void correctAxis(int t, int axis, float measured, float r) {
+        int s = t * STATE;
+        int c = t * COV + axis * 3;
+        float p00 = cov[c];
+        float p01 = cov[c + 1];
+        float p11 = cov[c + 2];
+        float k0 = p00 / (p00 + r);
+        float k1 = p01 / (p00 + r);
+        float innovation = measured - state[s + axis];
+        state[s + axis] += k0 * innovation;
+        state[s + 4 + axis] += k1 * innovation;
+        cov[c] = (1 - k0) * p00;
+        cov[c + 1] = (1 - k0) * p01;
+        cov[c + 2] = p11 - k1 * p01;
+    }
+
+    private void writeBox(int t) {
+        int s = t * STATE;
+        int b = t * 4;
+        float halfW = state[s + 2] / 2;
+        float halfH = state[s + 3] / 2;
+        boxes[b] = state[s] - halfW;
+        boxes[b + 1] = state[s + 1] - halfH;
+        boxes[b + 2] = state[s] + halfW;
+        boxes[b + 3] = state[s + 1] + halfH;
+    }
+
+    private void move(int from, int to) {
+        if (from == to) {
+            return;
+        }
+        System.arraycopy(state, from * STATE, state, to * STATE, STATE);
+        System.arraycopy(cov, from * COV, cov, to * COV, COV);
+        System.arraycopy(boxes, from * 4, boxes, to * 4, 4);
+        conf[to] = conf[from];
+        scores[to] = scores[from];
+        classIds[to] = classIds[from];
+        ids[to] = ids[from];
+        misses[to] = misses[from];
+        age[to] = age[from];
+        matched[to] = matched[from];
+    }
+
+    private static float iou(float[] a, int i, float[] b, int j) {
+        int p = i * 4;
+        int q = j * 4;
+        float ix1 = Math.max(a[p], b[q]);
+        float iy1 = Math.max(a[p + 1], b[q + 1]);
+        float ix2 = Math.min(a[p + 2], b[q + 2]);
+        float iy2 = Math.min(a[p + 3], b[q + 3]);
+        float inter = Math.max(0.0f, ix2 - ix1) * Math.max(0.0f, iy2 - iy1);
+        if (inter <= 0.0f) {
+            return 0.0f;
+        }
+        float areaA = (a[p + 2] - a[p]) * (a[p + 3] - a[p + 1]);
+        float areaB = (b[q + 2] - b[q]) * (b[q + 3] - b[q + 1]);
+        return inter / (areaA + areaB - inter);
+    }
+
+    private static float square(float x) {
+        return x * x;
+    }
+}
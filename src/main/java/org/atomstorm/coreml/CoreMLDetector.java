@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) AtomStorm.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.atomstorm.coreml;
+
+import java.lang.ref.Cleaner;
+import java.lang.ref.Reference;
+import java.nio.FloatBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongFunction;
+import org.atomstorm.coreml.CoreMLJNI.CoreMLResult;
+import org.atomstorm.coreml.CoreMLJNI.CoreMask;
+import org.atomstorm.coreml.CoreMLJNI.ModelVersion;
+
+/**
+ * Owning handle to a native detector, safe to use and close from any thread.
+ *
+ * <p>{@link CoreMLJNI#destroy} frees the detector immediately, so destroying a raw pointer
+ * while another thread is inside {@link CoreMLJNI#detect} is a use-after-free. A handle
+ * counts the calls in flight instead: each call increments the count on entry and decrements
+ * it on exit, one atomic operation each, so callers never block each other. {@link #close()}
+ * marks the handle closed, which makes new calls fail with {@link IllegalStateException},
+ * waits for the calls already in flight, and only then frees the detector.
+ *
+ * <p>A handle that becomes unreachable without being closed is freed by a {@link Cleaner}
+ * and counted in {@link #getLeakedCount()}.
+ */
+public final class CoreMLDetector implements CoreMLDetectorPool.Detector {
+    // The state is the number of calls in flight, plus CLOSED once close() has begun
+    private static final long CLOSED = 1L << 62;
+    private static final long COUNT_MASK = CLOSED - 1;
+
+    private static final AtomicLong LEAKED = new AtomicLong();
+    private static final Cleaner CLEANER = Cleaner.create(runnable -> {
+        Thread thread = new Thread(runnable, "coreml-cleaner");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // The native calls a handle makes, replaced by a stand-in in tests and benchmarks
+    interface Natives {
+        CoreMLResult[] detect(long ptr, long imagePtr, double nmsThresh, double boxThresh);
+
+        void destroy(long ptr);
+    }
+
+    static final Natives JNI = new Natives() {
+        @Override
+        public CoreMLResult[] detect(long ptr, long imagePtr, double nmsThresh, double boxThresh) {
+            return CoreMLJNI.detect(ptr, imagePtr, nmsThresh, boxThresh);
+        }
+
+        @Override
+        public void destroy(long ptr) {
+            CoreMLJNI.destroy(ptr);
+        }
+    };
+
+    // Frees the detector, from close() or from the cleaner. Must not refer to the handle,
+    // or the handle could never become unreachable.
+    private static final class Resource implements Runnable {
+        final long ptr;
+        final Natives natives;
+        volatile boolean closed;
+
+        Resource(long ptr, Natives natives) {
+            this.ptr = ptr;
+            this.natives = natives;
+        }
+
+        @Override
+        public void run() {
+            if (!closed) {
+                LEAKED.incrementAndGet();
+            }
+            natives.destroy(ptr);
+        }
+    }
+
+    private final long ptr;
+    private final Natives natives;
+    private final Resource resource;
+    private final Cleaner.Cleanable cleanable;
+    private final AtomicLong state = new AtomicLong();
+    private volatile Thread closer;
+
+    /**
+     * Takes ownership of a native detector. The pointer must not be used or destroyed
+     * elsewhere afterwards.
+     *
+     * @param ptr Pointer to detector created by {@link CoreMLJNI#create}
+     */
+    public CoreMLDetector(long ptr) {
+        this(ptr, JNI);
+    }
+
+    CoreMLDetector(long ptr, Natives natives) {
+        if (ptr == 0) {
+            throw new IllegalArgumentException("Null detector pointer");
+        }
+        this.ptr = ptr;
+        this.natives = natives;
+        resource = new Resource(ptr, natives);
+        cleanable = CLEANER.register(this, resource);
+    }
+
+    /**
+     * Create a native detector and wrap it.
+     *
+     * @param modelPath Path to the model on disk, as for {@link CoreMLJNI#create}
+     * @param numClasses How many classes. MUST MATCH or native code segfaults
+     * @param modelVer Which model is being used
+     * @param coreMask Which compute unit to use
+     * @return The handle
+     * @throws IllegalStateException If the detector cannot be created
+     */
+    public static CoreMLDetector create(String modelPath, int numClasses, ModelVersion modelVer, CoreMask coreMask) {
+        long ptr = CoreMLJNI.create(modelPath, numClasses, modelVer.ordinal(), coreMask.ordinal());
+        if (ptr == 0) {
+            throw new IllegalStateException("Failed to create detector for " + modelPath);
+        }
+        return new CoreMLDetector(ptr);
+    }
+
+    /**
+     * Run detection, as {@link CoreMLJNI#detect(long, long, double, double)}.
+     *
+     * @param imagePtr Pointer to a cv::Mat input image
+     * @param nmsThresh Non-Maximum Suppression threshold
+     * @param boxThresh Bounding box confidence threshold
+     * @return Array of CoreMLResult objects containing the detection results
+     * @throws IllegalStateException If the handle is closed
+     */
+    @Override
+    public CoreMLResult[] detect(long imagePtr, double nmsThresh, double boxThresh) {
+        acquire();
+        try {
+            return natives.detect(ptr, imagePtr, nmsThresh, boxThresh);
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Run detection into a caller-owned array, as
+     * {@link CoreMLJNI#detectInto(long, long, double, double, float[])}.
+     *
+     * @param imagePtr Pointer to a cv::Mat input image
+     * @param nmsThresh Non-Maximum Suppression threshold
+     * @param boxThresh Bounding box confidence threshold
+     * @param out Array receiving the packed rows
+     * @return Number of rows written, 0 if the arguments are invalid, or -1 if {@code out} is null
+     * @throws IllegalStateException If the handle is closed
+     */
+    public int detectInto(long imagePtr, double nmsThresh, double boxThresh, float[] out) {
+        acquire();
+        try {
+            return CoreMLJNI.detectInto(ptr, imagePtr, nmsThresh, boxThresh, out);
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Run detection into a caller-owned direct buffer, as
+     * {@link CoreMLJNI#detectInto(long, long, double, double, FloatBuffer)}.
+     *
+     * @param imagePtr Pointer to a cv::Mat input image
+     * @param nmsThresh Non-Maximum Suppression threshold
+     * @param boxThresh Bounding box confidence threshold
+     * @param out Direct float buffer in native byte order, see {@link DetectionView}
+     * @return Number of rows written, 0 if the arguments are invalid, or -1 if {@code out} is not a direct buffer
+     * @throws IllegalStateException If the handle is closed
+     */
+    public int detectInto(long imagePtr, double nmsThresh, double boxThresh, FloatBuffer out) {
+        acquire();
+        try {
+            return CoreMLJNI.detectInto(ptr, imagePtr, nmsThresh, boxThresh, out);
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Run any {@link CoreMLJNI} call on the detector, e.g.
+     * {@code detector.call(CoreMLJNI::getStats)}. The pointer is valid only during the call
+     * and must not be kept.
+     *
+     * @param <T> Result type
+     * @param function Receives the detector pointer
+     * @return Result of the function
+     * @throws IllegalStateException If the handle is closed
+     */
+    public <T> T call(LongFunction<T> function) {
+        acquire();
+        try {
+            return function.apply(ptr);
+        } finally {
+            release();
+        }
+    }
+
+    /** @return Whether {@link #close()} has been called. */
+    public boolean isClosed() {
+        return (state.get() & CLOSED) != 0;
+    }
+
+    /**
+     * Close the handle: calls from now on fail, calls in flight complete, and then the native
+     * detector is freed. Returns immediately if the handle is already closed. Must not be
+     * called from inside a call on this handle, which it would wait for forever.
+     */
+    @Override
+    public void close() {
+        long current;
+        do {
+            current = state.get();
+            if ((current & CLOSED) != 0) {
+                return;
+            }
+        } while (!state.compareAndSet(current, current | CLOSED));
+
+        // A call leaving after this write sees it and wakes us; one that left before it
+        // is already out of the count checked below
+        closer = Thread.currentThread();
+        boolean interrupted = false;
+        while ((state.get() & COUNT_MASK) != 0) {
+            LockSupport.park(this);
+            interrupted |= Thread.interrupted();
+        }
+        resource.closed = true;
+        cleanable.clean();
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** @return Number of handles freed by the cleaner because they were never closed. */
+    public static long getLeakedCount() {
+        return LEAKED.get();
+    }
+
+    private void acquire() {
+        if ((state.getAndIncrement() & CLOSED) != 0) {
+            release();
+            throw new IllegalStateException("Detector is closed");
+        }
+    }
+
+    private void release() {
+        if (state.decrementAndGet() == CLOSED) {
+            Thread waiting = closer;
+            if (waiting != null) {
+                LockSupport.unpark(waiting);
+            }
+        }
+        // The handle must stay reachable until the call is over, or the cleaner could free
+        // the detector under it
+        Reference.reachabilityFence(this);
+    }
+}
@@ -0,0 +1,394 @@
+/*
+ * Copyright (C) AtomStorm.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.atomstorm.coreml;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.atomstorm.coreml.CoreMLJNI.CoreMLResult;
+import org.atomstorm.coreml.CoreMLJNI.CoreMask;
+import org.atomstorm.coreml.CoreMLJNI.ModelVersion;
+import org.atomstorm.coreml.CoreMLJNI.StageStats;
+
+/**
+ * Several detectors for the same model, shared by concurrent callers.
+ *
+ * <p>Predictions on one native detector are serialized behind its {@code MLModel}, so threads
+ * sharing one pointer queue up. A pool owns several instances, possibly on different compute
+ * units, and runs each {@link #detect} on an idle instance: the one that has been busy the
+ * least so far, which steers more frames to faster instances. When every instance is busy,
+ * callers wait in arrival order for up to the pool's maximum wait.
+ *
+ * <p>Per-instance occupancy and the time callers spend waiting are recorded, see
+ * {@link #getInstanceStats()} and {@link #getWaitStats()}.
+ */
+public class CoreMLDetectorPool implements AutoCloseable {
+    /** One detector instance in the pool. Called by at most one thread at a time. */
+    public interface Detector extends AutoCloseable {
+        /**
+         * Run detection.
+         *
+         * @param imagePtr Pointer to a cv::Mat input image
+         * @param nmsThresh Non-Maximum Suppression threshold
+         * @param boxThresh Bounding box confidence threshold
+         * @return Array of CoreMLResult objects containing the detection results
+         */
+        CoreMLResult[] detect(long imagePtr, double nmsThresh, double boxThresh);
+
+        /** Release the instance. Called once, after its last detection. */
+        @Override
+        void close();
+    }
+
+    /** Snapshot of one instance's activity. */
+    public static final class InstanceStats {
+        /** Position of the instance in the pool. */
+        public final int index;
+        /** Number of detections run on the instance. */
+        public final long detections;
+        /** Fraction of the time since the pool started or stats were reset that the instance was busy. */
+        public final double occupancy;
+        /** Mean time of one detection on the instance, in milliseconds. */
+        public final double meanDetectMs;
+
+        InstanceStats(int index, long detections, double occupancy, double meanDetectMs) {
+            this.index = index;
+            this.detections = detections;
+            this.occupancy = occupancy;
+            this.meanDetectMs = meanDetectMs;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("InstanceStats [index=%d, detections=%d, occupancy=%.2f, mean=%.2f ms]",
+                index, detections, occupancy, meanDetectMs);
+        }
+    }
+
+    /** Snapshot of the time callers waited for an idle instance. */
+    public static final class WaitStats {
+        /** Number of calls to {@link #detect} that got an instance. */
+        public final long dispatched;
+        /** Number of calls to {@link #detect} that gave up waiting. */
+        public final long timeouts;
+        /** Median wait, in milliseconds, within 12.5%. */
+        public final double p50WaitMs;
+        /** 99th percentile wait, in milliseconds, within 12.5%. */
+        public final double p99WaitMs;
+        /** Longest wait, in milliseconds. */
+        public final double maxWaitMs;
+
+        WaitStats(long dispatched, long timeouts, double p50WaitMs, double p99WaitMs, double maxWaitMs) {
+            this.dispatched = dispatched;
+            this.timeouts = timeouts;
+            this.p50WaitMs = p50WaitMs;
+            this.p99WaitMs = p99WaitMs;
+            this.maxWaitMs = maxWaitMs;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                "WaitStats [dispatched=%d, timeouts=%d, p50=%.3f ms, p99=%.3f ms, max=%.3f ms]",
+                dispatched, timeouts, p50WaitMs, p99WaitMs, maxWaitMs);
+        }
+    }
+
+    private static final class Instance {
+        final Detector detector;
+        boolean busy;
+        long detections;
+        long busyNanos;
+
+        Instance(Detector detector) {
+            this.detector = detector;
+        }
+    }
+
+    // A native detector created by CoreMLJNI.create
+    static final class NativeDetector implements Detector {
+        final long ptr;
+
+        NativeDetector(long ptr) {
+            this.ptr = ptr;
+        }
+
+        @Override
+        public CoreMLResult[] detect(long imagePtr, double nmsThresh, double boxThresh) {
+            return CoreMLJNI.detect(ptr, imagePtr, nmsThresh, boxThresh);
+        }
+
+        @Override
+        public void close() {
+            CoreMLJNI.destroy(ptr);
+        }
+    }
+
+    private final Instance[] instances;
+    private final long maxWaitNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    // Callers waiting for an instance, oldest first; only the head may take one
+    private final ArrayDeque<Thread> waiters = new ArrayDeque<>();
+    private int busyCount;
+    private boolean closed;
+
+    // Guarded by lock
+    private long statsStartNanos;
+    private long dispatched;
+    private long timeouts;
+    private final LatencyHistogram waits = new LatencyHistogram();
+
+    /**
+     * Creates a pool over existing detectors. The pool takes ownership of them and closes
+     * them in {@link #close()}.
+     *
+     * @param detectors The instances, at least one
+     * @param maxWait How long {@link #detect} waits for an idle instance
+     * @param unit Unit of {@code maxWait}
+     */
+    public CoreMLDetectorPool(List<? extends Detector> detectors, long maxWait, TimeUnit unit) {
+        if (detectors.isEmpty()) {
+            throw new IllegalArgumentException("A pool needs at least one detector");
+        }
+        this.instances = new Instance[detectors.size()];
+        for (int i = 0; i < instances.length; i++) {
+            instances[i] = new Instance(detectors.get(i));
+        }
+        this.maxWaitNanos = unit.toNanos(maxWait);
+        this.statsStartNanos = System.nanoTime();
+    }
+
+    /**
+     * Create one native detector per compute unit configuration and pool them.
+     *
+     * @param modelPath Path to the model on disk, as for {@link CoreMLJNI#create}
+     * @param numClasses How many classes. MUST MATCH or native code segfaults
+     * @param modelVer Which model is being used
+     * @param coreMasks Compute units of each instance; repeat a mask for several instances on it
+     * @param maxWait How long {@link #detect} waits for an idle instance
+     * @param unit Unit of {@code maxWait}
+     * @return The pool
+     * @throws IllegalStateException if a detector cannot be created; any already created are destroyed
+     */
+    public static CoreMLDetectorPool create(String modelPath, int numClasses, ModelVersion modelVer,
+                                            List<CoreMask> coreMasks, long maxWait, TimeUnit unit) {
+        List<Detector> detectors = new ArrayList<>();
+        for (CoreMask coreMask : coreMasks) {
+            long ptr = CoreMLJNI.create(modelPath, numClasses, modelVer.ordinal(), coreMask.ordinal());
+            if (ptr == 0) {
+                detectors.forEach(Detector::close);
+                throw new IllegalStateException("Failed to create detector " + detectors.size()
+                    + " on " + coreMask + " for " + modelPath);
+            }
+            detectors.add(new NativeDetector(ptr));
+        }
+        return new CoreMLDetectorPool(detectors, maxWait, unit);
+    }
+
+    /** @return Number of instances in the pool. */
+    public int size() {
+        return instances.length;
+    }
+
+    /**
+     * Run detection on an idle instance, waiting for one if all are busy.
+     *
+     * @param imagePtr Pointer to a cv::Mat input image
+     * @param nmsThresh Non-Maximum Suppression threshold
+     * @param boxThresh Bounding box confidence threshold
+     * @return Array of CoreMLResult objects containing the detection results
+     * @throws RejectedExecutionException if no instance became idle within the maximum wait,
+     *     or the pool is closed
+     */
+    public CoreMLResult[] detect(long imagePtr, double nmsThresh, double boxThresh) {
+        Instance instance = acquire();
+        long start = System.nanoTime();
+        try {
+            return instance.detector.detect(imagePtr, nmsThresh, boxThresh);
+        } finally {
+            release(instance, System.nanoTime() - start);
+        }
+    }
+
+    /** @return Number of callers currently waiting for an idle instance. */
+    public int getQueueLength() {
+        lock.lock();
+        try {
+            return waiters.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** @return Activity of every instance, in pool order. */
+    public List<InstanceStats> getInstanceStats() {
+        List<InstanceStats> result = new ArrayList<>(instances.length);
+        lock.lock();
+        try {
+            double elapsed = Math.max(1, System.nanoTime() - statsStartNanos);
+            for (int i = 0; i < instances.length; i++) {
+                Instance instance = instances[i];
+                double mean = instance.detections > 0 ? instance.busyNanos / 1e6 / instance.detections : 0;
+                result.add(new InstanceStats(i, instance.detections, Math.min(1.0, instance.busyNanos / elapsed), mean));
+            }
+        } finally {
+            lock.unlock();
+        }
+        return result;
+    }
+
+    /** @return How long callers waited for an instance. */
+    public WaitStats getWaitStats() {
+        long dispatchedSnapshot;
+        long timeoutsSnapshot;
+        lock.lock();
+        try {
+            dispatchedSnapshot = dispatched;
+            timeoutsSnapshot = timeouts;
+        } finally {
+            lock.unlock();
+        }
+        StageStats wait = waits.snapshot();
+        return new WaitStats(dispatchedSnapshot, timeoutsSnapshot, wait.p50Ms, wait.p99Ms, wait.maxMs);
+    }
+
+    /** Clear all recorded statistics. */
+    public void resetStats() {
+        lock.lock();
+        try {
+            statsStartNanos = System.nanoTime();
+            for (Instance instance : instances) {
+                instance.detections = 0;
+                instance.busyNanos = 0;
+            }
+            dispatched = 0;
+            timeouts = 0;
+            waits.reset();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reject new detections, wait for running ones to finish and close every instance.
+     * Callers still waiting for an instance are rejected.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            changed.signalAll();
+            while (busyCount > 0) {
+                changed.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (Instance instance : instances) {
+            instance.detector.close();
+        }
+    }
+
+    private Instance acquire() {
+        long enqueued = System.nanoTime();
+        Thread self = Thread.currentThread();
+        lock.lock();
+        try {
+            waiters.addLast(self);
+            try {
+                long remaining = maxWaitNanos;
+                while (true) {
+                    if (closed) {
+                        throw new RejectedExecutionException("Detector pool is closed");
+                    }
+                    if (waiters.peekFirst() == self) {
+                        Instance instance = leastLoadedIdle();
+                        if (instance != null) {
+                            instance.busy = true;
+                            busyCount++;
+                            recordWait(System.nanoTime() - enqueued);
+                            return instance;
+                        }
+                    }
+                    if (remaining <= 0) {
+                        timeouts++;
+                        throw new RejectedExecutionException("No detector became idle within "
+                            + TimeUnit.NANOSECONDS.toMillis(maxWaitNanos) + " ms");
+                    }
+                    remaining = awaitNanosUninterruptibly(remaining);
+                }
+            } finally {
+                waiters.remove(self);
+                // The next waiter may now be at the head with an idle instance available
+                changed.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(Instance instance, long busyNanos) {
+        lock.lock();
+        try {
+            instance.busy = false;
+            instance.detections++;
+            instance.busyNanos += busyNanos;
+            busyCount--;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Must hold the lock
+    private Instance leastLoadedIdle() {
+        Instance best = null;
+        for (Instance instance : instances) {
+            if (!instance.busy && (best == null || instance.busyNanos < best.busyNanos)) {
+                best = instance;
+            }
+        }
+        return best;
+    }
+
+    // Must hold the lock
+    private void recordWait(long nanos) {
+        dispatched++;
+        waits.record(nanos / 1000);
+    }
+
+    private long awaitNanosUninterruptibly(long nanos) {
+        try {
+            return changed.awaitNanos(nanos);
+        } catch (InterruptedException e) {
+            // Give up waiting, but keep the interrupt for the caller
+            Thread.currentThread().interrupt();
+            return 0;
+        }
+    }
+}
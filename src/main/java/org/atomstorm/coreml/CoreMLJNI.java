@@ -17,6 +17,11 @@
 
 package org.atomstorm.coreml;
 
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import org.opencv.core.Point;
 import org.opencv.core.Rect2d;
 
@@ -118,9 +123,137 @@ public class CoreMLJNI {
         }
     }
 
+    /**
+     * Snapshot of the counters of a detector's input pixel buffer pool.
+     */
+    public static class PoolStats {
+        /**
+         * Constructs a PoolStats.
+         *
+         * @param hits Checkouts served from an idle buffer.
+         * @param misses Checkouts that had to allocate a new buffer.
+         * @param evictions Returned buffers released because the pool was at its high-water mark.
+         * @param outstanding Buffers checked out and not yet returned.
+         * @param idle Buffers currently held for reuse.
+         * @param highWaterMark Maximum number of idle buffers kept per input size.
+         */
+        public PoolStats(long hits, long misses, long evictions, long outstanding, long idle, int highWaterMark) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.outstanding = outstanding;
+            this.idle = idle;
+            this.highWaterMark = highWaterMark;
+        }
+
+        /** Checkouts served from an idle buffer. */
+        public final long hits;
+        /** Checkouts that had to allocate a new buffer. */
+        public final long misses;
+        /** Returned buffers released because the pool was at its high-water mark. */
+        public final long evictions;
+        /** Buffers checked out and not yet returned. */
+        public final long outstanding;
+        /** Buffers currently held for reuse. */
+        public final long idle;
+        /** Maximum number of idle buffers kept per input size. */
+        public final int highWaterMark;
+
+        @Override
+        public String toString() {
+            return "PoolStats [hits=" + hits + ", misses=" + misses + ", evictions=" + evictions
+                + ", outstanding=" + outstanding + ", idle=" + idle + ", highWaterMark=" + highWaterMark + "]";
+        }
+    }
+
+    /**
+     * Latency summary of one detection stage, see {@link LatencyHistogram}.
+     */
+    public static class StageStats {
+        /**
+         * Constructs a StageStats.
+         *
+         * @param count Number of timed executions of the stage.
+         * @param p50Ms Median latency in milliseconds.
+         * @param p99Ms 99th percentile latency in milliseconds.
+         * @param maxMs Largest latency in milliseconds.
+         * @param meanMs Mean latency in milliseconds.
+         */
+        public StageStats(long count, double p50Ms, double p99Ms, double maxMs, double meanMs) {
+            this.count = count;
+            this.p50Ms = p50Ms;
+            this.p99Ms = p99Ms;
+            this.maxMs = maxMs;
+            this.meanMs = meanMs;
+        }
+
+        /** Number of timed executions of the stage. */
+        public final long count;
+        /** Median latency in milliseconds, within 12.5%. */
+        public final double p50Ms;
+        /** 99th percentile latency in milliseconds, within 12.5%. */
+        public final double p99Ms;
+        /** Largest latency in milliseconds. */
+        public final double maxMs;
+        /** Mean latency in milliseconds. */
+        public final double meanMs;
+
+        @Override
+        public String toString() {
+            return String.format("StageStats [count=%d, p50=%.3f ms, p99=%.3f ms, max=%.3f ms, mean=%.3f ms]",
+                count, p50Ms, p99Ms, maxMs, meanMs);
+        }
+    }
+
+    /**
+     * Snapshot of a detector's always-on stage timers.
+     */
+    public static class DetectorStats {
+        /**
+         * Constructs a DetectorStats.
+         *
+         * @param frames Frames that completed inference.
+         * @param errors Frames that failed in any stage.
+         * @param preprocess Letterboxing and upload into the input pixel buffer.
+         * @param inference Model prediction.
+         * @param postprocess Mapping the model outputs back to the original image.
+         * @param total Whole {@link CoreMLJNI#detect} and {@link CoreMLJNI#detectBatch} calls.
+         */
+        public DetectorStats(long frames, long errors, StageStats preprocess, StageStats inference,
+                             StageStats postprocess, StageStats total) {
+            this.frames = frames;
+            this.errors = errors;
+            this.preprocess = preprocess;
+            this.inference = inference;
+            this.postprocess = postprocess;
+            this.total = total;
+        }
+
+        /** Frames that completed inference. */
+        public final long frames;
+        /** Frames that failed in any stage. */
+        public final long errors;
+        /** Letterboxing and upload into the input pixel buffer. */
+        public final StageStats preprocess;
+        /** Model prediction. For batches, every frame counts the whole prediction. */
+        public final StageStats inference;
+        /** Mapping the model outputs back to the original image. */
+        public final StageStats postprocess;
+        /** Whole {@link CoreMLJNI#detect} and {@link CoreMLJNI#detectBatch} calls. */
+        public final StageStats total;
+
+        @Override
+        public String toString() {
+            return "DetectorStats [frames=" + frames + ", errors=" + errors + ", preprocess=" + preprocess
+                + ", inference=" + inference + ", postprocess=" + postprocess + ", total=" + total + "]";
+        }
+    }
+
     /**
      * Create a CoreML detector. Returns valid pointer on success, or NULL on error
-     * @param modelPath Absolute path to the model on disk
+     * @param modelPath Absolute path to the model on disk. Source models ({@code .mlpackage},
+     *     {@code .mlmodel}) are compiled on every call; pass an already compiled {@code .mlmodelc},
+     *     e.g. from {@link CoreMLModelCache}, to skip compilation.
      * @param numClasses How many classes. MUST MATCH or native code segfaults
      * @param modelVer Which model is being used. Detections will be incorrect if not set to corrresponding model.
      * @param coreMask Which compute unit to use.
@@ -128,17 +261,224 @@ public class CoreMLJNI {
      */
     public static native long create(String modelPath, int numClasses, int modelVer, int coreMask);
 
+    /**
+     * Compile a source model into a {@code .mlmodelc} directory.
+     * @param sourcePath Absolute path to the {@code .mlpackage} or {@code .mlmodel}
+     * @param destinationPath Absolute path the compiled model is moved to. Must not exist.
+     * @return 0 on success, -1 on failure
+     */
+    public static native int compileModel(String sourcePath, String destinationPath);
+
     /**
      * Given an already running detector, change the bitmask controlling which
-     * of the 3 cores the model is running on
+     * of the 3 cores the model is running on.
+     * A second instance of the model is loaded on the new compute units and warmed up,
+     * then swapped in atomically. Concurrent {@link #detect} calls keep running on the
+     * previous instance until the swap, and calls already in flight finish on it.
+     * Blocks until the swap completes; see {@link #setCoreMaskAsync} for a non-blocking variant.
      * @param ptr Pointer to detector in native memory
      * @param desiredCore Which of the three cores to operate on
      * @return return code of call, indicating success or failure
      */
     public static native int setCoreMask(long ptr, CoreMask desiredCore);
+
+    /**
+     * Get the compute units the detector's serving model was loaded with.
+     * @param ptr Pointer to detector in native memory
+     * @return Ordinal of the current {@link CoreMask}, or -1 if the pointer is invalid
+     */
+    public static native int getCoreMask(long ptr);
+
+    /**
+     * Choose how frames are letterboxed before inference.
+     * When enabled (the default), the image is resized and colour converted straight into
+     * the pooled pixel buffer the model reads, and only the padding bands are cleared.
+     * When disabled, the original path through intermediate images is used. Both produce
+     * the same input pixels; the geometry is described by {@link LetterboxGeometry}.
+     * @param ptr Pointer to detector in native memory
+     * @param enabled Whether to use the fused path
+     * @return 0 on success, -1 if the pointer is invalid
+     */
+    public static native int setFusedPreprocess(long ptr, boolean enabled);
+
+    /**
+     * @param ptr Pointer to detector in native memory
+     * @return Whether the detector uses fused preprocessing, false if the pointer is invalid
+     */
+    public static native boolean isFusedPreprocess(long ptr);
+
+    /**
+     * Choose whether frames of models exported with enumerated or flexible input sizes are
+     * letterboxed into the input shaped most like them instead of the default input, see
+     * {@link InputShapes}. Detections are mapped back to the frame either way. On by default;
+     * models with a single input size, or without built-in NMS, always use the default.
+     * @param ptr Pointer to detector in native memory
+     * @param enabled Whether to match the input to the frame's aspect ratio
+     * @return 0 on success, -1 if the pointer is invalid
+     */
+    public static native int setAspectMatching(long ptr, boolean enabled);
+
+    /**
+     * @param ptr Pointer to detector in native memory
+     * @return Whether the detector matches inputs to the frame's aspect ratio, false if the pointer is invalid
+     */
+    public static native boolean isAspectMatching(long ptr);
+
+    /**
+     * Set which detections a detector returns. The filter runs natively while the model
+     * output is decoded, so rejected detections never cross JNI, and applies to every detect
+     * variant except {@link #inferRaw}. Detections below the call's box threshold are always
+     * dropped, whether or not the model takes the threshold as an input.
+     * @param ptr Pointer to detector in native memory
+     * @param filter The filter, or null to keep every detection
+     * @return 0 on success, -1 if the pointer is invalid
+     */
+    public static int setFilter(long ptr, DetectionFilter filter) {
+        if (filter == null) {
+            filter = DetectionFilter.NONE;
+        }
+        return setFilter(ptr, filter.minConfidence(), filter.classThresholds(), filter.allowedClasses(),
+            filter.minArea(), filter.maxArea(), filter.topK());
+    }
+
+    private static native int setFilter(
+        long ptr, float minConfidence, float[] classThresholds, int[] allowedClasses,
+        float minArea, float maxArea, int topK
+    );
+
+    /**
+     * Get the counters of a detector's input pixel buffer pool.
+     * Each detector keeps its own pool of model-input-sized buffers; a buffer is checked out
+     * for every frame and returned once inference on it finishes.
+     * @param ptr Pointer to detector in native memory
+     * @return Snapshot of the pool counters, or null if the pointer is invalid
+     */
+    public static native PoolStats getPoolStats(long ptr);
+
+    /**
+     * Set how many idle pixel buffers a detector's pool keeps per input size.
+     * Buffers returned beyond this are released, and idle buffers above a lowered mark are
+     * released immediately. The default is 5; raise it when many threads or pipelines share
+     * one detector and {@link PoolStats#misses} keeps growing.
+     * @param ptr Pointer to detector in native memory
+     * @param highWaterMark Maximum number of idle buffers kept per size
+     * @return 0 on success, -1 if the pointer or mark is invalid
+     */
+    public static native int setPoolHighWaterMark(long ptr, int highWaterMark);
+
+    /**
+     * Snapshot a detector's stage timers. Every detector times preprocessing, inference,
+     * postprocessing and whole detect calls into lock-free histograms, whatever the log level.
+     * @param ptr Pointer to detector in native memory
+     * @return Latencies since the detector was created or {@link #resetStats} was last called,
+     *     or null if the pointer is invalid
+     */
+    public static native DetectorStats getStats(long ptr);
+
+    /**
+     * Clear a detector's stage timers and frame and error counts.
+     * @param ptr Pointer to detector in native memory
+     * @return 0 on success, -1 if the pointer is invalid
+     */
+    public static native int resetStats(long ptr);
+
+    /**
+     * @param ptr Pointer to detector in native memory
+     * @return Width of the model's input image, or -1 if the pointer is invalid
+     */
+    public static native int getInputWidth(long ptr);
+
+    /**
+     * @param ptr Pointer to detector in native memory
+     * @return Height of the model's input image, or -1 if the pointer is invalid
+     */
+    public static native int getInputHeight(long ptr);
+
+    /**
+     * @param ptr Pointer to detector in native memory
+     * @return Input sizes the model accepts as width, height pairs, the default first; only
+     *     the default for flexible models, see {@link #getInputSizeRange}. Null if the pointer
+     *     is invalid.
+     */
+    public static native int[] getInputShapes(long ptr);
+
+    /**
+     * @param ptr Pointer to detector in native memory
+     * @return {@code [minWidth, maxWidth, minHeight, maxHeight]} of a model exported with a
+     *     flexible input size, or null if the size is fixed or enumerated or the pointer is invalid
+     */
+    public static native int[] getInputSizeRange(long ptr);
+
+    /**
+     * Get the shape of the raw output tensor of a model exported without built-in NMS,
+     * e.g. {@code [1, 84, 8400]} for YOLOv8. Such models are decoded in Java with
+     * {@link YoloDecoder} after {@link #inferRaw}.
+     * @param ptr Pointer to detector in native memory
+     * @return Output dimensions, or null if the model has built-in NMS or the pointer is invalid
+     */
+    public static native int[] getRawOutputShape(long ptr);
+
+    /**
+     * Second stage of {@link #detect} for models exported without built-in NMS: run the model on
+     * a prepared frame and copy its raw output tensor, as float32 in row-major order, to the
+     * start of a caller-owned direct buffer. Does not release the frame.
+     * @param detectorPtr Pointer to the detector that prepared the frame
+     * @param preparedPtr Handle returned by {@link #prepare}
+     * @param out Direct float buffer in native byte order, at least as large as the output tensor
+     * @return Number of floats written, or -1 on failure
+     */
+    public static native int inferRaw(long detectorPtr, long preparedPtr, FloatBuffer out);
+
+    /**
+     * Change the compute units of a running detector in the background, as {@link #setCoreMask}.
+     * The detector keeps serving {@link #detect} calls while the new model instance loads.
+     * @param ptr Pointer to detector in native memory
+     * @param desiredCore Which of the three cores to operate on
+     * @return Future completed with the return code of {@link #setCoreMask} once the swap has
+     *     completed or failed. The detector must not be destroyed before it completes.
+     */
+    public static CompletableFuture<Integer> setCoreMaskAsync(long ptr, CoreMask desiredCore) {
+        return CompletableFuture.supplyAsync(() -> setCoreMask(ptr, desiredCore), ReconfigureExecutor.INSTANCE);
+    }
+
+    /**
+     * Create a detector in the background, as {@link #create}, and warm it up before the
+     * future completes. Loads started together run in parallel, a few at a time; see
+     * {@link CoreMLModelLoader} for startup timings and compiled model caching.
+     * @param modelPath Path to the model
+     * @param numClasses How many classes. MUST MATCH or native code segfaults
+     * @param modelVer Which model is being used
+     * @param coreMask Which compute unit to use
+     * @param warmUpRuns Predictions on a blank frame to run before completing, 0 for none
+     * @return Future completed with the pointer to the detector, or exceptionally if the model
+     *     could not be loaded or warmed up
+     */
+    public static CompletableFuture<Long> createAsync(
+        String modelPath, int numClasses, ModelVersion modelVer, CoreMask coreMask, int warmUpRuns
+    ) {
+        CoreMLModelLoader.ModelSpec spec = new CoreMLModelLoader.ModelSpec(
+            modelPath, modelPath, numClasses, modelVer, coreMask, warmUpRuns);
+        return SharedLoader.INSTANCE.load(spec).thenApply(model -> model.ptr);
+    }
+
+    // Lazily created loader behind createAsync
+    private static class SharedLoader {
+        static final CoreMLModelLoader INSTANCE = new CoreMLModelLoader(
+            Math.max(2, Runtime.getRuntime().availableProcessors() / 2), null);
+    }
+
+    // Lazily started daemon threads that run model reloads off the caller's thread
+    private static class ReconfigureExecutor {
+        static final ExecutorService INSTANCE = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "coreml-reconfigure");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
     
     /**
-     * Delete all native resources assocated with a detector
+     * Delete all native resources assocated with a detector. Not safe while another thread
+     * is still using the pointer; {@link CoreMLDetector} waits for calls in flight first.
      * @param ptr Pointer to detector in native memory
      */
     public static native void destroy(long ptr);
@@ -154,4 +494,141 @@ public class CoreMLJNI {
     public static native CoreMLResult[] detect(
         long detectorPtr, long imagePtr, double nmsThresh, double boxThresh
     );
+
+    /**
+     * Run detection on a raw camera frame, without converting it into a cv::Mat first.
+     * A frame of the model input size is handed to Core ML as is, which converts the colour
+     * itself; other frames are colour converted and letterboxed in a single pass.
+     * @param detectorPtr Pointer to detector created above
+     * @param frame Direct buffer holding the frame, laid out from index 0 regardless of its position
+     * @param descriptor Layout of the frame
+     * @param nmsThresh Non-Maximum Suppression threshold
+     * @param boxThresh Bounding box confidence threshold
+     * @return Array of CoreMLResult objects containing the detection results
+     * @throws IllegalArgumentException If the buffer is not direct or too small for the descriptor
+     */
+    public static CoreMLResult[] detect(
+        long detectorPtr, ByteBuffer frame, FrameDescriptor descriptor, double nmsThresh, double boxThresh
+    ) {
+        descriptor.checkBuffer(frame);
+        return detectFrame(detectorPtr, frame, descriptor.format.ordinal(), descriptor.width, descriptor.height,
+            descriptor.stride, descriptor.chromaOffset, descriptor.chromaStride, nmsThresh, boxThresh);
+    }
+
+    private static native CoreMLResult[] detectFrame(
+        long detectorPtr, ByteBuffer frame, int format, int width, int height, int stride,
+        int chromaOffset, int chromaStride, double nmsThresh, double boxThresh
+    );
+
+    /**
+     * Run detection and write the results into a caller-owned direct buffer instead of
+     * allocating {@link CoreMLResult} objects. Each detection is written as a row of
+     * {@link DetectionView#STRIDE} floats, {@code [x1, y1, x2, y2, conf, classId]}, starting
+     * at index 0 of the buffer regardless of its position. Rows beyond the buffer's capacity
+     * are dropped. Unlike {@link #detect}, box coordinates keep their sub-pixel precision.
+     * @param detectorPtr Pointer to detector created above
+     * @param imagePtr Pointer to a cv::Mat input image
+     * @param nmsThresh Non-Maximum Suppression threshold
+     * @param boxThresh Bounding box confidence threshold
+     * @param out Direct float buffer in native byte order, see {@link DetectionView}
+     * @return Number of rows written, 0 if the arguments are invalid, or -1 if {@code out} is not a direct buffer
+     */
+    public static native int detectInto(
+        long detectorPtr, long imagePtr, double nmsThresh, double boxThresh, FloatBuffer out
+    );
+
+    /**
+     * Run detection and write the results into a caller-owned array, using the same
+     * row layout as {@link #detectInto(long, long, double, double, FloatBuffer)}.
+     * @param detectorPtr Pointer to detector created above
+     * @param imagePtr Pointer to a cv::Mat input image
+     * @param nmsThresh Non-Maximum Suppression threshold
+     * @param boxThresh Bounding box confidence threshold
+     * @param out Array receiving the packed rows
+     * @return Number of rows written, 0 if the arguments are invalid, or -1 if {@code out} is null
+     */
+    public static native int detectInto(
+        long detectorPtr, long imagePtr, double nmsThresh, double boxThresh, float[] out
+    );
+
+    /**
+     * Shrink an image to a grayscale thumbnail of {@link FrameChangeCache#THUMBNAIL_WIDTH} by
+     * {@link FrameChangeCache#THUMBNAIL_HEIGHT} pixels, row by row. Each pixel averages an 8 by 8
+     * grid of samples from its area, so the cost does not grow with the image. Used by
+     * {@link FrameChangeCache} to tell whether a frame changed.
+     * @param imagePtr Pointer to an 8-bit cv::Mat with 1, 3 (BGR) or 4 (BGRA) channels
+     * @param out Array receiving the thumbnail
+     * @return Number of bytes written, 0 if the image is invalid, or -1 if {@code out} is null or too small
+     */
+    public static native int frameThumbnail(long imagePtr, byte[] out);
+
+    /**
+     * Copy the pixels of an image, row by row without padding. Used by {@link DetectionRecorder}
+     * to record the frames a detector sees.
+     * @param imagePtr Pointer to an 8-bit cv::Mat
+     * @param out Array receiving the pixels
+     * @param shape Receives the width, height and number of channels of the image, also when
+     *     {@code out} is too small
+     * @return Number of bytes written, 0 if the image is invalid or {@code shape} is null or
+     *     shorter than 3, or -1 if {@code out} is null or too small
+     */
+    public static native int copyFrame(long imagePtr, byte[] out, int[] shape);
+
+    /**
+     * First stage of {@link #detect}: letterbox the image and upload it into a pooled
+     * pixel buffer. The image may be reused as soon as this returns.
+     * @param detectorPtr Pointer to detector created above
+     * @param imagePtr Pointer to a cv::Mat input image
+     * @return Handle to the prepared frame, or 0 on error. Must be passed to {@link #releasePrepared}.
+     */
+    public static native long prepare(long detectorPtr, long imagePtr);
+
+    /**
+     * Second stage of {@link #detect}: run the model on a prepared frame. Does not release the frame.
+     * @param detectorPtr Pointer to the detector that prepared the frame
+     * @param preparedPtr Handle returned by {@link #prepare}
+     * @param nmsThresh Non-Maximum Suppression threshold
+     * @param boxThresh Bounding box confidence threshold
+     * @return Array of CoreMLResult objects containing the detection results
+     */
+    public static native CoreMLResult[] infer(
+        long detectorPtr, long preparedPtr, double nmsThresh, double boxThresh
+    );
+
+    /**
+     * Release a prepared frame, returning its pixel buffer to the pool.
+     * @param preparedPtr Handle returned by {@link #prepare}
+     */
+    public static native void releasePrepared(long preparedPtr);
+
+    /**
+     * Run detection on several images with a single batched prediction.
+     * @param detectorPtr Pointer to detector created above
+     * @param imagePtrs Pointers to cv::Mat input images
+     * @param nmsThresh Non-Maximum Suppression threshold
+     * @param boxThresh Bounding box confidence threshold
+     * @return One array of CoreMLResult per input image, in input order. Invalid images
+     *     yield empty arrays; invalid detector or thresholds yield empty arrays for every image.
+     */
+    public static native CoreMLResult[][] detectBatch(
+        long detectorPtr, long[] imagePtrs, double nmsThresh, double boxThresh
+    );
+
+    /**
+     * Run several models on the same image. The image is letterboxed and uploaded once per
+     * distinct model input size instead of once per model, and the pixel buffer is shared by
+     * every model of that size. The first detector of each size prepares it, using its own
+     * {@link #setFusedPreprocess} setting.
+     * @param detectorPtrs Pointers to detectors created above
+     * @param imagePtr Pointer to a cv::Mat input image
+     * @param nmsThresh Non-Maximum Suppression threshold
+     * @param boxThresh Bounding box confidence threshold
+     * @param parallel Whether to run the models concurrently rather than one after another
+     * @return One array of CoreMLResult per detector, in the order of {@code detectorPtrs}.
+     *     Invalid detectors yield empty arrays; an invalid image or thresholds yield empty
+     *     arrays for every detector.
+     */
+    public static native CoreMLResult[][] detectAll(
+        long[] detectorPtrs, long imagePtr, double nmsThresh, double boxThresh, boolean parallel
+    );
 }
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) AtomStorm.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.atomstorm.coreml;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import org.atomstorm.coreml.CoreMLJNI.DetectorStats;
+import org.atomstorm.coreml.CoreMLJNI.StageStats;
+
+/**
+ * Publishes a detector's stage timers as flat, named values for a metrics or telemetry sink.
+ *
+ * <p>Names are {@code <prefix>.frames}, {@code <prefix>.errors} and, for each of the
+ * {@code preprocess}, {@code inference}, {@code postprocess} and {@code total} stages,
+ * {@code <prefix>.<stage>.count}, {@code .p50_ms}, {@code .p99_ms}, {@code .max_ms} and
+ * {@code .mean_ms}. In windowed mode the detector's stats are reset after every collection,
+ * so each publication covers only the frames since the previous one.
+ */
+public class CoreMLMetrics implements AutoCloseable {
+    private final String prefix;
+    private final Supplier<DetectorStats> source;
+    private final Runnable reset;
+    private final boolean windowed;
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Creates metrics for a native detector.
+     *
+     * @param prefix Prefix of every published name, e.g. {@code "coreml.front"}
+     * @param detectorPtr Pointer to detector created by {@link CoreMLJNI#create}
+     * @param windowed Whether to reset the detector's stats after each collection
+     */
+    public CoreMLMetrics(String prefix, long detectorPtr, boolean windowed) {
+        this(prefix, () -> CoreMLJNI.getStats(detectorPtr), () -> CoreMLJNI.resetStats(detectorPtr), windowed);
+    }
+
+    /**
+     * Creates metrics over a custom source.
+     *
+     * @param prefix Prefix of every published name
+     * @param source Snapshots the stats; may return null when none are available
+     * @param reset Clears the stats, used in windowed mode
+     * @param windowed Whether to reset the stats after each collection
+     */
+    public CoreMLMetrics(String prefix, Supplier<DetectorStats> source, Runnable reset, boolean windowed) {
+        this.prefix = prefix;
+        this.source = source;
+        this.reset = reset;
+        this.windowed = windowed;
+    }
+
+    /**
+     * Snapshot the stats as named values.
+     *
+     * @return Values by name in a stable order, empty if the source has no stats
+     */
+    public Map<String, Double> collect() {
+        Map<String, Double> values = new LinkedHashMap<>();
+        DetectorStats stats = source.get();
+        if (windowed) {
+            // Frames finishing between the snapshot and the reset are lost from both windows
+            reset.run();
+        }
+        if (stats == null) {
+            return values;
+        }
+        values.put(prefix + ".frames", (double) stats.frames);
+        values.put(prefix + ".errors", (double) stats.errors);
+        putStage(values, "preprocess", stats.preprocess);
+        putStage(values, "inference", stats.inference);
+        putStage(values, "postprocess", stats.postprocess);
+        putStage(values, "total", stats.total);
+        return values;
+    }
+
+    /**
+     * Collect once and hand every value to a sink.
+     *
+     * @param sink Receives each name and value
+     */
+    public void publishTo(BiConsumer<String, Double> sink) {
+        collect().forEach(sink);
+    }
+
+    /**
+     * Publish periodically on a daemon thread until {@link #close()}.
+     *
+     * @param period Time between publications
+     * @param unit Unit of {@code period}
+     * @param sink Receives each name and value; called from the publishing thread
+     */
+    public synchronized void startPublishing(long period, TimeUnit unit, BiConsumer<String, Double> sink) {
+        if (scheduler != null) {
+            throw new IllegalStateException("Already publishing");
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "coreml-metrics-" + prefix);
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(() -> {
+            try {
+                publishTo(sink);
+            } catch (RuntimeException e) {
+                // An exception would cancel the schedule; skip this publication instead
+            }
+        }, period, period, unit);
+    }
+
+    /** Stop periodic publishing. */
+    @Override
+    public synchronized void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    private void putStage(Map<String, Double> values, String stage, StageStats stats) {
+        String name = prefix + "." + stage;
+        values.put(name + ".count", (double) stats.count);
+        values.put(name + ".p50_ms", stats.p50Ms);
+        values.put(name + ".p99_ms", stats.p99Ms);
+        values.put(name + ".max_ms", stats.maxMs);
+        values.put(name + ".mean_ms", stats.meanMs);
+    }
+}
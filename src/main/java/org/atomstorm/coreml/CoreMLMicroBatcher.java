@@ -0,0 +1,338 @@
+/*
+ * Copyright (C) AtomStorm.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.atomstorm.coreml;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.atomstorm.coreml.CoreMLJNI.CoreMLResult;
+import org.atomstorm.coreml.CoreMLJNI.StageStats;
+
+/**
+ * Coalesces concurrent single-frame detections into batched predictions.
+ *
+ * <p>Several cameras sharing one model call {@link #detect} from their own threads. The
+ * first caller to arrive opens a batch and waits up to the batching window for others to
+ * join; the batch then runs as one {@link CoreMLJNI#detectBatch} call, closing early once
+ * it reaches the maximum batch size. Each caller blocks until its own frame's results are
+ * ready. No extra threads are used: the caller that opened a batch runs it.
+ *
+ * <p>Throughput and request latency are recorded per batch size, see {@link #getStats()}.
+ */
+public class CoreMLMicroBatcher implements AutoCloseable {
+    /** Runs a batch of frames through a model. */
+    @FunctionalInterface
+    public interface BatchDetector {
+        /**
+         * Run detection on several images.
+         *
+         * @param imagePtrs Pointers to cv::Mat input images
+         * @param nmsThresh Non-Maximum Suppression threshold
+         * @param boxThresh Bounding box confidence threshold
+         * @return One array of results per input image, in input order
+         */
+        CoreMLResult[][] detectBatch(long[] imagePtrs, double nmsThresh, double boxThresh);
+    }
+
+    /** Snapshot of the batches run at one batch size. */
+    public static final class BatchStats {
+        /** Number of frames in each batch. */
+        public final int batchSize;
+        /** Number of batches run at this size. */
+        public final long batches;
+        /** Frames per second while these batches were executing. */
+        public final double framesPerSecond;
+        /** Median time from a frame entering {@link #detect} to its results, in milliseconds, within 12.5%. */
+        public final double p50LatencyMs;
+        /** 99th percentile time from a frame entering {@link #detect} to its results, in milliseconds, within 12.5%. */
+        public final double p99LatencyMs;
+
+        BatchStats(int batchSize, long batches, double framesPerSecond, double p50LatencyMs, double p99LatencyMs) {
+            this.batchSize = batchSize;
+            this.batches = batches;
+            this.framesPerSecond = framesPerSecond;
+            this.p50LatencyMs = p50LatencyMs;
+            this.p99LatencyMs = p99LatencyMs;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                "BatchStats [batchSize=%d, batches=%d, fps=%.1f, p50=%.2f ms, p99=%.2f ms]",
+                batchSize, batches, framesPerSecond, p50LatencyMs, p99LatencyMs);
+        }
+    }
+
+    private static final class Batch {
+        final long[] imagePtrs;
+        final long[] enqueueNanos;
+        int size;
+        boolean sealed;
+        boolean done;
+        CoreMLResult[][] results;
+        Throwable error;
+
+        Batch(int capacity) {
+            imagePtrs = new long[capacity];
+            enqueueNanos = new long[capacity];
+        }
+    }
+
+    private static final class SizeStats {
+        long batches;
+        long frames;
+        long execNanos;
+        final LatencyHistogram latency = new LatencyHistogram();
+    }
+
+    private final BatchDetector detector;
+    private final int maxBatchSize;
+    private final long windowNanos;
+    private final double nmsThresh;
+    private final double boxThresh;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private Batch open;
+    private boolean closed;
+
+    private final SizeStats[] stats;
+
+    /**
+     * Creates a batcher over a native detector.
+     *
+     * @param detectorPtr Pointer to detector created by {@link CoreMLJNI#create}
+     * @param maxBatchSize Largest batch to run; a batch closes early once it is full
+     * @param window How long the first frame of a batch waits for others
+     * @param unit Unit of {@code window}
+     * @param nmsThresh Non-Maximum Suppression threshold applied to every frame
+     * @param boxThresh Bounding box confidence threshold applied to every frame
+     */
+    public CoreMLMicroBatcher(long detectorPtr, int maxBatchSize, long window, TimeUnit unit,
+                              double nmsThresh, double boxThresh) {
+        this((imagePtrs, nms, box) -> CoreMLJNI.detectBatch(detectorPtr, imagePtrs, nms, box),
+            maxBatchSize, window, unit, nmsThresh, boxThresh);
+    }
+
+    /**
+     * Creates a batcher over a custom batch detector.
+     *
+     * @param detector Runs each batch
+     * @param maxBatchSize Largest batch to run; a batch closes early once it is full
+     * @param window How long the first frame of a batch waits for others
+     * @param unit Unit of {@code window}
+     * @param nmsThresh Non-Maximum Suppression threshold applied to every frame
+     * @param boxThresh Bounding box confidence threshold applied to every frame
+     */
+    public CoreMLMicroBatcher(BatchDetector detector, int maxBatchSize, long window, TimeUnit unit,
+                              double nmsThresh, double boxThresh) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be at least 1: " + maxBatchSize);
+        }
+        this.detector = detector;
+        this.maxBatchSize = maxBatchSize;
+        this.windowNanos = unit.toNanos(window);
+        this.nmsThresh = nmsThresh;
+        this.boxThresh = boxThresh;
+        this.stats = new SizeStats[maxBatchSize + 1];
+        for (int i = 1; i <= maxBatchSize; i++) {
+            stats[i] = new SizeStats();
+        }
+    }
+
+    /**
+     * Run detection on one frame, sharing a batched prediction with concurrent callers.
+     *
+     * @param imagePtr Pointer to a cv::Mat input image
+     * @return Array of CoreMLResult objects containing the detection results
+     * @throws IllegalStateException If the batcher is closed
+     */
+    public CoreMLResult[] detect(long imagePtr) {
+        long enqueued = System.nanoTime();
+        Batch batch;
+        int index;
+        boolean leader;
+
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("Batcher is closed");
+            }
+            leader = open == null;
+            if (leader) {
+                open = new Batch(maxBatchSize);
+            }
+            batch = open;
+            index = batch.size++;
+            batch.imagePtrs[index] = imagePtr;
+            batch.enqueueNanos[index] = enqueued;
+            if (batch.size == maxBatchSize) {
+                seal(batch);
+            }
+
+            if (leader) {
+                // Wait for the batch to fill or the window to expire
+                long remaining = windowNanos - (System.nanoTime() - enqueued);
+                while (!batch.sealed && remaining > 0) {
+                    remaining = awaitNanosUninterruptibly(remaining);
+                }
+                seal(batch);
+            } else {
+                while (!batch.done) {
+                    changed.awaitUninterruptibly();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (leader) {
+            run(batch);
+        }
+
+        // Every caller of a failed batch sees its failure, errors included
+        Throwable error = batch.error;
+        if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+        }
+        if (error instanceof Error) {
+            throw (Error) error;
+        }
+        if (error != null) {
+            throw new IllegalStateException("Batch detection failed", error);
+        }
+        return batch.results[index];
+    }
+
+    /** @return Statistics for every batch size that has run at least once, smallest first. */
+    public List<BatchStats> getStats() {
+        List<BatchStats> result = new ArrayList<>();
+        for (int size = 1; size <= maxBatchSize; size++) {
+            SizeStats s = stats[size];
+            long batches;
+            long frames;
+            long execNanos;
+            synchronized (s) {
+                if (s.batches == 0) {
+                    continue;
+                }
+                batches = s.batches;
+                frames = s.frames;
+                execNanos = s.execNanos;
+            }
+            StageStats latency = s.latency.snapshot();
+            double fps = execNanos > 0 ? frames * 1e9 / execNanos : 0;
+            result.add(new BatchStats(size, batches, fps, latency.p50Ms, latency.p99Ms));
+        }
+        return result;
+    }
+
+    /** Clear all recorded statistics. */
+    public void resetStats() {
+        for (int size = 1; size <= maxBatchSize; size++) {
+            SizeStats s = stats[size];
+            synchronized (s) {
+                s.batches = 0;
+                s.frames = 0;
+                s.execNanos = 0;
+                s.latency.reset();
+            }
+        }
+    }
+
+    /**
+     * Stop accepting frames. A batch still waiting for frames runs at once and its callers get
+     * their results; later calls to {@link #detect} fail.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            if (open != null) {
+                seal(open);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Close a batch to new frames. Must hold the lock.
+    private void seal(Batch batch) {
+        if (!batch.sealed) {
+            batch.sealed = true;
+            if (open == batch) {
+                open = null;
+            }
+            changed.signalAll();
+        }
+    }
+
+    private void run(Batch batch) {
+        int size = batch.size;
+        long[] imagePtrs = size == batch.imagePtrs.length ? batch.imagePtrs : Arrays.copyOf(batch.imagePtrs, size);
+        long start = System.nanoTime();
+        try {
+            CoreMLResult[][] results = detector.detectBatch(imagePtrs, nmsThresh, boxThresh);
+            if (results == null || results.length != size) {
+                throw new IllegalStateException("Batch detector returned "
+                    + (results == null ? "null" : results.length + " results") + " for " + size + " frames");
+            }
+            batch.results = results;
+        } catch (Throwable e) {
+            batch.error = e;
+        } finally {
+            long end = System.nanoTime();
+            record(batch, end - start, end);
+
+            // Followers wait for this whatever the detector did
+            lock.lock();
+            try {
+                batch.done = true;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void record(Batch batch, long execNanos, long completedNanos) {
+        SizeStats s = stats[batch.size];
+        synchronized (s) {
+            s.batches++;
+            s.frames += batch.size;
+            s.execNanos += execNanos;
+            for (int i = 0; i < batch.size; i++) {
+                s.latency.record((completedNanos - batch.enqueueNanos[i]) / 1000);
+            }
+        }
+    }
+
+    private long awaitNanosUninterruptibly(long nanos) {
+        try {
+            return changed.awaitNanos(nanos);
+        } catch (InterruptedException e) {
+            // Run the batch now; other callers are waiting on it
+            Thread.currentThread().interrupt();
+            return 0;
+        }
+    }
+}
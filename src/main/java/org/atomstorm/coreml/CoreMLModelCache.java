@@ -0,0 +1,380 @@
+/*
+ * Copyright (C) AtomStorm.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.atomstorm.coreml;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.atomstorm.coreml.CoreMLJNI.CoreMask;
+import org.atomstorm.coreml.CoreMLJNI.ModelVersion;
+
+/**
+ * Persistent on-disk cache of compiled CoreML models ({@code .mlmodelc} directories).
+ *
+ * <p>Entries are keyed by a SHA-256 hash of the source model's contents plus the compute
+ * units it will run on, so an unchanged {@code .mlpackage} or {@code .mlmodel} is only
+ * compiled once across process restarts. The total size of the cache is bounded; when an
+ * insertion pushes it over the limit, the least recently used entries are deleted.
+ *
+ * <p>Each entry is published with an atomic rename, so several processes may share one
+ * cache directory. Within a process, a cache instance is thread-safe; models are hashed and
+ * compiled concurrently, and only publishing an entry is serialized.
+ */
+public class CoreMLModelCache {
+    /** Compiles a source model into a {@code .mlmodelc} directory. */
+    @FunctionalInterface
+    public interface ModelCompiler {
+        /**
+         * Compile a model.
+         *
+         * @param source Path to the {@code .mlpackage} or {@code .mlmodel} to compile
+         * @param destination Path the compiled model directory must be written to. Does not exist yet.
+         * @throws IOException if compilation fails
+         */
+        void compile(Path source, Path destination) throws IOException;
+    }
+
+    /** Compiler backed by CoreML's {@code MLModel compileModelAtURL:}. */
+    public static final ModelCompiler NATIVE_COMPILER = (source, destination) -> {
+        if (CoreMLJNI.compileModel(source.toString(), destination.toString()) != 0) {
+            throw new IOException("Failed to compile CoreML model " + source);
+        }
+    };
+
+    /** A compiled model held by the cache. */
+    public static final class Entry {
+        /** The cache key of the entry. */
+        public final String key;
+        /** Path to the compiled {@code .mlmodelc} directory. */
+        public final Path path;
+        /** Total size of the compiled model on disk, in bytes. */
+        public final long sizeBytes;
+        /** Time of the last lookup or insertion, in milliseconds since the epoch. */
+        public final long lastAccessMillis;
+
+        Entry(String key, Path path, long sizeBytes, long lastAccessMillis) {
+            this.key = key;
+            this.path = path;
+            this.sizeBytes = sizeBytes;
+            this.lastAccessMillis = lastAccessMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "Entry [key=" + key + ", sizeBytes=" + sizeBytes + ", lastAccessMillis=" + lastAccessMillis + "]";
+        }
+    }
+
+    // Bump when the key derivation changes so stale entries stop matching
+    private static final String KEY_VERSION = "1";
+    private static final String COMPILED_SUFFIX = ".mlmodelc";
+    private static final String TEMP_PREFIX = ".tmp-";
+
+    private final Path directory;
+    private final long maxBytes;
+    private final ModelCompiler compiler;
+    private long lastAccessStamp;
+
+    /**
+     * Creates a cache that compiles models with CoreML.
+     *
+     * @param directory Directory holding the compiled models. Created if missing.
+     * @param maxBytes Upper bound on the total size of all cached models
+     */
+    public CoreMLModelCache(Path directory, long maxBytes) {
+        this(directory, maxBytes, NATIVE_COMPILER);
+    }
+
+    /**
+     * Creates a cache with a custom compiler.
+     *
+     * @param directory Directory holding the compiled models. Created if missing.
+     * @param maxBytes Upper bound on the total size of all cached models
+     * @param compiler Compiler invoked on cache misses
+     */
+    public CoreMLModelCache(Path directory, long maxBytes, ModelCompiler compiler) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Cache size bound must be positive: " + maxBytes);
+        }
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.compiler = compiler;
+    }
+
+    /**
+     * @return The default cache location, {@code ~/.cache/coreml_jni/compiled}.
+     */
+    public static Path defaultDirectory() {
+        return Paths.get(System.getProperty("user.home"), ".cache", "coreml_jni", "compiled");
+    }
+
+    /** @return The directory holding the compiled models. */
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /** @return Upper bound on the total size of all cached models, in bytes. */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Computes the cache key for a model.
+     *
+     * @param source Path to the {@code .mlpackage} or {@code .mlmodel}
+     * @param coreMask Compute units the model will run on
+     * @return Hex-encoded SHA-256 over the model's files and the compute units
+     * @throws IOException if the model cannot be read
+     */
+    public static String key(Path source, CoreMask coreMask) throws IOException {
+        MessageDigest digest = sha256();
+        digest.update(KEY_VERSION.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(coreMask.name().getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(source)) {
+            files = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+        if (files.isEmpty()) {
+            throw new IOException("No model files found at " + source);
+        }
+
+        byte[] chunk = new byte[64 * 1024];
+        for (Path file : files) {
+            // Hash the relative path too, so moving a file inside a package changes the key
+            String relative = source.relativize(file).toString().replace('\\', '/');
+            digest.update(relative.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            try (InputStream in = Files.newInputStream(file)) {
+                int read;
+                while ((read = in.read(chunk)) > 0) {
+                    digest.update(chunk, 0, read);
+                }
+            }
+            digest.update((byte) 0);
+        }
+
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Returns the compiled model for {@code source}, compiling and caching it on a miss.
+     *
+     * @param source Path to the {@code .mlpackage} or {@code .mlmodel}
+     * @param coreMask Compute units the model will run on
+     * @return Path to the compiled {@code .mlmodelc} directory
+     * @throws IOException if the model cannot be read or compiled
+     */
+    public Path prewarm(Path source, CoreMask coreMask) throws IOException {
+        // Hashing and compiling run outside the lock so several models can be prepared at once
+        String key = key(source, coreMask);
+        Path compiled = pathFor(key);
+        synchronized (this) {
+            if (Files.isDirectory(compiled)) {
+                touch(compiled);
+                return compiled;
+            }
+        }
+
+        Files.createDirectories(directory);
+        Path temp = directory.resolve(TEMP_PREFIX + UUID.randomUUID());
+        try {
+            compiler.compile(source, temp);
+            if (!Files.isDirectory(temp)) {
+                throw new IOException("Compiler did not produce a model directory for " + source);
+            }
+            synchronized (this) {
+                try {
+                    Files.move(temp, compiled, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temp, compiled);
+                } catch (IOException e) {
+                    // Another thread or process may have published the same entry first; its copy is identical
+                    if (!Files.isDirectory(compiled)) {
+                        throw e;
+                    }
+                }
+                touch(compiled);
+                evict(compiled);
+            }
+        } finally {
+            deleteRecursively(temp);
+        }
+        return compiled;
+    }
+
+    /**
+     * Create a detector from the cached compiled model, compiling it first on a miss.
+     *
+     * @param modelPath Path to the {@code .mlpackage} or {@code .mlmodel}
+     * @param numClasses How many classes. MUST MATCH or native code segfaults
+     * @param modelVer Which model is being used
+     * @param coreMask Which compute unit to use
+     * @return Pointer to the detector in native memory, or 0 on error
+     * @throws IOException if the model cannot be read or compiled
+     */
+    public long create(String modelPath, int numClasses, ModelVersion modelVer, CoreMask coreMask) throws IOException {
+        Path compiled = prewarm(Paths.get(modelPath), coreMask);
+        return CoreMLJNI.create(compiled.toString(), numClasses, modelVer.ordinal(), coreMask.ordinal());
+    }
+
+    /**
+     * @return All cached entries, least recently used first.
+     * @throws IOException if the cache directory cannot be read
+     */
+    public synchronized List<Entry> entries() throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return entries;
+        }
+        try (Stream<Path> children = Files.list(directory)) {
+            for (Path child : (Iterable<Path>) children::iterator) {
+                String name = child.getFileName().toString();
+                if (!name.endsWith(COMPILED_SUFFIX) || !Files.isDirectory(child)) {
+                    continue;
+                }
+                entries.add(new Entry(
+                    name.substring(0, name.length() - COMPILED_SUFFIX.length()),
+                    child,
+                    sizeOf(child),
+                    Files.getLastModifiedTime(child).toMillis()));
+            }
+        }
+        entries.sort(Comparator.comparingLong((Entry e) -> e.lastAccessMillis).thenComparing(e -> e.key));
+        return entries;
+    }
+
+    /**
+     * @return Total size of all cached entries, in bytes.
+     * @throws IOException if the cache directory cannot be read
+     */
+    public synchronized long sizeBytes() throws IOException {
+        long total = 0;
+        for (Entry entry : entries()) {
+            total += entry.sizeBytes;
+        }
+        return total;
+    }
+
+    /**
+     * Delete one entry.
+     *
+     * @param key Cache key, as returned by {@link #key}
+     * @return true if an entry was deleted
+     * @throws IOException if the entry cannot be deleted
+     */
+    public synchronized boolean purge(String key) throws IOException {
+        Path compiled = pathFor(key);
+        if (!Files.exists(compiled)) {
+            return false;
+        }
+        deleteRecursively(compiled);
+        return true;
+    }
+
+    /**
+     * Delete every entry.
+     *
+     * @throws IOException if an entry cannot be deleted
+     */
+    public synchronized void purgeAll() throws IOException {
+        for (Entry entry : entries()) {
+            deleteRecursively(entry.path);
+        }
+    }
+
+    private Path pathFor(String key) {
+        return directory.resolve(key + COMPILED_SUFFIX);
+    }
+
+    // Record an access. Stamps are strictly increasing so LRU order survives coarse clocks.
+    private void touch(Path compiled) throws IOException {
+        lastAccessStamp = Math.max(System.currentTimeMillis(), lastAccessStamp + 1);
+        Files.setLastModifiedTime(compiled, FileTime.fromMillis(lastAccessStamp));
+    }
+
+    // Delete least recently used entries until the cache fits, never evicting the entry just inserted
+    private void evict(Path keep) throws IOException {
+        List<Entry> entries = entries();
+        long total = 0;
+        for (Entry entry : entries) {
+            total += entry.sizeBytes;
+        }
+        for (Entry entry : entries) {
+            if (total <= maxBytes) {
+                break;
+            }
+            if (entry.path.equals(keep)) {
+                continue;
+            }
+            deleteRecursively(entry.path);
+            total -= entry.sizeBytes;
+        }
+    }
+
+    private static long sizeOf(Path path) throws IOException {
+        try (Stream<Path> walk = Files.walk(path)) {
+            long total = 0;
+            for (Path file : (Iterable<Path>) walk::iterator) {
+                if (Files.isRegularFile(file)) {
+                    total += Files.size(file);
+                }
+            }
+            return total;
+        }
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> walk = Files.walk(path)) {
+            for (Path p : (Iterable<Path>) walk.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(p);
+            }
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
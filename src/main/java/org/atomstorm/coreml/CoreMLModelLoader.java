@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) AtomStorm.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.atomstorm.coreml;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.atomstorm.coreml.CoreMLJNI.CoreMask;
+import org.atomstorm.coreml.CoreMLJNI.ModelVersion;
+
+/**
+ * Loads several models in parallel at startup.
+ *
+ * <p>Creating a detector compiles and loads its model, and the first prediction on it pays a
+ * further one-off cost while Core ML specializes the model for its compute units. Loading
+ * models one after another adds all of this up. A loader runs each load on a bounded
+ * executor, optionally followed by warm-up predictions on a blank frame of the model's input
+ * size, so the future completes with a detector that is ready to serve at full speed. Each
+ * phase is timed, see {@link LoadedModel}.
+ *
+ * <p>The phases run through a {@link Backend}, so startup orchestration can be tested with a
+ * stand-in. A loader is thread-safe.
+ */
+public class CoreMLModelLoader implements AutoCloseable {
+    /** The steps of loading one model. Called concurrently for different models. */
+    public interface Backend {
+        /**
+         * Compile a model ahead of loading it.
+         *
+         * @param spec The model
+         * @return Path to load the model from
+         * @throws IOException if the model cannot be compiled
+         */
+        String compile(ModelSpec spec) throws IOException;
+
+        /**
+         * Load a model.
+         *
+         * @param path Path returned by {@link #compile}
+         * @param spec The model
+         * @return Pointer to the detector, or 0 on error
+         */
+        long create(String path, ModelSpec spec);
+
+        /**
+         * Run one prediction on a blank frame of the model's input size.
+         *
+         * @param ptr Pointer returned by {@link #create}
+         * @return Whether the prediction succeeded
+         */
+        boolean warmUp(long ptr);
+
+        /**
+         * Release a detector that failed to warm up, or whose batch failed to load.
+         *
+         * @param ptr Pointer returned by {@link #create}
+         */
+        void destroy(long ptr);
+    }
+
+    /** A model to load. */
+    public static final class ModelSpec {
+        /** Name used in timings and errors. */
+        public final String name;
+        /** Path to the {@code .mlpackage}, {@code .mlmodel} or compiled {@code .mlmodelc}. */
+        public final String modelPath;
+        /** How many classes. MUST MATCH or native code segfaults. */
+        public final int numClasses;
+        /** Which model is being used. */
+        public final ModelVersion modelVersion;
+        /** Compute units to load the model on. */
+        public final CoreMask coreMask;
+        /** Warm-up predictions to run before the load completes. */
+        public final int warmUpRuns;
+
+        /**
+         * Describes a model to load.
+         *
+         * @param name Name used in timings and errors
+         * @param modelPath Path to the {@code .mlpackage}, {@code .mlmodel} or compiled {@code .mlmodelc}
+         * @param numClasses How many classes. MUST MATCH or native code segfaults
+         * @param modelVersion Which model is being used
+         * @param coreMask Compute units to load the model on
+         * @param warmUpRuns Warm-up predictions to run before the load completes, 0 for none
+         */
+        public ModelSpec(String name, String modelPath, int numClasses, ModelVersion modelVersion,
+                         CoreMask coreMask, int warmUpRuns) {
+            if (warmUpRuns < 0) {
+                throw new IllegalArgumentException("warmUpRuns must not be negative: " + warmUpRuns);
+            }
+            this.name = name;
+            this.modelPath = modelPath;
+            this.numClasses = numClasses;
+            this.modelVersion = modelVersion;
+            this.coreMask = coreMask;
+            this.warmUpRuns = warmUpRuns;
+        }
+
+        @Override
+        public String toString() {
+            return "ModelSpec [name=" + name + ", modelPath=" + modelPath + ", coreMask=" + coreMask
+                + ", warmUpRuns=" + warmUpRuns + "]";
+        }
+    }
+
+    /** A loaded detector and how long each phase of its startup took. */
+    public static final class LoadedModel {
+        /** The model that was loaded. */
+        public final ModelSpec spec;
+        /** Pointer to the detector in native memory. Owned by the caller. */
+        public final long ptr;
+        /** Time spent compiling, in milliseconds; 0 if the model was compiled while loading. */
+        public final double compileMs;
+        /** Time spent loading, in milliseconds. */
+        public final double loadMs;
+        /** Time of the first warm-up prediction, in milliseconds; NaN without warm-up. */
+        public final double firstInferenceMs;
+        /** Time of all warm-up predictions, in milliseconds. */
+        public final double warmUpMs;
+
+        LoadedModel(ModelSpec spec, long ptr, double compileMs, double loadMs, double firstInferenceMs,
+                    double warmUpMs) {
+            this.spec = spec;
+            this.ptr = ptr;
+            this.compileMs = compileMs;
+            this.loadMs = loadMs;
+            this.firstInferenceMs = firstInferenceMs;
+            this.warmUpMs = warmUpMs;
+        }
+
+        /** @return Time from the start of compiling to the end of warm-up, in milliseconds. */
+        public double totalMs() {
+            return compileMs + loadMs + warmUpMs;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                "LoadedModel [name=%s, compile=%.1f ms, load=%.1f ms, firstInference=%.1f ms, warmUp=%.1f ms]",
+                spec.name, compileMs, loadMs, firstInferenceMs, warmUpMs);
+        }
+    }
+
+    private final Backend backend;
+    private final Executor executor;
+    private final ExecutorService ownedExecutor;
+
+    /**
+     * Creates a loader that loads up to {@code parallelism} models at a time with Core ML,
+     * compiling through a cache.
+     *
+     * @param parallelism Maximum number of models loading at once
+     * @param cache Cache models are compiled through, or null to compile while loading
+     */
+    public CoreMLModelLoader(int parallelism, CoreMLModelCache cache) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1: " + parallelism);
+        }
+        this.backend = new NativeBackend(cache);
+        this.ownedExecutor = newExecutor(parallelism);
+        this.executor = ownedExecutor;
+    }
+
+    /**
+     * Creates a loader with a custom backend.
+     *
+     * @param backend Runs the phases of each load
+     * @param executor Runs the loads; its size bounds how many run at once. Stays owned by the caller.
+     */
+    public CoreMLModelLoader(Backend backend, Executor executor) {
+        this.backend = backend;
+        this.executor = executor;
+        this.ownedExecutor = null;
+    }
+
+    /**
+     * Load a model in the background.
+     *
+     * @param spec The model
+     * @return Future completed with the warmed-up detector, or exceptionally with an
+     *     {@link IOException} if it could not be compiled, loaded or warmed up
+     */
+    public CompletableFuture<LoadedModel> load(ModelSpec spec) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return loadNow(spec);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    /**
+     * Load several models in the background, in parallel up to the loader's bound.
+     *
+     * @param specs The models
+     * @return Future completed with the detectors in the order of {@code specs}. If any model
+     *     fails, the future fails with its error once every load has finished, and the
+     *     detectors that did load are destroyed.
+     */
+    public CompletableFuture<List<LoadedModel>> loadAll(List<ModelSpec> specs) {
+        List<CompletableFuture<LoadedModel>> futures = new ArrayList<>(specs.size());
+        for (ModelSpec spec : specs) {
+            futures.add(load(spec));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+            .handle((ignored, error) -> {
+                List<LoadedModel> models = new ArrayList<>(futures.size());
+                for (CompletableFuture<LoadedModel> future : futures) {
+                    if (!future.isCompletedExceptionally()) {
+                        models.add(future.join());
+                    }
+                }
+                if (error != null) {
+                    for (LoadedModel model : models) {
+                        backend.destroy(model.ptr);
+                    }
+                    throw error instanceof CompletionException
+                        ? (CompletionException) error : new CompletionException(error);
+                }
+                return models;
+            });
+    }
+
+    /** Stop the loader's own threads, if it has any. Loads already started still complete. */
+    @Override
+    public void close() {
+        if (ownedExecutor != null) {
+            ownedExecutor.shutdown();
+        }
+    }
+
+    private LoadedModel loadNow(ModelSpec spec) throws IOException {
+        long start = System.nanoTime();
+        String path = backend.compile(spec);
+        long compiled = System.nanoTime();
+
+        long ptr = backend.create(path, spec);
+        long loaded = System.nanoTime();
+        if (ptr == 0) {
+            throw new IOException("Failed to load model " + spec.name + " from " + path);
+        }
+
+        double firstInferenceMs = Double.NaN;
+        long warmStart = System.nanoTime();
+        boolean warm = false;
+        try {
+            for (int i = 0; i < spec.warmUpRuns; i++) {
+                if (!backend.warmUp(ptr)) {
+                    throw new IOException("Warm-up prediction failed for model " + spec.name);
+                }
+                if (i == 0) {
+                    firstInferenceMs = millisSince(warmStart);
+                }
+            }
+            warm = true;
+        } finally {
+            // Nobody else holds the pointer yet, whether warm-up failed or threw
+            if (!warm) {
+                backend.destroy(ptr);
+            }
+        }
+        double warmUpMs = millisSince(warmStart);
+
+        return new LoadedModel(spec, ptr, (compiled - start) / 1e6, (loaded - compiled) / 1e6,
+            firstInferenceMs, warmUpMs);
+    }
+
+    private static double millisSince(long start) {
+        return (System.nanoTime() - start) / 1e6;
+    }
+
+    // Fixed-size pool of daemon threads that exit when idle, so a loader left open does not
+    // keep threads around after startup
+    static ExecutorService newExecutor(int threads) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "coreml-loader");
+                thread.setDaemon(true);
+                return thread;
+            });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /** Phases backed by the native library. */
+    static final class NativeBackend implements Backend {
+        private final CoreMLModelCache cache;
+
+        NativeBackend(CoreMLModelCache cache) {
+            this.cache = cache;
+        }
+
+        @Override
+        public String compile(ModelSpec spec) throws IOException {
+            if (cache == null || spec.modelPath.endsWith(".mlmodelc")) {
+                return spec.modelPath;
+            }
+            return cache.prewarm(Paths.get(spec.modelPath), spec.coreMask).toString();
+        }
+
+        @Override
+        public long create(String path, ModelSpec spec) {
+            return CoreMLJNI.create(path, spec.numClasses, spec.modelVersion.ordinal(), spec.coreMask.ordinal());
+        }
+
+        @Override
+        public boolean warmUp(long ptr) {
+            int width = CoreMLJNI.getInputWidth(ptr);
+            int height = CoreMLJNI.getInputHeight(ptr);
+            if (width <= 0 || height <= 0) {
+                return false;
+            }
+            // An input-sized BGRA frame goes to the model without any preprocessing
+            FrameDescriptor frame = FrameDescriptor.create(FrameDescriptor.Format.BGRA, width, height);
+            ByteBuffer pixels = ByteBuffer.allocateDirect((int) frame.requiredBytes());
+            long errors = CoreMLJNI.getStats(ptr).errors;
+            CoreMLJNI.detect(ptr, pixels, frame, 0.5, 0.5);
+            return CoreMLJNI.getStats(ptr).errors == errors;
+        }
+
+        @Override
+        public void destroy(long ptr) {
+            CoreMLJNI.destroy(ptr);
+        }
+    }
+}
@@ -0,0 +1,386 @@
+/*
+ * Copyright (C) AtomStorm.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.atomstorm.coreml;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.atomstorm.coreml.CoreMLJNI.CoreMLResult;
+
+/**
+ * Asynchronous, two-stage detection pipeline for a single detector.
+ *
+ * <p>Frames submitted with {@link #submit} are preprocessed on one thread and run through
+ * the model on another, so letterboxing and uploading frame N+1 overlaps inference of
+ * frame N. At most {@code maxInFlight} frames are accepted but not yet completed; when a
+ * camera produces frames faster than the model consumes them, the {@link OverflowPolicy}
+ * decides whether {@link #submit} blocks or the oldest waiting frame is dropped.
+ */
+public class CoreMLPipeline implements AutoCloseable {
+    /** What {@link #submit} does when the pipeline already holds {@code maxInFlight} frames. */
+    public static enum OverflowPolicy {
+        /** Block the caller until a frame completes. */
+        BLOCK,
+        /**
+         * Cancel the oldest frame that has not started inference. Blocks only while every
+         * in-flight frame is actively being processed.
+         */
+        DROP_OLDEST
+    }
+
+    /** The two halves of a detection, split so they can run on separate threads. */
+    public interface Stages {
+        /**
+         * Preprocess a frame.
+         *
+         * @param imagePtr Pointer to a cv::Mat input image
+         * @return Handle to the prepared frame, or 0 on error
+         */
+        long preprocess(long imagePtr);
+
+        /**
+         * Run inference on a prepared frame.
+         *
+         * @param prepared Handle returned by {@link #preprocess}
+         * @param nmsThresh Non-Maximum Suppression threshold
+         * @param boxThresh Bounding box confidence threshold
+         * @return The detections
+         */
+        CoreMLResult[] infer(long prepared, double nmsThresh, double boxThresh);
+
+        /**
+         * Release a prepared frame. Called exactly once per successful {@link #preprocess}.
+         *
+         * @param prepared Handle returned by {@link #preprocess}
+         */
+        void release(long prepared);
+    }
+
+    private static final CoreMLResult[] NO_RESULTS = new CoreMLResult[0];
+
+    private static final class Job {
+        final long imagePtr;
+        final double nmsThresh;
+        final double boxThresh;
+        final CompletableFuture<CoreMLResult[]> future = new CompletableFuture<>();
+        long prepared;
+
+        Job(long imagePtr, double nmsThresh, double boxThresh) {
+            this.imagePtr = imagePtr;
+            this.nmsThresh = nmsThresh;
+            this.boxThresh = boxThresh;
+        }
+    }
+
+    private final Stages stages;
+    private final int maxInFlight;
+    private final OverflowPolicy policy;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final Condition preprocessReady = lock.newCondition();
+    private final Condition inferReady = lock.newCondition();
+    private final ArrayDeque<Job> preprocessQueue = new ArrayDeque<>();
+    private final ArrayDeque<Job> inferQueue = new ArrayDeque<>();
+    private int inFlight;
+    private long droppedCount;
+    private boolean closed;
+
+    private final Thread preprocessThread;
+    private final Thread inferThread;
+
+    /**
+     * Creates a pipeline over a native detector.
+     *
+     * @param detectorPtr Pointer to detector created by {@link CoreMLJNI#create}. Must outlive the pipeline.
+     * @param maxInFlight Maximum number of frames submitted but not yet completed
+     * @param policy What to do when a frame is submitted to a full pipeline
+     */
+    public CoreMLPipeline(long detectorPtr, int maxInFlight, OverflowPolicy policy) {
+        this(nativeStages(detectorPtr), maxInFlight, policy);
+    }
+
+    /**
+     * Creates a pipeline over custom stages.
+     *
+     * @param stages The preprocessing and inference stages
+     * @param maxInFlight Maximum number of frames submitted but not yet completed
+     * @param policy What to do when a frame is submitted to a full pipeline
+     */
+    public CoreMLPipeline(Stages stages, int maxInFlight, OverflowPolicy policy) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be at least 1: " + maxInFlight);
+        }
+        this.stages = stages;
+        this.maxInFlight = maxInFlight;
+        this.policy = policy;
+
+        preprocessThread = new Thread(this::preprocessLoop, "coreml-pipeline-preprocess");
+        inferThread = new Thread(this::inferLoop, "coreml-pipeline-infer");
+        preprocessThread.setDaemon(true);
+        inferThread.setDaemon(true);
+        preprocessThread.start();
+        inferThread.start();
+    }
+
+    /**
+     * Stages backed by {@link CoreMLJNI#prepare}, {@link CoreMLJNI#infer} and {@link CoreMLJNI#releasePrepared}.
+     *
+     * @param detectorPtr Pointer to detector created by {@link CoreMLJNI#create}
+     * @return The native stages
+     */
+    public static Stages nativeStages(long detectorPtr) {
+        return new Stages() {
+            @Override
+            public long preprocess(long imagePtr) {
+                return CoreMLJNI.prepare(detectorPtr, imagePtr);
+            }
+
+            @Override
+            public CoreMLResult[] infer(long prepared, double nmsThresh, double boxThresh) {
+                return CoreMLJNI.infer(detectorPtr, prepared, nmsThresh, boxThresh);
+            }
+
+            @Override
+            public void release(long prepared) {
+                CoreMLJNI.releasePrepared(prepared);
+            }
+        };
+    }
+
+    /**
+     * Submit a frame for detection.
+     *
+     * @param imagePtr Pointer to a cv::Mat input image. Must not be modified or released
+     *     until the returned future completes.
+     * @param nmsThresh Non-Maximum Suppression threshold
+     * @param boxThresh Bounding box confidence threshold
+     * @return Future completed with the detections. It is cancelled if the frame is dropped
+     *     or the pipeline is closed first, and fails with {@link RejectedExecutionException}
+     *     if the pipeline is already closed.
+     */
+    public CompletableFuture<CoreMLResult[]> submit(long imagePtr, double nmsThresh, double boxThresh) {
+        List<Job> dropped = new ArrayList<>(0);
+        Job job = new Job(imagePtr, nmsThresh, boxThresh);
+        lock.lock();
+        try {
+            while (!closed && inFlight >= maxInFlight) {
+                if (policy == OverflowPolicy.DROP_OLDEST) {
+                    // Jobs waiting for inference were submitted before jobs waiting for preprocessing
+                    Job victim = inferQueue.pollFirst();
+                    if (victim == null) {
+                        victim = preprocessQueue.pollFirst();
+                    }
+                    if (victim != null) {
+                        inFlight--;
+                        droppedCount++;
+                        dropped.add(victim);
+                        continue;
+                    }
+                }
+                notFull.awaitUninterruptibly();
+            }
+            if (closed) {
+                job.future.completeExceptionally(new RejectedExecutionException("Pipeline is closed"));
+            } else {
+                preprocessQueue.addLast(job);
+                inFlight++;
+                preprocessReady.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        // Complete outside the lock so dependent actions cannot deadlock the pipeline
+        cancelAll(dropped);
+        return job.future;
+    }
+
+    /** @return Number of frames submitted but not yet completed. */
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** @return Number of frames dropped by {@link OverflowPolicy#DROP_OLDEST} so far. */
+    public long getDroppedCount() {
+        lock.lock();
+        try {
+            return droppedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stop the pipeline. Frames waiting to be processed are cancelled, the frame currently
+     * being inferred completes normally, and the worker threads exit.
+     */
+    @Override
+    public void close() {
+        List<Job> pending = new ArrayList<>();
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            pending.addAll(inferQueue);
+            pending.addAll(preprocessQueue);
+            inFlight -= pending.size();
+            inferQueue.clear();
+            preprocessQueue.clear();
+            preprocessReady.signalAll();
+            inferReady.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        cancelAll(pending);
+        joinUninterruptibly(preprocessThread);
+        joinUninterruptibly(inferThread);
+    }
+
+    private void preprocessLoop() {
+        while (true) {
+            Job job;
+            lock.lock();
+            try {
+                while (preprocessQueue.isEmpty() && !closed) {
+                    preprocessReady.awaitUninterruptibly();
+                }
+                if (closed) {
+                    return;
+                }
+                job = preprocessQueue.pollFirst();
+            } finally {
+                lock.unlock();
+            }
+
+            long prepared;
+            try {
+                prepared = stages.preprocess(job.imagePtr);
+            } catch (RuntimeException | Error e) {
+                finish(job, null, e);
+                continue;
+            }
+            if (prepared == 0) {
+                finish(job, NO_RESULTS, null);
+                continue;
+            }
+            job.prepared = prepared;
+
+            boolean accepted = false;
+            lock.lock();
+            try {
+                if (!closed) {
+                    inferQueue.addLast(job);
+                    inferReady.signal();
+                    accepted = true;
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (!accepted) {
+                stages.release(prepared);
+                finish(job, null, null);
+            }
+        }
+    }
+
+    private void inferLoop() {
+        while (true) {
+            Job job;
+            lock.lock();
+            try {
+                while (inferQueue.isEmpty() && !closed) {
+                    inferReady.awaitUninterruptibly();
+                }
+                if (inferQueue.isEmpty()) {
+                    return;
+                }
+                job = inferQueue.pollFirst();
+            } finally {
+                lock.unlock();
+            }
+
+            CoreMLResult[] results = null;
+            Throwable error = null;
+            try {
+                results = stages.infer(job.prepared, job.nmsThresh, job.boxThresh);
+            } catch (RuntimeException | Error e) {
+                error = e;
+            } finally {
+                stages.release(job.prepared);
+            }
+            finish(job, results, error);
+        }
+    }
+
+    // Retire an in-flight job. Null results and error mean the job was cancelled.
+    private void finish(Job job, CoreMLResult[] results, Throwable error) {
+        lock.lock();
+        try {
+            inFlight--;
+            notFull.signal();
+        } finally {
+            lock.unlock();
+        }
+
+        if (error != null) {
+            job.future.completeExceptionally(error);
+        } else if (results != null) {
+            job.future.complete(results);
+        } else {
+            job.future.cancel(false);
+        }
+    }
+
+    private void cancelAll(List<Job> jobs) {
+        for (Job job : jobs) {
+            if (job.prepared != 0) {
+                stages.release(job.prepared);
+            }
+            job.future.cancel(false);
+        }
+    }
+
+    private static void joinUninterruptibly(Thread thread) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                thread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
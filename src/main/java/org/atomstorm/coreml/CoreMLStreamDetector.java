@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) AtomStorm.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.atomstorm.coreml;
+
+import edu.wpi.first.util.WPIUtilJNI;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+import org.atomstorm.coreml.CoreMLJNI.CoreMLResult;
+import org.atomstorm.coreml.CoreMLJNI.StageStats;
+import org.opencv.core.Mat;
+
+/**
+ * Streams frames from a camera through a detector, always detecting on the newest frame.
+ *
+ * <p>A capture thread grabs frames into one of three reusable {@link Mat}s and hands each one
+ * over through a single lock-free slot; an inference thread takes whatever frame is in the
+ * slot when it becomes free. A frame the inference thread had no time for is overwritten by
+ * the next one and counted as dropped, so results never lag behind a queue of stale frames.
+ * The capture thread never waits for inference, and neither thread allocates a frame once
+ * the three buffers have grown to the camera's resolution.
+ *
+ * <p>Results go to a {@link Listener} on the inference thread, stamped with the latency from
+ * capture to result.
+ */
+public class CoreMLStreamDetector implements AutoCloseable {
+    // How long the capture thread waits for a frame before checking whether it was closed
+    private static final double GRAB_TIMEOUT_SECONDS = 0.1;
+    // How long a thread sleeps when there is nothing to do or the source failed
+    private static final long IDLE_NANOS = 1_000_000;
+
+    // The slot holds a buffer index and whether that buffer has a frame not yet detected
+    private static final int INDEX_MASK = 0x3;
+    private static final int FRESH = 0x4;
+
+    /**
+     * Supplies frames. Matches {@code CvSink.grabFrame(Mat, double)}, so a cscore sink can be
+     * passed as {@code sink::grabFrame}.
+     */
+    public interface FrameSource {
+        /**
+         * Grab the next frame.
+         *
+         * @param image Receives the frame; reallocated by the source if its size changes
+         * @param timeout Seconds to wait for a frame
+         * @return Capture time in microseconds, on the clock of the stream detector, or 0 on
+         *     timeout or error
+         */
+        long grabFrame(Mat image, double timeout);
+    }
+
+    /** Receives the results of each detected frame. */
+    public interface Listener {
+        /**
+         * Called on the inference thread after each detection.
+         *
+         * @param image The detected frame. Valid only during the call; copy it to keep it.
+         * @param result The detections and their timing
+         */
+        void onResult(Mat image, Result result);
+    }
+
+    /** Detections of one frame. */
+    public static final class Result {
+        /** Number of the frame among all frames captured, starting at 1. */
+        public final long frameNumber;
+        /** Capture time reported by the source, in microseconds. */
+        public final long captureMicros;
+        /** Time the detections were ready, in microseconds. */
+        public final long resultMicros;
+        /** The detections. */
+        public final CoreMLResult[] detections;
+
+        Result(long frameNumber, long captureMicros, long resultMicros, CoreMLResult[] detections) {
+            this.frameNumber = frameNumber;
+            this.captureMicros = captureMicros;
+            this.resultMicros = resultMicros;
+            this.detections = detections;
+        }
+
+        /** @return Time from capture to result, in microseconds. */
+        public long latencyMicros() {
+            return resultMicros - captureMicros;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Result [frame=%d, detections=%d, latency=%.3f ms]",
+                frameNumber, detections == null ? 0 : detections.length, latencyMicros() / 1e3);
+        }
+    }
+
+    /** Snapshot of the stream's activity. */
+    public static final class Stats {
+        /** Frames grabbed from the source. */
+        public final long captured;
+        /** Frames detected and passed to the listener. */
+        public final long detected;
+        /** Frames overwritten by a newer one before inference took them. */
+        public final long dropped;
+        /** Grabs that timed out or failed. */
+        public final long grabFailures;
+        /** Detections or listener calls that threw. */
+        public final long failures;
+        /** Latency from capture to result. */
+        public final StageStats latency;
+
+        Stats(long captured, long detected, long dropped, long grabFailures, long failures, StageStats latency) {
+            this.captured = captured;
+            this.detected = detected;
+            this.dropped = dropped;
+            this.grabFailures = grabFailures;
+            this.failures = failures;
+            this.latency = latency;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Stats [captured=%d, detected=%d, dropped=%d, grabFailures=%d, failures=%d, latency=%s]",
+                captured, detected, dropped, grabFailures, failures, latency);
+        }
+    }
+
+    private final CoreMLDetectorPool.Detector detector;
+    private final FrameSource source;
+    private final Listener listener;
+    private final LongSupplier clockMicros;
+    private final double nmsThresh;
+    private final double boxThresh;
+
+    // Triple buffer: the capture thread owns one buffer, the inference thread another, and the
+    // slot the third. Frame numbers and capture times are written before the buffer is
+    // published through the slot, which orders them for the inference thread.
+    private final Mat[] buffers = new Mat[3];
+    private final long[] frameNumbers = new long[3];
+    private final long[] captureTimes = new long[3];
+    private final AtomicInteger slot = new AtomicInteger(1);
+
+    private final AtomicLong detected = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong grabFailures = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private volatile long captured;
+    private volatile RuntimeException lastFailure;
+    private volatile boolean closed;
+
+    private final Thread captureThread;
+    private final Thread inferThread;
+
+    /**
+     * Creates a stream and starts capturing. The detector stays owned by the caller and must
+     * outlive the stream.
+     *
+     * @param detector Runs detection
+     * @param source Supplies frames
+     * @param listener Receives the results
+     * @param nmsThresh Non-Maximum Suppression threshold
+     * @param boxThresh Bounding box confidence threshold
+     * @param clockMicros Clock of the capture times, in microseconds
+     */
+    public CoreMLStreamDetector(CoreMLDetectorPool.Detector detector, FrameSource source, Listener listener,
+                                double nmsThresh, double boxThresh, LongSupplier clockMicros) {
+        this.detector = detector;
+        this.source = source;
+        this.listener = listener;
+        this.nmsThresh = nmsThresh;
+        this.boxThresh = boxThresh;
+        this.clockMicros = clockMicros;
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = new Mat();
+        }
+
+        captureThread = new Thread(this::captureLoop, "coreml-stream-capture");
+        inferThread = new Thread(this::inferLoop, "coreml-stream-infer");
+        captureThread.setDaemon(true);
+        inferThread.setDaemon(true);
+        inferThread.start();
+        captureThread.start();
+    }
+
+    /**
+     * Creates a stream over a native detector, timed by {@code WPIUtilJNI.now()}, the clock of
+     * cscore frame times.
+     *
+     * @param ptr Pointer to detector created by {@link CoreMLJNI#create}. Stays owned by the caller.
+     * @param source Supplies frames, such as {@code sink::grabFrame} of a {@code CvSink}
+     * @param listener Receives the results
+     * @param nmsThresh Non-Maximum Suppression threshold
+     * @param boxThresh Bounding box confidence threshold
+     */
+    public CoreMLStreamDetector(long ptr, FrameSource source, Listener listener, double nmsThresh, double boxThresh) {
+        this(new CoreMLDetectorPool.NativeDetector(ptr), source, listener, nmsThresh, boxThresh, WPIUtilJNI::now);
+    }
+
+    /** @return Snapshot of the stream's activity. */
+    public Stats getStats() {
+        return new Stats(captured, detected.get(), dropped.get(), grabFailures.get(), failures.get(), latency.snapshot());
+    }
+
+    /** @return The last exception thrown by the detector, the listener or the source, or null. */
+    public RuntimeException getLastFailure() {
+        return lastFailure;
+    }
+
+    /**
+     * Stop both threads and release the frame buffers. A frame waiting in the slot is not
+     * detected; a detection in progress completes and reaches the listener first.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        LockSupport.unpark(inferThread);
+        boolean interrupted = joinUninterruptibly(captureThread);
+        interrupted |= joinUninterruptibly(inferThread);
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        for (Mat buffer : buffers) {
+            buffer.release();
+        }
+    }
+
+    private void captureLoop() {
+        int back = 0;
+        while (!closed) {
+            Mat image = buffers[back];
+            long time;
+            try {
+                time = source.grabFrame(image, GRAB_TIMEOUT_SECONDS);
+            } catch (RuntimeException e) {
+                lastFailure = e;
+                time = 0;
+            }
+            if (time == 0) {
+                grabFailures.incrementAndGet();
+                LockSupport.parkNanos(this, IDLE_NANOS);
+                continue;
+            }
+
+            long frameNumber = captured + 1;
+            captured = frameNumber;
+            frameNumbers[back] = frameNumber;
+            captureTimes[back] = time;
+            // Publish the frame and take back the buffer it replaces; if that buffer was
+            // still fresh, inference never saw it
+            int previous = slot.getAndSet(back | FRESH);
+            back = previous & INDEX_MASK;
+            if ((previous & FRESH) != 0) {
+                dropped.incrementAndGet();
+            }
+            LockSupport.unpark(inferThread);
+        }
+    }
+
+    private void inferLoop() {
+        int front = 2;
+        while (!closed) {
+            if ((slot.get() & FRESH) == 0) {
+                LockSupport.parkNanos(this, IDLE_NANOS);
+                continue;
+            }
+            // Only this thread clears the fresh bit, so the slot is still fresh here
+            front = slot.getAndSet(front) & INDEX_MASK;
+            Mat image = buffers[front];
+
+            CoreMLResult[] detections;
+            try {
+                detections = detector.detect(image.getNativeObjAddr(), nmsThresh, boxThresh);
+            } catch (RuntimeException e) {
+                failures.incrementAndGet();
+                lastFailure = e;
+                continue;
+            }
+            Result result = new Result(frameNumbers[front], captureTimes[front], clockMicros.getAsLong(), detections);
+            latency.record(result.latencyMicros());
+            detected.incrementAndGet();
+            try {
+                listener.onResult(image, result);
+            } catch (RuntimeException e) {
+                failures.incrementAndGet();
+                lastFailure = e;
+            }
+        }
+    }
+
+    private static boolean joinUninterruptibly(Thread thread) {
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        return interrupted;
+    }
+}
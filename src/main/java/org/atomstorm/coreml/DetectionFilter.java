@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) AtomStorm.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.atomstorm.coreml;
+
+import java.util.Arrays;
+
+/**
+ * Which detections a detector returns, see {@link CoreMLJNI#setFilter(long, DetectionFilter)}.
+ *
+ * <p>A detection passes if its confidence reaches both the global floor and its class's
+ * threshold, its class is allowed, and its box area in image pixels lies within the limits.
+ * With a top-K limit only the K most confident survivors are kept, best first, ties going to
+ * the later detection; otherwise survivors keep the model's order.
+ *
+ * <p>The detector applies the filter natively, before any result crosses JNI. {@link #apply}
+ * is the reference implementation and gives identical results on the rows of a
+ * {@link DetectionView}. A filter's settings never change, but {@code apply} keeps scratch
+ * space and is not thread-safe.
+ */
+public final class DetectionFilter {
+    /** Keeps every detection. */
+    public static final DetectionFilter NONE = new DetectionFilter(0, null, null, 0, 0, 0);
+
+    private final float minConfidence;
+    private final float[] classThresholds;
+    private final int[] allowedClasses;
+    private final float minArea;
+    private final float maxArea;
+    private final int topK;
+
+    private float[] scores = new float[0];
+    private long[] keys = new long[0];
+    private int[] order = new int[0];
+    private float[] scratch = new float[0];
+
+    /**
+     * Creates a filter.
+     *
+     * @param minConfidence Confidence every detection must reach, in [0, 1]
+     * @param classThresholds Confidence each class must reach, indexed by class ID, in [0, 1];
+     *     classes beyond the array only need {@code minConfidence}. Null for none.
+     * @param allowedClasses Class IDs to keep; null keeps every class
+     * @param minArea Minimum box area in image pixels
+     * @param maxArea Maximum box area in image pixels, 0 for no limit
+     * @param topK Maximum number of detections to keep, 0 for no limit
+     */
+    public DetectionFilter(float minConfidence, float[] classThresholds, int[] allowedClasses,
+                           float minArea, float maxArea, int topK) {
+        if (!(minConfidence >= 0 && minConfidence <= 1)) {
+            throw new IllegalArgumentException("minConfidence must be in [0, 1]: " + minConfidence);
+        }
+        if (classThresholds != null) {
+            for (float threshold : classThresholds) {
+                if (!(threshold >= 0 && threshold <= 1)) {
+                    throw new IllegalArgumentException("Class thresholds must be in [0, 1]: " + threshold);
+                }
+            }
+        }
+        if (allowedClasses != null) {
+            for (int classId : allowedClasses) {
+                if (classId < 0) {
+                    throw new IllegalArgumentException("Class IDs must not be negative: " + classId);
+                }
+            }
+        }
+        if (!(minArea >= 0) || !(maxArea >= 0) || (maxArea > 0 && maxArea < minArea)) {
+            throw new IllegalArgumentException("Invalid area limits: [" + minArea + ", " + maxArea + "]");
+        }
+        if (topK < 0) {
+            throw new IllegalArgumentException("topK must not be negative: " + topK);
+        }
+        this.minConfidence = minConfidence;
+        this.classThresholds = classThresholds == null ? null : classThresholds.clone();
+        this.allowedClasses = allowedClasses == null ? null : allowedClasses.clone();
+        this.minArea = minArea;
+        this.maxArea = maxArea;
+        this.topK = topK;
+    }
+
+    /** @return Confidence every detection must reach. */
+    public float minConfidence() {
+        return minConfidence;
+    }
+
+    /** @return Copy of the per-class confidence thresholds, or null. */
+    public float[] classThresholds() {
+        return classThresholds == null ? null : classThresholds.clone();
+    }
+
+    /** @return Copy of the allowed class IDs, or null if every class is allowed. */
+    public int[] allowedClasses() {
+        return allowedClasses == null ? null : allowedClasses.clone();
+    }
+
+    /** @return Minimum box area in image pixels. */
+    public float minArea() {
+        return minArea;
+    }
+
+    /** @return Maximum box area in image pixels, 0 for no limit. */
+    public float maxArea() {
+        return maxArea;
+    }
+
+    /** @return Maximum number of detections kept, 0 for no limit. */
+    public int topK() {
+        return topK;
+    }
+
+    /**
+     * Whether a single detection passes, not counting the top-K limit.
+     *
+     * @param x1 Left edge of the box
+     * @param y1 Top edge of the box
+     * @param x2 Right edge of the box
+     * @param y2 Bottom edge of the box
+     * @param confidence Confidence of the detection
+     * @param classId Class of the detection
+     * @return Whether the detection is kept
+     */
+    public boolean accepts(float x1, float y1, float x2, float y2, float confidence, int classId) {
+        float floor = minConfidence;
+        if (classThresholds != null && classId >= 0 && classId < classThresholds.length) {
+            floor = Math.max(floor, classThresholds[classId]);
+        }
+        if (confidence < floor) {
+            return false;
+        }
+        if (allowedClasses != null && !contains(allowedClasses, classId)) {
+            return false;
+        }
+        float area = (x2 - x1) * (y2 - y1);
+        return area >= minArea && (maxArea <= 0 || area <= maxArea);
+    }
+
+    /**
+     * Filter detections in place.
+     *
+     * @param rows Detections as rows of {@link DetectionView#STRIDE} floats, as written by
+     *     {@link CoreMLJNI#detectInto(long, long, double, double, float[])}
+     * @param count Number of rows
+     * @return Number of rows kept, moved to the front of {@code rows}
+     */
+    public int apply(float[] rows, int count) {
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            int r = i * DetectionView.STRIDE;
+            if (accepts(rows[r + DetectionView.X1], rows[r + DetectionView.Y1], rows[r + DetectionView.X2],
+                    rows[r + DetectionView.Y2], rows[r + DetectionView.CONF], (int) rows[r + DetectionView.CLASS_ID])) {
+                if (kept != i) {
+                    System.arraycopy(rows, r, rows, kept * DetectionView.STRIDE, DetectionView.STRIDE);
+                }
+                kept++;
+            }
+        }
+        if (topK == 0 || kept == 0) {
+            return kept;
+        }
+
+        ensureCapacity(kept);
+        for (int i = 0; i < kept; i++) {
+            scores[i] = rows[i * DetectionView.STRIDE + DetectionView.CONF];
+        }
+        int best = NonMaxSuppression.sortByScore(scores, kept, topK, keys, order);
+        System.arraycopy(rows, 0, scratch, 0, kept * DetectionView.STRIDE);
+        for (int i = 0; i < best; i++) {
+            System.arraycopy(scratch, order[i] * DetectionView.STRIDE, rows, i * DetectionView.STRIDE,
+                DetectionView.STRIDE);
+        }
+        return best;
+    }
+
+    @Override
+    public String toString() {
+        return "DetectionFilter [minConfidence=" + minConfidence
+            + ", classThresholds=" + Arrays.toString(classThresholds)
+            + ", allowedClasses=" + Arrays.toString(allowedClasses)
+            + ", minArea=" + minArea + ", maxArea=" + maxArea + ", topK=" + topK + "]";
+    }
+
+    private static boolean contains(int[] values, int value) {
+        for (int v : values) {
+            if (v == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void ensureCapacity(int count) {
+        if (scores.length >= count) {
+            return;
+        }
+        int capacity = Math.max(count, scores.length * 2);
+        scores = new float[capacity];
+        keys = new long[capacity];
+        order = new int[capacity];
+        scratch = new float[capacity * DetectionView.STRIDE];
+    }
+}
@@ -0,0 +1,532 @@
+/*
+ * Copyright (C) AtomStorm.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.atomstorm.coreml;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.atomstorm.coreml.CoreMLJNI.CoreMLResult;
+
+/**
+ * Binary log of the frames a detector saw and the results it returned, so a slow or wrong
+ * pipeline can be reproduced offline. Written by {@link DetectionRecorder} and streamed back
+ * through a detector by {@link DetectionReplay}.
+ *
+ * <p>A log is a directory of segments and an index. Segments are files of a fixed size mapped
+ * into memory; records are appended to one until the next record no longer fits, and then go
+ * to a new segment. The index lists the segment, offset and timestamp of every record in
+ * order, so a reader can seek to any record without scanning. A record is added to the index
+ * only after it is completely written, so a log cut short by a crash reads back up to its
+ * last complete record.
+ *
+ * <p>All values are little-endian. Segments start with the int {@link #SEGMENT_MAGIC} and the
+ * int {@link #VERSION}, followed by records:
+ * <pre>
+ * int    length of the record in bytes, including this field
+ * long   time of the call since recording started, in nanoseconds
+ * long   duration of the call, in nanoseconds
+ * double NMS threshold
+ * double box threshold
+ * int    frame width, int height, int channels; all 0 if the frame was not captured
+ * byte   frame compression, the ordinal of a {@link Compression}
+ * int    stored frame bytes, followed by those bytes
+ * int    number of detections, or -1 if detect returned null, followed per detection by
+ *        int left, int top, int right, int bottom, float confidence, int class id
+ * </pre>
+ * The index starts with the int {@link #INDEX_MAGIC} and the version, followed by an int
+ * segment, int offset and long timestamp per record.
+ */
+public final class DetectionLog {
+    /** Magic number at the start of every segment, "DLOG" in ASCII. */
+    public static final int SEGMENT_MAGIC = 0x474F4C44;
+    /** Magic number at the start of the index, "DLIX" in ASCII. */
+    public static final int INDEX_MAGIC = 0x58494C44;
+    /** Version of the format. */
+    public static final int VERSION = 1;
+    /** Default size of a segment, in bytes. */
+    public static final int DEFAULT_SEGMENT_BYTES = 64 << 20;
+
+    /** Name of the index file in a log directory. */
+    static final String INDEX_FILE = "index.dlx";
+
+    private static final int FILE_HEADER_BYTES = 8;
+    private static final int INDEX_ENTRY_BYTES = 16;
+    // Fixed part of a record, up to the frame bytes, and the detection count after them
+    private static final int RECORD_HEADER_BYTES = 4 + 8 + 8 + 8 + 8 + 12 + 1 + 4;
+    private static final int DETECTION_BYTES = 24;
+    private static final int MIN_SEGMENT_BYTES = 4096;
+
+    /** How frames are stored. The order is part of the format and must not change. */
+    public static enum Compression {
+        /** Raw pixels. Costs nothing to write, but a 1280x720 BGR frame takes 2.7 MB. */
+        NONE,
+        /** Pixels compressed with DEFLATE at its fastest level. Frames that would grow are stored raw. */
+        DEFLATE
+    }
+
+    /** One call to detect: when it happened, the frame, the thresholds and the results. */
+    public static final class Entry {
+        /** Time of the call since recording started, in nanoseconds. */
+        public final long timestampNanos;
+        /** Duration of the call, in nanoseconds. */
+        public final long latencyNanos;
+        /** Non-Maximum Suppression threshold of the call. */
+        public final double nmsThresh;
+        /** Bounding box confidence threshold of the call. */
+        public final double boxThresh;
+        /** Width of the frame in pixels, 0 if it was not captured. */
+        public final int width;
+        /** Height of the frame in pixels, 0 if it was not captured. */
+        public final int height;
+        /** Channels of the frame, 1 (gray), 3 (BGR) or 4 (BGRA), 0 if it was not captured. */
+        public final int channels;
+        /** 8-bit pixels row by row without padding, null if the frame was not captured. May be longer than the frame. */
+        public final byte[] frame;
+        /** Results of the call, null if detect returned null. */
+        public final CoreMLResult[] results;
+
+        /**
+         * Describe one call.
+         *
+         * @param timestampNanos Time of the call since recording started, in nanoseconds
+         * @param latencyNanos Duration of the call, in nanoseconds
+         * @param nmsThresh Non-Maximum Suppression threshold
+         * @param boxThresh Bounding box confidence threshold
+         * @param width Width of the frame in pixels
+         * @param height Height of the frame in pixels
+         * @param channels Channels of the frame, 1, 3 or 4
+         * @param frame Pixels of the frame, at least {@code width * height * channels} bytes, or
+         *     null if it was not captured, in which case the dimensions are ignored
+         * @param results Results of the call, or null
+         */
+        public Entry(long timestampNanos, long latencyNanos, double nmsThresh, double boxThresh,
+                     int width, int height, int channels, byte[] frame, CoreMLResult[] results) {
+            if (frame != null) {
+                if (width <= 0 || height <= 0 || (channels != 1 && channels != 3 && channels != 4)) {
+                    throw new IllegalArgumentException(
+                        String.format("Invalid frame %dx%d with %d channels", width, height, channels));
+                }
+                if (frame.length < (long) width * height * channels) {
+                    throw new IllegalArgumentException(
+                        "Frame of " + frame.length + " bytes is too small for " + width + "x" + height + "x" + channels);
+                }
+            }
+            this.timestampNanos = timestampNanos;
+            this.latencyNanos = latencyNanos;
+            this.nmsThresh = nmsThresh;
+            this.boxThresh = boxThresh;
+            this.width = frame == null ? 0 : width;
+            this.height = frame == null ? 0 : height;
+            this.channels = frame == null ? 0 : channels;
+            this.frame = frame;
+            this.results = results;
+        }
+
+        /** @return Bytes of pixel data in the frame, 0 if it was not captured. */
+        public int frameBytes() {
+            return width * height * channels;
+        }
+
+        /** @return Duration of the call, in milliseconds. */
+        public double latencyMs() {
+            return latencyNanos / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Entry [time=%.3f ms, latency=%.3f ms, frame=%dx%dx%d, detections=%s]",
+                timestampNanos / 1e6, latencyMs(), width, height, channels,
+                results == null ? "null" : String.valueOf(results.length));
+        }
+    }
+
+    /** Appends records to a new log. Not thread-safe; {@link DetectionRecorder} writes from a single thread. */
+    public static final class Writer implements AutoCloseable {
+        private final Path directory;
+        private final int segmentBytes;
+        private final Compression compression;
+        private final FileChannel index;
+        private final ByteBuffer indexEntry = ByteBuffer.allocate(INDEX_ENTRY_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private byte[] compressed = new byte[0];
+
+        private MappedByteBuffer segment;
+        private int segmentNumber = -1;
+        private int records;
+        private long bytes;
+
+        private Writer(Path directory, int segmentBytes, Compression compression, FileChannel index) {
+            this.directory = directory;
+            this.segmentBytes = segmentBytes;
+            this.compression = compression;
+            this.index = index;
+        }
+
+        /**
+         * Append a record.
+         *
+         * @param entry The call to record
+         * @throws IOException If the log cannot be written
+         */
+        public void append(Entry entry) throws IOException {
+            int frameBytes = entry.frameBytes();
+            Compression stored = Compression.NONE;
+            byte[] frame = entry.frame;
+            int storedBytes = frameBytes;
+            if (compression == Compression.DEFLATE && frameBytes > 0) {
+                int size = deflate(entry.frame, frameBytes);
+                if (size < frameBytes) {
+                    stored = Compression.DEFLATE;
+                    frame = compressed;
+                    storedBytes = size;
+                }
+            }
+            int detections = entry.results == null ? 0 : entry.results.length;
+            long length = (long) RECORD_HEADER_BYTES + storedBytes + 4 + (long) DETECTION_BYTES * detections;
+            if (length > Integer.MAX_VALUE - FILE_HEADER_BYTES) {
+                throw new IOException("Record of " + length + " bytes is too large");
+            }
+            if (segment == null || segment.remaining() < length) {
+                nextSegment((int) length);
+            }
+
+            int offset = segment.position();
+            segment.putInt((int) length)
+                .putLong(entry.timestampNanos)
+                .putLong(entry.latencyNanos)
+                .putDouble(entry.nmsThresh)
+                .putDouble(entry.boxThresh)
+                .putInt(entry.width)
+                .putInt(entry.height)
+                .putInt(entry.channels)
+                .put((byte) stored.ordinal())
+                .putInt(storedBytes);
+            if (storedBytes > 0) {
+                segment.put(frame, 0, storedBytes);
+            }
+            segment.putInt(entry.results == null ? -1 : detections);
+            for (int i = 0; i < detections; i++) {
+                CoreMLResult result = entry.results[i];
+                segment.putInt((int) result.rect.x)
+                    .putInt((int) result.rect.y)
+                    .putInt((int) (result.rect.x + result.rect.width))
+                    .putInt((int) (result.rect.y + result.rect.height))
+                    .putFloat(result.conf)
+                    .putInt(result.class_id);
+            }
+
+            indexEntry.clear();
+            indexEntry.putInt(segmentNumber).putInt(offset).putLong(entry.timestampNanos).flip();
+            while (indexEntry.hasRemaining()) {
+                index.write(indexEntry);
+            }
+            records++;
+            bytes += length;
+        }
+
+        /** @return Number of records written. */
+        public int records() {
+            return records;
+        }
+
+        /** @return Bytes of records written, excluding file headers and the index. */
+        public long bytes() {
+            return bytes;
+        }
+
+        /**
+         * Flush the log to disk and close it.
+         *
+         * @throws IOException If the log cannot be written
+         */
+        @Override
+        public void close() throws IOException {
+            deflater.end();
+            try {
+                if (segment != null) {
+                    segment.force();
+                }
+                index.force(false);
+            } finally {
+                index.close();
+            }
+        }
+
+        // Map a new segment large enough for a record of the given length
+        private void nextSegment(int recordBytes) throws IOException {
+            if (segment != null) {
+                segment.force();
+            }
+            segmentNumber++;
+            int size = Math.max(segmentBytes, FILE_HEADER_BYTES + recordBytes);
+            try (FileChannel channel = FileChannel.open(segmentPath(directory, segmentNumber),
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                // The mapping outlives the channel
+                segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+            segment.order(ByteOrder.LITTLE_ENDIAN);
+            segment.putInt(SEGMENT_MAGIC).putInt(VERSION);
+        }
+
+        // Compress the frame into the compressed array, returning its length
+        private int deflate(byte[] frame, int length) {
+            deflater.reset();
+            deflater.setInput(frame, 0, length);
+            deflater.finish();
+            if (compressed.length < length) {
+                compressed = new byte[length];
+            }
+            int size = 0;
+            // Stop once the output reaches the raw size; the frame is then stored raw
+            while (!deflater.finished() && size < length) {
+                size += deflater.deflate(compressed, size, length - size);
+            }
+            return deflater.finished() ? size : length;
+        }
+    }
+
+    /** Reads the records of a log in any order. Not thread-safe. */
+    public static final class Reader implements AutoCloseable {
+        private final Path directory;
+        private final ByteBuffer index;
+        private final int size;
+        private final List<ByteBuffer> segments = new ArrayList<>();
+        private final Inflater inflater = new Inflater();
+
+        private Reader(Path directory, ByteBuffer index, int size) {
+            this.directory = directory;
+            this.index = index;
+            this.size = size;
+        }
+
+        /** @return Number of records in the log. */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * @param record Position of the record, from 0
+         * @return Time of the recorded call since recording started, in nanoseconds
+         */
+        public long timestampNanos(int record) {
+            checkRecord(record);
+            return index.getLong(FILE_HEADER_BYTES + record * INDEX_ENTRY_BYTES + 8);
+        }
+
+        /**
+         * Read a record. The frame is decompressed into a new array.
+         *
+         * @param record Position of the record, from 0
+         * @return The recorded call
+         * @throws IOException If the record cannot be read or is corrupt
+         */
+        public Entry read(int record) throws IOException {
+            checkRecord(record);
+            int entry = FILE_HEADER_BYTES + record * INDEX_ENTRY_BYTES;
+            ByteBuffer segment = segment(index.getInt(entry));
+            int offset = index.getInt(entry + 4);
+            if (offset < FILE_HEADER_BYTES || offset > segment.limit() - RECORD_HEADER_BYTES) {
+                throw corrupt(record, "offset " + offset + " is outside its segment");
+            }
+            ByteBuffer in = segment.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            in.position(offset);
+            int length = in.getInt();
+            if (length < RECORD_HEADER_BYTES + 4 || length > segment.limit() - offset) {
+                throw corrupt(record, "length " + length + " does not fit its segment");
+            }
+            in.limit(offset + length);
+
+            long timestampNanos = in.getLong();
+            long latencyNanos = in.getLong();
+            double nmsThresh = in.getDouble();
+            double boxThresh = in.getDouble();
+            int width = in.getInt();
+            int height = in.getInt();
+            int channels = in.getInt();
+            int compression = in.get();
+            int storedBytes = in.getInt();
+            if (compression < 0 || compression >= Compression.values().length
+                    || storedBytes < 0 || storedBytes > in.remaining() - 4) {
+                throw corrupt(record, "invalid frame header");
+            }
+
+            byte[] frame = null;
+            if (channels != 0) {
+                long frameBytes = (long) width * height * channels;
+                if (width <= 0 || height <= 0 || frameBytes > Integer.MAX_VALUE) {
+                    throw corrupt(record, "invalid frame size " + width + "x" + height + "x" + channels);
+                }
+                frame = new byte[(int) frameBytes];
+                if (compression == Compression.DEFLATE.ordinal()) {
+                    inflate(record, in.slice(in.position(), storedBytes), frame);
+                } else if (storedBytes == frameBytes) {
+                    in.get(in.position(), frame);
+                } else {
+                    throw corrupt(record, storedBytes + " bytes stored for a frame of " + frameBytes);
+                }
+            }
+            in.position(in.position() + storedBytes);
+
+            int detections = in.getInt();
+            if (detections < -1 || (long) detections * DETECTION_BYTES > in.remaining()) {
+                throw corrupt(record, "invalid detection count " + detections);
+            }
+            CoreMLResult[] results = null;
+            if (detections >= 0) {
+                results = new CoreMLResult[detections];
+                for (int i = 0; i < detections; i++) {
+                    results[i] = new CoreMLResult(in.getInt(), in.getInt(), in.getInt(), in.getInt(), in.getFloat(), in.getInt());
+                }
+            }
+            return new Entry(timestampNanos, latencyNanos, nmsThresh, boxThresh, width, height, channels, frame, results);
+        }
+
+        /** Release the reader. Mapped segments are unmapped once they are garbage collected. */
+        @Override
+        public void close() {
+            inflater.end();
+            segments.clear();
+        }
+
+        private void checkRecord(int record) {
+            if (record < 0 || record >= size) {
+                throw new IndexOutOfBoundsException("Record " + record + " of " + size);
+            }
+        }
+
+        // Map a segment on first use
+        private ByteBuffer segment(int number) throws IOException {
+            if (number < 0) {
+                throw new IOException("Invalid segment " + number + " in " + directory);
+            }
+            while (segments.size() <= number) {
+                segments.add(null);
+            }
+            ByteBuffer segment = segments.get(number);
+            if (segment == null) {
+                segment = map(segmentPath(directory, number), SEGMENT_MAGIC);
+                segments.set(number, segment);
+            }
+            return segment;
+        }
+
+        private void inflate(int record, ByteBuffer stored, byte[] frame) throws IOException {
+            inflater.reset();
+            inflater.setInput(stored);
+            try {
+                int size = 0;
+                while (size < frame.length && !inflater.finished()) {
+                    int inflated = inflater.inflate(frame, size, frame.length - size);
+                    if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    size += inflated;
+                }
+                if (size != frame.length) {
+                    throw corrupt(record, "frame inflates to " + size + " of " + frame.length + " bytes");
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt frame in record " + record + " of " + directory, e);
+            }
+        }
+
+        private IOException corrupt(int record, String reason) {
+            return new IOException("Corrupt record " + record + " of " + directory + ": " + reason);
+        }
+    }
+
+    private DetectionLog() {}
+
+    /**
+     * Start a new log.
+     *
+     * @param directory Directory of the log, created if missing. Must not already hold a log.
+     * @param segmentBytes Size of a segment, in bytes; records larger than this get a segment of their own
+     * @param compression How frames are stored
+     * @return The writer
+     * @throws IOException If the log cannot be created, or the directory already holds one
+     */
+    public static Writer create(Path directory, int segmentBytes, Compression compression) throws IOException {
+        if (segmentBytes < MIN_SEGMENT_BYTES) {
+            throw new IllegalArgumentException("Segments must be at least " + MIN_SEGMENT_BYTES + " bytes: " + segmentBytes);
+        }
+        if (compression == null) {
+            throw new IllegalArgumentException("Compression must not be null");
+        }
+        Files.createDirectories(directory);
+        FileChannel index = FileChannel.open(directory.resolve(INDEX_FILE),
+            StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(INDEX_MAGIC).putInt(VERSION).flip();
+            while (header.hasRemaining()) {
+                index.write(header);
+            }
+        } catch (IOException e) {
+            index.close();
+            throw e;
+        }
+        return new Writer(directory, segmentBytes, compression, index);
+    }
+
+    /**
+     * Open a log for reading. Records appended after this call are not seen.
+     *
+     * @param directory Directory of the log
+     * @return The reader
+     * @throws IOException If the log cannot be read or is not a log of this version
+     */
+    public static Reader open(Path directory) throws IOException {
+        ByteBuffer index = map(directory.resolve(INDEX_FILE), INDEX_MAGIC);
+        // A partially written index entry at the end is ignored
+        int size = (index.limit() - FILE_HEADER_BYTES) / INDEX_ENTRY_BYTES;
+        return new Reader(directory, index, size);
+    }
+
+    static Path segmentPath(Path directory, int number) {
+        return directory.resolve(String.format("segment-%06d.dlog", number));
+    }
+
+    // Map a file read-only and check its header
+    private static ByteBuffer map(Path path, int magic) throws IOException {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(path + " is too large");
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        if (buffer.limit() < FILE_HEADER_BYTES || buffer.getInt(0) != magic) {
+            throw new IOException(path + " is not a detection log file");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException(path + " has format version " + buffer.getInt(4) + ", expected " + VERSION);
+        }
+        return buffer;
+    }
+}
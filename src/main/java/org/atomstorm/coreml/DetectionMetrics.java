@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) AtomStorm.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.atomstorm.coreml;
+
+import java.util.Arrays;
+
+/**
+ * Accuracy of a detector over a labelled dataset: mean average precision at IoU 0.5 and
+ * averaged over IoU 0.5 to 0.95, and precision and recall at the best confidence threshold.
+ *
+ * <p>Follows the COCO evaluation. In each image, predictions are matched in order of
+ * confidence, each to the unmatched ground truth box of its class it overlaps most, if the
+ * IoU reaches the threshold; unmatched predictions are false positives. Average precision is
+ * the mean of the interpolated precision, the best precision at that recall or above, at 101
+ * recall points from 0 to 1. Classes without ground truth boxes are left out of the means.
+ * Precision and recall pool all classes at IoU 0.5 and are taken at the confidence that
+ * maximizes F1, as a detector would be deployed.
+ *
+ * <p>Boxes are primitive rows: ground truth as {@link #TRUTH_STRIDE} floats
+ * {@code [x1, y1, x2, y2, classId]}, predictions as {@link DetectionView#STRIDE} floats as
+ * {@link CoreMLJNI#detectInto} writes them. Images are matched as they are added and only the
+ * confidence, class and matches of each prediction are kept. Not thread-safe.
+ */
+public final class DetectionMetrics {
+    /** Number of floats per ground truth row: {@code [x1, y1, x2, y2, classId]}. */
+    public static final int TRUTH_STRIDE = 5;
+    /** Number of IoU thresholds, 0.50 to 0.95 in steps of 0.05. */
+    public static final int IOU_THRESHOLDS = 10;
+
+    private static final int RECALL_POINTS = 101;
+
+    /** Accuracy over the images added so far. */
+    public static final class Summary {
+        /** Images evaluated. */
+        public final int images;
+        /** Ground truth boxes. */
+        public final long truths;
+        /** Predictions of known classes. */
+        public final long predictions;
+        /** Mean average precision at IoU 0.5. */
+        public final double map50;
+        /** Mean average precision averaged over IoU 0.50 to 0.95. */
+        public final double map50to95;
+        /** Precision at IoU 0.5 and {@link #confidence}. */
+        public final double precision;
+        /** Recall at IoU 0.5 and {@link #confidence}. */
+        public final double recall;
+        /** Confidence threshold at which F1 is highest, 0 if nothing was predicted. */
+        public final double confidence;
+        /** Average precision at IoU 0.5 per class, NaN for classes without ground truth. */
+        public final double[] classAp50;
+
+        Summary(int images, long truths, long predictions, double map50, double map50to95, double precision,
+                double recall, double confidence, double[] classAp50) {
+            this.images = images;
+            this.truths = truths;
+            this.predictions = predictions;
+            this.map50 = map50;
+            this.map50to95 = map50to95;
+            this.precision = precision;
+            this.recall = recall;
+            this.confidence = confidence;
+            this.classAp50 = classAp50;
+        }
+
+        /** @return Harmonic mean of {@link #precision} and {@link #recall}. */
+        public double f1() {
+            return precision + recall == 0 ? 0.0 : 2 * precision * recall / (precision + recall);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                "Summary [images=%d, truths=%d, predictions=%d, mAP50=%.4f, mAP50-95=%.4f, P=%.4f, R=%.4f, conf=%.3f]",
+                images, truths, predictions, map50, map50to95, precision, recall, confidence);
+        }
+    }
+
+    private final int numClasses;
+    private final long[] truthsPerClass;
+    private int images;
+
+    // Per prediction: confidence, class, and bit t set if it matched at IoU threshold t
+    private float[] confidences = new float[256];
+    private int[] classes = new int[256];
+    private short[] matches = new short[256];
+    private int count;
+
+    // Per-image scratch
+    private long[] order = new long[0];
+    private float[] ious = new float[0];
+    private boolean[] taken = new boolean[0];
+
+    /**
+     * @param numClasses Number of classes; ground truth of other classes is rejected and
+     *     predictions of other classes are ignored
+     */
+    public DetectionMetrics(int numClasses) {
+        if (numClasses < 1) {
+            throw new IllegalArgumentException("numClasses must be at least 1: " + numClasses);
+        }
+        this.numClasses = numClasses;
+        this.truthsPerClass = new long[numClasses];
+    }
+
+    /** @return IoU threshold {@code t}, from 0.50 for t = 0 to 0.95 for t = 9. */
+    public static double iouThreshold(int t) {
+        return 0.5 + 0.05 * t;
+    }
+
+    /**
+     * Match the predictions for one image against its ground truth.
+     *
+     * @param truth Ground truth rows of {@link #TRUTH_STRIDE} floats
+     * @param truthCount Number of ground truth rows
+     * @param predictions Prediction rows of {@link DetectionView#STRIDE} floats
+     * @param predictionCount Number of prediction rows
+     * @throws IllegalArgumentException If a count exceeds its array or a ground truth class is out of range
+     */
+    public void addImage(float[] truth, int truthCount, float[] predictions, int predictionCount) {
+        if (truthCount < 0 || (long) truthCount * TRUTH_STRIDE > truth.length
+                || predictionCount < 0 || (long) predictionCount * DetectionView.STRIDE > predictions.length) {
+            throw new IllegalArgumentException("Row counts exceed their arrays");
+        }
+        for (int g = 0; g < truthCount; g++) {
+            int cls = (int) truth[g * TRUTH_STRIDE + 4];
+            if (cls < 0 || cls >= numClasses) {
+                throw new IllegalArgumentException("Ground truth class " + cls + " is not below " + numClasses);
+            }
+        }
+
+        // Predictions of known classes by descending confidence; ties keep their order
+        int n = 0;
+        if (order.length < predictionCount) {
+            order = new long[predictionCount];
+        }
+        for (int p = 0; p < predictionCount; p++) {
+            int row = p * DetectionView.STRIDE;
+            int cls = (int) predictions[row + DetectionView.CLASS_ID];
+            if (cls >= 0 && cls < numClasses) {
+                // Sorting ascending on the negated bits of a non-negative float orders by descending value
+                float conf = Math.max(0.0f, predictions[row + DetectionView.CONF]);
+                order[n++] = ((long) ~Float.floatToIntBits(conf) << 32) | p;
+            }
+        }
+        Arrays.sort(order, 0, n);
+
+        if (ious.length < n * truthCount) {
+            ious = new float[n * truthCount];
+        }
+        if (taken.length < truthCount) {
+            taken = new boolean[truthCount];
+        }
+        for (int i = 0; i < n; i++) {
+            int row = (int) order[i] * DetectionView.STRIDE;
+            int cls = (int) predictions[row + DetectionView.CLASS_ID];
+            for (int g = 0; g < truthCount; g++) {
+                int t = g * TRUTH_STRIDE;
+                ious[i * truthCount + g] = (int) truth[t + 4] == cls ? iou(predictions, row, truth, t) : -1.0f;
+            }
+        }
+
+        ensureCapacity(count + n);
+        for (int i = 0; i < n; i++) {
+            int row = (int) order[i] * DetectionView.STRIDE;
+            confidences[count + i] = Math.max(0.0f, predictions[row + DetectionView.CONF]);
+            classes[count + i] = (int) predictions[row + DetectionView.CLASS_ID];
+            matches[count + i] = 0;
+        }
+        for (int t = 0; t < IOU_THRESHOLDS; t++) {
+            float threshold = (float) iouThreshold(t);
+            Arrays.fill(taken, 0, truthCount, false);
+            for (int i = 0; i < n; i++) {
+                int best = -1;
+                float bestIou = threshold;
+                for (int g = 0; g < truthCount; g++) {
+                    float iou = ious[i * truthCount + g];
+                    if (!taken[g] && iou >= bestIou) {
+                        best = g;
+                        bestIou = iou;
+                    }
+                }
+                if (best >= 0) {
+                    taken[best] = true;
+                    matches[count + i] |= 1 << t;
+                }
+            }
+        }
+        count += n;
+
+        for (int g = 0; g < truthCount; g++) {
+            truthsPerClass[(int) truth[g * TRUTH_STRIDE + 4]]++;
+        }
+        images++;
+    }
+
+    /** @return Accuracy over the images added so far. */
+    public Summary summarize() {
+        // All predictions by descending confidence, then grouped by class in that order
+        long[] sorted = new long[count];
+        for (int i = 0; i < count; i++) {
+            sorted[i] = ((long) ~Float.floatToIntBits(confidences[i]) << 32) | i;
+        }
+        Arrays.sort(sorted);
+        int[] start = new int[numClasses + 1];
+        for (int i = 0; i < count; i++) {
+            start[classes[i] + 1]++;
+        }
+        for (int c = 0; c < numClasses; c++) {
+            start[c + 1] += start[c];
+        }
+        int[] byClass = new int[count];
+        int[] next = Arrays.copyOf(start, numClasses);
+        for (long key : sorted) {
+            int i = (int) key;
+            byClass[next[classes[i]]++] = i;
+        }
+
+        double[] classAp50 = new double[numClasses];
+        double sum50 = 0;
+        double sumAll = 0;
+        int evaluated = 0;
+        long truths = 0;
+        double[] precision = new double[count];
+        double[] recall = new double[count];
+        for (int c = 0; c < numClasses; c++) {
+            truths += truthsPerClass[c];
+            if (truthsPerClass[c] == 0) {
+                classAp50[c] = Double.NaN;
+                continue;
+            }
+            evaluated++;
+            for (int t = 0; t < IOU_THRESHOLDS; t++) {
+                double ap = averagePrecision(byClass, start[c], start[c + 1], t, truthsPerClass[c], precision, recall);
+                if (t == 0) {
+                    classAp50[c] = ap;
+                    sum50 += ap;
+                }
+                sumAll += ap;
+            }
+        }
+
+        // Pooled precision and recall at IoU 0.5, at the confidence with the best F1
+        double bestF1 = -1;
+        double bestPrecision = 0;
+        double bestRecall = 0;
+        double bestConfidence = 0;
+        long tp = 0;
+        for (int k = 0; k < count; k++) {
+            int i = (int) sorted[k];
+            tp += matches[i] & 1;
+            // Only evaluate where the confidence steps down, as a threshold keeps all ties
+            if (k + 1 < count && confidences[(int) sorted[k + 1]] == confidences[i]) {
+                continue;
+            }
+            double p = (double) tp / (k + 1);
+            double r = truths == 0 ? 0.0 : (double) tp / truths;
+            double f1 = p + r == 0 ? 0.0 : 2 * p * r / (p + r);
+            if (f1 > bestF1) {
+                bestF1 = f1;
+                bestPrecision = p;
+                bestRecall = r;
+                bestConfidence = confidences[i];
+            }
+        }
+
+        return new Summary(images, truths, count,
+            evaluated == 0 ? 0.0 : sum50 / evaluated,
+            evaluated == 0 ? 0.0 : sumAll / (evaluated * IOU_THRESHOLDS),
+            bestPrecision, bestRecall, bestConfidence, classAp50);
+    }
+
+    /** Clear all images. */
+    public void reset() {
+        Arrays.fill(truthsPerClass, 0);
+        images = 0;
+        count = 0;
+    }
+
+    // 101-point interpolated AP of predictions indices[from..to), in descending confidence, at threshold t
+    private double averagePrecision(int[] indices, int from, int to, int t, long truths,
+                                    double[] precision, double[] recall) {
+        int n = to - from;
+        if (n == 0) {
+            return 0.0;
+        }
+        long tp = 0;
+        for (int k = 0; k < n; k++) {
+            tp += (matches[indices[from + k]] >> t) & 1;
+            precision[k] = (double) tp / (k + 1);
+            recall[k] = (double) tp / truths;
+        }
+        // Precision envelope: the best precision at this recall or higher
+        for (int k = n - 2; k >= 0; k--) {
+            precision[k] = Math.max(precision[k], precision[k + 1]);
+        }
+        double sum = 0;
+        int k = 0;
+        for (int r = 0; r < RECALL_POINTS; r++) {
+            double target = r / (double) (RECALL_POINTS - 1);
+            while (k < n && recall[k] < target) {
+                k++;
+            }
+            if (k == n) {
+                break; // Recall never gets this high; the remaining points add nothing
+            }
+            sum += precision[k];
+        }
+        return sum / RECALL_POINTS;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > confidences.length) {
+            int size = Math.max(capacity, confidences.length * 2);
+            confidences = Arrays.copyOf(confidences, size);
+            classes = Arrays.copyOf(classes, size);
+            matches = Arrays.copyOf(matches, size);
+        }
+    }
+
+    // IoU of a prediction row and a ground truth row, 0 if they do not overlap
+    private static float iou(float[] predictions, int p, float[] truth, int g) {
+        float ix1 = Math.max(predictions[p + DetectionView.X1], truth[g]);
+        float iy1 = Math.max(predictions[p + DetectionView.Y1], truth[g + 1]);
+        float ix2 = Math.min(predictions[p + DetectionView.X2], truth[g + 2]);
+        float iy2 = Math.min(predictions[p + DetectionView.Y2], truth[g + 3]);
+        float inter = Math.max(0.0f, ix2 - ix1) * Math.max(0.0f, iy2 - iy1);
+        if (inter <= 0.0f) {
+            return 0.0f;
+        }
+        float areaP = (predictions[p + DetectionView.X2] - predictions[p + DetectionView.X1])
+            * (predictions[p + DetectionView.Y2] - predictions[p + DetectionView.Y1]);
+        float areaG = (truth[g + 2] - truth[g]) * (truth[g + 3] - truth[g + 1]);
+        return inter / (areaP + areaG - inter);
+    }
+}
@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) AtomStorm.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.atomstorm.coreml;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import org.atomstorm.coreml.CoreMLJNI.CoreMLResult;
+
+/**
+ * Records every frame a detector sees, with its thresholds, results and timing, to a
+ * {@link DetectionLog}, so a slow or wrong match can be replayed later with
+ * {@link DetectionReplay}.
+ *
+ * <p>Recording stays off the detect path as far as it can. A call copies the frame and the
+ * results into a free slot of a lock-free ring buffer and returns; a background thread
+ * compresses the slots and writes them to the log. Callers never wait for the disk or for each
+ * other: if the writer falls behind and the ring is full, the frame is left out of the
+ * recording and counted as dropped, and detection goes on. Slots keep their frame buffers, so
+ * once every slot has held a frame of the current size, a call allocates only a copy of the
+ * results array.
+ *
+ * <p>The recorder is thread-safe; whether detect may run on several threads at once is up to
+ * the detector it wraps.
+ */
+public class DetectionRecorder implements CoreMLDetectorPool.Detector {
+    /** Default number of frames that can wait to be written. */
+    public static final int DEFAULT_CAPACITY = 16;
+
+    // How long the writer sleeps when the ring is empty
+    private static final long IDLE_NANOS = 500_000;
+    // Tail once closed: no slot's sequence ever reaches it, so every later claim fails
+    private static final long CLOSED_TAIL = Long.MAX_VALUE / 2;
+
+    /** Copies the pixels of a frame, with the same contract as {@link CoreMLJNI#copyFrame}. */
+    public interface FrameGrabber {
+        /**
+         * Copy the pixels of a frame, row by row without padding.
+         *
+         * @param imagePtr Pointer to a cv::Mat input image
+         * @param pixels Receives the pixels
+         * @param shape Receives the width, height and channels of the frame, also when {@code pixels} is too small
+         * @return Number of bytes written, 0 if the frame cannot be read, or -1 if {@code pixels} is too small
+         */
+        int grab(long imagePtr, byte[] pixels, int[] shape);
+    }
+
+    /** Snapshot of what was recorded. */
+    public static final class Stats {
+        /** Frames passed to {@link #detect}. */
+        public final long frames;
+        /** Frames written to the log. */
+        public final long recorded;
+        /** Frames left out because the ring was full or the log failed. */
+        public final long dropped;
+        /** Frames recorded without pixels because they could not be copied. */
+        public final long uncaptured;
+        /** Bytes of records written to the log. */
+        public final long bytes;
+
+        Stats(long frames, long recorded, long dropped, long uncaptured, long bytes) {
+            this.frames = frames;
+            this.recorded = recorded;
+            this.dropped = dropped;
+            this.uncaptured = uncaptured;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Stats [frames=%d, recorded=%d, dropped=%d, uncaptured=%d, bytes=%d]",
+                frames, recorded, dropped, uncaptured, bytes);
+        }
+    }
+
+    // One call waiting to be written. Filled by a caller, then owned by the writer until released.
+    private static final class Slot {
+        final int[] shape = new int[3];
+        byte[] pixels = new byte[0];
+        boolean captured;
+        long timestampNanos;
+        long latencyNanos;
+        double nmsThresh;
+        double boxThresh;
+        CoreMLResult[] results;
+    }
+
+    private final CoreMLDetectorPool.Detector detector;
+    private final FrameGrabber grabber;
+    private final DetectionLog.Writer log;
+    private final long origin = System.nanoTime();
+
+    // Bounded ring after Vyukov: a slot at position p is free for the producer that claims p
+    // when its sequence is p, and ready for the writer when its sequence is p + 1
+    private final Slot[] slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private long head; // Only touched by the writer thread
+
+    private final AtomicLong frames = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong uncaptured = new AtomicLong();
+    private volatile long recorded;
+    private volatile long bytes;
+    private volatile IOException failure;
+    private volatile boolean closed;
+    private volatile long drainEnd = -1; // Positions the writer must write before it stops, set by close()
+    private final Thread writer;
+
+    /**
+     * Creates a recorder in front of a detector. It takes ownership of the detector and the
+     * log and closes both in {@link #close()}.
+     *
+     * @param detector Runs detection
+     * @param grabber Copies the pixels of a frame
+     * @param log Receives the records
+     * @param capacity Frames that can wait to be written; rounded up to a power of two
+     */
+    public DetectionRecorder(CoreMLDetectorPool.Detector detector, FrameGrabber grabber, DetectionLog.Writer log,
+                             int capacity) {
+        if (capacity < 1 || capacity > 1 << 16) {
+            throw new IllegalArgumentException("capacity must be between 1 and 65536: " + capacity);
+        }
+        this.detector = detector;
+        this.grabber = grabber;
+        this.log = log;
+
+        int size = Integer.highestOneBit(capacity) == capacity ? capacity : Integer.highestOneBit(capacity) << 1;
+        slots = new Slot[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot();
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+
+        writer = new Thread(this::writeLoop, "coreml-recorder");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Creates a recorder in front of a native detector, writing a new log with the default
+     * segment size and capacity. It takes ownership of the pointer and destroys it in
+     * {@link #close()}.
+     *
+     * @param ptr Pointer to detector created by {@link CoreMLJNI#create}
+     * @param directory Directory of the new log
+     * @param compression How frames are stored
+     * @throws IOException If the log cannot be created
+     */
+    public DetectionRecorder(long ptr, Path directory, DetectionLog.Compression compression) throws IOException {
+        this(new CoreMLDetectorPool.NativeDetector(ptr), CoreMLJNI::copyFrame,
+            DetectionLog.create(directory, DetectionLog.DEFAULT_SEGMENT_BYTES, compression), DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Run detection and queue the frame and results for recording.
+     *
+     * @param imagePtr Pointer to a cv::Mat input image
+     * @param nmsThresh Non-Maximum Suppression threshold
+     * @param boxThresh Bounding box confidence threshold
+     * @return Array of CoreMLResult objects containing the detection results
+     */
+    @Override
+    public CoreMLResult[] detect(long imagePtr, double nmsThresh, double boxThresh) {
+        long start = System.nanoTime();
+        CoreMLResult[] results = detector.detect(imagePtr, nmsThresh, boxThresh);
+        long latency = System.nanoTime() - start;
+        frames.incrementAndGet();
+
+        long position = claim();
+        if (position < 0) {
+            dropped.incrementAndGet();
+            return results;
+        }
+        Slot slot = slots[(int) position & mask];
+        slot.captured = grab(slot, imagePtr);
+        if (!slot.captured) {
+            uncaptured.incrementAndGet();
+        }
+        slot.timestampNanos = start - origin;
+        slot.latencyNanos = latency;
+        slot.nmsThresh = nmsThresh;
+        slot.boxThresh = boxThresh;
+        slot.results = results == null ? null : results.clone();
+        sequences.set((int) position & mask, position + 1);
+        return results;
+    }
+
+    /** @return Snapshot of the frames recorded so far. */
+    public Stats getStats() {
+        return new Stats(frames.get(), recorded, dropped.get(), uncaptured.get(), bytes);
+    }
+
+    /**
+     * Write the frames still waiting, close the log and close the underlying detector. Calls
+     * to {@link #detect} must have returned before, since the detector is closed under them
+     * otherwise; a frame whose call is still being recorded is written before the log closes.
+     *
+     * @throws UncheckedIOException If writing the log failed at any point; frames from then on were dropped
+     */
+    @Override
+    public void close() {
+        closed = true;
+        // Claims from now on fail and count as dropped; the ones before are written
+        long end = tail.getAndSet(CLOSED_TAIL);
+        if (end != CLOSED_TAIL) {
+            drainEnd = end;
+        }
+        LockSupport.unpark(writer);
+        boolean interrupted = false;
+        while (writer.isAlive()) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        IOException error = failure;
+        try {
+            log.close();
+        } catch (IOException e) {
+            if (error == null) {
+                error = e;
+            } else {
+                error.addSuppressed(e);
+            }
+        }
+        detector.close();
+        if (error != null) {
+            throw new UncheckedIOException("Recording failed", error);
+        }
+    }
+
+    // Claim the next free slot, or return -1 if the ring is full or recording has stopped
+    private long claim() {
+        if (closed || failure != null) {
+            return -1;
+        }
+        long position = tail.get();
+        while (true) {
+            long sequence = sequences.get((int) position & mask);
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    return position;
+                }
+                position = tail.get();
+            } else if (sequence < position) {
+                return -1; // The writer has not released this slot since the last lap
+            } else {
+                position = tail.get(); // Another caller claimed it first
+            }
+        }
+    }
+
+    // Copy the frame into the slot, growing its buffer if the frame does not fit. Frames the
+    // log cannot store, such as 2-channel ones, are not captured.
+    private boolean grab(Slot slot, long imagePtr) {
+        int copied = grabber.grab(imagePtr, slot.pixels, slot.shape);
+        if (copied == 0 || !loggable(slot.shape[2])) {
+            return false;
+        }
+        if (copied < 0) {
+            long needed = (long) slot.shape[0] * slot.shape[1] * slot.shape[2];
+            if (needed <= 0 || needed > Integer.MAX_VALUE - 8) {
+                return false;
+            }
+            slot.pixels = new byte[(int) needed];
+            copied = grabber.grab(imagePtr, slot.pixels, slot.shape);
+        }
+        return copied > 0 && loggable(slot.shape[2]) && copied == slot.shape[0] * slot.shape[1] * slot.shape[2];
+    }
+
+    // The channel counts DetectionLog.Entry accepts
+    private static boolean loggable(int channels) {
+        return channels == 1 || channels == 3 || channels == 4;
+    }
+
+    private void writeLoop() {
+        while (true) {
+            int index = (int) head & mask;
+            long end = drainEnd;
+            if (sequences.get(index) == head + 1) {
+                write(slots[index]);
+                sequences.set(index, head + slots.length);
+                head++;
+            } else if (end >= 0 && head >= end) {
+                return;
+            } else {
+                // Empty, or claimed by a call that has not published it yet
+                LockSupport.parkNanos(this, IDLE_NANOS);
+            }
+        }
+    }
+
+    private void write(Slot slot) {
+        CoreMLResult[] results = slot.results;
+        slot.results = null;
+        if (failure != null) {
+            dropped.incrementAndGet();
+            return;
+        }
+        try {
+            log.append(new DetectionLog.Entry(slot.timestampNanos, slot.latencyNanos, slot.nmsThresh, slot.boxThresh,
+                slot.shape[0], slot.shape[1], slot.shape[2], slot.captured ? slot.pixels : null, results));
+            recorded = log.records();
+            bytes = log.bytes();
+        } catch (IOException | RuntimeException e) {
+            failure = e instanceof IOException ? (IOException) e : new IOException(e);
+            dropped.incrementAndGet();
+        }
+    }
+}
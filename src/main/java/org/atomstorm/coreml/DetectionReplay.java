@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) AtomStorm.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.atomstorm.coreml;
+
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+import org.atomstorm.coreml.CoreMLJNI.CoreMLResult;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect2d;
+
+/**
+ * Streams a {@link DetectionLog} back through a detector and compares its results with the
+ * recorded ones, to reproduce a pipeline offline or check a model or code change against a
+ * match.
+ *
+ * <p>Every recorded frame is run with its recorded thresholds, either at the recorded rate, so
+ * the detector sees the same gaps between frames as it did live, or as fast as it can, to
+ * measure throughput. Records without a frame are skipped. Results are compared per frame:
+ * each recorded detection pairs with the unpaired replayed detection of the same class that
+ * overlaps it most, if their IoU reaches a threshold. Frames where every detection pairs up
+ * match; for the others the unpaired detections are counted as missing or extra, and the first
+ * such frame is reported so it can be inspected.
+ */
+public class DetectionReplay {
+    /** Turns a recorded frame into an image the detector can take. */
+    public interface FrameLoader {
+        /**
+         * @param entry A record with a frame
+         * @return Pointer to a cv::Mat holding the frame
+         */
+        long load(DetectionLog.Entry entry);
+
+        /**
+         * Release an image once the detector is done with it.
+         *
+         * @param imagePtr Pointer returned by {@link #load}
+         */
+        void release(long imagePtr);
+    }
+
+    /** Outcome of a replay. */
+    public static final class Report {
+        /** Frames run through the detector. */
+        public final int frames;
+        /** Records skipped because their frame was not captured. */
+        public final int skipped;
+        /** Frames whose detections all paired up with the recording's. */
+        public final int matchingFrames;
+        /** Detections that paired up. */
+        public final long matched;
+        /** Recorded detections without a replayed counterpart. */
+        public final long missing;
+        /** Replayed detections without a recorded counterpart. */
+        public final long extra;
+        /** Position in the log of the first frame that did not match, or -1. */
+        public final int firstMismatch;
+        /** Mean recorded duration of a detect call, in milliseconds. */
+        public final double meanRecordedMs;
+        /** Mean replayed duration of a detect call, in milliseconds. */
+        public final double meanReplayedMs;
+        /** Wall-clock time of the replay, in milliseconds. */
+        public final double elapsedMs;
+
+        Report(int frames, int skipped, int matchingFrames, long matched, long missing, long extra, int firstMismatch,
+               double meanRecordedMs, double meanReplayedMs, double elapsedMs) {
+            this.frames = frames;
+            this.skipped = skipped;
+            this.matchingFrames = matchingFrames;
+            this.matched = matched;
+            this.missing = missing;
+            this.extra = extra;
+            this.firstMismatch = firstMismatch;
+            this.meanRecordedMs = meanRecordedMs;
+            this.meanReplayedMs = meanReplayedMs;
+            this.elapsedMs = elapsedMs;
+        }
+
+        /** @return Whether every replayed frame matched the recording. */
+        public boolean matches() {
+            return matchingFrames == frames;
+        }
+
+        /** @return Frames replayed per second of wall-clock time, 0 if none were. */
+        public double fps() {
+            return elapsedMs <= 0 ? 0.0 : frames * 1000.0 / elapsedMs;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                "Report [frames=%d, skipped=%d, matching=%d, matched=%d, missing=%d, extra=%d, firstMismatch=%d, "
+                    + "recorded=%.3f ms, replayed=%.3f ms, fps=%.1f]",
+                frames, skipped, matchingFrames, matched, missing, extra, firstMismatch,
+                meanRecordedMs, meanReplayedMs, fps());
+        }
+    }
+
+    private final CoreMLDetectorPool.Detector detector;
+    private final FrameLoader loader;
+    private final double iouThreshold;
+
+    /**
+     * Creates a replay driver. The detector stays owned by the caller.
+     *
+     * @param detector Runs detection on the recorded frames
+     * @param loader Turns recorded frames into images
+     * @param iouThreshold Minimum IoU for a replayed detection to pair with a recorded one
+     */
+    public DetectionReplay(CoreMLDetectorPool.Detector detector, FrameLoader loader, double iouThreshold) {
+        if (!(iouThreshold > 0 && iouThreshold <= 1)) {
+            throw new IllegalArgumentException("iouThreshold must be in (0, 1]: " + iouThreshold);
+        }
+        this.detector = detector;
+        this.loader = loader;
+        this.iouThreshold = iouThreshold;
+    }
+
+    /**
+     * Creates a replay driver for a native detector, loading frames into OpenCV images.
+     *
+     * @param ptr Pointer to detector created by {@link CoreMLJNI#create}. Stays owned by the caller.
+     * @param iouThreshold Minimum IoU for a replayed detection to pair with a recorded one
+     */
+    public DetectionReplay(long ptr, double iouThreshold) {
+        this(new CoreMLDetectorPool.NativeDetector(ptr), matLoader(), iouThreshold);
+    }
+
+    /** @return Loader that copies each frame into a new 8-bit cv::Mat. Not thread-safe. */
+    public static FrameLoader matLoader() {
+        return new FrameLoader() {
+            private Mat image;
+
+            @Override
+            public long load(DetectionLog.Entry entry) {
+                image = new Mat(entry.height, entry.width, CvType.CV_8UC(entry.channels));
+                image.put(0, 0, entry.frame);
+                return image.getNativeObjAddr();
+            }
+
+            @Override
+            public void release(long imagePtr) {
+                image.release();
+                image = null;
+            }
+        };
+    }
+
+    /**
+     * Replay a whole log.
+     *
+     * @param log The recording
+     * @param recordedRate Whether to keep the recorded gaps between frames, rather than running
+     *     each frame as soon as the previous one is done
+     * @return Comparison with the recording and the replay's timing
+     * @throws IOException If a record cannot be read
+     */
+    public Report run(DetectionLog.Reader log, boolean recordedRate) throws IOException {
+        return run(log, 0, log.size(), recordedRate);
+    }
+
+    /**
+     * Replay a range of records.
+     *
+     * @param log The recording
+     * @param from Position of the first record
+     * @param to Position after the last record
+     * @param recordedRate Whether to keep the recorded gaps between frames, rather than running
+     *     each frame as soon as the previous one is done
+     * @return Comparison with the recording and the replay's timing
+     * @throws IOException If a record cannot be read
+     */
+    public Report run(DetectionLog.Reader log, int from, int to, boolean recordedRate) throws IOException {
+        if (from < 0 || to > log.size() || from > to) {
+            throw new IndexOutOfBoundsException("Records " + from + " to " + to + " of " + log.size());
+        }
+        int frames = 0;
+        int skipped = 0;
+        int matchingFrames = 0;
+        long matched = 0;
+        long missing = 0;
+        long extra = 0;
+        int firstMismatch = -1;
+        long recordedNanos = 0;
+        long replayedNanos = 0;
+
+        long start = System.nanoTime();
+        long firstTimestamp = from < to ? log.timestampNanos(from) : 0;
+        for (int i = from; i < to; i++) {
+            DetectionLog.Entry entry = log.read(i);
+            if (entry.frame == null) {
+                skipped++;
+                continue;
+            }
+            if (recordedRate) {
+                long due = start + entry.timestampNanos - firstTimestamp;
+                for (long wait = due - System.nanoTime(); wait > 0; wait = due - System.nanoTime()) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+
+            long imagePtr = loader.load(entry);
+            CoreMLResult[] results;
+            long detectStart = System.nanoTime();
+            try {
+                results = detector.detect(imagePtr, entry.nmsThresh, entry.boxThresh);
+            } finally {
+                replayedNanos += System.nanoTime() - detectStart;
+                loader.release(imagePtr);
+            }
+            recordedNanos += entry.latencyNanos;
+            frames++;
+
+            int recordedCount = entry.results == null ? 0 : entry.results.length;
+            int replayedCount = results == null ? 0 : results.length;
+            int paired = pair(entry.results, results, iouThreshold);
+            matched += paired;
+            missing += recordedCount - paired;
+            extra += replayedCount - paired;
+            if (paired == recordedCount && paired == replayedCount) {
+                matchingFrames++;
+            } else if (firstMismatch < 0) {
+                firstMismatch = i;
+            }
+        }
+        double elapsedMs = (System.nanoTime() - start) / 1e6;
+        return new Report(frames, skipped, matchingFrames, matched, missing, extra, firstMismatch,
+            frames == 0 ? 0.0 : recordedNanos / 1e6 / frames, frames == 0 ? 0.0 : replayedNanos / 1e6 / frames,
+            elapsedMs);
+    }
+
+    /**
+     * Pair up two sets of detections of one frame. Each recorded detection, in order, takes the
+     * unpaired replayed detection of the same class with the highest IoU, if it reaches the threshold.
+     *
+     * @param recorded Detections from the recording, may be null
+     * @param replayed Detections from the replay, may be null
+     * @param iouThreshold Minimum IoU of a pair
+     * @return Number of pairs
+     */
+    public static int pair(CoreMLResult[] recorded, CoreMLResult[] replayed, double iouThreshold) {
+        if (recorded == null || replayed == null) {
+            return 0;
+        }
+        boolean[] taken = new boolean[replayed.length];
+        int pairs = 0;
+        for (CoreMLResult a : recorded) {
+            int best = -1;
+            double bestIou = iouThreshold;
+            for (int j = 0; j < replayed.length; j++) {
+                CoreMLResult b = replayed[j];
+                if (taken[j] || b.class_id != a.class_id) {
+                    continue;
+                }
+                double iou = iou(a.rect, b.rect);
+                if (iou >= bestIou) {
+                    best = j;
+                    bestIou = iou;
+                }
+            }
+            if (best >= 0) {
+                taken[best] = true;
+                pairs++;
+            }
+        }
+        return pairs;
+    }
+
+    private static double iou(Rect2d a, Rect2d b) {
+        double w = Math.min(a.x + a.width, b.x + b.width) - Math.max(a.x, b.x);
+        double h = Math.min(a.y + a.height, b.y + b.height) - Math.max(a.y, b.y);
+        if (w <= 0 || h <= 0) {
+            // Identical empty boxes still pair up
+            return a.equals(b) ? 1.0 : 0.0;
+        }
+        double intersection = w * h;
+        return intersection / (a.width * a.height + b.width * b.height - intersection);
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) AtomStorm.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.atomstorm.coreml;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Objects;
+import org.atomstorm.coreml.CoreMLJNI.CoreMLResult;
+
+/**
+ * A reusable, allocation-free view over packed detection rows written by
+ * {@link CoreMLJNI#detectInto(long, long, double, double, FloatBuffer)}.
+ *
+ * <p>Each row holds {@link #STRIDE} floats: {@code [x1, y1, x2, y2, conf, classId]}.
+ * Create one view per camera thread and call {@link #detect} every frame; the
+ * accessors read straight from the backing buffer, so steady-state detection
+ * does not allocate any Java objects. A view is not thread-safe.
+ */
+public final class DetectionView {
+    /** Number of floats per detection row. */
+    public static final int STRIDE = 6;
+    /** Row offset of the x-coordinate of the top-left corner. */
+    public static final int X1 = 0;
+    /** Row offset of the y-coordinate of the top-left corner. */
+    public static final int Y1 = 1;
+    /** Row offset of the x-coordinate of the bottom-right corner. */
+    public static final int X2 = 2;
+    /** Row offset of the y-coordinate of the bottom-right corner. */
+    public static final int Y2 = 3;
+    /** Row offset of the confidence score. */
+    public static final int CONF = 4;
+    /** Row offset of the class ID, stored as a float. */
+    public static final int CLASS_ID = 5;
+
+    private final FloatBuffer buffer;
+    private final int capacity;
+    private int size;
+
+    /**
+     * Creates a view backed by a newly allocated direct buffer.
+     *
+     * @param capacity Maximum number of detections the view can hold.
+     */
+    public DetectionView(int capacity) {
+        this(allocate(capacity));
+    }
+
+    /**
+     * Creates a view over an existing buffer.
+     *
+     * @param buffer A direct float buffer in native byte order. Rows are read from index 0.
+     * @throws IllegalArgumentException if the buffer is not direct or not in native byte order.
+     */
+    public DetectionView(FloatBuffer buffer) {
+        if (!buffer.isDirect() || buffer.order() != ByteOrder.nativeOrder()) {
+            throw new IllegalArgumentException("Detection buffer must be direct and in native byte order");
+        }
+        this.buffer = buffer;
+        this.capacity = buffer.capacity() / STRIDE;
+    }
+
+    /**
+     * Allocates a direct buffer suitable for {@link CoreMLJNI#detectInto}.
+     *
+     * @param capacity Maximum number of detections the buffer can hold.
+     * @return A direct float buffer in native byte order.
+     */
+    public static FloatBuffer allocate(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Capacity must be non-negative: " + capacity);
+        }
+        return ByteBuffer.allocateDirect(capacity * STRIDE * Float.BYTES)
+            .order(ByteOrder.nativeOrder())
+            .asFloatBuffer();
+    }
+
+    /**
+     * Runs detection into this view, replacing its previous contents.
+     *
+     * @param detectorPtr Pointer to detector created by {@link CoreMLJNI#create}
+     * @param imagePtr Pointer to a cv::Mat input image
+     * @param nmsThresh Non-Maximum Suppression threshold
+     * @param boxThresh Bounding box confidence threshold
+     * @return Number of detections now held by the view
+     */
+    public int detect(long detectorPtr, long imagePtr, double nmsThresh, double boxThresh) {
+        setSize(Math.max(0, CoreMLJNI.detectInto(detectorPtr, imagePtr, nmsThresh, boxThresh, buffer)));
+        return size;
+    }
+
+    /**
+     * Sets the number of valid rows, for callers that fill the buffer themselves.
+     *
+     * @param size Number of valid rows, between 0 and {@link #capacity()}.
+     */
+    public void setSize(int size) {
+        this.size = Objects.checkIndex(size, capacity + 1);
+    }
+
+    /** @return Number of valid detections in the view. */
+    public int size() {
+        return size;
+    }
+
+    /** @return Maximum number of detections the view can hold. */
+    public int capacity() {
+        return capacity;
+    }
+
+    /** @return The backing buffer. */
+    public FloatBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * @param i Detection index
+     * @return The x-coordinate of the top-left corner.
+     */
+    public float x1(int i) {
+        return get(i, X1);
+    }
+
+    /**
+     * @param i Detection index
+     * @return The y-coordinate of the top-left corner.
+     */
+    public float y1(int i) {
+        return get(i, Y1);
+    }
+
+    /**
+     * @param i Detection index
+     * @return The x-coordinate of the bottom-right corner.
+     */
+    public float x2(int i) {
+        return get(i, X2);
+    }
+
+    /**
+     * @param i Detection index
+     * @return The y-coordinate of the bottom-right corner.
+     */
+    public float y2(int i) {
+        return get(i, Y2);
+    }
+
+    /**
+     * @param i Detection index
+     * @return The width of the bounding box.
+     */
+    public float width(int i) {
+        return x2(i) - x1(i);
+    }
+
+    /**
+     * @param i Detection index
+     * @return The height of the bounding box.
+     */
+    public float height(int i) {
+        return y2(i) - y1(i);
+    }
+
+    /**
+     * @param i Detection index
+     * @return The confidence score of the detection.
+     */
+    public float confidence(int i) {
+        return get(i, CONF);
+    }
+
+    /**
+     * @param i Detection index
+     * @return The identifier for the detected class.
+     */
+    public int classId(int i) {
+        return (int) get(i, CLASS_ID);
+    }
+
+    /**
+     * Converts one row to a {@link CoreMLResult}. Allocates; intended for logging and tests.
+     *
+     * @param i Detection index
+     * @return The detection as a CoreMLResult, with coordinates truncated like {@link CoreMLJNI#detect}.
+     */
+    public CoreMLResult toResult(int i) {
+        return new CoreMLResult((int) x1(i), (int) y1(i), (int) x2(i), (int) y2(i), confidence(i), classId(i));
+    }
+
+    /**
+     * Converts all rows to {@link CoreMLResult}s. Allocates; intended for logging and tests.
+     *
+     * @return The detections as an array of CoreMLResult.
+     */
+    public CoreMLResult[] toResults() {
+        CoreMLResult[] results = new CoreMLResult[size];
+        for (int i = 0; i < size; i++) {
+            results[i] = toResult(i);
+        }
+        return results;
+    }
+
+    private float get(int i, int offset) {
+        return buffer.get(Objects.checkIndex(i, size) * STRIDE + offset);
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) AtomStorm.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.atomstorm.coreml;
+
+import org.atomstorm.coreml.CoreMLJNI.CoreMLResult;
+
+/**
+ * Skips inference on frames that look the same as the last one the model saw.
+ *
+ * <p>Static footage, an idle robot or a camera facing an empty field, still pays a full
+ * prediction per frame. A frame change cache shrinks each frame to a tiny grayscale thumbnail
+ * and takes its difference hash: one bit per horizontally adjacent pixel pair, set when the
+ * left pixel is brighter. If the hash is within {@code maxDistance} bits of the hash of the
+ * last frame that ran inference, that frame's results are returned instead of running the
+ * model. The hash costs microseconds, ignores noise and small shifts, but can also miss small
+ * objects entering the scene, so at most {@code maxCachedFrames} frames in a row are served
+ * from the cache before inference runs again regardless.
+ *
+ * <p>Cached results are only reused for calls with the same thresholds. Returned arrays are
+ * fresh, but cached frames share their result objects with the frame that was inferred.
+ * A frame change cache is not thread-safe; use one per camera.
+ */
+public class FrameChangeCache implements CoreMLDetectorPool.Detector {
+    /** Width of the thumbnail that is hashed. One more than the bits per row. */
+    public static final int THUMBNAIL_WIDTH = 9;
+    /** Height of the thumbnail that is hashed. */
+    public static final int THUMBNAIL_HEIGHT = 8;
+
+    // Pixels sampled per thumbnail cell along each axis, matching the native sampler
+    private static final int CELL_SAMPLES = 8;
+
+    // Brightness difference, in gray levels, below which a pixel pair counts as equal, so flat
+    // areas hash the same despite sensor noise
+    private static final int DEAD_BAND = 2;
+
+    /** Produces the thumbnail of a frame. */
+    public interface Sampler {
+        /**
+         * Shrink a frame to a {@link #THUMBNAIL_WIDTH} by {@link #THUMBNAIL_HEIGHT} grayscale
+         * thumbnail, row by row.
+         *
+         * @param imagePtr Pointer to a cv::Mat input image
+         * @param thumbnail Receives the thumbnail
+         * @return Number of bytes written; anything short of a full thumbnail means the frame
+         *     could not be sampled
+         */
+        int sample(long imagePtr, byte[] thumbnail);
+    }
+
+    /** Snapshot of the cache's effect. */
+    public static final class Stats {
+        /** Frames passed to {@link #detect}. */
+        public final long frames;
+        /** Frames answered from the cache. */
+        public final long hits;
+        /** Frames that ran inference. */
+        public final long misses;
+        /** Mean time of one inference, in milliseconds. */
+        public final double meanInferenceMs;
+        /** Mean time of sampling and hashing one frame, in milliseconds. */
+        public final double meanHashMs;
+        /** Estimated time saved: inference skipped by hits, less the time spent hashing, in milliseconds. */
+        public final double savedMs;
+
+        Stats(long frames, long hits, long misses, double meanInferenceMs, double meanHashMs, double savedMs) {
+            this.frames = frames;
+            this.hits = hits;
+            this.misses = misses;
+            this.meanInferenceMs = meanInferenceMs;
+            this.meanHashMs = meanHashMs;
+            this.savedMs = savedMs;
+        }
+
+        /** @return Fraction of frames answered from the cache, 0 before the first frame. */
+        public double hitRate() {
+            return frames == 0 ? 0.0 : (double) hits / frames;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                "Stats [frames=%d, hits=%d, hitRate=%.2f, inference=%.3f ms, hash=%.4f ms, saved=%.1f ms]",
+                frames, hits, hitRate(), meanInferenceMs, meanHashMs, savedMs);
+        }
+    }
+
+    private final CoreMLDetectorPool.Detector detector;
+    private final Sampler sampler;
+    private final int maxDistance;
+    private final int maxCachedFrames;
+    private final byte[] thumbnail = new byte[THUMBNAIL_WIDTH * THUMBNAIL_HEIGHT];
+
+    // Last inferred frame; cached is null when there is nothing to reuse
+    private CoreMLResult[] cached;
+    private long cachedHash;
+    private double cachedNmsThresh;
+    private double cachedBoxThresh;
+    private int cachedFrames;
+
+    private long frames;
+    private long hits;
+    private long misses;
+    private long inferenceNanos;
+    private long hashNanos;
+
+    /**
+     * Creates a frame change cache in front of a detector. It takes ownership of the detector
+     * and closes it in {@link #close()}.
+     *
+     * @param detector Runs inference on changed frames
+     * @param sampler Produces the thumbnail of a frame
+     * @param maxDistance Frames whose hash differs from the last inferred frame's in at most
+     *     this many of the 64 bits reuse its results; 0 requires an identical hash
+     * @param maxCachedFrames Run inference again after this many frames in a row from the cache; 0 disables the cache
+     */
+    public FrameChangeCache(CoreMLDetectorPool.Detector detector, Sampler sampler, int maxDistance,
+                            int maxCachedFrames) {
+        if (maxDistance < 0 || maxDistance > 64) {
+            throw new IllegalArgumentException("maxDistance must be between 0 and 64: " + maxDistance);
+        }
+        if (maxCachedFrames < 0) {
+            throw new IllegalArgumentException("maxCachedFrames must not be negative: " + maxCachedFrames);
+        }
+        this.detector = detector;
+        this.sampler = sampler;
+        this.maxDistance = maxDistance;
+        this.maxCachedFrames = maxCachedFrames;
+    }
+
+    /**
+     * Creates a frame change cache in front of a native detector. It takes ownership of the
+     * pointer and destroys it in {@link #close()}.
+     *
+     * @param ptr Pointer to detector created by {@link CoreMLJNI#create}
+     * @param maxDistance Frames whose hash differs from the last inferred frame's in at most
+     *     this many of the 64 bits reuse its results; 0 requires an identical hash
+     * @param maxCachedFrames Run inference again after this many frames in a row from the cache; 0 disables the cache
+     */
+    public FrameChangeCache(long ptr, int maxDistance, int maxCachedFrames) {
+        this(new CoreMLDetectorPool.NativeDetector(ptr), CoreMLJNI::frameThumbnail, maxDistance, maxCachedFrames);
+    }
+
+    /**
+     * Run detection, or return the last results if the frame has not changed.
+     *
+     * @param imagePtr Pointer to a cv::Mat input image
+     * @param nmsThresh Non-Maximum Suppression threshold
+     * @param boxThresh Bounding box confidence threshold
+     * @return Array of CoreMLResult objects containing the detection results
+     */
+    @Override
+    public CoreMLResult[] detect(long imagePtr, double nmsThresh, double boxThresh) {
+        frames++;
+        long start = System.nanoTime();
+        boolean sampled = sampler.sample(imagePtr, thumbnail) >= thumbnail.length;
+        long hash = sampled ? differenceHash(thumbnail) : 0;
+        long hashed = System.nanoTime();
+        hashNanos += hashed - start;
+
+        if (sampled && cached != null && cachedFrames < maxCachedFrames
+                && nmsThresh == cachedNmsThresh && boxThresh == cachedBoxThresh
+                && distance(hash, cachedHash) <= maxDistance) {
+            hits++;
+            cachedFrames++;
+            return cached.clone();
+        }
+
+        misses++;
+        CoreMLResult[] results = detector.detect(imagePtr, nmsThresh, boxThresh);
+        inferenceNanos += System.nanoTime() - hashed;
+
+        // Frames that could not be hashed or failed to detect leave nothing to compare against
+        cached = sampled && results != null ? results : null;
+        cachedHash = hash;
+        cachedNmsThresh = nmsThresh;
+        cachedBoxThresh = boxThresh;
+        cachedFrames = 0;
+        return results;
+    }
+
+    /** Run inference on the next frame regardless of how similar it is, e.g. after moving the camera. */
+    public void invalidate() {
+        cached = null;
+    }
+
+    /** @return Snapshot of the hit rate and time saved since creation or the last {@link #resetStats()}. */
+    public Stats getStats() {
+        double meanInferenceMs = misses == 0 ? 0.0 : inferenceNanos / 1e6 / misses;
+        double meanHashMs = frames == 0 ? 0.0 : hashNanos / 1e6 / frames;
+        double savedMs = hits * meanInferenceMs - hashNanos / 1e6;
+        return new Stats(frames, hits, misses, meanInferenceMs, meanHashMs, savedMs);
+    }
+
+    /** Clear the counters. The cached results are kept. */
+    public void resetStats() {
+        frames = 0;
+        hits = 0;
+        misses = 0;
+        inferenceNanos = 0;
+        hashNanos = 0;
+    }
+
+    /** Close the underlying detector. */
+    @Override
+    public void close() {
+        detector.close();
+    }
+
+    /**
+     * Difference hash of a thumbnail: bit {@code 8 * y + x} is set when pixel {@code (x, y)}
+     * is brighter than pixel {@code (x + 1, y)} by more than a small dead band.
+     *
+     * @param thumbnail {@link #THUMBNAIL_WIDTH} by {@link #THUMBNAIL_HEIGHT} gray levels, row by row
+     * @return The 64-bit hash
+     */
+    public static long differenceHash(byte[] thumbnail) {
+        long hash = 0;
+        int bit = 0;
+        for (int y = 0; y < THUMBNAIL_HEIGHT; y++) {
+            int row = y * THUMBNAIL_WIDTH;
+            for (int x = 0; x < THUMBNAIL_WIDTH - 1; x++, bit++) {
+                int left = thumbnail[row + x] & 0xFF;
+                int right = thumbnail[row + x + 1] & 0xFF;
+                if (left - right > DEAD_BAND) {
+                    hash |= 1L << bit;
+                }
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * @param a A hash
+     * @param b Another hash
+     * @return Number of bits in which the hashes differ
+     */
+    public static int distance(long a, long b) {
+        return Long.bitCount(a ^ b);
+    }
+
+    /**
+     * Java counterpart of {@link CoreMLJNI#frameThumbnail} for frames held in an array. Each
+     * cell of the thumbnail is the gray level of the mean of an evenly spaced grid of 8 by 8
+     * pixels inside it, so the cost does not grow with the image. Results can differ from the
+     * native sampler's by a gray level.
+     *
+     * @param pixels Packed 8-bit image, rows without padding
+     * @param width Image width in pixels
+     * @param height Image height in pixels
+     * @param channels 1 (gray), 3 (BGR) or 4 (BGRA)
+     * @param thumbnail Receives the thumbnail
+     * @return Number of bytes written, 0 if the image is invalid
+     */
+    public static int sample(byte[] pixels, int width, int height, int channels, byte[] thumbnail) {
+        if ((channels != 1 && channels != 3 && channels != 4) || width <= 0 || height <= 0
+                || pixels.length < (long) width * height * channels
+                || thumbnail.length < THUMBNAIL_WIDTH * THUMBNAIL_HEIGHT) {
+            return 0;
+        }
+        int gridWidth = THUMBNAIL_WIDTH * CELL_SAMPLES;
+        int gridHeight = THUMBNAIL_HEIGHT * CELL_SAMPLES;
+        for (int ty = 0; ty < THUMBNAIL_HEIGHT; ty++) {
+            for (int tx = 0; tx < THUMBNAIL_WIDTH; tx++) {
+                int b = 0;
+                int g = 0;
+                int r = 0;
+                for (int sy = 0; sy < CELL_SAMPLES; sy++) {
+                    // Nearest pixel of each grid point, as INTER_NEAREST picks it
+                    int y = (int) ((long) (ty * CELL_SAMPLES + sy) * height / gridHeight);
+                    for (int sx = 0; sx < CELL_SAMPLES; sx++) {
+                        int x = (int) ((long) (tx * CELL_SAMPLES + sx) * width / gridWidth);
+                        int p = (y * width + x) * channels;
+                        b += pixels[p] & 0xFF;
+                        if (channels > 1) {
+                            g += pixels[p + 1] & 0xFF;
+                            r += pixels[p + 2] & 0xFF;
+                        }
+                    }
+                }
+                double sum = channels == 1 ? b : 0.114 * b + 0.587 * g + 0.299 * r;
+                thumbnail[ty * THUMBNAIL_WIDTH + tx] = (byte) Math.round(sum / (CELL_SAMPLES * CELL_SAMPLES));
+            }
+        }
+        return THUMBNAIL_WIDTH * THUMBNAIL_HEIGHT;
+    }
+}
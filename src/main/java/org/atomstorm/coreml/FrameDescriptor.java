@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) AtomStorm.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.atomstorm.coreml;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Memory layout of a raw camera frame held in a direct {@link ByteBuffer}, see
+ * {@link CoreMLJNI#detect(long, ByteBuffer, FrameDescriptor, double, double)}.
+ *
+ * <p>Offsets are counted from index 0 of the buffer regardless of its position. Rows may be
+ * padded: the stride is the distance between the starts of two rows in bytes, and must be at
+ * least the bytes of pixel data per row. Descriptors are validated when created, so a
+ * descriptor that exists describes a well-formed frame; only the buffer remains to be checked.
+ */
+public final class FrameDescriptor {
+    /** Pixel formats of raw frames. The order matches the native side and must not change. */
+    public static enum Format {
+        /** 8-bit Y plane followed by an interleaved CbCr plane at half resolution, video range. */
+        NV12(1),
+        /** 8-bit 4:2:2 packed as Y0 Cb Y1 Cr, video range. */
+        YUYV(2),
+        /** 8-bit blue, green, red, alpha. */
+        BGRA(4),
+        /** 8-bit grayscale. */
+        GRAY8(1);
+
+        /** Bytes per pixel of the first plane. */
+        public final int bytesPerPixel;
+
+        private Format(int bytesPerPixel) {
+            this.bytesPerPixel = bytesPerPixel;
+        }
+    }
+
+    /** Pixel format. */
+    public final Format format;
+    /** Width of the frame, in pixels. */
+    public final int width;
+    /** Height of the frame, in pixels. */
+    public final int height;
+    /** Bytes between the starts of two rows of the first plane. */
+    public final int stride;
+    /** Offset of the CbCr plane of an NV12 frame, 0 for single-plane formats. */
+    public final int chromaOffset;
+    /** Bytes between the starts of two rows of the CbCr plane of an NV12 frame, 0 for single-plane formats. */
+    public final int chromaStride;
+
+    private FrameDescriptor(Format format, int width, int height, int stride, int chromaOffset, int chromaStride) {
+        this.format = format;
+        this.width = width;
+        this.height = height;
+        this.stride = stride;
+        this.chromaOffset = chromaOffset;
+        this.chromaStride = chromaStride;
+    }
+
+    /**
+     * Describe a frame whose rows are not padded. An NV12 frame's CbCr plane directly
+     * follows its Y plane.
+     *
+     * @param format Pixel format
+     * @param width Width of the frame, in pixels
+     * @param height Height of the frame, in pixels
+     * @return The descriptor
+     */
+    public static FrameDescriptor create(Format format, int width, int height) {
+        checkSize(format, width, height);
+        return create(format, width, height, width * format.bytesPerPixel);
+    }
+
+    /**
+     * Describe a frame with padded rows. An NV12 frame's CbCr plane directly follows its Y
+     * plane and has the same stride, as most capture APIs lay it out.
+     *
+     * @param format Pixel format
+     * @param width Width of the frame, in pixels
+     * @param height Height of the frame, in pixels
+     * @param stride Bytes between the starts of two rows
+     * @return The descriptor
+     */
+    public static FrameDescriptor create(Format format, int width, int height, int stride) {
+        checkSize(format, width, height);
+        if (format == Format.NV12) {
+            return nv12(width, height, stride, (int) Math.min(Integer.MAX_VALUE, (long) stride * height), stride);
+        }
+        checkStride(stride, width, format.bytesPerPixel);
+        return new FrameDescriptor(format, width, height, stride, 0, 0);
+    }
+
+    /**
+     * Describe an NV12 frame whose planes are laid out independently.
+     *
+     * @param width Width of the frame, in pixels
+     * @param height Height of the frame, in pixels
+     * @param lumaStride Bytes between the starts of two rows of the Y plane
+     * @param chromaOffset Offset of the CbCr plane, past the end of the Y plane
+     * @param chromaStride Bytes between the starts of two rows of the CbCr plane
+     * @return The descriptor
+     */
+    public static FrameDescriptor nv12(int width, int height, int lumaStride, int chromaOffset, int chromaStride) {
+        checkSize(Format.NV12, width, height);
+        checkStride(lumaStride, width, 1);
+        checkStride(chromaStride, width, 1);
+        if (chromaOffset < planeBytes(lumaStride, height, width)) {
+            throw new IllegalArgumentException("The CbCr plane at " + chromaOffset + " overlaps the Y plane");
+        }
+        return new FrameDescriptor(Format.NV12, width, height, lumaStride, chromaOffset, chromaStride);
+    }
+
+    /** @return Bytes the buffer must hold, up to the last pixel of the last row. */
+    public long requiredBytes() {
+        if (format == Format.NV12) {
+            return chromaOffset + planeBytes(chromaStride, height / 2, width);
+        }
+        return planeBytes(stride, height, width * format.bytesPerPixel);
+    }
+
+    /**
+     * Check that a buffer can hold a frame of this layout.
+     *
+     * @param buffer The frame
+     * @throws IllegalArgumentException If the buffer is not direct or too small
+     */
+    public void checkBuffer(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            throw new IllegalArgumentException("Frames must be in a direct ByteBuffer");
+        }
+        if (buffer.capacity() < requiredBytes()) {
+            throw new IllegalArgumentException(
+                "Buffer of " + buffer.capacity() + " bytes is too small for " + this + ", which needs " + requiredBytes());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "FrameDescriptor [format=" + format + ", size=" + width + "x" + height + ", stride=" + stride
+            + (format == Format.NV12 ? ", chromaOffset=" + chromaOffset + ", chromaStride=" + chromaStride : "")
+            + "]";
+    }
+
+    // Bytes from the first row's start to the last row's end
+    private static long planeBytes(int stride, int rows, int rowBytes) {
+        return (long) stride * (rows - 1) + rowBytes;
+    }
+
+    private static void checkSize(Format format, int width, int height) {
+        if (format == null) {
+            throw new IllegalArgumentException("Format must not be null");
+        }
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Frame size must be positive, got " + width + "x" + height);
+        }
+        // Chroma is shared between pixel pairs horizontally, and for NV12 also vertically
+        if ((format == Format.NV12 || format == Format.YUYV) && width % 2 != 0) {
+            throw new IllegalArgumentException(format + " frames must have an even width, got " + width);
+        }
+        if (format == Format.NV12 && height % 2 != 0) {
+            throw new IllegalArgumentException("NV12 frames must have an even height, got " + height);
+        }
+        if ((long) width * format.bytesPerPixel > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Frame width " + width + " is too large");
+        }
+    }
+
+    private static void checkStride(int stride, int width, int bytesPerPixel) {
+        if (stride < width * bytesPerPixel) {
+            throw new IllegalArgumentException(
+                "Stride " + stride + " is shorter than a row of " + width * bytesPerPixel + " bytes");
+        }
+    }
+}
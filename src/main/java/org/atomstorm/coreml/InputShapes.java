@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) AtomStorm.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.atomstorm.coreml;
+
+import java.util.Arrays;
+
+/**
+ * The input sizes a model accepts, and which one a frame is letterboxed into.
+ *
+ * <p>Letterboxing a 16:9 frame into a square input spends over 40% of the input on padding,
+ * and the model pays for every padded pixel. Models exported with enumerated or flexible
+ * image sizes can instead take an input shaped like the frame. The frame is scaled exactly as
+ * it would be for the model's default size, and then gets the smallest input that still holds
+ * it: of the enumerated sizes, the one with the least area that covers the scaled frame; of a
+ * flexible range, the scaled frame rounded up to a multiple of {@link #ALIGNMENT} and clamped
+ * to the range. Models with a single size always use it.
+ *
+ * <p>This is a reference for the native selection and uses the same arithmetic, so
+ * {@link #select} returns the geometry the native code letterboxes with. Instances are
+ * immutable.
+ */
+public final class InputShapes {
+    /** Flexible sizes are rounded up to a multiple of this, the stride of YOLO's coarsest feature map. */
+    public static final int ALIGNMENT = 32;
+
+    /** Width of the model's default input, in pixels. */
+    public final int defaultWidth;
+    /** Height of the model's default input, in pixels. */
+    public final int defaultHeight;
+
+    private final int[] sizes; // Enumerated sizes as width, height pairs, the default first
+    private final int[] range; // minWidth, maxWidth, minHeight, maxHeight of a flexible input, or null
+
+    private InputShapes(int defaultWidth, int defaultHeight, int[] sizes, int[] range) {
+        this.defaultWidth = defaultWidth;
+        this.defaultHeight = defaultHeight;
+        this.sizes = sizes;
+        this.range = range;
+    }
+
+    /**
+     * A model with a single input size.
+     *
+     * @param width Input width
+     * @param height Input height
+     * @return The shapes
+     */
+    public static InputShapes fixed(int width, int height) {
+        checkSize(width, height);
+        return new InputShapes(width, height, new int[] {width, height}, null);
+    }
+
+    /**
+     * A model exported with enumerated input sizes.
+     *
+     * @param defaultWidth Width of the default input
+     * @param defaultHeight Height of the default input
+     * @param sizes The other accepted sizes as width, height pairs; the default may be repeated
+     * @return The shapes
+     */
+    public static InputShapes enumerated(int defaultWidth, int defaultHeight, int... sizes) {
+        checkSize(defaultWidth, defaultHeight);
+        if (sizes.length % 2 != 0) {
+            throw new IllegalArgumentException("Sizes must be width, height pairs: " + Arrays.toString(sizes));
+        }
+        int[] all = new int[sizes.length + 2];
+        all[0] = defaultWidth;
+        all[1] = defaultHeight;
+        for (int i = 0; i < sizes.length; i += 2) {
+            checkSize(sizes[i], sizes[i + 1]);
+            all[i + 2] = sizes[i];
+            all[i + 3] = sizes[i + 1];
+        }
+        return new InputShapes(defaultWidth, defaultHeight, all, null);
+    }
+
+    /**
+     * A model exported with a flexible input size.
+     *
+     * @param defaultWidth Width of the default input
+     * @param defaultHeight Height of the default input
+     * @param minWidth Smallest accepted width
+     * @param maxWidth Largest accepted width
+     * @param minHeight Smallest accepted height
+     * @param maxHeight Largest accepted height
+     * @return The shapes
+     */
+    public static InputShapes range(int defaultWidth, int defaultHeight, int minWidth, int maxWidth,
+                                    int minHeight, int maxHeight) {
+        checkSize(defaultWidth, defaultHeight);
+        checkSize(minWidth, minHeight);
+        if (maxWidth < minWidth || maxHeight < minHeight) {
+            throw new IllegalArgumentException(String.format(
+                "Invalid range: width %d-%d, height %d-%d", minWidth, maxWidth, minHeight, maxHeight));
+        }
+        return new InputShapes(defaultWidth, defaultHeight, new int[] {defaultWidth, defaultHeight},
+            new int[] {minWidth, maxWidth, minHeight, maxHeight});
+    }
+
+    /**
+     * Read the input sizes of a native detector.
+     *
+     * @param detectorPtr Pointer to detector created by {@link CoreMLJNI#create}
+     * @return The shapes, or null if the pointer is invalid
+     */
+    public static InputShapes of(long detectorPtr) {
+        int[] sizes = CoreMLJNI.getInputShapes(detectorPtr);
+        if (sizes == null || sizes.length < 2) {
+            return null;
+        }
+        int[] range = CoreMLJNI.getInputSizeRange(detectorPtr);
+        if (range != null) {
+            return range(sizes[0], sizes[1], range[0], range[1], range[2], range[3]);
+        }
+        return enumerated(sizes[0], sizes[1], Arrays.copyOfRange(sizes, 2, sizes.length));
+    }
+
+    /** @return Whether the model takes inputs of more than one size. */
+    public boolean isFlexible() {
+        return range != null || sizes.length > 2;
+    }
+
+    /**
+     * Choose the input a frame is letterboxed into.
+     *
+     * @param imageWidth Width of the frame
+     * @param imageHeight Height of the frame
+     * @return Letterbox of the frame into the chosen input
+     * @throws IllegalArgumentException if a dimension is not positive
+     */
+    public LetterboxGeometry select(int imageWidth, int imageHeight) {
+        LetterboxGeometry padded = LetterboxGeometry.of(imageWidth, imageHeight, defaultWidth, defaultHeight);
+        int neededWidth = padded.scaledWidth;
+        int neededHeight = padded.scaledHeight;
+
+        if (range != null) {
+            int width = clamp(alignUp(neededWidth), range[0], range[1]);
+            int height = clamp(alignUp(neededHeight), range[2], range[3]);
+            return LetterboxGeometry.of(imageWidth, imageHeight, width, height);
+        }
+
+        // The default always covers the scaled frame; earlier sizes win ties
+        int best = 0;
+        for (int i = 2; i < sizes.length; i += 2) {
+            if (sizes[i] >= neededWidth && sizes[i + 1] >= neededHeight
+                    && (long) sizes[i] * sizes[i + 1] < (long) sizes[best] * sizes[best + 1]) {
+                best = i;
+            }
+        }
+        return best == 0 ? padded : LetterboxGeometry.of(imageWidth, imageHeight, sizes[best], sizes[best + 1]);
+    }
+
+    private static int alignUp(int value) {
+        return (value + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(value, max));
+    }
+
+    private static void checkSize(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException(String.format("Invalid input size %dx%d", width, height));
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("InputShapes [default=")
+            .append(defaultWidth).append('x').append(defaultHeight);
+        if (range != null) {
+            builder.append(String.format(", width=%d-%d, height=%d-%d", range[0], range[1], range[2], range[3]));
+        } else {
+            builder.append(", sizes=");
+            for (int i = 0; i < sizes.length; i += 2) {
+                builder.append(i == 0 ? "" : ", ").append(sizes[i]).append('x').append(sizes[i + 1]);
+            }
+        }
+        return builder.append(']').toString();
+    }
+}
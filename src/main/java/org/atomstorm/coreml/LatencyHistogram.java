@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) AtomStorm.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.atomstorm.coreml;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.atomstorm.coreml.CoreMLJNI.StageStats;
+
+/**
+ * Lock-free latency histogram with log-linear buckets, as kept natively for each detection
+ * stage and reported by {@link CoreMLJNI#getStats}.
+ *
+ * <p>Values are microseconds. Values below 8 get a bucket each, and every power of two above
+ * is split into 8 linear sub-buckets, so percentiles are reported within 12.5%: a percentile
+ * is the upper bound of the bucket holding it, capped at the largest recorded value. Values
+ * of 2<sup>27</sup> microseconds and above share the last bucket.
+ *
+ * <p>Recording is a few atomic operations and never blocks. A snapshot taken during recording
+ * may miss the sample in progress.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 26;
+
+    /** Number of buckets. */
+    public static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param micros A non-negative latency in microseconds
+     * @return Index of the bucket holding the value
+     */
+    public static int bucketIndex(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) Math.max(0, micros);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        int shift = exponent - SUB_BUCKET_BITS;
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + (int) (micros >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * @param index Bucket index
+     * @return Smallest value held by the bucket, in microseconds
+     */
+    public static long bucketLowerBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        return (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+    }
+
+    /**
+     * @param index Bucket index
+     * @return Largest value held by the bucket, in microseconds
+     */
+    public static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        return bucketLowerBound(index) + (1L << shift) - 1;
+    }
+
+    /**
+     * Record one latency.
+     *
+     * @param micros Latency in microseconds; negative values count as 0
+     */
+    public void record(long micros) {
+        long value = Math.max(0, micros);
+        buckets.incrementAndGet(bucketIndex(value));
+        sum.addAndGet(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    /** Clear all recorded values. */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets.set(i, 0);
+        }
+        sum.set(0);
+        max.set(0);
+    }
+
+    /** @return Summary of the recorded values, in the form {@link CoreMLJNI#getStats} reports them. */
+    public StageStats snapshot() {
+        long[] counts = new long[BUCKET_COUNT];
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = buckets.get(i);
+            count += counts[i];
+        }
+        if (count == 0) {
+            return new StageStats(0, 0, 0, 0, 0);
+        }
+        long maxMicros = max.get();
+        return new StageStats(count,
+            percentile(counts, count, maxMicros, 0.50) / 1e3,
+            percentile(counts, count, maxMicros, 0.99) / 1e3,
+            maxMicros / 1e3,
+            (double) sum.get() / count / 1e3);
+    }
+
+    // Upper bound of the bucket holding the rank-th smallest value, capped at the maximum
+    private static long percentile(long[] counts, long count, long maxMicros, double quantile) {
+        long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(bucketUpperBound(i), maxMicros);
+            }
+        }
+        return maxMicros;
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) AtomStorm.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.atomstorm.coreml;
+
+/**
+ * How an image is letterboxed into a model input.
+ *
+ * <p>The image is scaled by a single factor so it fits inside the input while keeping its
+ * aspect ratio, then centred; the bands left over on either side are padding. This is a
+ * reference for the native preprocessing and uses the same single-precision arithmetic and
+ * rounding, so the region computed here is exactly the one the native code fills.
+ */
+public final class LetterboxGeometry {
+    /** Width of the original image, in pixels. */
+    public final int imageWidth;
+    /** Height of the original image, in pixels. */
+    public final int imageHeight;
+    /** Width of the model input, in pixels. */
+    public final int inputWidth;
+    /** Height of the model input, in pixels. */
+    public final int inputHeight;
+    /** Factor from image pixels to input pixels. */
+    public final float scale;
+    /** Width of the scaled image inside the input. */
+    public final int scaledWidth;
+    /** Height of the scaled image inside the input. */
+    public final int scaledHeight;
+    /** Exact horizontal padding on each side, possibly fractional. */
+    public final float padWidth;
+    /** Exact vertical padding on each side, possibly fractional. */
+    public final float padHeight;
+    /** Left edge of the scaled image inside the input. */
+    public final int roiX;
+    /** Top edge of the scaled image inside the input. */
+    public final int roiY;
+
+    private LetterboxGeometry(int imageWidth, int imageHeight, int inputWidth, int inputHeight) {
+        this.imageWidth = imageWidth;
+        this.imageHeight = imageHeight;
+        this.inputWidth = inputWidth;
+        this.inputHeight = inputHeight;
+        this.scale = Math.min((float) inputWidth / imageWidth, (float) inputHeight / imageHeight);
+        this.scaledWidth = (int) Math.round((double) (imageWidth * scale));
+        this.scaledHeight = (int) Math.round((double) (imageHeight * scale));
+        this.padWidth = (inputWidth - scaledWidth) / 2.0f;
+        this.padHeight = (inputHeight - scaledHeight) / 2.0f;
+        this.roiX = Math.round(padWidth);
+        this.roiY = Math.round(padHeight);
+    }
+
+    /**
+     * Compute the letterbox of an image into a model input.
+     *
+     * @param imageWidth Width of the original image
+     * @param imageHeight Height of the original image
+     * @param inputWidth Width of the model input
+     * @param inputHeight Height of the model input
+     * @return The geometry
+     * @throws IllegalArgumentException if a dimension is not positive, or the image is so
+     *     elongated that it scales to nothing
+     */
+    public static LetterboxGeometry of(int imageWidth, int imageHeight, int inputWidth, int inputHeight) {
+        if (imageWidth <= 0 || imageHeight <= 0 || inputWidth <= 0 || inputHeight <= 0) {
+            throw new IllegalArgumentException(String.format(
+                "Invalid dimensions: image %dx%d, input %dx%d", imageWidth, imageHeight, inputWidth, inputHeight));
+        }
+        LetterboxGeometry geometry = new LetterboxGeometry(imageWidth, imageHeight, inputWidth, inputHeight);
+        if (geometry.scaledWidth <= 0 || geometry.scaledHeight <= 0) {
+            throw new IllegalArgumentException(String.format(
+                "Image %dx%d scales to nothing in input %dx%d", imageWidth, imageHeight, inputWidth, inputHeight));
+        }
+        return geometry;
+    }
+
+    /** @return Number of padding rows above the scaled image. */
+    public int padTop() {
+        return roiY;
+    }
+
+    /** @return Number of padding rows below the scaled image. */
+    public int padBottom() {
+        return inputHeight - roiY - scaledHeight;
+    }
+
+    /** @return Number of padding columns left of the scaled image. */
+    public int padLeft() {
+        return roiX;
+    }
+
+    /** @return Number of padding columns right of the scaled image. */
+    public int padRight() {
+        return inputWidth - roiX - scaledWidth;
+    }
+
+    /** @return Fraction of the input taken up by padding, between 0 and 1. */
+    public double paddingFraction() {
+        return 1.0 - (double) scaledWidth * scaledHeight / ((double) inputWidth * inputHeight);
+    }
+
+    /**
+     * @param x Input-space x-coordinate
+     * @param y Input-space y-coordinate
+     * @return Whether the input pixel is covered by the scaled image rather than padding
+     */
+    public boolean inImage(int x, int y) {
+        return x >= roiX && x < roiX + scaledWidth && y >= roiY && y < roiY + scaledHeight;
+    }
+
+    /**
+     * Map an x-coordinate from the model input back to the original image, clamped to the
+     * image like the native detection results.
+     *
+     * @param inputX Input-space x-coordinate
+     * @return Image-space x-coordinate
+     */
+    public float toImageX(float inputX) {
+        return clamp((inputX - padWidth) / scale, imageWidth);
+    }
+
+    /**
+     * Map a y-coordinate from the model input back to the original image, clamped to the
+     * image like the native detection results.
+     *
+     * @param inputY Input-space y-coordinate
+     * @return Image-space y-coordinate
+     */
+    public float toImageY(float inputY) {
+        return clamp((inputY - padHeight) / scale, imageHeight);
+    }
+
+    /**
+     * @param imageX Image-space x-coordinate
+     * @return Input-space x-coordinate
+     */
+    public float toInputX(float imageX) {
+        return imageX * scale + padWidth;
+    }
+
+    /**
+     * @param imageY Image-space y-coordinate
+     * @return Input-space y-coordinate
+     */
+    public float toInputY(float imageY) {
+        return imageY * scale + padHeight;
+    }
+
+    private static float clamp(float value, int max) {
+        return Math.max(0.0f, Math.min(value, (float) max));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("LetterboxGeometry [image=%dx%d, input=%dx%d, scale=%f, roi=(%d, %d, %d, %d)]",
+            imageWidth, imageHeight, inputWidth, inputHeight, scale, roiX, roiY, scaledWidth, scaledHeight);
+    }
+}
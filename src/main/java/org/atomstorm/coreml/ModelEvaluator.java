@@ -0,0 +1,559 @@
+/*
+ * Copyright (C) AtomStorm.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.atomstorm.coreml;
+
+import edu.wpi.first.util.CombinedRuntimeLoader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+import org.atomstorm.coreml.CoreMLJNI.CoreMask;
+import org.atomstorm.coreml.CoreMLJNI.ModelVersion;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.imgcodecs.Imgcodecs;
+
+/**
+ * Offline evaluation of model variants, e.g. the FP16 and 8-bit exports of
+ * {@code scripts/coreml_model_quantization.py} on different compute units, for accuracy and
+ * latency on a labelled dataset, so the fastest variant within an accuracy budget can be picked.
+ *
+ * <p>Datasets use the YOLO layout: images with a text file of the same name holding one
+ * {@code class cx cy w h} line per object in coordinates normalized to the image, either next
+ * to each image or in a {@code labels} directory beside an {@code images} directory. Images
+ * without a label file have no objects.
+ *
+ * <p>Images are decoded and their labels read on a pool of threads, a few images ahead of
+ * detection. Each image then runs through every variant in turn on the calling thread, so
+ * variants see the same images and their latencies are not skewed by one another. Accuracy is
+ * computed by {@link DetectionMetrics}; latency is the time of each detect call.
+ *
+ * <p>Run from the command line with {@code ./gradlew evaluate -PevalArgs="..."}, see
+ * {@link #main}.
+ */
+public class ModelEvaluator {
+    /** Maximum detections kept per image and variant, the most confident ones, as in the COCO evaluation. */
+    public static final int MAX_DETECTIONS = 100;
+    // Rows the detection buffer starts with; it doubles whenever a detector fills it
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private static final List<String> IMAGE_EXTENSIONS = List.of(".jpg", ".jpeg", ".png", ".bmp");
+
+    /** Runs detection into packed rows, with the contract of {@link CoreMLJNI#detectInto(long, long, double, double, float[])}. */
+    public interface RowDetector {
+        /**
+         * @param imagePtr Pointer to a cv::Mat input image
+         * @param nmsThresh Non-Maximum Suppression threshold
+         * @param boxThresh Bounding box confidence threshold
+         * @param out Receives rows of {@link DetectionView#STRIDE} floats
+         * @return Number of rows written
+         */
+        int detect(long imagePtr, double nmsThresh, double boxThresh, float[] out);
+    }
+
+    /** A decoded image, released by {@link #close()}. */
+    public static final class Image implements AutoCloseable {
+        /** Pointer to the cv::Mat holding the image. */
+        public final long ptr;
+        /** Width in pixels. */
+        public final int width;
+        /** Height in pixels. */
+        public final int height;
+        private final Runnable release;
+
+        /**
+         * @param ptr Pointer to the cv::Mat holding the image
+         * @param width Width in pixels
+         * @param height Height in pixels
+         * @param release Frees the image
+         */
+        public Image(long ptr, int width, int height, Runnable release) {
+            this.ptr = ptr;
+            this.width = width;
+            this.height = height;
+            this.release = release;
+        }
+
+        @Override
+        public void close() {
+            release.run();
+        }
+    }
+
+    /** Decodes image files. Called from several threads at once. */
+    public interface ImageDecoder {
+        /**
+         * @param path Image file
+         * @return The decoded image
+         * @throws IOException If the file cannot be read or decoded
+         */
+        Image decode(Path path) throws IOException;
+    }
+
+    /** One model variant under evaluation. */
+    public static final class Variant {
+        /** Name in reports. */
+        public final String name;
+        /** Runs the variant. */
+        public final RowDetector detector;
+
+        /**
+         * @param name Name in reports
+         * @param detector Runs the variant
+         */
+        public Variant(String name, RowDetector detector) {
+            this.name = name;
+            this.detector = detector;
+        }
+    }
+
+    /** An image file and its label file, which need not exist. */
+    public static final class Sample {
+        /** Image file. */
+        public final Path image;
+        /** Label file. */
+        public final Path labels;
+
+        /**
+         * @param image Image file
+         * @param labels Label file; a missing file means the image has no objects
+         */
+        public Sample(Path image, Path labels) {
+            this.image = image;
+            this.labels = labels;
+        }
+    }
+
+    /** Accuracy and latency of one variant. */
+    public static final class Report {
+        /** Name of the variant. */
+        public final String name;
+        /** Accuracy. */
+        public final DetectionMetrics.Summary metrics;
+        /** Median detect time, in milliseconds. */
+        public final double p50Ms;
+        /** 90th percentile detect time, in milliseconds. */
+        public final double p90Ms;
+        /** 99th percentile detect time, in milliseconds. */
+        public final double p99Ms;
+        /** Mean detect time, in milliseconds. */
+        public final double meanMs;
+
+        Report(String name, DetectionMetrics.Summary metrics, double p50Ms, double p90Ms, double p99Ms, double meanMs) {
+            this.name = name;
+            this.metrics = metrics;
+            this.p50Ms = p50Ms;
+            this.p90Ms = p90Ms;
+            this.p99Ms = p99Ms;
+            this.meanMs = meanMs;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Report [%s, mAP50=%.4f, mAP50-95=%.4f, P=%.4f, R=%.4f, p50=%.2f ms, p90=%.2f ms, p99=%.2f ms]",
+                name, metrics.map50, metrics.map50to95, metrics.precision, metrics.recall, p50Ms, p90Ms, p99Ms);
+        }
+    }
+
+    // An image ready for detection
+    private static final class Decoded {
+        final Image image;
+        final float[] truth;
+        final int truthCount;
+
+        Decoded(Image image, float[] truth, int truthCount) {
+            this.image = image;
+            this.truth = truth;
+            this.truthCount = truthCount;
+        }
+    }
+
+    private final List<Variant> variants;
+    private final ImageDecoder decoder;
+    private final int decodeThreads;
+    private final int numClasses;
+    private final double nmsThresh;
+    private final double boxThresh;
+    private final int warmUpRuns;
+
+    /**
+     * Creates an evaluator. The variants stay owned by the caller.
+     *
+     * @param variants The variants to compare
+     * @param decoder Decodes image files
+     * @param decodeThreads Threads decoding images
+     * @param numClasses Number of classes in the dataset
+     * @param nmsThresh Non-Maximum Suppression threshold
+     * @param boxThresh Bounding box confidence threshold; keep it low, as for any mAP evaluation
+     * @param warmUpRuns Untimed detections per variant on the first image
+     */
+    public ModelEvaluator(List<Variant> variants, ImageDecoder decoder, int decodeThreads, int numClasses,
+                          double nmsThresh, double boxThresh, int warmUpRuns) {
+        if (variants.isEmpty()) {
+            throw new IllegalArgumentException("No variants to evaluate");
+        }
+        if (decodeThreads < 1) {
+            throw new IllegalArgumentException("decodeThreads must be at least 1: " + decodeThreads);
+        }
+        if (numClasses < 1) {
+            throw new IllegalArgumentException("numClasses must be at least 1: " + numClasses);
+        }
+        if (warmUpRuns < 0) {
+            throw new IllegalArgumentException("warmUpRuns must not be negative: " + warmUpRuns);
+        }
+        this.variants = List.copyOf(variants);
+        this.decoder = decoder;
+        this.decodeThreads = decodeThreads;
+        this.numClasses = numClasses;
+        this.nmsThresh = nmsThresh;
+        this.boxThresh = boxThresh;
+        this.warmUpRuns = warmUpRuns;
+    }
+
+    /**
+     * Evaluate every variant on a dataset.
+     *
+     * @param samples The labelled images
+     * @return One report per variant, in the order of the variants
+     * @throws IOException If an image or label file cannot be read
+     */
+    public List<Report> evaluate(List<Sample> samples) throws IOException {
+        int variantCount = variants.size();
+        DetectionMetrics[] metrics = new DetectionMetrics[variantCount];
+        long[][] latencies = new long[variantCount][samples.size()];
+        for (int v = 0; v < variantCount; v++) {
+            metrics[v] = new DetectionMetrics(numClasses);
+        }
+        float[] rows = new float[INITIAL_CAPACITY * DetectionView.STRIDE];
+        // Detectors return rows in model order, so keep the most confident ones
+        DetectionFilter mostConfident = new DetectionFilter(0, null, null, 0, 0, MAX_DETECTIONS);
+
+        ExecutorService executor = Executors.newFixedThreadPool(decodeThreads, runnable -> {
+            Thread thread = new Thread(runnable, "coreml-evaluator-decode");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ArrayDeque<CompletableFuture<Decoded>> pending = new ArrayDeque<>();
+        try {
+            int submitted = 0;
+            for (int i = 0; i < samples.size(); i++) {
+                // Keep every decoder busy without holding more than a few images in memory
+                while (submitted < samples.size() && pending.size() < 2 * decodeThreads) {
+                    Sample sample = samples.get(submitted++);
+                    pending.add(CompletableFuture.supplyAsync(() -> decode(sample), executor));
+                }
+                Decoded decoded = await(pending.poll());
+                try (Image image = decoded.image) {
+                    for (int v = 0; v < variantCount; v++) {
+                        RowDetector detector = variants.get(v).detector;
+                        for (int w = 0; i == 0 && w < warmUpRuns; w++) {
+                            detector.detect(image.ptr, nmsThresh, boxThresh, rows);
+                        }
+                        long start = System.nanoTime();
+                        int count = detector.detect(image.ptr, nmsThresh, boxThresh, rows);
+                        latencies[v][i] = System.nanoTime() - start;
+                        // A full buffer may have cut off detections; detect again with room for them
+                        while (count >= rows.length / DetectionView.STRIDE) {
+                            rows = new float[rows.length * 2];
+                            count = detector.detect(image.ptr, nmsThresh, boxThresh, rows);
+                        }
+                        count = mostConfident.apply(rows, Math.max(0, count));
+                        metrics[v].addImage(decoded.truth, decoded.truthCount, rows, count);
+                    }
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            // Release the images decoded ahead of a failure
+            for (CompletableFuture<Decoded> future : pending) {
+                future.thenAccept(decoded -> decoded.image.close());
+            }
+        }
+
+        List<Report> reports = new ArrayList<>(variantCount);
+        for (int v = 0; v < variantCount; v++) {
+            long[] nanos = latencies[v];
+            Arrays.sort(nanos);
+            reports.add(new Report(variants.get(v).name, metrics[v].summarize(),
+                percentileMs(nanos, 0.50), percentileMs(nanos, 0.90), percentileMs(nanos, 0.99),
+                nanos.length == 0 ? 0.0 : Arrays.stream(nanos).average().getAsDouble() / 1e6));
+        }
+        return reports;
+    }
+
+    /**
+     * Pick the fastest variant, by median latency, whose mAP@0.5:0.95 is within a budget of the best.
+     *
+     * @param reports Reports of the variants
+     * @param budget Accuracy that may be given up, e.g. 0.01 for one point of mAP
+     * @return The chosen report
+     */
+    public static Report fastestWithin(List<Report> reports, double budget) {
+        double best = reports.stream().mapToDouble(report -> report.metrics.map50to95).max().orElse(0.0);
+        return reports.stream()
+            .filter(report -> report.metrics.map50to95 >= best - budget)
+            .min((a, b) -> Double.compare(a.p50Ms, b.p50Ms))
+            .orElseThrow(() -> new IllegalArgumentException("No reports"));
+    }
+
+    /**
+     * Find the labelled images of a dataset in the YOLO layout: image files in an
+     * {@code images} directory with label files in a matching {@code labels} directory, or
+     * image and label files side by side. Subdirectories are searched too.
+     *
+     * @param directory Root of the dataset
+     * @return The images, sorted by path
+     * @throws IOException If the directory cannot be listed
+     */
+    public static List<Sample> findSamples(Path directory) throws IOException {
+        Path images = directory.resolve("images");
+        Path labels = directory.resolve("labels");
+        boolean split = Files.isDirectory(images) && Files.isDirectory(labels);
+        List<Sample> samples = new ArrayList<>();
+        try (Stream<Path> files = Files.walk(split ? images : directory)) {
+            for (Path file : (Iterable<Path>) files.sorted()::iterator) {
+                String name = file.getFileName().toString();
+                int dot = name.lastIndexOf('.');
+                if (dot < 0 || !Files.isRegularFile(file)
+                        || !IMAGE_EXTENSIONS.contains(name.substring(dot).toLowerCase(Locale.ROOT))) {
+                    continue;
+                }
+                String labelName = name.substring(0, dot) + ".txt";
+                Path label = split ? labels.resolve(images.relativize(file)).resolveSibling(labelName)
+                    : file.resolveSibling(labelName);
+                samples.add(new Sample(file, label));
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * Parse YOLO labels into ground truth rows in pixels.
+     *
+     * @param lines Lines of a label file, {@code class cx cy w h} normalized to the image; blank lines are skipped
+     * @param width Image width in pixels
+     * @param height Image height in pixels
+     * @param numClasses Number of classes
+     * @param truth Receives rows of {@link DetectionMetrics#TRUTH_STRIDE} floats; must hold one per line
+     * @return Number of rows written
+     * @throws IllegalArgumentException If a line is malformed or its class is out of range
+     */
+    public static int readLabels(List<String> lines, int width, int height, int numClasses, float[] truth) {
+        int count = 0;
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] fields = line.split("\\s+");
+            int cls;
+            float cx;
+            float cy;
+            float w;
+            float h;
+            try {
+                if (fields.length != 5) {
+                    throw new NumberFormatException("expected 5 fields, got " + fields.length);
+                }
+                cls = Integer.parseInt(fields[0]);
+                cx = Float.parseFloat(fields[1]);
+                cy = Float.parseFloat(fields[2]);
+                w = Float.parseFloat(fields[3]);
+                h = Float.parseFloat(fields[4]);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Line " + (i + 1) + " is not a label: " + e.getMessage());
+            }
+            if (cls < 0 || cls >= numClasses) {
+                throw new IllegalArgumentException("Line " + (i + 1) + ": class " + cls + " is not below " + numClasses);
+            }
+            int row = count++ * DetectionMetrics.TRUTH_STRIDE;
+            truth[row] = (cx - w / 2) * width;
+            truth[row + 1] = (cy - h / 2) * height;
+            truth[row + 2] = (cx + w / 2) * width;
+            truth[row + 3] = (cy + h / 2) * height;
+            truth[row + 4] = cls;
+        }
+        return count;
+    }
+
+    /**
+     * Decode an image file with OpenCV into a BGR cv::Mat.
+     *
+     * @param path Image file
+     * @return The image
+     * @throws IOException If the file cannot be decoded
+     */
+    public static Image decodeImage(Path path) throws IOException {
+        Mat mat = Imgcodecs.imread(path.toString());
+        if (mat.empty()) {
+            mat.release();
+            throw new IOException("Cannot decode " + path);
+        }
+        return new Image(mat.getNativeObjAddr(), mat.cols(), mat.rows(), mat::release);
+    }
+
+    // Read an image and its labels, on a decode thread
+    private Decoded decode(Sample sample) {
+        try {
+            List<String> lines = Files.exists(sample.labels) ? Files.readAllLines(sample.labels) : List.of();
+            Image image = decoder.decode(sample.image);
+            float[] truth = new float[lines.size() * DetectionMetrics.TRUTH_STRIDE];
+            try {
+                return new Decoded(image, truth, readLabels(lines, image.width, image.height, numClasses, truth));
+            } catch (IllegalArgumentException e) {
+                image.close();
+                throw new IOException(sample.labels + ": " + e.getMessage(), e);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static Decoded await(CompletableFuture<Decoded> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw e;
+        }
+    }
+
+    // Nearest-rank percentile of sorted durations, in milliseconds
+    private static double percentileMs(long[] sortedNanos, double quantile) {
+        if (sortedNanos.length == 0) {
+            return 0.0;
+        }
+        int rank = (int) Math.ceil(quantile * sortedNanos.length);
+        return sortedNanos[Math.max(0, rank - 1)] / 1e6;
+    }
+
+    /**
+     * Evaluate model variants on a dataset and print a report.
+     *
+     * <pre>
+     * --data DIR          Dataset in the YOLO layout (required)
+     * --model PATH[,MASK] Model and {@link CoreMask}, default ALL; repeat for each variant (required)
+     * --classes N         Number of classes, default 1
+     * --version VERSION   {@link ModelVersion}, default YOLO_V11
+     * --nms T             NMS threshold, default 0.45
+     * --conf T            Box confidence threshold, default 0.001
+     * --threads N         Decode threads, default the number of processors
+     * --warmup N          Untimed detections per variant before measuring, default 3
+     * --budget D          mAP50-95 that may be given up for speed, default 0.01
+     * </pre>
+     *
+     * OpenCV's native library must be on the classpath and the coreml_jni library on
+     * {@code java.library.path}, as the {@code evaluate} Gradle task arranges.
+     *
+     * @param args Command line arguments
+     * @throws IOException If the dataset or a model cannot be read
+     */
+    public static void main(String[] args) throws IOException {
+        Path data = null;
+        List<String> models = new ArrayList<>();
+        int numClasses = 1;
+        ModelVersion version = ModelVersion.YOLO_V11;
+        double nmsThresh = 0.45;
+        double boxThresh = 0.001;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int warmUpRuns = 3;
+        double budget = 0.01;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String option = args[i];
+                if (i + 1 == args.length) {
+                    throw new IllegalArgumentException("Missing value for " + option);
+                }
+                String value = args[++i];
+                switch (option) {
+                    case "--data": data = Paths.get(value); break;
+                    case "--model": models.add(value); break;
+                    case "--classes": numClasses = Integer.parseInt(value); break;
+                    case "--version": version = ModelVersion.valueOf(value.toUpperCase(Locale.ROOT)); break;
+                    case "--nms": nmsThresh = Double.parseDouble(value); break;
+                    case "--conf": boxThresh = Double.parseDouble(value); break;
+                    case "--threads": threads = Integer.parseInt(value); break;
+                    case "--warmup": warmUpRuns = Integer.parseInt(value); break;
+                    case "--budget": budget = Double.parseDouble(value); break;
+                    default: throw new IllegalArgumentException("Unknown option " + option);
+                }
+            }
+            if (data == null || models.isEmpty()) {
+                throw new IllegalArgumentException("--data and at least one --model are required");
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: ModelEvaluator --data DIR --model PATH[,MASK] [--model ...] [--classes N] "
+                + "[--version VERSION] [--nms T] [--conf T] [--threads N] [--warmup N] [--budget D]");
+            System.exit(2);
+            return;
+        }
+
+        CombinedRuntimeLoader.loadLibraries(ModelEvaluator.class, Core.NATIVE_LIBRARY_NAME);
+        System.loadLibrary("coreml_jni");
+
+        List<Sample> samples = findSamples(data);
+        if (samples.isEmpty()) {
+            throw new IOException("No images in " + data);
+        }
+        List<Long> ptrs = new ArrayList<>();
+        try {
+            List<Variant> variants = new ArrayList<>();
+            for (String model : models) {
+                String[] parts = model.split(",", 2);
+                CoreMask mask = parts.length > 1 ? CoreMask.valueOf(parts[1].toUpperCase(Locale.ROOT)) : CoreMask.ALL;
+                long ptr = CoreMLJNI.create(parts[0], numClasses, version.ordinal(), mask.ordinal());
+                if (ptr == 0) {
+                    throw new IOException("Cannot load " + parts[0]);
+                }
+                ptrs.add(ptr);
+                variants.add(new Variant(Paths.get(parts[0]).getFileName() + " " + mask,
+                    (imagePtr, nms, box, out) -> CoreMLJNI.detectInto(ptr, imagePtr, nms, box, out)));
+            }
+
+            List<Report> reports = new ModelEvaluator(variants, ModelEvaluator::decodeImage, threads, numClasses,
+                nmsThresh, boxThresh, warmUpRuns).evaluate(samples);
+            System.out.printf("%d images, %d classes%n", samples.size(), numClasses);
+            System.out.printf("%-48s %8s %8s %7s %7s %8s %8s %8s%n",
+                "Variant", "mAP50", "mAP50-95", "P", "R", "p50 ms", "p90 ms", "p99 ms");
+            for (Report report : reports) {
+                DetectionMetrics.Summary m = report.metrics;
+                System.out.printf("%-48s %8.4f %8.4f %7.4f %7.4f %8.2f %8.2f %8.2f%n", report.name,
+                    m.map50, m.map50to95, m.precision, m.recall, report.p50Ms, report.p90Ms, report.p99Ms);
+            }
+            System.out.printf("Fastest within %.3f mAP50-95 of the best: %s%n", budget, fastestWithin(reports, budget).name);
+        } finally {
+            for (long ptr : ptrs) {
+                CoreMLJNI.destroy(ptr);
+            }
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) AtomStorm.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.atomstorm.coreml;
+
+import java.util.Arrays;
+
+/**
+ * Greedy non-maximum suppression over primitive arrays.
+ *
+ * <p>Boxes are stored interleaved as {@code [x1, y1, x2, y2]}, four floats per box. Nothing
+ * here allocates, so it can run every frame on a camera thread.
+ */
+public final class NonMaxSuppression {
+    private NonMaxSuppression() {}
+
+    /**
+     * Order candidates by descending score, keeping only the best {@code topK}.
+     *
+     * <p>Scores must be non-negative, which lets their IEEE bit patterns sort as integers. Each
+     * key packs a score and a candidate index; when more than {@code topK} candidates are
+     * present they are first narrowed with a quickselect, so only the survivors are sorted.
+     *
+     * @param scores Candidate scores, at least {@code count} long
+     * @param count Number of candidates
+     * @param topK Maximum number of candidates to keep
+     * @param keys Scratch space, at least {@code count} long
+     * @param order Receives the indices of the kept candidates, best first
+     * @return Number of indices written to {@code order}
+     */
+    public static int sortByScore(float[] scores, int count, int topK, long[] keys, int[] order) {
+        for (int i = 0; i < count; i++) {
+            keys[i] = ((long) Float.floatToIntBits(scores[i]) << 32) | i;
+        }
+        int kept = Math.min(count, topK);
+        if (kept <= 0) {
+            return 0;
+        }
+        if (kept < count) {
+            // Move the best topK keys to the end of the range
+            select(keys, 0, count - 1, count - kept);
+        }
+        Arrays.sort(keys, count - kept, count);
+        for (int i = 0; i < kept; i++) {
+            order[i] = (int) keys[count - 1 - i];
+        }
+        return kept;
+    }
+
+    /**
+     * Greedy NMS: walk candidates best first and keep each one that does not overlap an
+     * already kept box by more than {@code iouThresh}.
+     *
+     * @param boxes Candidate boxes, four floats each
+     * @param classIds Candidate classes. Boxes of different classes never suppress each
+     *     other; pass null for class-agnostic suppression.
+     * @param order Candidate indices, best first, e.g. from {@link #sortByScore}
+     * @param count Number of entries in {@code order}
+     * @param iouThresh Intersection-over-union above which the lower scoring box is dropped
+     * @param maxKeep Maximum number of boxes to keep
+     * @param keep Receives the indices of the kept boxes, best first
+     * @return Number of indices written to {@code keep}
+     */
+    public static int suppress(
+        float[] boxes, int[] classIds, int[] order, int count, float iouThresh, int maxKeep, int[] keep
+    ) {
+        int kept = 0;
+        for (int n = 0; n < count && kept < maxKeep; n++) {
+            int i = order[n];
+            boolean suppressed = false;
+            for (int k = 0; k < kept; k++) {
+                int j = keep[k];
+                if (classIds != null && classIds[i] != classIds[j]) {
+                    continue;
+                }
+                if (iou(boxes, i, j) > iouThresh) {
+                    suppressed = true;
+                    break;
+                }
+            }
+            if (!suppressed) {
+                keep[kept++] = i;
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * @param boxes Boxes, four floats each
+     * @param i Index of the first box
+     * @param j Index of the second box
+     * @return Intersection over union of the two boxes, 0 if either is empty
+     */
+    public static float iou(float[] boxes, int i, int j) {
+        int a = i * 4;
+        int b = j * 4;
+        float ix1 = Math.max(boxes[a], boxes[b]);
+        float iy1 = Math.max(boxes[a + 1], boxes[b + 1]);
+        float ix2 = Math.min(boxes[a + 2], boxes[b + 2]);
+        float iy2 = Math.min(boxes[a + 3], boxes[b + 3]);
+        float inter = Math.max(0.0f, ix2 - ix1) * Math.max(0.0f, iy2 - iy1);
+        if (inter <= 0.0f) {
+            return 0.0f;
+        }
+        float areaA = (boxes[a + 2] - boxes[a]) * (boxes[a + 3] - boxes[a + 1]);
+        float areaB = (boxes[b + 2] - boxes[b]) * (boxes[b + 3] - boxes[b + 1]);
+        return inter / (areaA + areaB - inter);
+    }
+
+    // Partially order keys[lo..hi] so that keys[k] holds its sorted value, smaller keys before
+    // it and larger keys after it
+    private static void select(long[] keys, int lo, int hi, int k) {
+        while (hi > lo) {
+            int mid = (lo + hi) >>> 1;
+            // Median of three as pivot, moved to hi
+            if (keys[mid] < keys[lo]) {
+                swap(keys, mid, lo);
+            }
+            if (keys[hi] < keys[lo]) {
+                swap(keys, hi, lo);
+            }
+            if (keys[mid] < keys[hi]) {
+                swap(keys, mid, hi);
+            }
+            long pivot = keys[hi];
+
+            int store = lo;
+            for (int i = lo; i < hi; i++) {
+                if (keys[i] < pivot) {
+                    swap(keys, i, store++);
+                }
+            }
+            swap(keys, store, hi);
+
+            if (store == k) {
+                return;
+            } else if (store < k) {
+                lo = store + 1;
+            } else {
+                hi = store - 1;
+            }
+        }
+    }
+
+    private static void swap(long[] keys, int i, int j) {
+        long t = keys[i];
+        keys[i] = keys[j];
+        keys[j] = t;
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) AtomStorm.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.atomstorm.coreml;
+
+import java.util.Arrays;
+import org.atomstorm.coreml.CoreMLJNI.CoreMLResult;
+import org.opencv.core.Rect2d;
+
+/**
+ * Maps the detections of each tile of a {@link TilePlan} back into frame coordinates and
+ * merges the duplicates found by overlapping tiles.
+ *
+ * <p>An object near a tile border is seen by several tiles, often cut off by the border in
+ * some of them. Duplicates are therefore matched by intersection over the smaller box rather
+ * than IoU, so a cut-off part still matches the whole object, and only within a class.
+ * Detections are grouped greedily around the best remaining one, with boxes touching a tile
+ * border inside the frame ranked behind uncut ones. {@link Mode#NMS} keeps the best uncut box
+ * of each group, {@link Mode#WEIGHTED_FUSION} averages the uncut boxes weighted by
+ * confidence. Cut boxes only widen the result when no tile saw the whole object, in which
+ * case the group's union is kept. Either way the group's best confidence is reported.
+ *
+ * <p>Scratch space grows to the largest detection count seen, after which only the returned
+ * results are allocated. A merger is not thread-safe.
+ */
+public final class TileMerger {
+    /** How a group of matching detections becomes one. */
+    public static enum Mode {
+        /** Keep the best detection of each group. */
+        NMS,
+        /** Average the boxes of each group, weighted by confidence. */
+        WEIGHTED_FUSION
+    }
+
+    // Ranking factor of detections cut by an interior tile border
+    private static final float CUT_PENALTY = 0.5f;
+    // Distance from a tile border within which a box counts as cut, in pixels
+    private static final float CUT_MARGIN = 2.0f;
+
+    private final Mode mode;
+    private final float matchThresh;
+    private final int maxDetections;
+
+    private int size;
+    private float[] boxes = new float[0];
+    private float[] scores = new float[0];
+    private float[] ranks = new float[0];
+    private boolean[] cut = new boolean[0];
+    private int[] classIds = new int[0];
+    private long[] keys = new long[0];
+    private int[] order = new int[0];
+    private boolean[] grouped = new boolean[0];
+
+    /**
+     * Creates a merger.
+     *
+     * @param mode How matching detections are merged
+     * @param matchThresh Intersection over the smaller box above which two detections match
+     * @param maxDetections Maximum number of merged detections to return
+     */
+    public TileMerger(Mode mode, float matchThresh, int maxDetections) {
+        this.mode = mode;
+        this.matchThresh = matchThresh;
+        this.maxDetections = maxDetections;
+    }
+
+    /** Drop the detections added since the last merge. */
+    public void clear() {
+        size = 0;
+    }
+
+    /** @return Number of detections added since the last merge. */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Add the detections of one tile.
+     *
+     * @param plan The plan the tile belongs to
+     * @param tile Tile index in the plan
+     * @param results Detections in tile coordinates; null counts as none
+     */
+    public void add(TilePlan plan, int tile, CoreMLResult[] results) {
+        if (results == null) {
+            return;
+        }
+        ensureCapacity(size + results.length);
+        float ox = plan.x(tile);
+        float oy = plan.y(tile);
+        // Tile borders that lie inside the frame, where objects get cut off
+        float left = plan.x(tile) > 0 ? CUT_MARGIN : Float.NEGATIVE_INFINITY;
+        float top = plan.y(tile) > 0 ? CUT_MARGIN : Float.NEGATIVE_INFINITY;
+        float right = plan.x(tile) + plan.width(tile) < plan.frameWidth
+            ? plan.width(tile) - CUT_MARGIN : Float.POSITIVE_INFINITY;
+        float bottom = plan.y(tile) + plan.height(tile) < plan.frameHeight
+            ? plan.height(tile) - CUT_MARGIN : Float.POSITIVE_INFINITY;
+        for (CoreMLResult result : results) {
+            Rect2d rect = result.rect;
+            float x1 = (float) rect.x;
+            float y1 = (float) rect.y;
+            float x2 = (float) (rect.x + rect.width);
+            float y2 = (float) (rect.y + rect.height);
+            boolean cut = x1 < left || y1 < top || x2 > right || y2 > bottom;
+            int b = size * 4;
+            boxes[b] = x1 + ox;
+            boxes[b + 1] = y1 + oy;
+            boxes[b + 2] = x2 + ox;
+            boxes[b + 3] = y2 + oy;
+            scores[size] = result.conf;
+            ranks[size] = cut ? result.conf * CUT_PENALTY : result.conf;
+            this.cut[size] = cut;
+            classIds[size] = result.class_id;
+            size++;
+        }
+    }
+
+    /**
+     * Merge the detections added since the last merge and start over.
+     *
+     * @return Merged detections in frame coordinates, best first
+     */
+    public CoreMLResult[] merge() {
+        int count = size;
+        size = 0;
+        int sorted = NonMaxSuppression.sortByScore(ranks, count, count, keys, order);
+        for (int i = 0; i < count; i++) {
+            grouped[i] = false;
+        }
+        CoreMLResult[] merged = new CoreMLResult[Math.min(count, maxDetections)];
+        int kept = 0;
+        for (int n = 0; n < sorted && kept < merged.length; n++) {
+            int lead = order[n];
+            if (grouped[lead]) {
+                continue;
+            }
+            // Weighted sums over uncut members, union over all members
+            float weight = 0;
+            float wx1 = 0;
+            float wy1 = 0;
+            float wx2 = 0;
+            float wy2 = 0;
+            int l = lead * 4;
+            float ux1 = boxes[l];
+            float uy1 = boxes[l + 1];
+            float ux2 = boxes[l + 2];
+            float uy2 = boxes[l + 3];
+            int bestUncut = -1;
+            float bestScore = 0;
+            for (int m = n; m < sorted; m++) {
+                int member = order[m];
+                if (grouped[member] || (member != lead && (classIds[member] != classIds[lead]
+                        || intersectionOverSmaller(lead, member) <= matchThresh))) {
+                    continue;
+                }
+                grouped[member] = true;
+                int b = member * 4;
+                bestScore = Math.max(bestScore, scores[member]);
+                ux1 = Math.min(ux1, boxes[b]);
+                uy1 = Math.min(uy1, boxes[b + 1]);
+                ux2 = Math.max(ux2, boxes[b + 2]);
+                uy2 = Math.max(uy2, boxes[b + 3]);
+                if (cut[member]) {
+                    continue;
+                }
+                if (bestUncut < 0) {
+                    bestUncut = member;
+                }
+                float w = scores[member];
+                wx1 += boxes[b] * w;
+                wy1 += boxes[b + 1] * w;
+                wx2 += boxes[b + 2] * w;
+                wy2 += boxes[b + 3] * w;
+                weight += w;
+            }
+            int classId = classIds[lead];
+            if (bestUncut < 0) {
+                // Every tile saw only part of the object
+                merged[kept++] = toResult(ux1, uy1, ux2, uy2, bestScore, classId);
+            } else if (mode == Mode.NMS || weight <= 0) {
+                int b = bestUncut * 4;
+                merged[kept++] = toResult(boxes[b], boxes[b + 1], boxes[b + 2], boxes[b + 3], bestScore, classId);
+            } else {
+                merged[kept++] = toResult(wx1 / weight, wy1 / weight, wx2 / weight, wy2 / weight, bestScore, classId);
+            }
+        }
+        if (kept < merged.length) {
+            return Arrays.copyOf(merged, kept);
+        }
+        return merged;
+    }
+
+    private static CoreMLResult toResult(float x1, float y1, float x2, float y2, float conf, int classId) {
+        return new CoreMLResult(Math.round(x1), Math.round(y1), Math.round(x2), Math.round(y2), conf, classId);
+    }
+
+    private float intersectionOverSmaller(int i, int j) {
+        int a = i * 4;
+        int b = j * 4;
+        float ix1 = Math.max(boxes[a], boxes[b]);
+        float iy1 = Math.max(boxes[a + 1], boxes[b + 1]);
+        float ix2 = Math.min(boxes[a + 2], boxes[b + 2]);
+        float iy2 = Math.min(boxes[a + 3], boxes[b + 3]);
+        float inter = Math.max(0.0f, ix2 - ix1) * Math.max(0.0f, iy2 - iy1);
+        if (inter <= 0.0f) {
+            return 0.0f;
+        }
+        float areaA = (boxes[a + 2] - boxes[a]) * (boxes[a + 3] - boxes[a + 1]);
+        float areaB = (boxes[b + 2] - boxes[b]) * (boxes[b + 3] - boxes[b + 1]);
+        return inter / Math.min(areaA, areaB);
+    }
+
+    private void ensureCapacity(int count) {
+        if (scores.length >= count) {
+            return;
+        }
+        int capacity = Math.max(count, scores.length * 2);
+        boxes = Arrays.copyOf(boxes, capacity * 4);
+        scores = Arrays.copyOf(scores, capacity);
+        ranks = Arrays.copyOf(ranks, capacity);
+        cut = Arrays.copyOf(cut, capacity);
+        classIds = Arrays.copyOf(classIds, capacity);
+        keys = new long[capacity];
+        order = new int[capacity];
+        grouped = new boolean[capacity];
+    }
+}
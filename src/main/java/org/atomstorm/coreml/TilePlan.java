@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) AtomStorm.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.atomstorm.coreml;
+
+/**
+ * How a frame is split into overlapping tiles for sliced inference.
+ *
+ * <p>Tiles are the size of the model input, so each is fed to the model without scaling,
+ * and are spread evenly across the frame with at least the requested overlap between
+ * neighbours. Along an axis where the frame is no larger than a tile, a single tile spans it.
+ * Optionally the whole frame is added as a last tile, letterboxed like a plain detection, so
+ * objects larger than a tile are still seen in one piece.
+ */
+public final class TilePlan {
+    /** Width of the frame, in pixels. */
+    public final int frameWidth;
+    /** Height of the frame, in pixels. */
+    public final int frameHeight;
+
+    // x, y, width, height per tile
+    private final int[] rects;
+    private final boolean fullFrame;
+
+    private TilePlan(int frameWidth, int frameHeight, int[] rects, boolean fullFrame) {
+        this.frameWidth = frameWidth;
+        this.frameHeight = frameHeight;
+        this.rects = rects;
+        this.fullFrame = fullFrame;
+    }
+
+    /**
+     * Plan the tiles of a frame.
+     *
+     * @param frameWidth Width of the frame, in pixels
+     * @param frameHeight Height of the frame, in pixels
+     * @param tileWidth Width of a tile, normally the model input width
+     * @param tileHeight Height of a tile, normally the model input height
+     * @param minOverlap Minimum overlap between neighbouring tiles, as a fraction of the tile size in [0, 1)
+     * @param fullFrame Whether to add the whole frame as a last tile
+     * @return The plan
+     */
+    public static TilePlan create(int frameWidth, int frameHeight, int tileWidth, int tileHeight,
+                                  float minOverlap, boolean fullFrame) {
+        if (frameWidth <= 0 || frameHeight <= 0 || tileWidth <= 0 || tileHeight <= 0) {
+            throw new IllegalArgumentException("Frame and tile sizes must be positive");
+        }
+        if (!(minOverlap >= 0 && minOverlap < 1)) {
+            throw new IllegalArgumentException("minOverlap must be in [0, 1)");
+        }
+        int[] xs = offsets(frameWidth, tileWidth, minOverlap);
+        int[] ys = offsets(frameHeight, tileHeight, minOverlap);
+        int width = Math.min(tileWidth, frameWidth);
+        int height = Math.min(tileHeight, frameHeight);
+        int sliced = xs.length * ys.length;
+        // A single tile already covers the whole frame
+        boolean addFull = fullFrame && sliced > 1;
+        int[] rects = new int[(sliced + (addFull ? 1 : 0)) * 4];
+        int r = 0;
+        for (int y : ys) {
+            for (int x : xs) {
+                rects[r++] = x;
+                rects[r++] = y;
+                rects[r++] = width;
+                rects[r++] = height;
+            }
+        }
+        if (addFull) {
+            rects[r++] = 0;
+            rects[r++] = 0;
+            rects[r++] = frameWidth;
+            rects[r] = frameHeight;
+        }
+        return new TilePlan(frameWidth, frameHeight, rects, addFull);
+    }
+
+    /** @return Number of tiles, including the full-frame tile if any. */
+    public int count() {
+        return rects.length / 4;
+    }
+
+    /**
+     * @param tile Tile index, below {@link #count()}
+     * @return Left edge of the tile in the frame
+     */
+    public int x(int tile) {
+        return rects[tile * 4];
+    }
+
+    /**
+     * @param tile Tile index, below {@link #count()}
+     * @return Top edge of the tile in the frame
+     */
+    public int y(int tile) {
+        return rects[tile * 4 + 1];
+    }
+
+    /**
+     * @param tile Tile index, below {@link #count()}
+     * @return Width of the tile
+     */
+    public int width(int tile) {
+        return rects[tile * 4 + 2];
+    }
+
+    /**
+     * @param tile Tile index, below {@link #count()}
+     * @return Height of the tile
+     */
+    public int height(int tile) {
+        return rects[tile * 4 + 3];
+    }
+
+    /**
+     * @param tile Tile index, below {@link #count()}
+     * @return Whether the tile is the whole frame added by {@code fullFrame}
+     */
+    public boolean isFullFrame(int tile) {
+        return fullFrame && tile == count() - 1;
+    }
+
+    /**
+     * @param width Frame width
+     * @param height Frame height
+     * @return Whether this plan was made for a frame of that size
+     */
+    public boolean fits(int width, int height) {
+        return frameWidth == width && frameHeight == height;
+    }
+
+    @Override
+    public String toString() {
+        return "TilePlan [frame=" + frameWidth + "x" + frameHeight + ", tiles=" + count()
+            + ", fullFrame=" + fullFrame + "]";
+    }
+
+    // Evenly spread tile origins along one axis
+    private static int[] offsets(int frame, int tile, float minOverlap) {
+        if (frame <= tile) {
+            return new int[] {0};
+        }
+        // Rounding up can reach the whole tile for small tiles; tiles must advance by a pixel
+        int overlap = Math.min((int) Math.ceil(minOverlap * tile), tile - 1);
+        int count = (int) Math.ceil((double) (frame - overlap) / (tile - overlap));
+        int[] offsets = new int[count];
+        double step = (double) (frame - tile) / (count - 1);
+        for (int i = 0; i < count; i++) {
+            offsets[i] = (int) Math.round(i * step);
+        }
+        return offsets;
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) AtomStorm.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.atomstorm.coreml;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import org.atomstorm.coreml.CoreMLJNI.CoreMLResult;
+import org.opencv.core.Mat;
+
+/**
+ * Sliced inference for frames much larger than the model input.
+ *
+ * <p>A plain detection letterboxes the whole frame down to the model input, so small objects
+ * in a 1920x1080 capture shrink to a few pixels. A tiled detector instead splits the frame into
+ * overlapping tiles of the model input size, see {@link TilePlan}, detects on every tile, maps
+ * the results back into frame coordinates and merges the duplicates from overlapping tiles
+ * with a {@link TileMerger}.
+ *
+ * <p>Tiles run either as a single batched prediction, e.g.
+ * {@code (ptrs, nms, box) -> CoreMLJNI.detectBatch(ptr, ptrs, nms, box)}, or concurrently,
+ * one {@link CoreMLDetectorPool#detect} per tile, across the instances of a pool. Tiles are
+ * views into the frame and are not copied. A tiled detector is not thread-safe; use one per
+ * camera.
+ */
+public class TiledDetector {
+    private final CoreMLMicroBatcher.BatchDetector batch;
+    private final CoreMLDetectorPool pool;
+    private final Executor executor;
+    private final int tileWidth;
+    private final int tileHeight;
+    private final float minOverlap;
+    private final boolean fullFrame;
+    private final TileMerger merger;
+    private TilePlan plan;
+
+    private TiledDetector(CoreMLMicroBatcher.BatchDetector batch, CoreMLDetectorPool pool, Executor executor,
+                          int tileWidth, int tileHeight, float minOverlap, boolean fullFrame, TileMerger merger) {
+        this.batch = batch;
+        this.pool = pool;
+        this.executor = executor;
+        this.tileWidth = tileWidth;
+        this.tileHeight = tileHeight;
+        this.minOverlap = minOverlap;
+        this.fullFrame = fullFrame;
+        this.merger = merger;
+    }
+
+    /**
+     * Creates a tiled detector that runs all tiles of a frame as one batch.
+     *
+     * @param batch Runs the tiles
+     * @param tileWidth Width of a tile, normally {@link CoreMLJNI#getInputWidth}
+     * @param tileHeight Height of a tile, normally {@link CoreMLJNI#getInputHeight}
+     * @param minOverlap Minimum overlap between neighbouring tiles, as a fraction of the tile size
+     * @param fullFrame Whether to also detect on the whole frame, to catch objects larger than a tile
+     * @param merger Merges the detections of overlapping tiles
+     * @return The tiled detector
+     */
+    public static TiledDetector batched(CoreMLMicroBatcher.BatchDetector batch, int tileWidth, int tileHeight,
+                                        float minOverlap, boolean fullFrame, TileMerger merger) {
+        return new TiledDetector(batch, null, null, tileWidth, tileHeight, minOverlap, fullFrame, merger);
+    }
+
+    /**
+     * Creates a tiled detector that runs the tiles of a frame concurrently across the instances
+     * of a pool. The pool stays owned by the caller.
+     *
+     * @param pool Runs each tile on an idle instance
+     * @param executor Runs the calls into the pool; should have a thread per pool instance
+     * @param tileWidth Width of a tile, normally the model input width
+     * @param tileHeight Height of a tile, normally the model input height
+     * @param minOverlap Minimum overlap between neighbouring tiles, as a fraction of the tile size
+     * @param fullFrame Whether to also detect on the whole frame, to catch objects larger than a tile
+     * @param merger Merges the detections of overlapping tiles
+     * @return The tiled detector
+     */
+    public static TiledDetector concurrent(CoreMLDetectorPool pool, Executor executor, int tileWidth, int tileHeight,
+                                           float minOverlap, boolean fullFrame, TileMerger merger) {
+        return new TiledDetector(null, pool, executor, tileWidth, tileHeight, minOverlap, fullFrame, merger);
+    }
+
+    /**
+     * Run detection on every tile of a frame.
+     *
+     * @param image The frame
+     * @param nmsThresh Non-Maximum Suppression threshold within each tile
+     * @param boxThresh Bounding box confidence threshold
+     * @return Merged detections in frame coordinates, best first
+     */
+    public CoreMLResult[] detect(Mat image, double nmsThresh, double boxThresh) {
+        TilePlan tiles = planFor(image.cols(), image.rows());
+        Mat[] views = new Mat[tiles.count()];
+        long[] tilePtrs = new long[tiles.count()];
+        try {
+            for (int i = 0; i < views.length; i++) {
+                views[i] = tiles.isFullFrame(i) ? image : image.submat(
+                    tiles.y(i), tiles.y(i) + tiles.height(i), tiles.x(i), tiles.x(i) + tiles.width(i));
+                tilePtrs[i] = views[i].getNativeObjAddr();
+            }
+            return detect(tiles, tilePtrs, nmsThresh, boxThresh);
+        } finally {
+            for (Mat view : views) {
+                if (view != null && view != image) {
+                    view.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * @param width Frame width
+     * @param height Frame height
+     * @return The tiles of a frame of that size, reused while the frame size stays the same
+     */
+    public TilePlan planFor(int width, int height) {
+        if (plan == null || !plan.fits(width, height)) {
+            plan = TilePlan.create(width, height, tileWidth, tileHeight, minOverlap, fullFrame);
+        }
+        return plan;
+    }
+
+    // Detect on tile images that are already cut out of the frame
+    CoreMLResult[] detect(TilePlan tiles, long[] tilePtrs, double nmsThresh, double boxThresh) {
+        CoreMLResult[][] results;
+        if (pool == null) {
+            results = batch.detectBatch(tilePtrs, nmsThresh, boxThresh);
+        } else {
+            results = detectConcurrently(tilePtrs, nmsThresh, boxThresh);
+        }
+        merger.clear();
+        for (int i = 0; i < results.length; i++) {
+            merger.add(tiles, i, results[i]);
+        }
+        return merger.merge();
+    }
+
+    private CoreMLResult[][] detectConcurrently(long[] tilePtrs, double nmsThresh, double boxThresh) {
+        List<CompletableFuture<CoreMLResult[]>> futures = new ArrayList<>(tilePtrs.length);
+        for (long tilePtr : tilePtrs) {
+            futures.add(CompletableFuture.supplyAsync(() -> pool.detect(tilePtr, nmsThresh, boxThresh), executor));
+        }
+        CoreMLResult[][] results = new CoreMLResult[tilePtrs.length][];
+        try {
+            // Every tile must finish before the caller may release the frame
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).exceptionally(e -> null).join();
+            for (int i = 0; i < results.length; i++) {
+                results[i] = futures.get(i).join();
+            }
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+        return results;
+    }
+}
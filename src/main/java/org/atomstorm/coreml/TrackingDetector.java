@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) AtomStorm.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.atomstorm.coreml;
+
+import org.atomstorm.coreml.CoreMLJNI.CoreMLResult;
+import org.opencv.core.Rect2d;
+
+/**
+ * Runs full detection only every few frames and tracks the objects in between.
+ *
+ * <p>Steady camera feeds see mostly the same objects from frame to frame. A tracking detector
+ * runs the model on a fixed cadence, every {@code detectInterval} frames, and additionally as
+ * soon as any track's confidence, which decays on every frame without detection, decays below
+ * {@code minConfidence}. Tracks last detected below {@code minConfidence} only follow the
+ * cadence, or a single weak detection would force inference on every frame. On the other
+ * frames the {@link BoxTracker} propagates the last detections, which costs microseconds
+ * instead of a model prediction and does not allocate.
+ *
+ * <p>Call {@link #process} once per camera frame, then read the tracks from
+ * {@link #getTracker()}. A tracking detector is not thread-safe; use one per camera.
+ */
+public class TrackingDetector implements AutoCloseable {
+    private final CoreMLDetectorPool.Detector detector;
+    private final BoxTracker tracker;
+    private final int detectInterval;
+    private final float minConfidence;
+
+    private int framesSinceDetection;
+    private long frames;
+    private long inferences;
+
+    // Detections of the last inference, grown on demand
+    private float[] detBoxes = new float[0];
+    private float[] detScores = new float[0];
+    private int[] detClassIds = new int[0];
+
+    /**
+     * Creates a tracking detector. It takes ownership of the detector and closes it in
+     * {@link #close()}.
+     *
+     * @param detector Runs full detection
+     * @param tracker Propagates detections between inferences
+     * @param detectInterval Run detection at least every this many frames; 1 detects every frame
+     * @param minConfidence Also run detection once a track detected at or above this decays below
+     *     it; 0 disables
+     */
+    public TrackingDetector(CoreMLDetectorPool.Detector detector, BoxTracker tracker, int detectInterval,
+                            float minConfidence) {
+        if (detectInterval <= 0) {
+            throw new IllegalArgumentException("detectInterval must be positive");
+        }
+        this.detector = detector;
+        this.tracker = tracker;
+        this.detectInterval = detectInterval;
+        this.minConfidence = minConfidence;
+        this.framesSinceDetection = detectInterval;
+    }
+
+    /**
+     * Creates a tracking detector over a native detector. It takes ownership of the pointer and
+     * destroys it in {@link #close()}.
+     *
+     * @param ptr Pointer to detector created by {@link CoreMLJNI#create}
+     * @param tracker Propagates detections between inferences
+     * @param detectInterval Run detection at least every this many frames; 1 detects every frame
+     * @param minConfidence Also run detection once a track detected at or above this decays below
+     *     it; 0 disables
+     */
+    public TrackingDetector(long ptr, BoxTracker tracker, int detectInterval, float minConfidence) {
+        this(new CoreMLDetectorPool.NativeDetector(ptr), tracker, detectInterval, minConfidence);
+    }
+
+    /**
+     * Advance to the next frame, running detection on it if it is due.
+     *
+     * @param imagePtr Pointer to a cv::Mat input image
+     * @param nmsThresh Non-Maximum Suppression threshold
+     * @param boxThresh Bounding box confidence threshold
+     * @return Whether detection ran on this frame. If it failed, the tracks are only
+     *     propagated and detection is retried on the next frame.
+     */
+    public boolean process(long imagePtr, double nmsThresh, double boxThresh) {
+        frames++;
+        framesSinceDetection++;
+        tracker.predict();
+        if (!detectionDue()) {
+            return false;
+        }
+
+        inferences++;
+        CoreMLResult[] results = detector.detect(imagePtr, nmsThresh, boxThresh);
+        if (results == null) {
+            return true;
+        }
+        int count = results.length;
+        if (detScores.length < count) {
+            detBoxes = new float[count * 4];
+            detScores = new float[count];
+            detClassIds = new int[count];
+        }
+        for (int i = 0; i < count; i++) {
+            Rect2d rect = results[i].rect;
+            detBoxes[4 * i] = (float) rect.x;
+            detBoxes[4 * i + 1] = (float) rect.y;
+            detBoxes[4 * i + 2] = (float) (rect.x + rect.width);
+            detBoxes[4 * i + 3] = (float) (rect.y + rect.height);
+            detScores[i] = results[i].conf;
+            detClassIds[i] = results[i].class_id;
+        }
+        tracker.update(detBoxes, detScores, detClassIds, count);
+        framesSinceDetection = 0;
+        return true;
+    }
+
+    /** Run detection on the next frame regardless of the cadence, e.g. after a scene change. */
+    public void requestDetection() {
+        framesSinceDetection = detectInterval;
+    }
+
+    /** @return The tracks as of the last processed frame. */
+    public BoxTracker getTracker() {
+        return tracker;
+    }
+
+    /**
+     * Copy the current tracks into result objects, for callers of the {@link CoreMLJNI#detect}
+     * API. This allocates; read {@link #getTracker()} directly on hot paths.
+     *
+     * @return One result per track, coordinates rounded to int
+     */
+    public CoreMLResult[] getResults() {
+        CoreMLResult[] results = new CoreMLResult[tracker.size()];
+        for (int t = 0; t < results.length; t++) {
+            results[t] = new CoreMLResult(Math.round(tracker.x1(t)), Math.round(tracker.y1(t)),
+                Math.round(tracker.x2(t)), Math.round(tracker.y2(t)), tracker.confidence(t), tracker.classId(t));
+        }
+        return results;
+    }
+
+    /** @return Number of frames processed. */
+    public long getFrameCount() {
+        return frames;
+    }
+
+    /** @return Number of frames that ran detection. */
+    public long getInferenceCount() {
+        return inferences;
+    }
+
+    /** Close the detector. */
+    @Override
+    public void close() {
+        detector.close();
+    }
+
+    private boolean detectionDue() {
+        if (framesSinceDetection >= detectInterval) {
+            return true;
+        }
+        return minConfidence > 0 && tracker.decayedBelow(minConfidence);
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) AtomStorm.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.atomstorm.coreml;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import org.atomstorm.coreml.CoreMLJNI.ModelVersion;
+
+/**
+ * Decodes the raw output tensor of a YOLO model without a built-in NMS stage.
+ *
+ * <p>Supported layouts, as exported by the upstream projects:
+ * <ul>
+ *   <li>{@link ModelVersion#YOLO_V5}: {@code [N, 5 + numClasses]} rows of sigmoid-activated
+ *       head outputs before grid decoding, ordered by stride (8, 16, 32), then anchor, then
+ *       grid row and column. Boxes are decoded against the standard COCO anchors.</li>
+ *   <li>{@link ModelVersion#YOLO_V8} and {@link ModelVersion#YOLO_V11}: anchor-free
+ *       {@code [4 + numClasses, N]}, channel-major, with boxes as centre and size in input
+ *       pixels and class scores in [0, 1].</li>
+ * </ul>
+ *
+ * <p>Candidates above the box threshold are narrowed to the best {@code topK}, then
+ * class-aware {@link NonMaxSuppression} picks the detections, which are mapped back to the
+ * original image through its {@link LetterboxGeometry} and written into a
+ * {@link DetectionView}. All work happens in primitive scratch arrays sized at construction,
+ * laid out so the per-class scans compile to vector instructions; steady-state decoding does
+ * not allocate. A decoder is not thread-safe; use one per camera thread.
+ */
+public final class YoloDecoder {
+    /** Default maximum number of candidates passed to NMS. */
+    public static final int DEFAULT_TOP_K = 1024;
+
+    // YOLOv5 P3-P5 anchors in input pixels, {width, height} per anchor, three per stride
+    private static final float[][] V5_ANCHORS = {
+        {10, 13, 16, 30, 33, 23},
+        {30, 61, 62, 45, 59, 119},
+        {116, 90, 156, 198, 373, 326},
+    };
+    private static final int[] STRIDES = {8, 16, 32};
+
+    private final ModelVersion version;
+    private final int numClasses;
+    private final int inputWidth;
+    private final int inputHeight;
+    private final int numAnchors;
+    private final int topK;
+
+    // Raw tensor copied out of the buffer, so the hot loops run over a float[]
+    private final float[] raw;
+    // YOLOv5 only: grid cell offset, anchor size and stride of each row
+    private final float[] gridX;
+    private final float[] gridY;
+    private final float[] anchorW;
+    private final float[] anchorH;
+    private final float[] stride;
+
+    // Per-anchor best class score and class
+    private final float[] bestScore;
+    private final int[] bestClass;
+
+    // Candidates above threshold
+    private final float[] boxes;
+    private final float[] scores;
+    private final int[] classes;
+    private final long[] keys;
+    private final int[] order;
+    private final int[] keep;
+
+    /**
+     * Creates a decoder keeping up to {@link #DEFAULT_TOP_K} candidates for NMS.
+     *
+     * @param version Which model produced the tensor
+     * @param numClasses Number of classes the model predicts
+     * @param inputWidth Width of the model input
+     * @param inputHeight Height of the model input
+     */
+    public YoloDecoder(ModelVersion version, int numClasses, int inputWidth, int inputHeight) {
+        this(version, numClasses, inputWidth, inputHeight, DEFAULT_TOP_K);
+    }
+
+    /**
+     * Creates a decoder.
+     *
+     * @param version Which model produced the tensor
+     * @param numClasses Number of classes the model predicts
+     * @param inputWidth Width of the model input, a multiple of 32
+     * @param inputHeight Height of the model input, a multiple of 32
+     * @param topK Maximum number of candidates passed to NMS
+     */
+    public YoloDecoder(ModelVersion version, int numClasses, int inputWidth, int inputHeight, int topK) {
+        if (numClasses < 1) {
+            throw new IllegalArgumentException("numClasses must be at least 1: " + numClasses);
+        }
+        if (inputWidth <= 0 || inputHeight <= 0 || inputWidth % 32 != 0 || inputHeight % 32 != 0) {
+            throw new IllegalArgumentException(
+                "Input size must be a positive multiple of 32: " + inputWidth + "x" + inputHeight);
+        }
+        if (topK < 1) {
+            throw new IllegalArgumentException("topK must be at least 1: " + topK);
+        }
+        this.version = version;
+        this.numClasses = numClasses;
+        this.inputWidth = inputWidth;
+        this.inputHeight = inputHeight;
+        this.topK = topK;
+
+        int cells = 0;
+        for (int s : STRIDES) {
+            cells += (inputWidth / s) * (inputHeight / s);
+        }
+        if (version == ModelVersion.YOLO_V5) {
+            numAnchors = cells * 3;
+            gridX = new float[numAnchors];
+            gridY = new float[numAnchors];
+            anchorW = new float[numAnchors];
+            anchorH = new float[numAnchors];
+            stride = new float[numAnchors];
+            int row = 0;
+            for (int level = 0; level < STRIDES.length; level++) {
+                int s = STRIDES[level];
+                int gw = inputWidth / s;
+                int gh = inputHeight / s;
+                for (int a = 0; a < 3; a++) {
+                    for (int y = 0; y < gh; y++) {
+                        for (int x = 0; x < gw; x++, row++) {
+                            gridX[row] = x;
+                            gridY[row] = y;
+                            anchorW[row] = V5_ANCHORS[level][2 * a];
+                            anchorH[row] = V5_ANCHORS[level][2 * a + 1];
+                            stride[row] = s;
+                        }
+                    }
+                }
+            }
+        } else {
+            numAnchors = cells;
+            gridX = gridY = anchorW = anchorH = stride = null;
+        }
+
+        raw = new float[outputSize()];
+        bestScore = new float[numAnchors];
+        bestClass = new int[numAnchors];
+        boxes = new float[numAnchors * 4];
+        scores = new float[numAnchors];
+        classes = new int[numAnchors];
+        keys = new long[numAnchors];
+        order = new int[Math.min(topK, numAnchors)];
+        keep = new int[Math.min(topK, numAnchors)];
+    }
+
+    /** @return Number of predictions in the tensor. */
+    public int numAnchors() {
+        return numAnchors;
+    }
+
+    /** @return Number of floats in the tensor this decoder reads. */
+    public int outputSize() {
+        return numAnchors * (version == ModelVersion.YOLO_V5 ? 5 + numClasses : 4 + numClasses);
+    }
+
+    /**
+     * Decode a raw output tensor into detections.
+     *
+     * @param output The raw tensor, read from index 0. Must hold at least {@link #outputSize()} floats.
+     * @param geometry How the frame was letterboxed into the model input
+     * @param nmsThresh Non-Maximum Suppression threshold
+     * @param boxThresh Bounding box confidence threshold
+     * @param into Receives the detections in original image coordinates, best first. At most
+     *     {@link DetectionView#capacity()} are kept.
+     * @return Number of detections written
+     */
+    public int decode(FloatBuffer output, LetterboxGeometry geometry, double nmsThresh, double boxThresh,
+                      DetectionView into) {
+        if (output.capacity() < raw.length) {
+            throw new IllegalArgumentException(
+                "Output holds " + output.capacity() + " floats, expected " + raw.length);
+        }
+        if (geometry.inputWidth != inputWidth || geometry.inputHeight != inputHeight) {
+            throw new IllegalArgumentException("Geometry is for a " + geometry.inputWidth + "x"
+                + geometry.inputHeight + " input, decoder for " + inputWidth + "x" + inputHeight);
+        }
+        output.get(0, raw, 0, raw.length);
+
+        float threshold = (float) boxThresh;
+        int count = version == ModelVersion.YOLO_V5 ? decodeV5(threshold) : decodeAnchorFree(threshold);
+
+        int sorted = NonMaxSuppression.sortByScore(scores, count, topK, keys, order);
+        int kept = NonMaxSuppression.suppress(boxes, classes, order, sorted, (float) nmsThresh, into.capacity(), keep);
+
+        FloatBuffer rows = into.buffer();
+        for (int k = 0; k < kept; k++) {
+            int i = keep[k];
+            int row = k * DetectionView.STRIDE;
+            rows.put(row + DetectionView.X1, geometry.toImageX(boxes[4 * i]));
+            rows.put(row + DetectionView.Y1, geometry.toImageY(boxes[4 * i + 1]));
+            rows.put(row + DetectionView.X2, geometry.toImageX(boxes[4 * i + 2]));
+            rows.put(row + DetectionView.Y2, geometry.toImageY(boxes[4 * i + 3]));
+            rows.put(row + DetectionView.CONF, scores[i]);
+            rows.put(row + DetectionView.CLASS_ID, classes[i]);
+        }
+        into.setSize(kept);
+        return kept;
+    }
+
+    // [4 + numClasses, N]: scan whole class rows so the max runs over contiguous memory
+    private int decodeAnchorFree(float threshold) {
+        int n = numAnchors;
+        System.arraycopy(raw, 4 * n, bestScore, 0, n);
+        Arrays.fill(bestClass, 0);
+        for (int c = 1; c < numClasses; c++) {
+            int offset = (4 + c) * n;
+            for (int i = 0; i < n; i++) {
+                float s = raw[offset + i];
+                boolean better = s > bestScore[i];
+                bestScore[i] = better ? s : bestScore[i];
+                bestClass[i] = better ? c : bestClass[i];
+            }
+        }
+
+        int count = 0;
+        for (int i = 0; i < n; i++) {
+            if (bestScore[i] < threshold) {
+                continue;
+            }
+            float cx = raw[i];
+            float cy = raw[n + i];
+            float hw = raw[2 * n + i] * 0.5f;
+            float hh = raw[3 * n + i] * 0.5f;
+            boxes[4 * count] = cx - hw;
+            boxes[4 * count + 1] = cy - hh;
+            boxes[4 * count + 2] = cx + hw;
+            boxes[4 * count + 3] = cy + hh;
+            scores[count] = bestScore[i];
+            classes[count] = bestClass[i];
+            count++;
+        }
+        return count;
+    }
+
+    // [N, 5 + numClasses]: objectness gates each row before its classes are read
+    private int decodeV5(float threshold) {
+        int width = 5 + numClasses;
+        int count = 0;
+        for (int i = 0; i < numAnchors; i++) {
+            int base = i * width;
+            float objectness = raw[base + 4];
+            if (objectness < threshold) {
+                continue; // Class scores are at most 1, so the product cannot reach the threshold
+            }
+            float best = raw[base + 5];
+            int bestC = 0;
+            for (int c = 1; c < numClasses; c++) {
+                float s = raw[base + 5 + c];
+                if (s > best) {
+                    best = s;
+                    bestC = c;
+                }
+            }
+            float score = objectness * best;
+            if (score < threshold) {
+                continue;
+            }
+
+            float s = stride[i];
+            float cx = (raw[base] * 2.0f - 0.5f + gridX[i]) * s;
+            float cy = (raw[base + 1] * 2.0f - 0.5f + gridY[i]) * s;
+            float w = raw[base + 2] * 2.0f;
+            float h = raw[base + 3] * 2.0f;
+            float hw = w * w * anchorW[i] * 0.5f;
+            float hh = h * h * anchorH[i] * 0.5f;
+            boxes[4 * count] = cx - hw;
+            boxes[4 * count + 1] = cy - hh;
+            boxes[4 * count + 2] = cx + hw;
+            boxes[4 * count + 3] = cy + hh;
+            scores[count] = score;
+            classes[count] = bestC;
+            count++;
+        }
+        return count;
+    }
+}
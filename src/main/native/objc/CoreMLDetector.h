@@ -1,5 +1,7 @@
 #pragma once
 #include <opencv2/opencv.hpp>
+#include "LatencyHistogram.h"
+#include <cstdint>
 #include <string>
 #include <vector>
 
@@ -9,13 +11,128 @@ struct DetectionResult {
     int class_id;         // Class ID
 };
 
+// Counters of a detector's pixel buffer pool
+struct PoolStats {
+    uint64_t hits;        // Checkouts served from an idle buffer
+    uint64_t misses;      // Checkouts that allocated a new buffer
+    uint64_t evictions;   // Returned buffers released because the pool was at its high-water mark
+    int64_t outstanding;  // Buffers checked out and not yet returned
+    uint64_t idle;        // Buffers held for reuse
+    int highWaterMark;    // Maximum idle buffers kept per input size
+};
+
+// Per-stage latencies of a detector since creation or the last resetStats, in microseconds
+struct DetectorStats {
+    uint64_t frames;  // Frames that completed inference
+    uint64_t errors;  // Frames that failed in any stage
+    LatencyHistogram::Summary preprocess;
+    LatencyHistogram::Summary inference;
+    LatencyHistogram::Summary postprocess;
+    LatencyHistogram::Summary total;  // Whole detect and detectBatch calls
+};
+
+// Per-detector result filter, applied in postprocessing so only surviving detections reach Java.
+// Mirrors the Java DetectionFilter.
+struct FilterSpec {
+    float minConfidence = 0.0f;
+    std::vector<float> classThresholds;  // Confidence floor per class ID, on top of minConfidence
+    std::vector<int> allowedClasses;     // Empty allows every class
+    float minArea = 0.0f;                // Box area in image pixels
+    float maxArea = 0.0f;                // 0 for no limit
+    int topK = 0;                        // Keep only the K most confident, best first; 0 for no limit
+};
+
+// Opaque handle to a preprocessed frame, see CoreMLDetector::prepare
+struct PreparedFrame;
+
+// Pixel formats of raw frames, in the order of the Java FrameDescriptor.Format
+enum class FrameFormat : int {
+    NV12 = 0,   // Y plane and interleaved CbCr plane at half resolution, video range
+    YUYV = 1,   // 4:2:2 packed as Y0 Cb Y1 Cr, video range
+    BGRA = 2,
+    GRAY8 = 3,
+};
+
+// A raw frame in caller-owned memory, see CoreMLDetector::detectFrame
+struct FrameDesc {
+    const uint8_t* data;
+    size_t capacity;   // Bytes readable at data
+    FrameFormat format;
+    int width;
+    int height;
+    int stride;        // Bytes per row of the first plane
+    int chromaOffset;  // NV12 only: offset of the CbCr plane from data
+    int chromaStride;  // NV12 only: bytes per row of the CbCr plane
+};
+
 class CoreMLDetector {
 public:
-    explicit CoreMLDetector(const std::string& modelPath);
+    // coreMask selects the MLComputeUnits the model is loaded with
+    CoreMLDetector(const std::string& modelPath, int coreMask);
     ~CoreMLDetector();
+
+    // Compile a source model into a .mlmodelc directory at destinationPath. Returns 0 on success.
+    static int compileModel(const std::string& sourcePath, const std::string& destinationPath);
     
+    // Reload the model on new compute units and swap it in without blocking detect. Returns 0 on success.
     int setCoreMask(int coreMask);
+    int getCoreMask();
+
+    // Letterbox straight into the pooled pixel buffer instead of through intermediate images. On by default.
+    void setFusedPreprocess(bool enabled);
+    bool isFusedPreprocess();
+
+    // Letterbox into the accepted input size shaped most like the frame instead of the default
+    // size, for models exported with enumerated or flexible sizes. On by default.
+    void setAspectMatching(bool enabled);
+    bool isAspectMatching();
+    // Accepted input sizes as width, height pairs, the default first
+    std::vector<int> getInputShapes();
+    // minWidth, maxWidth, minHeight, maxHeight of a flexible input, empty if the size is fixed or enumerated
+    std::vector<int> getInputSizeRange();
+
+    // Each detector owns a pool of input pixel buffers
+    PoolStats getPoolStats();
+    void setPoolHighWaterMark(int highWaterMark);
+
+    // Replace the result filter; detections below boxThresh are always dropped
+    void setFilter(const FilterSpec& filter);
+
+    // Always-on stage timers
+    DetectorStats getStats();
+    void resetStats();
+
+    int getInputWidth();
+    int getInputHeight();
+    // Shape of the raw output tensor, empty if the model has built-in NMS
+    std::vector<int> getRawOutputShape();
+
     std::vector<DetectionResult> detect(const cv::Mat& image, double nmsThresh, double boxThresh);
+    // Detect on a raw frame without a cv::Mat round trip. The frame is only read during the call.
+    // Invalid layouts yield an empty list.
+    std::vector<DetectionResult> detectFrame(const FrameDesc& frame, double nmsThresh, double boxThresh);
+
+    // detect split into its two stages, so preprocessing of one frame can overlap inference of another.
+    // prepare returns nullptr on failure; every prepared frame must be passed to releaseFrame.
+    PreparedFrame* prepare(const cv::Mat& image);
+    std::vector<DetectionResult> infer(const PreparedFrame* frame, double nmsThresh, double boxThresh);
+    // For models exported without NMS: run a prepared frame and copy the raw output tensor into
+    // output as row-major float32. Returns the number of floats written, or -1 on failure.
+    long inferRaw(const PreparedFrame* frame, float* output, size_t capacity);
+    static void releaseFrame(PreparedFrame* frame);
+
+    // Run one batched prediction over several images. Returns one result list per image;
+    // null or invalid images yield an empty list.
+    std::vector<std::vector<DetectionResult>> detectBatch(const std::vector<const cv::Mat*>& images,
+                                                          double nmsThresh, double boxThresh);
+
+    // Run several detectors on one image, letterboxing and uploading it once per distinct model
+    // input size. The first detector of each size prepares the frame with its own preprocessing
+    // settings. With parallel, the models run concurrently. Returns one result list per detector,
+    // in order; null detectors, or all of them if the image is invalid, yield an empty list.
+    static std::vector<std::vector<DetectionResult>> detectAll(const std::vector<CoreMLDetector*>& detectors,
+                                                               const cv::Mat& image, double nmsThresh,
+                                                               double boxThresh, bool parallel);
     
 private:
     void* impl_;  // Pointer to Objective-C implementation
@@ -4,33 +4,438 @@
 #import <Foundation/Foundation.h>
 #import <CoreML/CoreML.h>
 #import <Vision/Vision.h>
+#import <VideoToolbox/VideoToolbox.h>
+#import <os/lock.h>
+#include <atomic>
+#include <algorithm>
+#include <cstring>
+#include <functional>
+#include <memory>
 #import "Log.h"
 
+// A letterboxed frame uploaded into a pooled pixel buffer, ready for inference
+struct PreparedFrame {
+    CVPixelBufferRef pixelBuffer;
+    PixelBufferPool* pool; // Owner of pixelBuffer, kept alive until the frame is released; nil if the frame owns it,
+                           // in which case it wraps the caller's memory
+    PreprocessParams params;
+    int imageWidth;  // Original image size, used to map detections back
+    int imageHeight;
+};
+
+static std::vector<DetectionResult> ToDetections(NSArray* results) {
+    std::vector<DetectionResult> detections{};
+    if (results) {
+        detections.reserve(results.count);
+        for (NSValue* resultValue in results) {
+            DetectionResult result;
+            [resultValue getValue:&result];
+            detections.push_back(result);
+        }
+    }
+    return detections;
+}
+
+// Bytes a raw frame spans from data to the last pixel of its last row, or 0 if the layout is
+// invalid. Mirrors FrameDescriptor on the Java side.
+static size_t FrameRequiredBytes(const FrameDesc& desc) {
+    int bytesPerPixel;
+    switch (desc.format) {
+        case FrameFormat::NV12: bytesPerPixel = 1; break;
+        case FrameFormat::YUYV: bytesPerPixel = 2; break;
+        case FrameFormat::BGRA: bytesPerPixel = 4; break;
+        case FrameFormat::GRAY8: bytesPerPixel = 1; break;
+        default: return 0;
+    }
+    if (desc.data == nullptr || desc.width <= 0 || desc.height <= 0) {
+        return 0;
+    }
+    bool yuv = desc.format == FrameFormat::NV12 || desc.format == FrameFormat::YUYV;
+    if ((yuv && desc.width % 2 != 0) || (desc.format == FrameFormat::NV12 && desc.height % 2 != 0)) {
+        return 0;
+    }
+    size_t rowBytes = (size_t)desc.width * bytesPerPixel;
+    if (desc.stride < 0 || (size_t)desc.stride < rowBytes) {
+        return 0;
+    }
+    size_t planeBytes = (size_t)desc.stride * (desc.height - 1) + rowBytes;
+    if (desc.format != FrameFormat::NV12) {
+        return planeBytes;
+    }
+    if (desc.chromaOffset < 0 || (size_t)desc.chromaOffset < planeBytes
+            || desc.chromaStride < 0 || (size_t)desc.chromaStride < rowBytes) {
+        return 0;
+    }
+    return (size_t)desc.chromaOffset + (size_t)desc.chromaStride * (desc.height / 2 - 1) + rowBytes;
+}
+
+// Wrap a raw frame as a pixel buffer without copying it. The frame memory must outlive the buffer.
+static CVPixelBufferRef WrapFrame(const FrameDesc& desc) {
+    CVPixelBufferRef pixelBuffer = nullptr;
+    uint8_t* data = const_cast<uint8_t*>(desc.data);
+    CVReturn status = kCVReturnInvalidPixelFormat;
+    switch (desc.format) {
+        case FrameFormat::NV12: {
+            void* planes[] = {data, data + desc.chromaOffset};
+            size_t widths[] = {(size_t)desc.width, (size_t)desc.width / 2};
+            size_t heights[] = {(size_t)desc.height, (size_t)desc.height / 2};
+            size_t strides[] = {(size_t)desc.stride, (size_t)desc.chromaStride};
+            status = CVPixelBufferCreateWithPlanarBytes(kCFAllocatorDefault, desc.width, desc.height,
+                                                        kCVPixelFormatType_420YpCbCr8BiPlanarVideoRange,
+                                                        nullptr, 0, 2, planes, widths, heights, strides,
+                                                        nullptr, nullptr, nullptr, &pixelBuffer);
+            break;
+        }
+        case FrameFormat::YUYV:
+            status = CVPixelBufferCreateWithBytes(kCFAllocatorDefault, desc.width, desc.height,
+                                                  kCVPixelFormatType_422YpCbCr8_yuvs, data, desc.stride,
+                                                  nullptr, nullptr, nullptr, &pixelBuffer);
+            break;
+        case FrameFormat::BGRA:
+            status = CVPixelBufferCreateWithBytes(kCFAllocatorDefault, desc.width, desc.height,
+                                                  kCVPixelFormatType_32BGRA, data, desc.stride,
+                                                  nullptr, nullptr, nullptr, &pixelBuffer);
+            break;
+        case FrameFormat::GRAY8:
+            status = CVPixelBufferCreateWithBytes(kCFAllocatorDefault, desc.width, desc.height,
+                                                  kCVPixelFormatType_OneComponent8, data, desc.stride,
+                                                  nullptr, nullptr, nullptr, &pixelBuffer);
+            break;
+    }
+    if (status != kCVReturnSuccess) {
+        LOG_ERROR("Failed to wrap %dx%d frame of format %d: %d", desc.width, desc.height, (int)desc.format, status);
+        return nullptr;
+    }
+    if (desc.format == FrameFormat::NV12 || desc.format == FrameFormat::YUYV) {
+        // Camera YUV is BT.601; without the attachment consumers may guess otherwise
+        CVBufferSetAttachment(pixelBuffer, kCVImageBufferYCbCrMatrixKey,
+                              kCVImageBufferYCbCrMatrix_ITU_R_601_4, kCVAttachmentMode_ShouldPropagate);
+    }
+    return pixelBuffer;
+}
+
+// Scale a frame into the letterbox region of a BGRA pixel buffer and paint the padding black.
+// The transfer writes through a view of just that region, so the image lands exactly where
+// letterboxGeometry put it and detections map back to the right place. Return NO on failure.
+static BOOL TransferIntoRegion(VTPixelTransferSessionRef session, CVPixelBufferRef source,
+                               CVPixelBufferRef destination, const cv::Rect& roi) {
+    CVReturn lockStatus = CVPixelBufferLockBaseAddress(destination, 0);
+    if (lockStatus != kCVReturnSuccess) {
+        LOG_ERROR("Failed to lock pixel buffer: %d", lockStatus);
+        return NO;
+    }
+
+    OSStatus status = kCVReturnError;
+    uint8_t* baseAddress = static_cast<uint8_t*>(CVPixelBufferGetBaseAddress(destination));
+    if (baseAddress) {
+        size_t bytesPerRow = CVPixelBufferGetBytesPerRow(destination);
+        cv::Mat canvas((int)CVPixelBufferGetHeight(destination), (int)CVPixelBufferGetWidth(destination),
+                       CV_8UC4, baseAddress, bytesPerRow);
+        [CoreMLUtils clearPadding:canvas roi:roi];
+
+        CVPixelBufferRef region = nullptr;
+        status = CVPixelBufferCreateWithBytes(kCFAllocatorDefault, roi.width, roi.height, kCVPixelFormatType_32BGRA,
+                                              baseAddress + roi.y * bytesPerRow + roi.x * 4, bytesPerRow,
+                                              nullptr, nullptr, nullptr, &region);
+        if (status == kCVReturnSuccess) {
+            status = VTPixelTransferSessionTransferImage(session, source, region);
+            CVPixelBufferRelease(region);
+        }
+    }
+    CVPixelBufferUnlockBaseAddress(destination, 0);
+
+    if (status != noErr) {
+        LOG_ERROR("Pixel transfer failed: %d", (int)status);
+        return NO;
+    }
+    return YES;
+}
+
+// Whether a detection passes a filter's per-detection checks. Mirrors DetectionFilter.accepts.
+static bool PassesFilter(const FilterSpec& filter, const DetectionResult& result) {
+    float floor = filter.minConfidence;
+    if (result.class_id >= 0 && (size_t)result.class_id < filter.classThresholds.size()) {
+        floor = std::max(floor, filter.classThresholds[result.class_id]);
+    }
+    if (result.confidence < floor) {
+        return false;
+    }
+    if (!filter.allowedClasses.empty() && std::find(filter.allowedClasses.begin(), filter.allowedClasses.end(),
+                                                    result.class_id) == filter.allowedClasses.end()) {
+        return false;
+    }
+    float area = (result.x2 - result.x1) * (result.y2 - result.y1);
+    return area >= filter.minArea && (filter.maxArea <= 0.0f || area <= filter.maxArea);
+}
+
+// Keep the topK most confident detections, best first. Ties go to the later detection, the same
+// order as NonMaxSuppression.sortByScore, so DetectionFilter reproduces it exactly.
+static void KeepTopK(std::vector<DetectionResult>& detections, int topK) {
+    if (topK <= 0) {
+        return;
+    }
+    // Non-negative floats order like their bit patterns; the low half breaks ties by index
+    std::vector<uint64_t> keys(detections.size());
+    for (size_t i = 0; i < detections.size(); i++) {
+        uint32_t bits;
+        std::memcpy(&bits, &detections[i].confidence, sizeof(bits));
+        keys[i] = ((uint64_t)bits << 32) | i;
+    }
+    size_t kept = std::min(keys.size(), (size_t)topK);
+    std::partial_sort(keys.begin(), keys.begin() + kept, keys.end(), std::greater<uint64_t>());
+
+    std::vector<DetectionResult> best;
+    best.reserve(kept);
+    for (size_t i = 0; i < kept; i++) {
+        best.push_back(detections[(uint32_t)keys[i]]);
+    }
+    detections.swap(best);
+}
+
+// Model input feature names
+static NSString* const kImageInput = @"image";
+static NSString* const kIouThresholdInput = @"iouThreshold";
+static NSString* const kConfidenceThresholdInput = @"confidenceThreshold";
+
+// Reusable model input. The threshold values are rebuilt only when the thresholds change, and
+// the image value only when the frame lands in a different pixel buffer, which with a warm
+// pixel buffer pool is rare. A pixel buffer wrapping caller memory is dropped as soon as the
+// prediction is done. Not thread-safe: each prediction checks one out exclusively.
+@interface CoreMLInputFeatures : NSObject <MLFeatureProvider> {
+    NSSet<NSString *>* _featureNames;
+    BOOL _takesIouThreshold;
+    BOOL _takesConfidenceThreshold;
+    MLFeatureValue* _imageValue;
+    MLFeatureValue* _iouThresholdValue;
+    MLFeatureValue* _confidenceThresholdValue;
+    CVPixelBufferRef _pixelBuffer; // Kept alive by _imageValue
+    BOOL _borrowedPixelBuffer; // _pixelBuffer wraps caller memory, valid only during the call
+    double _nmsThresh;
+    double _boxThresh;
+}
+
+- (instancetype)initWithFeatureNames:(NSSet<NSString *> *)featureNames;
+- (void)setPixelBuffer:(CVPixelBufferRef)pixelBuffer
+                borrowed:(BOOL)borrowed
+               nmsThresh:(double)nmsThresh
+               boxThresh:(double)boxThresh;
+- (void)dropBorrowedPixelBuffer;
+
+@end
+
+@implementation CoreMLInputFeatures
+
+- (instancetype)initWithFeatureNames:(NSSet<NSString *> *)featureNames {
+    self = [super init];
+    if (self) {
+        _featureNames = featureNames;
+        _takesIouThreshold = [featureNames containsObject:kIouThresholdInput];
+        _takesConfidenceThreshold = [featureNames containsObject:kConfidenceThresholdInput];
+    }
+    return self;
+}
+
+- (void)setPixelBuffer:(CVPixelBufferRef)pixelBuffer
+                borrowed:(BOOL)borrowed
+               nmsThresh:(double)nmsThresh
+               boxThresh:(double)boxThresh {
+    if (_imageValue == nil || pixelBuffer != _pixelBuffer) {
+        _imageValue = [MLFeatureValue featureValueWithPixelBuffer:pixelBuffer];
+        _pixelBuffer = pixelBuffer;
+    }
+    _borrowedPixelBuffer = borrowed;
+    if (_takesIouThreshold && (_iouThresholdValue == nil || nmsThresh != _nmsThresh)) {
+        _iouThresholdValue = [MLFeatureValue featureValueWithDouble:nmsThresh];
+        _nmsThresh = nmsThresh;
+    }
+    if (_takesConfidenceThreshold && (_confidenceThresholdValue == nil || boxThresh != _boxThresh)) {
+        _confidenceThresholdValue = [MLFeatureValue featureValueWithDouble:boxThresh];
+        _boxThresh = boxThresh;
+    }
+}
+
+// Forget a pixel buffer wrapping caller memory, which an idle input must not keep alive
+- (void)dropBorrowedPixelBuffer {
+    if (_borrowedPixelBuffer) {
+        _imageValue = nil;
+        _pixelBuffer = nullptr;
+        _borrowedPixelBuffer = NO;
+    }
+}
+
+- (NSSet<NSString *> *)featureNames {
+    return _featureNames;
+}
+
+- (MLFeatureValue *)featureValueForName:(NSString *)featureName {
+    if ([featureName isEqualToString:kImageInput]) {
+        return _imageValue;
+    }
+    if ([featureName isEqualToString:kIouThresholdInput]) {
+        return _iouThresholdValue;
+    }
+    if ([featureName isEqualToString:kConfidenceThresholdInput]) {
+        return _confidenceThresholdValue;
+    }
+    return nil;
+}
+
+@end
+
+// Copy a multi-array into a row-major float32 buffer. Returns the number of floats written,
+// or -1 if the buffer is too small or the data type is unsupported.
+static long CopyMultiArray(MLMultiArray* array, float* output, size_t capacity) {
+    NSInteger count = array.count;
+    if (count < 0 || (size_t)count > capacity) {
+        LOG_ERROR("Raw output has %ld elements, buffer holds %zu", (long)count, capacity);
+        return -1;
+    }
+
+    // Strides of a densely packed row-major array
+    BOOL contiguous = YES;
+    NSInteger expected = 1;
+    for (NSInteger d = (NSInteger)array.shape.count - 1; d >= 0; d--) {
+        if (array.strides[d].integerValue != expected) {
+            contiguous = NO;
+            break;
+        }
+        expected *= array.shape[d].integerValue;
+    }
+
+    if (!contiguous) {
+        // Rare; subscripting handles arbitrary strides
+        for (NSInteger i = 0; i < count; i++) {
+            output[i] = array[i].floatValue;
+        }
+        return count;
+    }
+
+    switch (array.dataType) {
+        case MLMultiArrayDataTypeFloat32:
+            memcpy(output, array.dataPointer, count * sizeof(float));
+            break;
+        case MLMultiArrayDataTypeDouble: {
+            const double* src = static_cast<const double*>(array.dataPointer);
+            for (NSInteger i = 0; i < count; i++) {
+                output[i] = static_cast<float>(src[i]);
+            }
+            break;
+        }
+        case MLMultiArrayDataTypeFloat16: {
+            const __fp16* src = static_cast<const __fp16*>(array.dataPointer);
+            for (NSInteger i = 0; i < count; i++) {
+                output[i] = static_cast<float>(src[i]);
+            }
+            break;
+        }
+        default:
+            LOG_ERROR("Unsupported raw output data type: %ld", (long)array.dataType);
+            return -1;
+    }
+    return count;
+}
+
 @interface CoreMLDetectorImpl : NSObject {
+    // The model serving detect calls. Read and replaced under _modelLock; each detect call
+    // holds its own strong reference, so a swapped-out model lives until its calls drain.
     MLModel* _model;
     MLModelConfiguration* _config;
+    os_unfair_lock _modelLock;
+    NSLock* _reconfigureLock; // Serializes setCoreMask calls
+    NSURL* _compiledURL;
+    BOOL _ownsCompiledModel; // YES if _compiledURL is a temporary compile we must delete
     NSInteger _inputWidth;
     NSInteger _inputHeight;
+    std::atomic<bool> _fusedPreprocess; // Letterbox straight into the pixel buffer
+    InputShapes _inputShapes; // Sizes the image input accepts, read once at load
+    std::atomic<bool> _aspectMatching; // Letterbox into the input shaped most like the frame
+    PixelBufferPool* _pixelBufferPool;
+    NSSet<NSString *>* _inputFeatureNames; // Inputs the model takes, resolved once at load
+    NSMutableArray<CoreMLInputFeatures *>* _idleInputs; // Reusable inputs, guarded by _inputsLock
+    os_unfair_lock _inputsLock;
+    std::shared_ptr<const FilterSpec> _filter; // Result filter or null, replaced under _filterLock
+    os_unfair_lock _filterLock;
+    std::vector<VTPixelTransferSessionRef> _idleTransfers; // Letterboxing raw frames, guarded by _transfersLock
+    os_unfair_lock _transfersLock;
+    NSString* _rawOutputName; // Multi-array output of models without built-in NMS, or nil
+    NSArray<NSNumber *>* _rawOutputShape;
+    // Stage timers, written without locks by every detecting thread
+    LatencyHistogram _preprocessLatency;
+    LatencyHistogram _inferenceLatency;
+    LatencyHistogram _postprocessLatency;
+    LatencyHistogram _totalLatency;
+    std::atomic<uint64_t> _frames;
+    std::atomic<uint64_t> _errors;
 }
 
-- (instancetype)initWithModelPath:(NSString *)modelPath;
+- (instancetype)initWithModelPath:(NSString *)modelPath computeUnits:(MLComputeUnits)computeUnits;
++ (int)compileModelAtPath:(NSString *)sourcePath toPath:(NSString *)destinationPath;
 - (NSArray *)detect:(cv::Mat)image nmsThresh:(double)nmsThresh boxThresh:(double)boxThresh;
+- (PreparedFrame *)prepare:(const cv::Mat&)image;
+- (PreparedFrame *)prepareFrame:(const FrameDesc&)desc;
+- (NSArray *)detectFrame:(const FrameDesc&)desc nmsThresh:(double)nmsThresh boxThresh:(double)boxThresh;
+- (NSArray *)infer:(const PreparedFrame *)frame nmsThresh:(double)nmsThresh boxThresh:(double)boxThresh;
+- (NSArray<NSArray *> *)inferBatch:(const std::vector<PreparedFrame *>&)frames
+                         nmsThresh:(double)nmsThresh
+                         boxThresh:(double)boxThresh;
++ (void)releaseFrame:(PreparedFrame *)frame;
 - (int)setCoreMask:(int)coreMask;
+- (int)coreMask;
+- (void)setFilter:(const FilterSpec&)filter;
+- (void)setFusedPreprocess:(bool)enabled;
+- (bool)fusedPreprocess;
+- (void)setAspectMatching:(bool)enabled;
+- (bool)aspectMatching;
+- (const InputShapes&)inputShapes;
+- (cv::Size)inputSizeForImage:(cv::Size)imageSize;
+- (PixelBufferPoolStats)poolStats;
+- (void)setPoolHighWaterMark:(NSUInteger)highWaterMark;
+- (long)inferRaw:(const PreparedFrame *)frame into:(float *)output capacity:(size_t)capacity;
+- (NSInteger)inputWidth;
+- (NSInteger)inputHeight;
+- (NSArray<NSNumber *> *)rawOutputShape;
+- (DetectorStats)stats;
+- (void)resetStats;
+- (void)recordTotalMicros:(uint64_t)micros frames:(size_t)frames;
 
 @end
 
 @implementation CoreMLDetectorImpl
 
-- (instancetype)initWithModelPath:(NSString *)modelPath {
+- (instancetype)initWithModelPath:(NSString *)modelPath computeUnits:(MLComputeUnits)computeUnits {
     self = [super init];
     NSError* error = nil;
 
     if (self) {
+        _modelLock = OS_UNFAIR_LOCK_INIT;
+        _reconfigureLock = [[NSLock alloc] init];
+        _fusedPreprocess = true;
+        _aspectMatching = true;
+        _pixelBufferPool = [[PixelBufferPool alloc] init];
+        _inputsLock = OS_UNFAIR_LOCK_INIT;
+        _transfersLock = OS_UNFAIR_LOCK_INIT;
+        _filterLock = OS_UNFAIR_LOCK_INIT;
+        _frames = 0;
+        _errors = 0;
+        _idleInputs = [NSMutableArray array];
+
         NSURL* modelURL = [NSURL fileURLWithPath:modelPath];
-        NSURL* compiledURL = [MLModel compileModelAtURL:modelURL error:&error];
+        if ([modelURL.pathExtension isEqualToString:@"mlmodelc"]) {
+            // Already compiled, e.g. by CoreMLModelCache
+            _compiledURL = modelURL;
+            _ownsCompiledModel = NO;
+        } else {
+            _compiledURL = [MLModel compileModelAtURL:modelURL error:&error];
+            _ownsCompiledModel = YES;
+            if (!_compiledURL) {
+                LOG_ERROR("Error compiling MLModel: %@", error);
+                return nil;
+            }
+        }
 
         _config = [[MLModelConfiguration alloc] init];
-        _model = [MLModel modelWithContentsOfURL:compiledURL configuration:_config error:&error];
+        _config.computeUnits = computeUnits;
+        _model = [MLModel modelWithContentsOfURL:_compiledURL configuration:_config error:&error];
 
         if (!_model) {
             LOG_ERROR("Error creating MLModel: %@", error);
@@ -46,11 +451,34 @@
             MLImageConstraint *imageConstraint = imageInputDescription.imageConstraint;
             _inputWidth = imageConstraint.pixelsWide;
             _inputHeight = imageConstraint.pixelsHigh;
+            _inputShapes = [CoreMLUtils inputShapesFromConstraint:imageConstraint];
 
             if (_inputWidth <= 0 || _inputHeight <= 0) {
                  LOG_ERROR("Invalid input dimensions retrieved from model: %ld x %ld", _inputWidth, _inputHeight);
                  return nil;
             }
+
+            // Reloading on other compute units keeps the same inputs, so this never changes
+            NSMutableSet<NSString *>* featureNames = [NSMutableSet setWithObject:kImageInput];
+            for (NSString* name in @[kIouThresholdInput, kConfidenceThresholdInput]) {
+                if (inputDescriptions[name]) {
+                    [featureNames addObject:name];
+                }
+            }
+            _inputFeatureNames = [featureNames copy];
+
+            // Models exported without NMS have a single raw multi-array output instead of
+            // coordinates and confidence; remember it for inferRaw
+            NSDictionary<NSString *, MLFeatureDescription *> *outputDescriptions = modelDescription.outputDescriptionsByName;
+            for (NSString* name in [outputDescriptions.allKeys sortedArrayUsingSelector:@selector(compare:)]) {
+                MLFeatureDescription* output = outputDescriptions[name];
+                if (output.type == MLFeatureTypeMultiArray &&
+                    ![name isEqualToString:@"coordinates"] && ![name isEqualToString:@"confidence"]) {
+                    _rawOutputName = name;
+                    _rawOutputShape = output.multiArrayConstraint.shape;
+                    break;
+                }
+            }
         } else {
             LOG_ERROR("Could not find image input description named 'image' or it's not an image type.");
             return nil;
@@ -65,173 +493,706 @@
     return self;
 }
 
+- (void)dealloc {
+    for (VTPixelTransferSessionRef session : _idleTransfers) {
+        VTPixelTransferSessionInvalidate(session);
+        CFRelease(session);
+    }
+    if (_ownsCompiledModel && _compiledURL) {
+        [[NSFileManager defaultManager] removeItemAtURL:_compiledURL error:nil];
+    }
+}
 
+// Compile a source model and move the result to destinationPath, return 0 if successful, -1 otherwise
++ (int)compileModelAtPath:(NSString *)sourcePath toPath:(NSString *)destinationPath {
+    NSError* error = nil;
+    NSURL* compiledURL = [MLModel compileModelAtURL:[NSURL fileURLWithPath:sourcePath] error:&error];
+    if (!compiledURL) {
+        LOG_ERROR("Error compiling MLModel: %@", error);
+        return -1;
+    }
+
+    NSURL* destinationURL = [NSURL fileURLWithPath:destinationPath isDirectory:YES];
+    if (![[NSFileManager defaultManager] moveItemAtURL:compiledURL toURL:destinationURL error:&error]) {
+        LOG_ERROR("Error moving compiled model to %@: %@", destinationPath, error);
+        [[NSFileManager defaultManager] removeItemAtURL:compiledURL error:nil];
+        return -1;
+    }
+    return 0;
+}
+
+// Snapshot the model currently serving detections
+- (MLModel *)currentModel {
+    os_unfair_lock_lock(&_modelLock);
+    MLModel* model = _model;
+    os_unfair_lock_unlock(&_modelLock);
+    return model;
+}
+
+// Run one prediction on a blank frame so the first real detect on this model
+// does not pay for the compute-unit specific warm-up
+- (BOOL)warmUpModel:(MLModel *)model {
+    @autoreleasepool {
+        CVPixelBufferRef pixelBuffer = nullptr;
+        NSDictionary* attributes = @{ (NSString *)kCVPixelBufferIOSurfacePropertiesKey: @{} };
+        CVReturn status = CVPixelBufferCreate(kCFAllocatorDefault, _inputWidth, _inputHeight,
+                                              kCVPixelFormatType_32BGRA,
+                                              (__bridge CFDictionaryRef)attributes, &pixelBuffer);
+        if (status != kCVReturnSuccess) {
+            LOG_ERROR("Failed to create warm-up pixel buffer: %d", status);
+            return NO;
+        }
+
+        NSDictionary<NSString *, MLFeatureDescription *> *inputsDesc = model.modelDescription.inputDescriptionsByName;
+        NSMutableDictionary* inputFeatures = [NSMutableDictionary dictionary];
+        inputFeatures[@"image"] = [MLFeatureValue featureValueWithPixelBuffer:pixelBuffer];
+        if (inputsDesc[@"iouThreshold"]) {
+            inputFeatures[@"iouThreshold"] = [MLFeatureValue featureValueWithDouble:0.5];
+        }
+        if (inputsDesc[@"confidenceThreshold"]) {
+            inputFeatures[@"confidenceThreshold"] = [MLFeatureValue featureValueWithDouble:0.5];
+        }
+
+        NSError* error = nil;
+        MLDictionaryFeatureProvider* input = [[MLDictionaryFeatureProvider alloc]
+                                            initWithDictionary:inputFeatures error:&error];
+        id<MLFeatureProvider> output = input ? [model predictionFromFeatures:input error:&error] : nil;
+        CVPixelBufferRelease(pixelBuffer);
+
+        if (!output) {
+            LOG_ERROR("Warm-up prediction failed: %@", error);
+            return NO;
+        }
+        return YES;
+    }
+}
 
-// Set the compute units for the model, return YES if successful, NO otherwise
+// Reload the model on the requested compute units and swap it in, return 0 if successful, -1 otherwise.
+// Detect calls keep running on the previous model while the new one loads and warms up;
+// calls already in flight finish on the previous model, which is released once they drain.
 - (int)setCoreMask:(int)coreMask {
+    if (coreMask < MLComputeUnitsCPUOnly || coreMask > MLComputeUnitsCPUAndNeuralEngine) {
+        LOG_ERROR("Invalid core mask: %d", coreMask);
+        return -1;
+    }
+
+    [_reconfigureLock lock];
     @try {
-        _config.computeUnits = (MLComputeUnits)coreMask;
+        MLComputeUnits computeUnits = (MLComputeUnits)coreMask;
+        if (_config.computeUnits == computeUnits) {
+            return 0; // Already running on these compute units
+        }
+
+        MLModelConfiguration* config = [_config copy];
+        config.computeUnits = computeUnits;
+
+        NSError* error = nil;
+        MLModel* model = [MLModel modelWithContentsOfURL:_compiledURL configuration:config error:&error];
+        if (!model) {
+            LOG_ERROR("Error reloading MLModel for core mask %d: %@", coreMask, error);
+            return -1;
+        }
+
+        if (![self warmUpModel:model]) {
+            return -1;
+        }
+
+        os_unfair_lock_lock(&_modelLock);
+        _model = model;
+        os_unfair_lock_unlock(&_modelLock);
+        _config = config;
+
+        LOG_INFO("Switched model to core mask %d", coreMask);
         return 0; // Success
     } @catch (NSException *exception) {
         LOG_ERROR("Exception in setCoreMask: %s", [[exception reason] UTF8String]);
         return -1; // Failure
+    } @finally {
+        [_reconfigureLock unlock];
     }
 }
 
+// The compute units the serving model was loaded with
+- (int)coreMask {
+    return (int)[self currentModel].configuration.computeUnits;
+}
 
+- (void)setFilter:(const FilterSpec&)filter {
+    auto spec = std::make_shared<const FilterSpec>(filter);
+    os_unfair_lock_lock(&_filterLock);
+    _filter = spec;
+    os_unfair_lock_unlock(&_filterLock);
+}
 
-- (NSArray *)detect:(cv::Mat)image nmsThresh:(double)nmsThresh boxThresh:(double)boxThresh {
+// Snapshot the filter, so a concurrent setFilter cannot change it mid-frame
+- (std::shared_ptr<const FilterSpec>)currentFilter {
+    os_unfair_lock_lock(&_filterLock);
+    std::shared_ptr<const FilterSpec> filter = _filter;
+    os_unfair_lock_unlock(&_filterLock);
+    return filter;
+}
+
+- (void)setFusedPreprocess:(bool)enabled {
+    _fusedPreprocess.store(enabled);
+}
+
+- (bool)fusedPreprocess {
+    return _fusedPreprocess.load();
+}
+
+- (void)setAspectMatching:(bool)enabled {
+    _aspectMatching.store(enabled);
+}
+
+- (bool)aspectMatching {
+    return _aspectMatching.load();
+}
+
+- (const InputShapes&)inputShapes {
+    return _inputShapes;
+}
+
+// Input size an image is letterboxed into. Raw outputs are decoded with a fixed shape, so
+// models without built-in NMS always take the default size.
+- (cv::Size)inputSizeForImage:(cv::Size)imageSize {
+    if (!_aspectMatching.load() || _rawOutputName) {
+        return cv::Size((int)_inputWidth, (int)_inputHeight);
+    }
+    return [CoreMLUtils selectInputSize:imageSize shapes:_inputShapes];
+}
+
+- (PixelBufferPoolStats)poolStats {
+    return [_pixelBufferPool stats];
+}
+
+- (void)setPoolHighWaterMark:(NSUInteger)highWaterMark {
+    [_pixelBufferPool setHighWaterMark:highWaterMark];
+}
+
+- (NSInteger)inputWidth {
+    return _inputWidth;
+}
+
+- (NSInteger)inputHeight {
+    return _inputHeight;
+}
+
+- (NSArray<NSNumber *> *)rawOutputShape {
+    return _rawOutputShape;
+}
+
+- (DetectorStats)stats {
+    DetectorStats stats;
+    stats.frames = _frames.load(std::memory_order_relaxed);
+    stats.errors = _errors.load(std::memory_order_relaxed);
+    stats.preprocess = _preprocessLatency.summary();
+    stats.inference = _inferenceLatency.summary();
+    stats.postprocess = _postprocessLatency.summary();
+    stats.total = _totalLatency.summary();
+    return stats;
+}
+
+- (void)recordTotalMicros:(uint64_t)micros frames:(size_t)frames {
+    for (size_t i = 0; i < frames; i++) {
+        _totalLatency.record(micros);
+    }
+}
+
+- (void)resetStats {
+    _preprocessLatency.reset();
+    _inferenceLatency.reset();
+    _postprocessLatency.reset();
+    _totalLatency.reset();
+    _frames.store(0, std::memory_order_relaxed);
+    _errors.store(0, std::memory_order_relaxed);
+}
+
+// Letterbox the image and upload it into a pooled pixel buffer, return nullptr on failure
+- (PreparedFrame *)prepare:(const cv::Mat&)image {
     @autoreleasepool {
-        NSDate *startTime = [NSDate date];
+        auto startTime = std::chrono::steady_clock::now();
+
+        // Model input dimensions, shaped like the image if the model allows
+        cv::Size inputSize = [self inputSizeForImage:image.size()];
+        PreprocessParams params = {0};
+        params.inputWidth = inputSize.width;
+        params.inputHeight = inputSize.height;
+
+        CVPixelBufferRef pixelBuffer = nullptr;
+        if (_fusedPreprocess.load()) {
+            // Letterbox directly into a pooled pixel buffer
+            pixelBuffer = [CoreMLUtils letterboxImage:image params:&params pool:_pixelBufferPool];
+            if (!pixelBuffer) {
+                LOG_ERROR("Image preprocessing failed");
+                _errors.fetch_add(1, std::memory_order_relaxed);
+                return nullptr;
+            }
+        } else {
+            // Preprocessing: scale the image to input dimensions
+            cv::Mat resizedImage = [CoreMLUtils preprocessImage:image params:&params];
+            if (resizedImage.empty()) {
+                LOG_ERROR("Image preprocessing failed");
+                _errors.fetch_add(1, std::memory_order_relaxed);
+                return nullptr;
+            }
+
+            // Convert OpenCV Mat to CVPixelBuffer using the pixel buffer pool
+            pixelBuffer = [CoreMLUtils matToCVPixelBuffer:resizedImage pool:_pixelBufferPool];
+            if (!pixelBuffer) {
+                LOG_ERROR("Failed to create CVPixelBuffer");
+                _errors.fetch_add(1, std::memory_order_relaxed);
+                return nullptr;
+            }
+        }
+
+        uint64_t preprocessMicros = ElapsedMicros(startTime);
+        _preprocessLatency.record(preprocessMicros);
+        LOG_PERF("Preprocess time: %.3f ms", preprocessMicros / 1000.0);
+
+        PreparedFrame* frame = new (std::nothrow) PreparedFrame();
+        if (frame == nullptr) {
+            [_pixelBufferPool returnPixelBuffer:pixelBuffer];
+            return nullptr;
+        }
 
         // Save the original image size
-        int originalWidth = image.cols;
-        int originalHeight = image.rows;
+        frame->pixelBuffer = pixelBuffer;
+        frame->pool = _pixelBufferPool;
+        frame->params = params;
+        frame->imageWidth = image.cols;
+        frame->imageHeight = image.rows;
+        return frame;
+    }
+}
+
+// Check out a pixel transfer session that letterboxes into the model input. Return it with
+// returnTransferSession: once the transfer is done.
+- (VTPixelTransferSessionRef)checkoutTransferSession {
+    VTPixelTransferSessionRef session = nullptr;
+    os_unfair_lock_lock(&_transfersLock);
+    if (!_idleTransfers.empty()) {
+        session = _idleTransfers.back();
+        _idleTransfers.pop_back();
+    }
+    os_unfair_lock_unlock(&_transfersLock);
+    if (session) {
+        return session;
+    }
+
+    OSStatus status = VTPixelTransferSessionCreate(kCFAllocatorDefault, &session);
+    if (status != noErr) {
+        LOG_ERROR("Failed to create pixel transfer session: %d", (int)status);
+        return nullptr;
+    }
+    // Stretch to the destination, which TransferIntoRegion sizes to the letterbox region
+    VTSessionSetProperty(session, kVTPixelTransferPropertyKey_ScalingMode, kVTScalingMode_Normal);
+    return session;
+}
+
+- (void)returnTransferSession:(VTPixelTransferSessionRef)session {
+    os_unfair_lock_lock(&_transfersLock);
+    _idleTransfers.push_back(session);
+    os_unfair_lock_unlock(&_transfersLock);
+}
+
+// Wrap a raw frame and prepare it for inference, return nullptr on failure. A frame of the
+// model input size is fed to Core ML as is, which converts it to the input's colour space;
+// others are colour converted and letterboxed into a pooled pixel buffer in a single pass.
+- (PreparedFrame *)prepareFrame:(const FrameDesc&)desc {
+    size_t requiredBytes = FrameRequiredBytes(desc);
+    if (requiredBytes == 0 || desc.capacity < requiredBytes) {
+        LOG_ERROR("Invalid %dx%d frame of format %d in %zu bytes",
+                  desc.width, desc.height, (int)desc.format, desc.capacity);
+        _errors.fetch_add(1, std::memory_order_relaxed);
+        return nullptr;
+    }
+
+    cv::Size inputSize = [self inputSizeForImage:cv::Size(desc.width, desc.height)];
+    bool atInputSize = desc.width == inputSize.width && desc.height == inputSize.height;
+    if (!atInputSize && (desc.format == FrameFormat::BGRA || desc.format == FrameFormat::GRAY8)) {
+        // OpenCV letterboxes these like a Mat of the same channels, fused or not
+        cv::Mat image(desc.height, desc.width, desc.format == FrameFormat::BGRA ? CV_8UC4 : CV_8UC1,
+                      const_cast<uint8_t*>(desc.data), desc.stride);
+        return [self prepare:image];
+    }
+
+    @autoreleasepool {
+        auto startTime = std::chrono::steady_clock::now();
 
-        // Get model input dimensions
         PreprocessParams params = {0};
-        if (![CoreMLUtils getModelInputDimensions:_model params:&params]) {
-            LOG_ERROR("Failed to get model input dimensions");
-            return @[];
+        params.inputWidth = inputSize.width;
+        params.inputHeight = inputSize.height;
+        cv::Rect roi;
+        if (![CoreMLUtils letterboxGeometry:cv::Size(desc.width, desc.height) params:&params roi:&roi]) {
+            _errors.fetch_add(1, std::memory_order_relaxed);
+            return nullptr;
         }
 
-        // Preprocessing: scale the image to input dimensions
-        cv::Mat resizedImage = [CoreMLUtils preprocessImage:image params:&params];
-        if (resizedImage.empty()) {
-            LOG_ERROR("Image preprocessing failed");
-            return @[];
+        CVPixelBufferRef pixelBuffer = WrapFrame(desc);
+        if (!pixelBuffer) {
+            _errors.fetch_add(1, std::memory_order_relaxed);
+            return nullptr;
         }
 
-        NSTimeInterval preprocessTime = -[startTime timeIntervalSinceNow];
-        LOG_PERF("Preprocess time: %.3f ms", preprocessTime * 1000);
+        PixelBufferPool* pool = nil;
+        if (!atInputSize) {
+            CVPixelBufferRef wrapped = pixelBuffer;
+            pixelBuffer = nullptr;
+            VTPixelTransferSessionRef session = [self checkoutTransferSession];
+            CVPixelBufferRef letterboxed = session ? [_pixelBufferPool getPixelBufferWithWidth:inputSize.width
+                                                                                        height:inputSize.height] : nullptr;
+            if (letterboxed) {
+                if (TransferIntoRegion(session, wrapped, letterboxed, roi)) {
+                    pixelBuffer = letterboxed;
+                    pool = _pixelBufferPool;
+                } else {
+                    [_pixelBufferPool returnPixelBuffer:letterboxed];
+                }
+            }
+            if (session) {
+                [self returnTransferSession:session];
+            }
+            CVPixelBufferRelease(wrapped);
+            if (!pixelBuffer) {
+                _errors.fetch_add(1, std::memory_order_relaxed);
+                return nullptr;
+            }
+        }
 
-        // Convert OpenCV Mat to CVPixelBuffer using the pixel buffer pool
-        CVPixelBufferRef pixelBuffer = [CoreMLUtils matToCVPixelBuffer:resizedImage];
-        if (!pixelBuffer) {
-            LOG_ERROR("Failed to create CVPixelBuffer");
-            return @[];
+        uint64_t preprocessMicros = ElapsedMicros(startTime);
+        _preprocessLatency.record(preprocessMicros);
+        LOG_PERF("Preprocess time: %.3f ms", preprocessMicros / 1000.0);
+
+        PreparedFrame* frame = new (std::nothrow) PreparedFrame();
+        if (frame == nullptr) {
+            if (pool) {
+                [pool returnPixelBuffer:pixelBuffer];
+            } else {
+                CVPixelBufferRelease(pixelBuffer);
+            }
+            return nullptr;
         }
 
-        // Get model input description to verify expected inputs
-        MLModelDescription *modelDescription = _model.modelDescription;
-        NSDictionary<NSString *, MLFeatureDescription *> *inputsDesc = modelDescription.inputDescriptionsByName;
+        frame->pixelBuffer = pixelBuffer;
+        frame->pool = pool;
+        frame->params = params;
+        frame->imageWidth = desc.width;
+        frame->imageHeight = desc.height;
+        return frame;
+    }
+}
 
-        // Create MLFeatureValue
-        NSError* error = nil;
-        MLFeatureValue* imageFeatureValue = [MLFeatureValue featureValueWithPixelBuffer:pixelBuffer];
+// Return a prepared frame's pixel buffer to the pool and free it
++ (void)releaseFrame:(PreparedFrame *)frame {
+    if (frame == nullptr) {
+        return;
+    }
+    if (frame->pool) {
+        [frame->pool returnPixelBuffer:frame->pixelBuffer];
+    } else {
+        CVPixelBufferRelease(frame->pixelBuffer);
+    }
+    delete frame;
+}
 
-        // Build input feature dictionary dynamically
-        NSMutableDictionary* inputFeatures = [NSMutableDictionary dictionary];
-        inputFeatures[@"image"] = imageFeatureValue; // Assuming "image" is the correct input name
+// Check out a reusable input holding a prepared frame. Return it with returnInput: once
+// the prediction no longer needs it.
+- (CoreMLInputFeatures *)checkoutInputForFrame:(const PreparedFrame *)frame
+                                     nmsThresh:(double)nmsThresh
+                                     boxThresh:(double)boxThresh {
+    os_unfair_lock_lock(&_inputsLock);
+    CoreMLInputFeatures* input = _idleInputs.lastObject;
+    if (input) {
+        [_idleInputs removeLastObject];
+    }
+    os_unfair_lock_unlock(&_inputsLock);
 
-        // Conditionally add other inputs if the model expects them
-        if (inputsDesc[@"iouThreshold"]) {
-            MLFeatureValue* iouThresholdValue = [MLFeatureValue featureValueWithDouble:nmsThresh];
-            inputFeatures[@"iouThreshold"] = iouThresholdValue;
-        }
+    if (!input) {
+        input = [[CoreMLInputFeatures alloc] initWithFeatureNames:_inputFeatureNames];
+    }
+    [input setPixelBuffer:frame->pixelBuffer borrowed:frame->pool == nil nmsThresh:nmsThresh boxThresh:boxThresh];
+    return input;
+}
 
-        if (inputsDesc[@"confidenceThreshold"]) {
-            MLFeatureValue* confidenceThresholdValue = [MLFeatureValue featureValueWithDouble:boxThresh];
-            inputFeatures[@"confidenceThreshold"] = confidenceThresholdValue;
-        }
+- (void)returnInput:(CoreMLInputFeatures *)input {
+    [input dropBorrowedPixelBuffer];
+    os_unfair_lock_lock(&_inputsLock);
+    [_idleInputs addObject:input];
+    os_unfair_lock_unlock(&_inputsLock);
+}
 
-        MLDictionaryFeatureProvider* input = [[MLDictionaryFeatureProvider alloc]
-                                            initWithDictionary:inputFeatures error:&error];
+// Map one prediction's outputs back to the original image, return nil on failure
+- (NSArray *)postprocess:(id<MLFeatureProvider>)output
+                   frame:(const PreparedFrame *)frame
+               boxThresh:(double)boxThresh {
+    const PreprocessParams& params = frame->params;
 
-        if (error) {
-            LOG_ERROR("Error creating input features: %@", error);
-            // Return the pixel buffer to the pool instead of releasing it
-            [[PixelBufferPool sharedPool] returnPixelBuffer:pixelBuffer];
-            return @[];
+    // Get coordinates and confidence
+    MLFeatureValue* coordinatesValue = [output featureValueForName:@"coordinates"];
+    MLFeatureValue* confidenceValue = [output featureValueForName:@"confidence"];
+
+    if (!coordinatesValue || !confidenceValue) {
+        LOG_ERROR("Failed to get coordinates or confidence output");
+        _errors.fetch_add(1, std::memory_order_relaxed);
+        return nil;
+    }
+
+    MLMultiArray* coordinates = coordinatesValue.multiArrayValue;
+    MLMultiArray* confidence = confidenceValue.multiArrayValue;
+
+    if (!coordinates || !confidence) {
+        LOG_ERROR("Failed to get multi-array values");
+        _errors.fetch_add(1, std::memory_order_relaxed);
+        return nil;
+    }
+
+    NSInteger numBoxes = [coordinates.shape[0] integerValue];   // box num
+    NSInteger numClasses = [confidence.shape[1] integerValue];  // class num
+    if (numBoxes <= 0 || numClasses <= 0) {
+        return @[];
+    }
+
+    auto postprocessStartTime = std::chrono::steady_clock::now();
+
+    // Get coordinate and confidence values
+    float* coords = (float*)coordinates.dataPointer;
+    float* confs = (float*)confidence.dataPointer;
+
+    if (!coords || !confs) {
+        LOG_ERROR("Failed to get coordinates or confidence data");
+        _errors.fetch_add(1, std::memory_order_relaxed);
+        return nil;
+    }
+
+    std::shared_ptr<const FilterSpec> filter = [self currentFilter];
+    std::vector<DetectionResult> detections;
+    detections.reserve(numBoxes);
+    for (NSInteger i = 0; i < numBoxes; i++) {
+        float* boxCoords = coords + i * 4; // Each box has 4 coordinates
+        float* boxConfs = confs + i * numClasses; // Each box has numClasses confidences
+
+        // Use CoreMLUtils to process detection results
+        DetectionResult result = [CoreMLUtils processDetectionResult:boxCoords
+                                                         confidence:boxConfs
+                                                        imageWidth:frame->imageWidth
+                                                       imageHeight:frame->imageHeight
+                                                        numClasses:numClasses
+                                                            params:params];
+
+        // Empty slots come back zeroed; models without a confidenceThreshold input also
+        // return boxes below boxThresh
+        if (result.confidence <= 0.0f || result.confidence < boxThresh) {
+            continue;
         }
+        if (filter && !PassesFilter(*filter, result)) {
+            continue;
+        }
+        detections.push_back(result);
+    }
+    if (filter) {
+        KeepTopK(detections, filter->topK);
+    }
 
-        NSDate *inferenceStartTime = [NSDate date];
+    NSMutableArray* results = [NSMutableArray arrayWithCapacity:detections.size()];
+    for (const DetectionResult& result : detections) {
+        [results addObject:[NSValue valueWithBytes:&result objCType:@encode(DetectionResult)]];
+    }
+
+    // Record post-processing time
+    uint64_t postprocessMicros = ElapsedMicros(postprocessStartTime);
+    _postprocessLatency.record(postprocessMicros);
+    LOG_PERF("Postprocess time: %.3f ms", postprocessMicros / 1000.0);
+
+    NSArray* retainedResults = [results copy];
+    return retainedResults;
+}
+
+// Run the model on a prepared frame and map the detections back to the original image.
+// The frame is not released.
+- (NSArray *)infer:(const PreparedFrame *)frame nmsThresh:(double)nmsThresh boxThresh:(double)boxThresh {
+    @autoreleasepool {
+        // Hold the serving model for the whole call so a concurrent swap cannot release it
+        MLModel* model = [self currentModel];
+
+        CoreMLInputFeatures* input = [self checkoutInputForFrame:frame nmsThresh:nmsThresh boxThresh:boxThresh];
+
+        auto inferenceStartTime = std::chrono::steady_clock::now();
 
         // Run prediction
-        id<MLFeatureProvider> output = [_model predictionFromFeatures:input error:&error];
-        // Return the pixel buffer to the pool instead of releasing it
-        [[PixelBufferPool sharedPool] returnPixelBuffer:pixelBuffer];
+        NSError* error = nil;
+        id<MLFeatureProvider> output = [model predictionFromFeatures:input error:&error];
+        [self returnInput:input];
 
         if (error) {
             LOG_ERROR("Prediction error: %@", error);
+            _errors.fetch_add(1, std::memory_order_relaxed);
             return @[];
         }
 
-        NSTimeInterval inferenceTime = -[inferenceStartTime timeIntervalSinceNow];
-        LOG_PERF("Model inference time: %.3f ms", inferenceTime * 1000);
+        uint64_t inferenceMicros = ElapsedMicros(inferenceStartTime);
+        _inferenceLatency.record(inferenceMicros);
+        _frames.fetch_add(1, std::memory_order_relaxed);
+        LOG_PERF("Model inference time: %.3f ms", inferenceMicros / 1000.0);
 
-        // Get coordinates and confidence
-        MLFeatureValue* coordinatesValue = [output featureValueForName:@"coordinates"];
-        MLFeatureValue* confidenceValue = [output featureValueForName:@"confidence"];
+        NSArray* results = [self postprocess:output frame:frame boxThresh:boxThresh];
+        return results ? results : @[];
+    }
+}
 
-        if (!coordinatesValue || !confidenceValue) {
-            LOG_ERROR("Failed to get coordinates or confidence output");
-            return @[];
-        }
+// Run the model on a prepared frame and copy its raw output tensor, as float32 in row-major
+// order, into output. Returns the number of floats written, or -1 on failure.
+- (long)inferRaw:(const PreparedFrame *)frame into:(float *)output capacity:(size_t)capacity {
+    if (!_rawOutputName) {
+        LOG_ERROR("Model has no raw multi-array output");
+        return -1;
+    }
 
-        MLMultiArray* coordinates = coordinatesValue.multiArrayValue;
-        MLMultiArray* confidence = confidenceValue.multiArrayValue;
+    @autoreleasepool {
+        MLModel* model = [self currentModel];
+        CoreMLInputFeatures* input = [self checkoutInputForFrame:frame nmsThresh:0.0 boxThresh:0.0];
 
-        if (!coordinates || !confidence) {
-            LOG_ERROR("Failed to get multi-array values");
-            return @[];
+        auto inferenceStartTime = std::chrono::steady_clock::now();
+
+        NSError* error = nil;
+        id<MLFeatureProvider> prediction = [model predictionFromFeatures:input error:&error];
+        [self returnInput:input];
+
+        if (error) {
+            LOG_ERROR("Prediction error: %@", error);
+            _errors.fetch_add(1, std::memory_order_relaxed);
+            return -1;
         }
 
-        NSInteger numBoxes = [coordinates.shape[0] integerValue];   // box num
-        NSInteger numClasses = [confidence.shape[1] integerValue];  // class num
-        if (numBoxes <= 0 || numClasses <= 0) {
-            return @[];
+        uint64_t inferenceMicros = ElapsedMicros(inferenceStartTime);
+        _inferenceLatency.record(inferenceMicros);
+        _frames.fetch_add(1, std::memory_order_relaxed);
+        LOG_PERF("Model inference time: %.3f ms", inferenceMicros / 1000.0);
+
+        // Copying the tensor out is this path's postprocessing
+        auto copyStartTime = std::chrono::steady_clock::now();
+        MLMultiArray* array = [prediction featureValueForName:_rawOutputName].multiArrayValue;
+        long copied = array ? CopyMultiArray(array, output, capacity) : -1;
+        if (copied < 0) {
+            LOG_ERROR("Failed to copy raw output %@", _rawOutputName);
+            _errors.fetch_add(1, std::memory_order_relaxed);
+            return -1;
         }
+        _postprocessLatency.record(ElapsedMicros(copyStartTime));
+        return copied;
+    }
+}
+
+// Run the model once over several prepared frames using a batch prediction.
+// Returns one result array per frame; null frames and failures yield empty arrays.
+- (NSArray<NSArray *> *)inferBatch:(const std::vector<PreparedFrame *>&)frames
+                         nmsThresh:(double)nmsThresh
+                         boxThresh:(double)boxThresh {
+    @autoreleasepool {
+        MLModel* model = [self currentModel];
+
+        NSMutableArray<NSArray *>* results = [NSMutableArray arrayWithCapacity:frames.size()];
+        NSMutableArray<CoreMLInputFeatures *>* inputs = [NSMutableArray arrayWithCapacity:frames.size()];
+        std::vector<size_t> inputFrameIndex;
+        inputFrameIndex.reserve(frames.size());
 
-        NSDate *postprocessStartTime = [NSDate date];
+        for (size_t i = 0; i < frames.size(); i++) {
+            [results addObject:@[]];
+            if (frames[i] == nullptr) {
+                continue;
+            }
+            [inputs addObject:[self checkoutInputForFrame:frames[i] nmsThresh:nmsThresh boxThresh:boxThresh]];
+            inputFrameIndex.push_back(i);
+        }
 
-        // Create the detection results array
-        NSMutableArray* results = [NSMutableArray array];
+        if (inputs.count == 0) {
+            return results;
+        }
 
-        // Get coordinate and confidence values
-        float* coords = (float*)coordinates.dataPointer;
-        float* confs = (float*)confidence.dataPointer;
+        auto inferenceStartTime = std::chrono::steady_clock::now();
 
-        if (!coords || !confs) {
-            LOG_ERROR("Failed to get coordinates or confidence data");
-            return @[];
+        NSError* error = nil;
+        MLArrayBatchProvider* batch = [[MLArrayBatchProvider alloc] initWithFeatureProviderArray:inputs];
+        id<MLBatchProvider> outputs = [model predictionsFromBatch:batch error:&error];
+        for (CoreMLInputFeatures* input in inputs) {
+            [self returnInput:input];
         }
 
-        for (NSInteger i = 0; i < numBoxes; i++) {
-            float* boxCoords = coords + i * 4; // Each box has 4 coordinates
-            float* boxConfs = confs + i * numClasses; // Each box has numClasses confidences
+        if (error || outputs.count != (NSInteger)inputs.count) {
+            LOG_ERROR("Batch prediction error: %@", error);
+            _errors.fetch_add(inputs.count, std::memory_order_relaxed);
+            return results;
+        }
 
-            // Use CoreMLUtils to process detection results
-            DetectionResult result = [CoreMLUtils processDetectionResult:boxCoords
-                                                             confidence:boxConfs
-                                                            imageWidth:image.cols
-                                                           imageHeight:image.rows
-                                                            numClasses:numClasses
-                                                                params:params];
+        // Every frame in the batch waited for the whole prediction
+        uint64_t inferenceMicros = ElapsedMicros(inferenceStartTime);
+        for (NSUInteger i = 0; i < inputs.count; i++) {
+            _inferenceLatency.record(inferenceMicros);
+        }
+        _frames.fetch_add(inputs.count, std::memory_order_relaxed);
+        LOG_PERF("Batch inference time for %lu frames: %.3f ms", (unsigned long)inputs.count, inferenceMicros / 1000.0);
 
-            NSValue* value = [NSValue valueWithBytes:&result objCType:@encode(DetectionResult)];
-            [results addObject:value];
+        for (NSInteger i = 0; i < outputs.count; i++) {
+            size_t frameIndex = inputFrameIndex[i];
+            NSArray* frameResults = [self postprocess:[outputs featuresAtIndex:i]
+                                                frame:frames[frameIndex]
+                                            boxThresh:boxThresh];
+            if (frameResults) {
+                results[frameIndex] = frameResults;
+            }
         }
 
-        // Record post-processing time
-        NSTimeInterval postprocessTime = -[postprocessStartTime timeIntervalSinceNow];
-        LOG_PERF("Postprocess time: %.3f ms", postprocessTime * 1000);
+        return results;
+    }
+}
+
+- (NSArray *)detect:(cv::Mat)image nmsThresh:(double)nmsThresh boxThresh:(double)boxThresh {
+    auto startTime = std::chrono::steady_clock::now();
+
+    PreparedFrame* frame = [self prepare:image];
+    if (frame == nullptr) {
+        return @[];
+    }
+
+    NSArray* results = [self infer:frame nmsThresh:nmsThresh boxThresh:boxThresh];
+    [CoreMLDetectorImpl releaseFrame:frame];
+
+    // Record total processing time
+    uint64_t totalMicros = ElapsedMicros(startTime);
+    _totalLatency.record(totalMicros);
+    LOG_PERF("Total processing time: %.3f ms", totalMicros / 1000.0);
+
+    return results;
+}
 
-        // Record total processing time
-        NSTimeInterval totalTime = -[startTime timeIntervalSinceNow];
-        LOG_PERF("Total processing time: %.3f ms", totalTime * 1000);
+- (NSArray *)detectFrame:(const FrameDesc&)desc nmsThresh:(double)nmsThresh boxThresh:(double)boxThresh {
+    auto startTime = std::chrono::steady_clock::now();
 
-        NSArray* retainedResults = [results copy];
-        return retainedResults;
+    PreparedFrame* frame = [self prepareFrame:desc];
+    if (frame == nullptr) {
+        return @[];
     }
+
+    // The frame may wrap the caller's memory, so it is released before returning
+    NSArray* results = [self infer:frame nmsThresh:nmsThresh boxThresh:boxThresh];
+    [CoreMLDetectorImpl releaseFrame:frame];
+
+    uint64_t totalMicros = ElapsedMicros(startTime);
+    _totalLatency.record(totalMicros);
+    LOG_PERF("Total processing time: %.3f ms", totalMicros / 1000.0);
+
+    return results;
 }
 
 @end
 
 // C++ Implementation
-CoreMLDetector::CoreMLDetector(const std::string& modelPath) {
+CoreMLDetector::CoreMLDetector(const std::string& modelPath, int coreMask) {
+    if (coreMask < MLComputeUnitsCPUOnly || coreMask > MLComputeUnitsCPUAndNeuralEngine) {
+        throw std::invalid_argument("Invalid core mask");
+    }
     NSString* nsModelPath = [NSString stringWithUTF8String:modelPath.c_str()];
-    CoreMLDetectorImpl* detector = [[CoreMLDetectorImpl alloc] initWithModelPath:nsModelPath];
+    CoreMLDetectorImpl* detector = [[CoreMLDetectorImpl alloc] initWithModelPath:nsModelPath
+                                                                   computeUnits:(MLComputeUnits)coreMask];
     if (detector == nil) {
         throw std::runtime_error("Failed to initialize CoreMLDetector");
     }
@@ -245,23 +1206,226 @@ CoreMLDetector::~CoreMLDetector() {
     }
 }
 
+int CoreMLDetector::compileModel(const std::string& sourcePath, const std::string& destinationPath) {
+    @autoreleasepool {
+        return [CoreMLDetectorImpl compileModelAtPath:[NSString stringWithUTF8String:sourcePath.c_str()]
+                                               toPath:[NSString stringWithUTF8String:destinationPath.c_str()]];
+    }
+}
+
 int CoreMLDetector::setCoreMask(int coreMask) {
     CoreMLDetectorImpl* obj = (__bridge CoreMLDetectorImpl*)impl_;
     return [obj setCoreMask:coreMask];
 }
 
+int CoreMLDetector::getCoreMask() {
+    CoreMLDetectorImpl* obj = (__bridge CoreMLDetectorImpl*)impl_;
+    return [obj coreMask];
+}
+
+void CoreMLDetector::setFusedPreprocess(bool enabled) {
+    CoreMLDetectorImpl* obj = (__bridge CoreMLDetectorImpl*)impl_;
+    [obj setFusedPreprocess:enabled];
+}
+
+void CoreMLDetector::setAspectMatching(bool enabled) {
+    CoreMLDetectorImpl* obj = (__bridge CoreMLDetectorImpl*)impl_;
+    [obj setAspectMatching:enabled];
+}
+
+bool CoreMLDetector::isAspectMatching() {
+    CoreMLDetectorImpl* obj = (__bridge CoreMLDetectorImpl*)impl_;
+    return [obj aspectMatching];
+}
+
+std::vector<int> CoreMLDetector::getInputShapes() {
+    CoreMLDetectorImpl* obj = (__bridge CoreMLDetectorImpl*)impl_;
+    const InputShapes& shapes = [obj inputShapes];
+    std::vector<int> sizes{shapes.defaultSize.width, shapes.defaultSize.height};
+    for (const cv::Size& size : shapes.sizes) {
+        sizes.push_back(size.width);
+        sizes.push_back(size.height);
+    }
+    return sizes;
+}
+
+std::vector<int> CoreMLDetector::getInputSizeRange() {
+    CoreMLDetectorImpl* obj = (__bridge CoreMLDetectorImpl*)impl_;
+    const InputShapes& shapes = [obj inputShapes];
+    if (!shapes.ranged) {
+        return {};
+    }
+    return {shapes.minWidth, shapes.maxWidth, shapes.minHeight, shapes.maxHeight};
+}
+
+bool CoreMLDetector::isFusedPreprocess() {
+    CoreMLDetectorImpl* obj = (__bridge CoreMLDetectorImpl*)impl_;
+    return [obj fusedPreprocess];
+}
+
+PoolStats CoreMLDetector::getPoolStats() {
+    CoreMLDetectorImpl* obj = (__bridge CoreMLDetectorImpl*)impl_;
+    PixelBufferPoolStats stats = [obj poolStats];
+    PoolStats result;
+    result.hits = stats.hits;
+    result.misses = stats.misses;
+    result.evictions = stats.evictions;
+    result.outstanding = stats.outstanding;
+    result.idle = stats.idle;
+    result.highWaterMark = (int)stats.highWaterMark;
+    return result;
+}
+
+void CoreMLDetector::setPoolHighWaterMark(int highWaterMark) {
+    CoreMLDetectorImpl* obj = (__bridge CoreMLDetectorImpl*)impl_;
+    [obj setPoolHighWaterMark:(NSUInteger)highWaterMark];
+}
+
+void CoreMLDetector::setFilter(const FilterSpec& filter) {
+    CoreMLDetectorImpl* obj = (__bridge CoreMLDetectorImpl*)impl_;
+    [obj setFilter:filter];
+}
+
+DetectorStats CoreMLDetector::getStats() {
+    CoreMLDetectorImpl* obj = (__bridge CoreMLDetectorImpl*)impl_;
+    return [obj stats];
+}
+
+void CoreMLDetector::resetStats() {
+    CoreMLDetectorImpl* obj = (__bridge CoreMLDetectorImpl*)impl_;
+    [obj resetStats];
+}
+
+int CoreMLDetector::getInputWidth() {
+    CoreMLDetectorImpl* obj = (__bridge CoreMLDetectorImpl*)impl_;
+    return (int)[obj inputWidth];
+}
+
+int CoreMLDetector::getInputHeight() {
+    CoreMLDetectorImpl* obj = (__bridge CoreMLDetectorImpl*)impl_;
+    return (int)[obj inputHeight];
+}
+
+std::vector<int> CoreMLDetector::getRawOutputShape() {
+    CoreMLDetectorImpl* obj = (__bridge CoreMLDetectorImpl*)impl_;
+    std::vector<int> shape;
+    for (NSNumber* dim in [obj rawOutputShape]) {
+        shape.push_back(dim.intValue);
+    }
+    return shape;
+}
+
+long CoreMLDetector::inferRaw(const PreparedFrame* frame, float* output, size_t capacity) {
+    CoreMLDetectorImpl* obj = (__bridge CoreMLDetectorImpl*)impl_;
+    return [obj inferRaw:frame into:output capacity:capacity];
+}
+
 std::vector<DetectionResult> CoreMLDetector::detect(const cv::Mat& image, double nmsThresh, double boxThresh) {
     CoreMLDetectorImpl* obj = (__bridge CoreMLDetectorImpl*)impl_;
-    NSArray* results = [obj detect:image nmsThresh:nmsThresh boxThresh:boxThresh];
+    return ToDetections([obj detect:image nmsThresh:nmsThresh boxThresh:boxThresh]);
+}
 
-    std::vector<DetectionResult> detections{};
-    if (results) {
-        for (NSValue* resultValue in results) {
-            DetectionResult result;
-            [resultValue getValue:&result];
-            detections.push_back(result);
+std::vector<DetectionResult> CoreMLDetector::detectFrame(const FrameDesc& frame, double nmsThresh, double boxThresh) {
+    CoreMLDetectorImpl* obj = (__bridge CoreMLDetectorImpl*)impl_;
+    return ToDetections([obj detectFrame:frame nmsThresh:nmsThresh boxThresh:boxThresh]);
+}
+
+PreparedFrame* CoreMLDetector::prepare(const cv::Mat& image) {
+    CoreMLDetectorImpl* obj = (__bridge CoreMLDetectorImpl*)impl_;
+    return [obj prepare:image];
+}
+
+std::vector<DetectionResult> CoreMLDetector::infer(const PreparedFrame* frame, double nmsThresh, double boxThresh) {
+    CoreMLDetectorImpl* obj = (__bridge CoreMLDetectorImpl*)impl_;
+    return ToDetections([obj infer:frame nmsThresh:nmsThresh boxThresh:boxThresh]);
+}
+
+std::vector<std::vector<DetectionResult>> CoreMLDetector::detectBatch(const std::vector<const cv::Mat*>& images,
+                                                                      double nmsThresh, double boxThresh) {
+    CoreMLDetectorImpl* obj = (__bridge CoreMLDetectorImpl*)impl_;
+    auto startTime = std::chrono::steady_clock::now();
+
+    std::vector<PreparedFrame*> frames;
+    frames.reserve(images.size());
+    for (const cv::Mat* image : images) {
+        frames.push_back(image != nullptr ? [obj prepare:*image] : nullptr);
+    }
+
+    std::vector<std::vector<DetectionResult>> detections;
+    detections.reserve(images.size());
+    @autoreleasepool {
+        NSArray<NSArray *>* results = [obj inferBatch:frames nmsThresh:nmsThresh boxThresh:boxThresh];
+        for (NSArray* frameResults in results) {
+            detections.push_back(ToDetections(frameResults));
+        }
+    }
+
+    for (PreparedFrame* frame : frames) {
+        [CoreMLDetectorImpl releaseFrame:frame];
+    }
+    [obj recordTotalMicros:ElapsedMicros(startTime) frames:images.size()];
+    return detections;
+}
+
+std::vector<std::vector<DetectionResult>> CoreMLDetector::detectAll(const std::vector<CoreMLDetector*>& detectors,
+                                                                    const cv::Mat& image, double nmsThresh,
+                                                                    double boxThresh, bool parallel) {
+    auto startTime = std::chrono::steady_clock::now();
+    size_t count = detectors.size();
+
+    // Prepare the image once per distinct input size and point each detector at its frame
+    std::vector<cv::Size> sizes;
+    std::vector<PreparedFrame*> frames;
+    std::vector<PreparedFrame*> frameOf(count, nullptr);
+    for (size_t i = 0; i < count; i++) {
+        if (detectors[i] == nullptr) {
+            continue;
+        }
+        CoreMLDetectorImpl* obj = (__bridge CoreMLDetectorImpl*)detectors[i]->impl_;
+        cv::Size size = [obj inputSizeForImage:image.size()];
+        size_t index = std::find(sizes.begin(), sizes.end(), size) - sizes.begin();
+        if (index == sizes.size()) {
+            sizes.push_back(size);
+            frames.push_back([obj prepare:image]);
+        }
+        frameOf[i] = frames[index];
+    }
+
+    // Blocks capture C++ objects by const copy, so they work through plain pointers
+    std::vector<std::vector<DetectionResult>> detections(count);
+    std::vector<DetectionResult>* out = detections.data();
+    PreparedFrame* const* inputs = frameOf.data();
+    CoreMLDetector* const* models = detectors.data();
+    void (^run)(size_t) = ^(size_t i) {
+        if (inputs[i] == nullptr) {
+            return;
+        }
+        @autoreleasepool {
+            CoreMLDetectorImpl* obj = (__bridge CoreMLDetectorImpl*)models[i]->impl_;
+            out[i] = ToDetections([obj infer:inputs[i] nmsThresh:nmsThresh boxThresh:boxThresh]);
+        }
+    };
+    if (parallel && count > 1) {
+        dispatch_apply(count, dispatch_get_global_queue(QOS_CLASS_USER_INITIATED, 0), run);
+    } else {
+        for (size_t i = 0; i < count; i++) {
+            run(i);
         }
     }
 
+    for (PreparedFrame* frame : frames) {
+        [CoreMLDetectorImpl releaseFrame:frame];
+    }
+    uint64_t totalMicros = ElapsedMicros(startTime);
+    for (size_t i = 0; i < count; i++) {
+        if (detectors[i] != nullptr) {
+            CoreMLDetectorImpl* obj = (__bridge CoreMLDetectorImpl*)detectors[i]->impl_;
+            [obj recordTotalMicros:totalMicros frames:1];
+        }
+    }
     return detections;
+}
+
+void CoreMLDetector::releaseFrame(PreparedFrame* frame) {
+    [CoreMLDetectorImpl releaseFrame:frame];
 }
\ No newline at end of file
@@ -8,6 +8,7 @@
 #import <CoreML/CoreML.h>
 #import <CoreVideo/CoreVideo.h>
 #import "CoreMLDetector.h"
+#import "PixelBufferPool.h"
 
 /**
  * Utility functions for CoreML detection operations.
@@ -27,22 +28,92 @@ typedef struct {
     float padHeight;
 } PreprocessParams;
 
+/**
+ * Input sizes a model accepts, read once at load. Mirrors the Java InputShapes.
+ */
+typedef struct {
+    cv::Size defaultSize;
+    std::vector<cv::Size> sizes;  // Enumerated sizes other than the default; empty if fixed or ranged
+    bool ranged;                  // Flexible size within the bounds below
+    int minWidth;
+    int maxWidth;
+    int minHeight;
+    int maxHeight;
+} InputShapes;
+
+/**
+ * Choose the model input an image is letterboxed into: the smallest accepted size that holds
+ * the image scaled as it would be for the default size. Enumerated sizes must cover the scaled
+ * image; flexible sizes round it up to a multiple of 32 within their range.
+ *
+ * @param imageSize Size of the original image.
+ * @param shapes Input sizes the model accepts.
+ * @return The chosen input size, the default if nothing smaller fits.
+ */
++ (cv::Size)selectInputSize:(cv::Size)imageSize shapes:(const InputShapes&)shapes;
+
+/**
+ * Read the input sizes of a model's image input.
+ *
+ * @param imageConstraint Constraint of the model's image input.
+ * @return The accepted sizes.
+ */
++ (InputShapes)inputShapesFromConstraint:(MLImageConstraint*)imageConstraint;
+
 /**
  * Convert OpenCV Mat to CVPixelBuffer.
  * Uses the PixelBufferPool for efficient memory management.
  *
  * @param matimg The OpenCV Mat image to convert.
+ * @param pool The pool the pixel buffer is taken from.
  * @return A CVPixelBuffer containing the image data, or nullptr if conversion failed.
  */
-+ (CVPixelBufferRef)matToCVPixelBuffer:(const cv::Mat&)matimg;
++ (CVPixelBufferRef)matToCVPixelBuffer:(const cv::Mat&)matimg pool:(PixelBufferPool*)pool;
+
+/**
+ * Compute the letterbox geometry that fits an image into the model input.
+ * The image is scaled to fit while preserving aspect ratio and centred; the remaining
+ * bands are padding.
+ *
+ * @param imageSize Size of the original image.
+ * @param params Preprocessing parameters with the model input dimensions set (will be
+ *               updated with scaling and padding values).
+ * @param roi Receives the region of the model input the scaled image occupies.
+ * @return YES if the geometry is valid, NO otherwise.
+ */
++ (BOOL)letterboxGeometry:(cv::Size)imageSize params:(PreprocessParams*)params roi:(cv::Rect*)roi;
+
+/**
+ * Paint the letterbox padding of a BGRA canvas black, leaving the image region untouched.
+ *
+ * @param canvas The model input, 4 channels.
+ * @param roi The region the scaled image occupies, as computed by letterboxGeometry.
+ */
++ (void)clearPadding:(cv::Mat&)canvas roi:(const cv::Rect&)roi;
+
+/**
+ * Letterbox an image directly into a pooled pixel buffer.
+ * The locked buffer is wrapped as a cv::Mat with its real row stride; the image is resized
+ * and colour converted straight into the letterbox region and only the padding bands are
+ * cleared, so no intermediate full-frame images are allocated.
+ *
+ * @param image The input image, 1, 3 or 4 channels of 8-bit BGR(A) or grayscale.
+ * @param params Preprocessing parameters (will be updated with scaling and padding values).
+ * @param pool The pool the pixel buffer is taken from.
+ * @return A BGRA pixel buffer of the model input size, or nullptr if preprocessing failed.
+ *         Return it to the pool when done.
+ */
++ (CVPixelBufferRef)letterboxImage:(const cv::Mat&)image
+                            params:(PreprocessParams*)params
+                              pool:(PixelBufferPool*)pool;
 
 /**
  * Preprocess an image for model input.
  * Resizes and pads the image to fit the model's input dimensions while preserving aspect ratio.
  *
- * @param image The input image to preprocess.
+ * @param image The input image, 1, 3 or 4 channels of 8-bit BGR(A) or grayscale.
  * @param params Preprocessing parameters (will be updated with scaling and padding values).
- * @return The preprocessed image, or an empty Mat if preprocessing failed.
+ * @return The preprocessed 3-channel BGR image, or an empty Mat if preprocessing failed.
  */
 + (cv::Mat)preprocessImage:(const cv::Mat&)image params:(PreprocessParams*)params;
 
@@ -3,18 +3,17 @@
 
 // Then include our headers
 #import "CoreMLUtils.h"
-#import "PixelBufferPool.h"
 #import "Log.h"
 
 @implementation CoreMLUtils
 
-+ (CVPixelBufferRef)matToCVPixelBuffer:(const cv::Mat&)matimg {
++ (CVPixelBufferRef)matToCVPixelBuffer:(const cv::Mat&)matimg pool:(PixelBufferPool*)pool {
     // Create a copy of the input Mat and convert to BGRA
     cv::Mat bgra;
     cv::cvtColor(matimg, bgra, cv::COLOR_BGR2BGRA);
 
     // Get a pixel buffer from the pool
-    CVPixelBufferRef pixelBuffer = [[PixelBufferPool sharedPool] getPixelBufferWithWidth:bgra.cols height:bgra.rows];
+    CVPixelBufferRef pixelBuffer = [pool getPixelBufferWithWidth:bgra.cols height:bgra.rows];
     if (!pixelBuffer) {
         LOG_ERROR("Failed to get pixel buffer from pool");
         return nullptr;
@@ -24,7 +23,7 @@
     CVReturn status = CVPixelBufferLockBaseAddress(pixelBuffer, 0);
     if (status != kCVReturnSuccess) {
         LOG_ERROR("Failed to lock pixel buffer: %d", status);
-        [[PixelBufferPool sharedPool] returnPixelBuffer:pixelBuffer];
+        [pool returnPixelBuffer:pixelBuffer];
         return nullptr;
     }
 
@@ -32,12 +31,16 @@
     if (!baseAddress) {
         LOG_ERROR("Failed to get base address for pixel buffer");
         CVPixelBufferUnlockBaseAddress(pixelBuffer, 0);
-        [[PixelBufferPool sharedPool] returnPixelBuffer:pixelBuffer];
+        [pool returnPixelBuffer:pixelBuffer];
         return nullptr;
     }
 
-    // Copy the image data
-    memcpy(baseAddress, bgra.data, bgra.total() * bgra.elemSize());
+    // Copy the image data row by row; pixel buffer rows may be padded for alignment
+    size_t bytesPerRow = CVPixelBufferGetBytesPerRow(pixelBuffer);
+    size_t rowBytes = bgra.cols * bgra.elemSize();
+    for (int y = 0; y < bgra.rows; y++) {
+        memcpy(static_cast<uint8_t*>(baseAddress) + y * bytesPerRow, bgra.ptr(y), rowBytes);
+    }
 
     // Unlock the buffer
     CVPixelBufferUnlockBaseAddress(pixelBuffer, 0);
@@ -45,59 +48,225 @@
     return pixelBuffer;
 }
 
-+ (cv::Mat)preprocessImage:(const cv::Mat&)image params:(PreprocessParams*)params {
-    // Check if the input image is valid
-    if (![self validateImage:image]) {
-        return cv::Mat();
++ (cv::Size)selectInputSize:(cv::Size)imageSize shapes:(const InputShapes&)shapes {
+    if (imageSize.width <= 0 || imageSize.height <= 0 || (!shapes.ranged && shapes.sizes.empty())) {
+        return shapes.defaultSize;
     }
 
-    // If it is a grayscale image, convert it to RGB
-    cv::Mat processedImage;
-    if (image.channels() == 1) {
-        cv::cvtColor(image, processedImage, cv::COLOR_GRAY2RGB);
-    } else {
-        processedImage = image.clone();
+    // Size of the image letterboxed into the default input, computed as letterboxGeometry does
+    float scale = std::min((float)shapes.defaultSize.width / imageSize.width,
+                           (float)shapes.defaultSize.height / imageSize.height);
+    int neededWidth = round(imageSize.width * scale);
+    int neededHeight = round(imageSize.height * scale);
+
+    if (shapes.ranged) {
+        const int alignment = 32; // Stride of YOLO's coarsest feature map
+        int width = (neededWidth + alignment - 1) / alignment * alignment;
+        int height = (neededHeight + alignment - 1) / alignment * alignment;
+        return cv::Size(std::max(shapes.minWidth, std::min(width, shapes.maxWidth)),
+                        std::max(shapes.minHeight, std::min(height, shapes.maxHeight)));
+    }
+
+    // The default always covers the scaled image; earlier sizes win ties
+    cv::Size best = shapes.defaultSize;
+    for (const cv::Size& size : shapes.sizes) {
+        if (size.width >= neededWidth && size.height >= neededHeight &&
+            (int64_t)size.width * size.height < (int64_t)best.width * best.height) {
+            best = size;
+        }
+    }
+    return best;
+}
+
++ (InputShapes)inputShapesFromConstraint:(MLImageConstraint*)imageConstraint {
+    InputShapes shapes;
+    shapes.defaultSize = cv::Size((int)imageConstraint.pixelsWide, (int)imageConstraint.pixelsHigh);
+    shapes.ranged = false;
+    shapes.minWidth = shapes.maxWidth = shapes.defaultSize.width;
+    shapes.minHeight = shapes.maxHeight = shapes.defaultSize.height;
+
+    MLImageSizeConstraint* sizeConstraint = imageConstraint.sizeConstraint;
+    if (sizeConstraint.type == MLImageSizeConstraintTypeEnumerated) {
+        for (MLImageSize* size in sizeConstraint.enumeratedImageSizes) {
+            cv::Size candidate((int)size.pixelsWide, (int)size.pixelsHigh);
+            if (candidate.width > 0 && candidate.height > 0 && candidate != shapes.defaultSize) {
+                shapes.sizes.push_back(candidate);
+            }
+        }
+    } else if (sizeConstraint.type == MLImageSizeConstraintTypeRange) {
+        // Unbounded ranges have a huge length; nothing larger than the default is ever chosen
+        NSRange widths = sizeConstraint.pixelsWideRange;
+        NSRange heights = sizeConstraint.pixelsHighRange;
+        shapes.ranged = true;
+        shapes.minWidth = std::max(1, (int)std::min<NSUInteger>(widths.location, INT_MAX));
+        shapes.maxWidth = (int)std::min<NSUInteger>(NSMaxRange(widths), INT_MAX);
+        shapes.minHeight = std::max(1, (int)std::min<NSUInteger>(heights.location, INT_MAX));
+        shapes.maxHeight = (int)std::min<NSUInteger>(NSMaxRange(heights), INT_MAX);
     }
+    return shapes;
+}
 
++ (BOOL)letterboxGeometry:(cv::Size)imageSize params:(PreprocessParams*)params roi:(cv::Rect*)roi {
     // Calculate scaling factor to fit within inputWidth x inputHeight while preserving aspect ratio
-    params->scaleFactor = std::min((float)params->inputWidth / processedImage.cols,
-                                  (float)params->inputHeight / processedImage.rows);
+    params->scaleFactor = std::min((float)params->inputWidth / imageSize.width,
+                                  (float)params->inputHeight / imageSize.height);
 
     // Calculate new dimensions after scaling
-    int new_w = round(processedImage.cols * params->scaleFactor);
-    int new_h = round(processedImage.rows * params->scaleFactor);
+    int new_w = round(imageSize.width * params->scaleFactor);
+    int new_h = round(imageSize.height * params->scaleFactor);
 
     // Ensure new dimensions are valid
     if (new_w <= 0 || new_h <= 0) {
         LOG_ERROR("Invalid scaled dimensions calculated: %d x %d", new_w, new_h);
-        return cv::Mat();
+        return NO;
     }
 
     // Calculate padding
     params->padWidth = (params->inputWidth - new_w) / 2.0f;
     params->padHeight = (params->inputHeight - new_h) / 2.0f;
 
-    // Resize the image
-    cv::Mat resized;
-    cv::resize(processedImage, resized, cv::Size(new_w, new_h));
+    // Define the Region of Interest (ROI) in the model input where the resized image goes
+    *roi = cv::Rect(round(params->padWidth), round(params->padHeight), new_w, new_h);
 
-    // Create the final scaled/padded image buffer for the model
-    cv::Mat image_scaled = cv::Mat::zeros(params->inputHeight, params->inputWidth, CV_8UC3);
+    // Ensure ROI is within the bounds of the model input
+    if (roi->x < 0 || roi->y < 0 ||
+        roi->x + roi->width > params->inputWidth || roi->y + roi->height > params->inputHeight) {
+        LOG_ERROR("Invalid ROI calculated for padding: x=%d, y=%d, w=%d, h=%d. Canvas size: %ldx%ld",
+                 roi->x, roi->y, roi->width, roi->height, params->inputWidth, params->inputHeight);
+        return NO;
+    }
+    return YES;
+}
+
++ (void)clearPadding:(cv::Mat&)canvas roi:(const cv::Rect&)roi {
+    const cv::Scalar black(0, 0, 0, 255);
+    const cv::Rect bands[] = {
+        cv::Rect(0, 0, canvas.cols, roi.y),
+        cv::Rect(0, roi.y + roi.height, canvas.cols, canvas.rows - roi.y - roi.height),
+        cv::Rect(0, roi.y, roi.x, roi.height),
+        cv::Rect(roi.x + roi.width, roi.y, canvas.cols - roi.x - roi.width, roi.height),
+    };
+    for (const cv::Rect& band : bands) {
+        if (band.area() > 0) {
+            canvas(band).setTo(black);
+        }
+    }
+}
+
++ (CVPixelBufferRef)letterboxImage:(const cv::Mat&)image
+                            params:(PreprocessParams*)params
+                              pool:(PixelBufferPool*)pool {
+    // Check if the input image is valid
+    if (![self validateImage:image]) {
+        return nullptr;
+    }
+
+    int conversion;
+    switch (image.channels()) {
+        case 1: conversion = cv::COLOR_GRAY2BGRA; break;
+        case 3: conversion = cv::COLOR_BGR2BGRA; break;
+        case 4: conversion = -1; break; // Already BGRA
+        default:
+            LOG_ERROR("Unsupported channel count: %d", image.channels());
+            return nullptr;
+    }
+
+    cv::Rect roi;
+    if (![self letterboxGeometry:image.size() params:params roi:&roi]) {
+        return nullptr;
+    }
+
+    // Get a pixel buffer from the pool
+    CVPixelBufferRef pixelBuffer = [pool getPixelBufferWithWidth:params->inputWidth
+                                                           height:params->inputHeight];
+    if (!pixelBuffer) {
+        LOG_ERROR("Failed to get pixel buffer from pool");
+        return nullptr;
+    }
+
+    // Lock the buffer for writing
+    CVReturn status = CVPixelBufferLockBaseAddress(pixelBuffer, 0);
+    if (status != kCVReturnSuccess) {
+        LOG_ERROR("Failed to lock pixel buffer: %d", status);
+        [pool returnPixelBuffer:pixelBuffer];
+        return nullptr;
+    }
+
+    void* baseAddress = CVPixelBufferGetBaseAddress(pixelBuffer);
+    if (!baseAddress) {
+        LOG_ERROR("Failed to get base address for pixel buffer");
+        CVPixelBufferUnlockBaseAddress(pixelBuffer, 0);
+        [pool returnPixelBuffer:pixelBuffer];
+        return nullptr;
+    }
+
+    // Wrap the locked buffer in place, honouring its row stride
+    cv::Mat canvas((int)params->inputHeight, (int)params->inputWidth, CV_8UC4,
+                   baseAddress, CVPixelBufferGetBytesPerRow(pixelBuffer));
 
-    // Define the Region of Interest (ROI) in the scaled image where the resized image will be copied
-    cv::Rect roi(round(params->padWidth), round(params->padHeight), new_w, new_h);
+    // Clear only the padding bands; the ROI is overwritten entirely below
+    [self clearPadding:canvas roi:roi];
 
-    // Ensure ROI is within the bounds of image_scaled
-    if (roi.x >= 0 && roi.y >= 0 && roi.width > 0 && roi.height > 0 &&
-        roi.x + roi.width <= image_scaled.cols && roi.y + roi.height <= image_scaled.rows) {
-        // Copy the resized image into the center of the black canvas
-        resized.copyTo(image_scaled(roi));
+    // Resize into a per-thread scratch image (reused across frames), then convert straight into the ROI
+    cv::Mat source = image;
+    if (image.size() != roi.size()) {
+        static thread_local cv::Mat scratch;
+        cv::resize(image, scratch, roi.size());
+        source = scratch;
+    }
+
+    cv::Mat target = canvas(roi);
+    const uchar* targetData = target.data;
+    if (conversion < 0) {
+        source.copyTo(target);
     } else {
-        LOG_ERROR("Invalid ROI calculated for padding: x=%d, y=%d, w=%d, h=%d. Canvas size: %dx%d",
-                 roi.x, roi.y, roi.width, roi.height, image_scaled.cols, image_scaled.rows);
+        cv::cvtColor(source, target, conversion);
+    }
+
+    CVPixelBufferUnlockBaseAddress(pixelBuffer, 0);
+
+    // OpenCV writes in place only if the target header already matches; guard against a silent reallocation
+    if (target.data != targetData) {
+        LOG_ERROR("Letterbox conversion did not write into the pixel buffer");
+        [pool returnPixelBuffer:pixelBuffer];
+        return nullptr;
+    }
+
+    return pixelBuffer;
+}
+
++ (cv::Mat)preprocessImage:(const cv::Mat&)image params:(PreprocessParams*)params {
+    // Check if the input image is valid
+    if (![self validateImage:image]) {
+        return cv::Mat();
+    }
+
+    // Bring grayscale and BGRA images to the three channels of the canvas below
+    cv::Mat processedImage;
+    switch (image.channels()) {
+        case 1: cv::cvtColor(image, processedImage, cv::COLOR_GRAY2BGR); break;
+        case 3: processedImage = image.clone(); break;
+        case 4: cv::cvtColor(image, processedImage, cv::COLOR_BGRA2BGR); break;
+        default:
+            LOG_ERROR("Unsupported channel count: %d", image.channels());
+            return cv::Mat();
+    }
+
+    cv::Rect roi;
+    if (![self letterboxGeometry:processedImage.size() params:params roi:&roi]) {
         return cv::Mat();
     }
 
+    // Resize the image
+    cv::Mat resized;
+    cv::resize(processedImage, resized, roi.size());
+
+    // Create the final scaled/padded image buffer for the model
+    cv::Mat image_scaled = cv::Mat::zeros(params->inputHeight, params->inputWidth, CV_8UC3);
+
+    // Copy the resized image into the center of the black canvas
+    resized.copyTo(image_scaled(roi));
+
     return image_scaled;
 }
 
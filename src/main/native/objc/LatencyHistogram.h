@@ -0,0 +1,122 @@
+#pragma once
+#include <algorithm>
+#include <array>
+#include <atomic>
+#include <chrono>
+#include <cmath>
+#include <cstdint>
+
+// Always-on latency histogram with log-linear buckets over microseconds: values below 8 get
+// a bucket each, and every power of two above is split into 8 linear sub-buckets, so any
+// percentile is reported within 12.5%. Recording is a handful of relaxed atomic operations
+// and never blocks; snapshots may observe a recording half-applied, which only skews them
+// by one sample. Mirrors org.atomstorm.coreml.LatencyHistogram.
+class LatencyHistogram {
+public:
+    static constexpr int kSubBucketBits = 3;
+    static constexpr int kSubBuckets = 1 << kSubBucketBits;
+    // Values of 2^27 us (about two minutes) and above share the last bucket
+    static constexpr int kMaxExponent = 26;
+    static constexpr int kBucketCount = (kMaxExponent - kSubBucketBits + 2) * kSubBuckets;
+
+    // Summary of the recorded values, in microseconds
+    struct Summary {
+        uint64_t count;
+        uint64_t p50;
+        uint64_t p99;
+        uint64_t max;
+        double mean;
+    };
+
+    static int bucketIndex(uint64_t micros) {
+        if (micros < kSubBuckets) {
+            return static_cast<int>(micros);
+        }
+        int exponent = 63 - __builtin_clzll(micros);
+        if (exponent > kMaxExponent) {
+            return kBucketCount - 1;
+        }
+        int shift = exponent - kSubBucketBits;
+        return (exponent - kSubBucketBits + 1) * kSubBuckets + static_cast<int>(micros >> shift) - kSubBuckets;
+    }
+
+    static uint64_t bucketLowerBound(int index) {
+        if (index < kSubBuckets) {
+            return static_cast<uint64_t>(index);
+        }
+        int shift = index / kSubBuckets - 1;
+        return static_cast<uint64_t>(kSubBuckets + index % kSubBuckets) << shift;
+    }
+
+    static uint64_t bucketUpperBound(int index) {
+        if (index < kSubBuckets) {
+            return static_cast<uint64_t>(index);
+        }
+        int shift = index / kSubBuckets - 1;
+        return bucketLowerBound(index) + (uint64_t{1} << shift) - 1;
+    }
+
+    LatencyHistogram() {
+        reset();
+    }
+
+    void record(uint64_t micros) {
+        buckets_[bucketIndex(micros)].fetch_add(1, std::memory_order_relaxed);
+        sum_.fetch_add(micros, std::memory_order_relaxed);
+        uint64_t max = max_.load(std::memory_order_relaxed);
+        while (micros > max && !max_.compare_exchange_weak(max, micros, std::memory_order_relaxed)) {
+        }
+    }
+
+    Summary summary() const {
+        std::array<uint64_t, kBucketCount> counts;
+        uint64_t count = 0;
+        for (int i = 0; i < kBucketCount; i++) {
+            counts[i] = buckets_[i].load(std::memory_order_relaxed);
+            count += counts[i];
+        }
+        Summary summary = {0};
+        summary.count = count;
+        if (count == 0) {
+            return summary;
+        }
+        summary.max = max_.load(std::memory_order_relaxed);
+        summary.mean = static_cast<double>(sum_.load(std::memory_order_relaxed)) / count;
+        summary.p50 = percentile(counts, count, summary.max, 0.50);
+        summary.p99 = percentile(counts, count, summary.max, 0.99);
+        return summary;
+    }
+
+    void reset() {
+        for (auto& bucket : buckets_) {
+            bucket.store(0, std::memory_order_relaxed);
+        }
+        sum_.store(0, std::memory_order_relaxed);
+        max_.store(0, std::memory_order_relaxed);
+    }
+
+private:
+    // Upper bound of the bucket holding the rank-th smallest value, capped at the maximum
+    static uint64_t percentile(const std::array<uint64_t, kBucketCount>& counts, uint64_t count,
+                               uint64_t max, double quantile) {
+        uint64_t rank = std::max<uint64_t>(1, static_cast<uint64_t>(std::ceil(quantile * count)));
+        uint64_t seen = 0;
+        for (int i = 0; i < kBucketCount; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return std::min(bucketUpperBound(i), max);
+            }
+        }
+        return max;
+    }
+
+    std::array<std::atomic<uint64_t>, kBucketCount> buckets_;
+    std::atomic<uint64_t> sum_;
+    std::atomic<uint64_t> max_;
+};
+
+// Microseconds since start on the monotonic clock
+inline uint64_t ElapsedMicros(std::chrono::steady_clock::time_point start) {
+    return static_cast<uint64_t>(std::chrono::duration_cast<std::chrono::microseconds>(
+        std::chrono::steady_clock::now() - start).count());
+}
@@ -2,21 +2,44 @@
 
 // First include C/C++ headers
 #include <CoreVideo/CVPixelBuffer.h>
+#include <cstdint>
 
 // Then include Objective-C headers
 #import <Foundation/Foundation.h>
 
 /**
- * A pool for reusing CVPixelBuffer objects to reduce memory allocation overhead.
- * This class manages a cache of pixel buffers organized by size.
+ * Counters describing a pixel buffer pool.
+ */
+typedef struct {
+    uint64_t hits;            // Checkouts served from an idle buffer
+    uint64_t misses;          // Checkouts that had to allocate a new buffer
+    uint64_t evictions;       // Buffers released instead of being kept idle
+    int64_t outstanding;      // Buffers checked out and not yet returned
+    uint64_t idle;            // Buffers currently held for reuse
+    NSUInteger highWaterMark; // Maximum idle buffers kept per size
+} PixelBufferPoolStats;
+
+/**
+ * A pool for reusing BGRA CVPixelBuffer objects to reduce memory allocation overhead.
+ * Buffers are grouped by their integer dimensions; each size is backed by a CVPixelBufferPool
+ * that allocates on a miss. Sizes are spread over independently locked stripes, so checkouts
+ * of different sizes never contend and checkouts of one size hold a lock only to pop a list.
+ * Each detector owns its own pool.
  */
 @interface PixelBufferPool : NSObject
 
 /**
- * Get the singleton instance of the pixel buffer pool.
- * @return The shared pool instance.
+ * Create a pool keeping up to the default number of idle buffers per size.
+ */
+- (instancetype)init;
+
+/**
+ * Create a pool.
+ *
+ * @param highWaterMark Maximum number of idle buffers kept per size. Buffers returned
+ *                      beyond it are released.
  */
-+ (instancetype)sharedPool;
+- (instancetype)initWithHighWaterMark:(NSUInteger)highWaterMark;
 
 /**
  * Get a pixel buffer from the pool with the specified dimensions.
@@ -30,12 +53,25 @@
 
 /**
  * Return a pixel buffer to the pool for reuse.
- * If the pool for this size is full, the buffer will be released.
+ * If the pool for this size is at its high-water mark, the buffer will be released.
  *
  * @param pixelBuffer The pixel buffer to return to the pool.
  */
 - (void)returnPixelBuffer:(CVPixelBufferRef)pixelBuffer;
 
+/**
+ * Change the maximum number of idle buffers kept per size.
+ * Idle buffers above the new mark are released immediately.
+ *
+ * @param highWaterMark Maximum number of idle buffers kept per size.
+ */
+- (void)setHighWaterMark:(NSUInteger)highWaterMark;
+
+/**
+ * @return A snapshot of the pool's counters.
+ */
+- (PixelBufferPoolStats)stats;
+
 /**
  * Clear all cached pixel buffers from the pool.
  */
@@ -1,50 +1,51 @@
 // First include C/C++ headers
-#include <CoreVideo/CVPixelBuffer.h>
+#include <CoreVideo/CoreVideo.h>
+#include <array>
+#include <atomic>
 #include <cstddef>
+#include <vector>
+#include <os/lock.h>
 
 // Then include our headers
 #import "PixelBufferPool.h"
 #import "Log.h"
 
-// Maximum number of buffers to keep in the pool for each size
-#define MAX_BUFFERS_PER_SIZE 5
+// Default maximum number of idle buffers to keep for each size
+static constexpr NSUInteger kDefaultHighWaterMark = 5;
 
-@interface PixelBufferPool ()
-@property (nonatomic, strong) NSMutableDictionary<NSString *, NSMutableArray<NSValue *> *> *bufferPool;
-@property (nonatomic, strong) dispatch_queue_t queue;
-@end
+// Number of independently locked stripes sizes are spread over
+static constexpr size_t kStripeCount = 8;
 
-@implementation PixelBufferPool
+namespace {
 
-+ (instancetype)sharedPool {
-    static PixelBufferPool *instance = nil;
-    static dispatch_once_t onceToken;
-    dispatch_once(&onceToken, ^{
-        instance = [[PixelBufferPool alloc] init];
-    });
-    return instance;
-}
+// Idle buffers of one size, plus the CoreVideo pool that allocates them
+struct SizePool {
+    size_t width;
+    size_t height;
+    CVPixelBufferPoolRef pool;
+    std::vector<CVPixelBufferRef> idle;
+};
 
-- (instancetype)init {
-    self = [super init];
-    if (self) {
-        _bufferPool = [NSMutableDictionary dictionary];
-        _queue = dispatch_queue_create("com.pixelbufferpool.queue", DISPATCH_QUEUE_SERIAL);
-        LOG_INFO("PixelBufferPool initialized");
-    }
-    return self;
-}
+struct Stripe {
+    os_unfair_lock lock = OS_UNFAIR_LOCK_INIT;
+    std::vector<SizePool*> sizes; // Usually a single entry: a detector has one input size
+};
 
-- (void)dealloc {
-    [self clear];
-    LOG_INFO("PixelBufferPool destroyed");
+size_t StripeIndex(size_t width, size_t height) {
+    return (width * 31 + height) % kStripeCount;
 }
 
-- (NSString *)keyForWidth:(size_t)width height:(size_t)height {
-    return [NSString stringWithFormat:@"%zu-%zu", width, height];
+// Must hold the stripe lock
+SizePool* FindSize(const Stripe& stripe, size_t width, size_t height) {
+    for (SizePool* size : stripe.sizes) {
+        if (size->width == width && size->height == height) {
+            return size;
+        }
+    }
+    return nullptr;
 }
 
-- (CVPixelBufferRef)createPixelBufferWithWidth:(size_t)width height:(size_t)height {
+CVPixelBufferPoolRef CreateBackingPool(size_t width, size_t height) {
     NSDictionary *pixelBufferAttributes = @{
         (NSString *)kCVPixelBufferMetalCompatibilityKey: @YES,
         (NSString *)kCVPixelBufferCGImageCompatibilityKey: @YES,
@@ -55,22 +56,84 @@
         (NSString *)kCVPixelBufferIOSurfacePropertiesKey: @{}
     };
 
-    CVPixelBufferRef buffer = nullptr;
-    CVReturn status = CVPixelBufferCreate(
-        kCFAllocatorDefault,
-        width,
-        height,
-        kCVPixelFormatType_32BGRA,
-        (__bridge CFDictionaryRef)pixelBufferAttributes,
-        &buffer
-    );
-
+    CVPixelBufferPoolRef pool = nullptr;
+    CVReturn status = CVPixelBufferPoolCreate(kCFAllocatorDefault, nullptr,
+                                              (__bridge CFDictionaryRef)pixelBufferAttributes, &pool);
     if (status != kCVReturnSuccess) {
-        LOG_ERROR("Failed to create pixel buffer: %d", status);
+        LOG_ERROR("Failed to create pixel buffer pool: %d", status);
         return nullptr;
     }
+    return pool;
+}
 
-    return buffer;
+} // namespace
+
+@implementation PixelBufferPool {
+    std::array<Stripe, kStripeCount> _stripes;
+    std::atomic<NSUInteger> _highWaterMark;
+    std::atomic<uint64_t> _hits;
+    std::atomic<uint64_t> _misses;
+    std::atomic<uint64_t> _evictions;
+    std::atomic<int64_t> _outstanding;
+}
+
+- (instancetype)init {
+    return [self initWithHighWaterMark:kDefaultHighWaterMark];
+}
+
+- (instancetype)initWithHighWaterMark:(NSUInteger)highWaterMark {
+    self = [super init];
+    if (self) {
+        _highWaterMark = highWaterMark;
+        _hits = 0;
+        _misses = 0;
+        _evictions = 0;
+        _outstanding = 0;
+        LOG_INFO("PixelBufferPool initialized");
+    }
+    return self;
+}
+
+- (void)dealloc {
+    [self clear];
+    for (Stripe& stripe : _stripes) {
+        for (SizePool* size : stripe.sizes) {
+            CVPixelBufferPoolRelease(size->pool);
+            delete size;
+        }
+        stripe.sizes.clear();
+    }
+    LOG_INFO("PixelBufferPool destroyed");
+}
+
+// Look up the backing pool for a size, creating it on first use
+- (CVPixelBufferPoolRef)backingPoolForWidth:(size_t)width height:(size_t)height {
+    Stripe& stripe = _stripes[StripeIndex(width, height)];
+    os_unfair_lock_lock(&stripe.lock);
+    SizePool* size = FindSize(stripe, width, height);
+    os_unfair_lock_unlock(&stripe.lock);
+    if (size) {
+        return size->pool;
+    }
+
+    // Create outside the lock; a racing thread may win, in which case ours is discarded
+    CVPixelBufferPoolRef pool = CreateBackingPool(width, height);
+    if (!pool) {
+        return nullptr;
+    }
+    os_unfair_lock_lock(&stripe.lock);
+    size = FindSize(stripe, width, height);
+    if (!size) {
+        size = new SizePool{width, height, pool, {}};
+        stripe.sizes.push_back(size);
+        pool = nullptr;
+    }
+    os_unfair_lock_unlock(&stripe.lock);
+    if (pool) {
+        CVPixelBufferPoolRelease(pool);
+    }
+    // Sizes are only removed on dealloc, so the backing pool outlives this call
+    return size->pool;
 }
 
 - (CVPixelBufferRef)getPixelBufferWithWidth:(size_t)width height:(size_t)height {
@@ -79,27 +142,36 @@
         return nullptr;
     }
 
-    NSString *key = [self keyForWidth:width height:height];
-    __block CVPixelBufferRef buffer = nullptr;
-
     // Try to get a buffer from the pool
-    dispatch_sync(_queue, ^{
-        NSMutableArray *buffers = self.bufferPool[key];
-        if (buffers.count > 0) {
-            buffer = (CVPixelBufferRef)[buffers.lastObject pointerValue];
-            [buffers removeLastObject];
-            LOG_DEBUG("Reusing pixel buffer %p (%zu x %zu)", buffer, width, height);
-        }
-    });
+    CVPixelBufferRef buffer = nullptr;
+    Stripe& stripe = _stripes[StripeIndex(width, height)];
+    os_unfair_lock_lock(&stripe.lock);
+    SizePool* size = FindSize(stripe, width, height);
+    if (size && !size->idle.empty()) {
+        buffer = size->idle.back();
+        size->idle.pop_back();
+    }
+    os_unfair_lock_unlock(&stripe.lock);
 
-    // If no buffer was available, create a new one
-    if (!buffer) {
-        buffer = [self createPixelBufferWithWidth:width height:height];
-        if (buffer) {
-            LOG_DEBUG("Created new pixel buffer %p (%zu x %zu)", buffer, width, height);
+    if (buffer) {
+        _hits.fetch_add(1, std::memory_order_relaxed);
+        LOG_DEBUG("Reusing pixel buffer %p (%zu x %zu)", buffer, width, height);
+    } else {
+        // If no buffer was available, create a new one
+        CVPixelBufferPoolRef pool = [self backingPoolForWidth:width height:height];
+        if (!pool) {
+            return nullptr;
         }
+        CVReturn status = CVPixelBufferPoolCreatePixelBuffer(kCFAllocatorDefault, pool, &buffer);
+        if (status != kCVReturnSuccess) {
+            LOG_ERROR("Failed to create pixel buffer: %d", status);
+            return nullptr;
+        }
+        _misses.fetch_add(1, std::memory_order_relaxed);
+        LOG_DEBUG("Created new pixel buffer %p (%zu x %zu)", buffer, width, height);
     }
 
+    _outstanding.fetch_add(1, std::memory_order_relaxed);
     return buffer;
 }
 
@@ -110,45 +182,81 @@
 
     size_t width = CVPixelBufferGetWidth(pixelBuffer);
     size_t height = CVPixelBufferGetHeight(pixelBuffer);
-    NSString *key = [self keyForWidth:width height:height];
+    NSUInteger highWaterMark = _highWaterMark.load(std::memory_order_relaxed);
 
-    __block BOOL shouldRelease = NO;
+    bool kept = false;
+    Stripe& stripe = _stripes[StripeIndex(width, height)];
+    os_unfair_lock_lock(&stripe.lock);
+    SizePool* size = FindSize(stripe, width, height);
+    // Only keep a limited number of buffers per size
+    if (size && size->idle.size() < highWaterMark) {
+        size->idle.push_back(pixelBuffer);
+        kept = true;
+    }
+    os_unfair_lock_unlock(&stripe.lock);
 
-    dispatch_sync(_queue, ^{
-        NSMutableArray *buffers = self.bufferPool[key];
-        if (!buffers) {
-            buffers = [NSMutableArray array];
-            self.bufferPool[key] = buffers;
-        }
+    _outstanding.fetch_sub(1, std::memory_order_relaxed);
+    if (!kept) {
+        _evictions.fetch_add(1, std::memory_order_relaxed);
+        LOG_DEBUG("Pool full for size %zu x %zu, releasing buffer %p", width, height, pixelBuffer);
+        CVPixelBufferRelease(pixelBuffer);
+    }
+}
 
-        // Only keep a limited number of buffers per size
-        if (buffers.count < MAX_BUFFERS_PER_SIZE) {
-            [buffers addObject:[NSValue valueWithPointer:pixelBuffer]];
-            LOG_DEBUG("Returned pixel buffer %p to pool (%zu x %zu)", pixelBuffer, width, height);
-        } else {
-            shouldRelease = YES;
-            LOG_DEBUG("Pool full for size %zu x %zu, releasing buffer %p", width, height, pixelBuffer);
+- (void)setHighWaterMark:(NSUInteger)highWaterMark {
+    _highWaterMark.store(highWaterMark);
+
+    std::vector<CVPixelBufferRef> excess;
+    for (Stripe& stripe : _stripes) {
+        os_unfair_lock_lock(&stripe.lock);
+        for (SizePool* size : stripe.sizes) {
+            while (size->idle.size() > highWaterMark) {
+                excess.push_back(size->idle.back());
+                size->idle.pop_back();
+            }
         }
-    });
+        os_unfair_lock_unlock(&stripe.lock);
+    }
 
-    if (shouldRelease) {
-        CVPixelBufferRelease(pixelBuffer);
+    _evictions.fetch_add(excess.size(), std::memory_order_relaxed);
+    for (CVPixelBufferRef buffer : excess) {
+        CVPixelBufferRelease(buffer);
     }
 }
 
+- (PixelBufferPoolStats)stats {
+    PixelBufferPoolStats stats = {0};
+    for (Stripe& stripe : _stripes) {
+        os_unfair_lock_lock(&stripe.lock);
+        for (SizePool* size : stripe.sizes) {
+            stats.idle += size->idle.size();
+        }
+        os_unfair_lock_unlock(&stripe.lock);
+    }
+    stats.hits = _hits.load(std::memory_order_relaxed);
+    stats.misses = _misses.load(std::memory_order_relaxed);
+    stats.evictions = _evictions.load(std::memory_order_relaxed);
+    stats.outstanding = _outstanding.load(std::memory_order_relaxed);
+    stats.highWaterMark = _highWaterMark.load(std::memory_order_relaxed);
+    return stats;
+}
+
 - (void)clear {
-    dispatch_sync(_queue, ^{
-        for (NSString *key in self.bufferPool) {
-            NSMutableArray *buffers = self.bufferPool[key];
-            for (NSValue *value in buffers) {
-                CVPixelBufferRef buffer = (CVPixelBufferRef)[value pointerValue];
-                CVPixelBufferRelease(buffer);
-            }
-            [buffers removeAllObjects];
+    std::vector<CVPixelBufferRef> idle;
+    for (Stripe& stripe : _stripes) {
+        os_unfair_lock_lock(&stripe.lock);
+        for (SizePool* size : stripe.sizes) {
+            idle.insert(idle.end(), size->idle.begin(), size->idle.end());
+            size->idle.clear();
+            CVPixelBufferPoolFlush(size->pool, kCVPixelBufferPoolFlushExcessBuffers);
         }
-        [self.bufferPool removeAllObjects];
-        LOG_INFO("Pixel buffer pool cleared");
-    });
+        os_unfair_lock_unlock(&stripe.lock);
+    }
+
+    for (CVPixelBufferRef buffer : idle) {
+        CVPixelBufferRelease(buffer);
+    }
+    LOG_INFO("Pixel buffer pool cleared");
 }
 
 @end
@@ -3,11 +3,31 @@
 #include "jni.h"
 #include "wpi_jni_common.h"
 
+#include <algorithm>
+#include <vector>
+
 struct CoreMLContext {
     CoreMLDetector* detector;
 };
 
 static JClass detectionResultClass;
+static JClass detectionResultArrayClass;
+static jmethodID detectionResultCtor;
+static JClass poolStatsClass;
+static jmethodID poolStatsCtor;
+static JClass stageStatsClass;
+static jmethodID stageStatsCtor;
+static JClass detectorStatsClass;
+static jmethodID detectorStatsCtor;
+static jmethodID enumOrdinal;
+
+// Number of floats per detection row written by detectInto: x1, y1, x2, y2, conf, classId
+static constexpr size_t kResultStride = 6;
+
+// Size of the grayscale thumbnail written by frameThumbnail, see FrameChangeCache
+static constexpr int kThumbnailWidth = 9;
+static constexpr int kThumbnailHeight = 8;
+static constexpr int kThumbnailSamples = 8;  // Pixels sampled per cell along each axis
 
 extern "C" {
 
@@ -23,12 +43,72 @@ JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved) {
         return JNI_ERR;
     }
 
+    detectionResultArrayClass = JClass(env, "[Lorg/atomstorm/coreml/CoreMLJNI$CoreMLResult;");
+    if (!detectionResultArrayClass) {
+        std::printf("Couldn't find CoreMLResult[] class!");
+        return JNI_ERR;
+    }
+
+    detectionResultCtor = env->GetMethodID(detectionResultClass, "<init>", "(IIIIFI)V");
+    if (detectionResultCtor == nullptr) {
+        std::printf("Couldn't find CoreMLResult constructor!");
+        return JNI_ERR;
+    }
+
+    poolStatsClass = JClass(env, "org/atomstorm/coreml/CoreMLJNI$PoolStats");
+    if (!poolStatsClass) {
+        std::printf("Couldn't find PoolStats class!");
+        return JNI_ERR;
+    }
+
+    poolStatsCtor = env->GetMethodID(poolStatsClass, "<init>", "(JJJJJI)V");
+    if (poolStatsCtor == nullptr) {
+        std::printf("Couldn't find PoolStats constructor!");
+        return JNI_ERR;
+    }
+
+    stageStatsClass = JClass(env, "org/atomstorm/coreml/CoreMLJNI$StageStats");
+    if (!stageStatsClass) {
+        std::printf("Couldn't find StageStats class!");
+        return JNI_ERR;
+    }
+
+    stageStatsCtor = env->GetMethodID(stageStatsClass, "<init>", "(JDDDD)V");
+    if (stageStatsCtor == nullptr) {
+        std::printf("Couldn't find StageStats constructor!");
+        return JNI_ERR;
+    }
+
+    detectorStatsClass = JClass(env, "org/atomstorm/coreml/CoreMLJNI$DetectorStats");
+    if (!detectorStatsClass) {
+        std::printf("Couldn't find DetectorStats class!");
+        return JNI_ERR;
+    }
+
+    detectorStatsCtor = env->GetMethodID(detectorStatsClass, "<init>",
+        "(JJLorg/atomstorm/coreml/CoreMLJNI$StageStats;Lorg/atomstorm/coreml/CoreMLJNI$StageStats;Lorg/atomstorm/coreml/CoreMLJNI$StageStats;Lorg/atomstorm/coreml/CoreMLJNI$StageStats;)V");
+    if (detectorStatsCtor == nullptr) {
+        std::printf("Couldn't find DetectorStats constructor!");
+        return JNI_ERR;
+    }
+
+    jclass enumClass = env->FindClass("java/lang/Enum");
+    if (enumClass == nullptr) {
+        std::printf("Couldn't find class java.lang.Enum!");
+        return JNI_ERR;
+    }
+    enumOrdinal = env->GetMethodID(enumClass, "ordinal", "()I");
+    env->DeleteLocalRef(enumClass);
+    if (enumOrdinal == nullptr) {
+        std::printf("Couldn't find Enum.ordinal!");
+        return JNI_ERR;
+    }
+
     return JNI_VERSION_1_6;
 }
 
 static jobject MakeJObject(JNIEnv *env, const DetectionResult &result) {
-    jmethodID constructor = env->GetMethodID(detectionResultClass, "<init>", "(IIIIFI)V");
-    return env->NewObject(detectionResultClass, constructor, 
+    return env->NewObject(detectionResultClass, detectionResultCtor, 
         static_cast<jint>(result.x1),
         static_cast<jint>(result.y1),
         static_cast<jint>(result.x2),
@@ -59,18 +139,13 @@ JNIEXPORT jlong JNICALL Java_org_atomstorm_coreml_CoreMLJNI_create
     }
 
     try {
-        context->detector = new CoreMLDetector(modelPathCpp);
+        // Load directly on the requested compute units rather than loading and then reconfiguring
+        context->detector = new CoreMLDetector(modelPathCpp, coreNum);
         if (context->detector == nullptr) {
             delete context;
             return 0;
         }
 
-        if (context->detector->setCoreMask(coreNum) != 0) {
-            delete context->detector;
-            delete context;
-            return 0;
-        }
-        
         return reinterpret_cast<jlong>(context);
     } catch (...) {
         // Clean up if any exception occurs
@@ -82,19 +157,369 @@ JNIEXPORT jlong JNICALL Java_org_atomstorm_coreml_CoreMLJNI_create
     }
 }
 
+JNIEXPORT jint JNICALL Java_org_atomstorm_coreml_CoreMLJNI_compileModel
+  (JNIEnv *env, jclass, jstring sourcePath, jstring destinationPath)
+{
+    if (sourcePath == nullptr || destinationPath == nullptr) {
+        return -1;
+    }
+
+    const char* sourceStr = env->GetStringUTFChars(sourcePath, nullptr);
+    if (sourceStr == nullptr) {
+        return -1;
+    }
+    std::string sourceCpp(sourceStr);
+    env->ReleaseStringUTFChars(sourcePath, sourceStr);
+
+    const char* destinationStr = env->GetStringUTFChars(destinationPath, nullptr);
+    if (destinationStr == nullptr) {
+        return -1;
+    }
+    std::string destinationCpp(destinationStr);
+    env->ReleaseStringUTFChars(destinationPath, destinationStr);
+
+    return CoreMLDetector::compileModel(sourceCpp, destinationCpp);
+}
+
 JNIEXPORT jint JNICALL Java_org_atomstorm_coreml_CoreMLJNI_setCoreMask
-  (JNIEnv *env, jclass, jlong ptr, jint desiredCore)
+  (JNIEnv *env, jclass, jlong ptr, jobject desiredCore)
 {
-    if (ptr == 0) {
-        return -1; // Invalid pointer
+    if (ptr == 0 || desiredCore == nullptr) {
+        return -1; // Invalid pointer or core mask
     }
     
     CoreMLContext* context = reinterpret_cast<CoreMLContext*>(ptr);
     if (context == nullptr || context->detector == nullptr) {
         return -1; // Invalid context or detector
     }
+
+    jint coreMask = env->CallIntMethod(desiredCore, enumOrdinal);
+    if (env->ExceptionCheck()) {
+        return -1;
+    }
     
-    return context->detector->setCoreMask(desiredCore);
+    return context->detector->setCoreMask(coreMask);
+}
+
+JNIEXPORT jint JNICALL Java_org_atomstorm_coreml_CoreMLJNI_getCoreMask
+  (JNIEnv *env, jclass, jlong ptr)
+{
+    if (ptr == 0) {
+        return -1; // Invalid pointer
+    }
+
+    CoreMLContext* context = reinterpret_cast<CoreMLContext*>(ptr);
+    if (context == nullptr || context->detector == nullptr) {
+        return -1; // Invalid context or detector
+    }
+
+    return context->detector->getCoreMask();
+}
+
+JNIEXPORT jint JNICALL Java_org_atomstorm_coreml_CoreMLJNI_setFusedPreprocess
+  (JNIEnv *env, jclass, jlong ptr, jboolean enabled)
+{
+    if (ptr == 0) {
+        return -1; // Invalid pointer
+    }
+
+    CoreMLContext* context = reinterpret_cast<CoreMLContext*>(ptr);
+    if (context == nullptr || context->detector == nullptr) {
+        return -1; // Invalid context or detector
+    }
+
+    context->detector->setFusedPreprocess(enabled == JNI_TRUE);
+    return 0;
+}
+
+JNIEXPORT jboolean JNICALL Java_org_atomstorm_coreml_CoreMLJNI_isFusedPreprocess
+  (JNIEnv *env, jclass, jlong ptr)
+{
+    if (ptr == 0) {
+        return JNI_FALSE; // Invalid pointer
+    }
+
+    CoreMLContext* context = reinterpret_cast<CoreMLContext*>(ptr);
+    if (context == nullptr || context->detector == nullptr) {
+        return JNI_FALSE; // Invalid context or detector
+    }
+
+    return context->detector->isFusedPreprocess() ? JNI_TRUE : JNI_FALSE;
+}
+
+JNIEXPORT jint JNICALL Java_org_atomstorm_coreml_CoreMLJNI_setAspectMatching
+  (JNIEnv *env, jclass, jlong ptr, jboolean enabled)
+{
+    if (ptr == 0) {
+        return -1; // Invalid pointer
+    }
+
+    CoreMLContext* context = reinterpret_cast<CoreMLContext*>(ptr);
+    if (context == nullptr || context->detector == nullptr) {
+        return -1; // Invalid context or detector
+    }
+
+    context->detector->setAspectMatching(enabled == JNI_TRUE);
+    return 0;
+}
+
+JNIEXPORT jboolean JNICALL Java_org_atomstorm_coreml_CoreMLJNI_isAspectMatching
+  (JNIEnv *env, jclass, jlong ptr)
+{
+    if (ptr == 0) {
+        return JNI_FALSE; // Invalid pointer
+    }
+
+    CoreMLContext* context = reinterpret_cast<CoreMLContext*>(ptr);
+    if (context == nullptr || context->detector == nullptr) {
+        return JNI_FALSE; // Invalid context or detector
+    }
+
+    return context->detector->isAspectMatching() ? JNI_TRUE : JNI_FALSE;
+}
+
+JNIEXPORT jint JNICALL Java_org_atomstorm_coreml_CoreMLJNI_setFilter
+  (JNIEnv *env, jclass, jlong ptr, jfloat minConfidence, jfloatArray classThresholds, jintArray allowedClasses,
+   jfloat minArea, jfloat maxArea, jint topK)
+{
+    if (ptr == 0) {
+        return -1; // Invalid pointer
+    }
+
+    CoreMLContext* context = reinterpret_cast<CoreMLContext*>(ptr);
+    if (context == nullptr || context->detector == nullptr) {
+        return -1; // Invalid context or detector
+    }
+
+    FilterSpec filter;
+    filter.minConfidence = minConfidence;
+    filter.minArea = minArea;
+    filter.maxArea = maxArea;
+    filter.topK = topK;
+    if (classThresholds != nullptr) {
+        filter.classThresholds.resize(env->GetArrayLength(classThresholds));
+        env->GetFloatArrayRegion(classThresholds, 0, static_cast<jsize>(filter.classThresholds.size()),
+                                 filter.classThresholds.data());
+    }
+    if (allowedClasses != nullptr) {
+        std::vector<jint> allowed(env->GetArrayLength(allowedClasses));
+        env->GetIntArrayRegion(allowedClasses, 0, static_cast<jsize>(allowed.size()), allowed.data());
+        filter.allowedClasses.assign(allowed.begin(), allowed.end());
+    }
+    if (env->ExceptionCheck()) {
+        return -1;
+    }
+
+    context->detector->setFilter(filter);
+    return 0;
+}
+
+JNIEXPORT jint JNICALL Java_org_atomstorm_coreml_CoreMLJNI_getInputWidth
+  (JNIEnv *env, jclass, jlong ptr)
+{
+    if (ptr == 0) {
+        return -1; // Invalid pointer
+    }
+
+    CoreMLContext* context = reinterpret_cast<CoreMLContext*>(ptr);
+    if (context == nullptr || context->detector == nullptr) {
+        return -1; // Invalid context or detector
+    }
+
+    return context->detector->getInputWidth();
+}
+
+JNIEXPORT jint JNICALL Java_org_atomstorm_coreml_CoreMLJNI_getInputHeight
+  (JNIEnv *env, jclass, jlong ptr)
+{
+    if (ptr == 0) {
+        return -1; // Invalid pointer
+    }
+
+    CoreMLContext* context = reinterpret_cast<CoreMLContext*>(ptr);
+    if (context == nullptr || context->detector == nullptr) {
+        return -1; // Invalid context or detector
+    }
+
+    return context->detector->getInputHeight();
+}
+
+static jintArray MakeJIntArray(JNIEnv *env, const std::vector<int> &values)
+{
+    jintArray result = env->NewIntArray(static_cast<jsize>(values.size()));
+    if (result == nullptr) {
+        return nullptr;
+    }
+    std::vector<jint> elements(values.begin(), values.end());
+    env->SetIntArrayRegion(result, 0, static_cast<jsize>(elements.size()), elements.data());
+    return result;
+}
+
+JNIEXPORT jintArray JNICALL Java_org_atomstorm_coreml_CoreMLJNI_getInputShapes
+  (JNIEnv *env, jclass, jlong ptr)
+{
+    if (ptr == 0) {
+        return nullptr; // Invalid pointer
+    }
+
+    CoreMLContext* context = reinterpret_cast<CoreMLContext*>(ptr);
+    if (context == nullptr || context->detector == nullptr) {
+        return nullptr; // Invalid context or detector
+    }
+
+    return MakeJIntArray(env, context->detector->getInputShapes());
+}
+
+JNIEXPORT jintArray JNICALL Java_org_atomstorm_coreml_CoreMLJNI_getInputSizeRange
+  (JNIEnv *env, jclass, jlong ptr)
+{
+    if (ptr == 0) {
+        return nullptr; // Invalid pointer
+    }
+
+    CoreMLContext* context = reinterpret_cast<CoreMLContext*>(ptr);
+    if (context == nullptr || context->detector == nullptr) {
+        return nullptr; // Invalid context or detector
+    }
+
+    std::vector<int> range = context->detector->getInputSizeRange();
+    if (range.empty()) {
+        return nullptr; // Fixed or enumerated sizes
+    }
+    return MakeJIntArray(env, range);
+}
+
+JNIEXPORT jintArray JNICALL Java_org_atomstorm_coreml_CoreMLJNI_getRawOutputShape
+  (JNIEnv *env, jclass, jlong ptr)
+{
+    if (ptr == 0) {
+        return nullptr; // Invalid pointer
+    }
+
+    CoreMLContext* context = reinterpret_cast<CoreMLContext*>(ptr);
+    if (context == nullptr || context->detector == nullptr) {
+        return nullptr; // Invalid context or detector
+    }
+
+    std::vector<int> shape = context->detector->getRawOutputShape();
+    if (shape.empty()) {
+        return nullptr; // Model has built-in NMS
+    }
+
+    jintArray result = env->NewIntArray(static_cast<jsize>(shape.size()));
+    if (result == nullptr) {
+        return nullptr;
+    }
+    std::vector<jint> dims(shape.begin(), shape.end());
+    env->SetIntArrayRegion(result, 0, static_cast<jsize>(dims.size()), dims.data());
+    return result;
+}
+
+JNIEXPORT jint JNICALL Java_org_atomstorm_coreml_CoreMLJNI_inferRaw
+  (JNIEnv *env, jclass, jlong detectorPtr, jlong preparedPtr, jobject out)
+{
+    if (detectorPtr == 0 || preparedPtr == 0 || out == nullptr) {
+        return -1;
+    }
+
+    jfloat* dst = static_cast<jfloat*>(env->GetDirectBufferAddress(out));
+    jlong capacity = env->GetDirectBufferCapacity(out);
+    if (dst == nullptr || capacity < 0) {
+        return -1; // Not a direct buffer
+    }
+
+    CoreMLContext* context = reinterpret_cast<CoreMLContext*>(detectorPtr);
+    if (context == nullptr || context->detector == nullptr) {
+        return -1;
+    }
+
+    PreparedFrame* frame = reinterpret_cast<PreparedFrame*>(preparedPtr);
+    return static_cast<jint>(context->detector->inferRaw(frame, dst, static_cast<size_t>(capacity)));
+}
+
+JNIEXPORT jobject JNICALL Java_org_atomstorm_coreml_CoreMLJNI_getPoolStats
+  (JNIEnv *env, jclass, jlong ptr)
+{
+    if (ptr == 0) {
+        return nullptr; // Invalid pointer
+    }
+
+    CoreMLContext* context = reinterpret_cast<CoreMLContext*>(ptr);
+    if (context == nullptr || context->detector == nullptr) {
+        return nullptr; // Invalid context or detector
+    }
+
+    PoolStats stats = context->detector->getPoolStats();
+    return env->NewObject(poolStatsClass, poolStatsCtor,
+                          static_cast<jlong>(stats.hits), static_cast<jlong>(stats.misses),
+                          static_cast<jlong>(stats.evictions), static_cast<jlong>(stats.outstanding),
+                          static_cast<jlong>(stats.idle), static_cast<jint>(stats.highWaterMark));
+}
+
+static jobject MakeStageStats(JNIEnv *env, const LatencyHistogram::Summary &summary) {
+    return env->NewObject(stageStatsClass, stageStatsCtor,
+                          static_cast<jlong>(summary.count),
+                          static_cast<jdouble>(summary.p50 / 1000.0),
+                          static_cast<jdouble>(summary.p99 / 1000.0),
+                          static_cast<jdouble>(summary.max / 1000.0),
+                          static_cast<jdouble>(summary.mean / 1000.0));
+}
+
+JNIEXPORT jobject JNICALL Java_org_atomstorm_coreml_CoreMLJNI_getStats
+  (JNIEnv *env, jclass, jlong ptr)
+{
+    if (ptr == 0) {
+        return nullptr; // Invalid pointer
+    }
+
+    CoreMLContext* context = reinterpret_cast<CoreMLContext*>(ptr);
+    if (context == nullptr || context->detector == nullptr) {
+        return nullptr; // Invalid context or detector
+    }
+
+    DetectorStats stats = context->detector->getStats();
+    jobject preprocess = MakeStageStats(env, stats.preprocess);
+    jobject inference = MakeStageStats(env, stats.inference);
+    jobject postprocess = MakeStageStats(env, stats.postprocess);
+    jobject total = MakeStageStats(env, stats.total);
+    if (!preprocess || !inference || !postprocess || !total) {
+        return nullptr; // Exception pending
+    }
+    return env->NewObject(detectorStatsClass, detectorStatsCtor,
+                          static_cast<jlong>(stats.frames), static_cast<jlong>(stats.errors),
+                          preprocess, inference, postprocess, total);
+}
+
+JNIEXPORT jint JNICALL Java_org_atomstorm_coreml_CoreMLJNI_resetStats
+  (JNIEnv *env, jclass, jlong ptr)
+{
+    if (ptr == 0) {
+        return -1; // Invalid pointer
+    }
+
+    CoreMLContext* context = reinterpret_cast<CoreMLContext*>(ptr);
+    if (context == nullptr || context->detector == nullptr) {
+        return -1; // Invalid context or detector
+    }
+
+    context->detector->resetStats();
+    return 0;
+}
+
+JNIEXPORT jint JNICALL Java_org_atomstorm_coreml_CoreMLJNI_setPoolHighWaterMark
+  (JNIEnv *env, jclass, jlong ptr, jint highWaterMark)
+{
+    if (ptr == 0 || highWaterMark < 0) {
+        return -1; // Invalid pointer or high-water mark
+    }
+
+    CoreMLContext* context = reinterpret_cast<CoreMLContext*>(ptr);
+    if (context == nullptr || context->detector == nullptr) {
+        return -1; // Invalid context or detector
+    }
+
+    context->detector->setPoolHighWaterMark(highWaterMark);
+    return 0;
 }
 
 JNIEXPORT void JNICALL Java_org_atomstorm_coreml_CoreMLJNI_destroy
@@ -115,37 +540,44 @@ JNIEXPORT void JNICALL Java_org_atomstorm_coreml_CoreMLJNI_destroy
     delete context;
 }
 
-JNIEXPORT jobjectArray JNICALL Java_org_atomstorm_coreml_CoreMLJNI_detect
-  (JNIEnv *env, jclass, jlong detectorPtr, jlong imagePtr, jdouble nmsThresh, jdouble boxThresh)
-{   
-    jobjectArray emptyArray = env->NewObjectArray(0, detectionResultClass, nullptr);
-
+// Validate the arguments shared by all detect entry points and run detection.
+// Returns false if any argument is invalid, in which case no detection was run.
+static bool RunDetection(jlong detectorPtr, jlong imagePtr, jdouble nmsThresh, jdouble boxThresh,
+                         std::vector<DetectionResult> &results)
+{
     if (detectorPtr == 0 || imagePtr == 0) {
-        return emptyArray;
+        return false;
     }
-    
+
     CoreMLContext* context = reinterpret_cast<CoreMLContext*>(detectorPtr);
     if (context == nullptr || context->detector == nullptr) {
-        return emptyArray;
+        return false;
     }
-    
+
     cv::Mat* image = reinterpret_cast<cv::Mat*>(imagePtr);
     if (image == nullptr) {
-        return emptyArray;
+        return false;
     }
 
     if (nmsThresh < 0.0 || nmsThresh > 1.0) {
-        return emptyArray;
+        return false;
     }
 
     if (boxThresh < 0.0 || boxThresh > 1.0) {
-        return emptyArray;
+        return false;
     }
-    
-    std::vector<DetectionResult> results = context->detector->detect(*image, nmsThresh, boxThresh);
 
+    results = context->detector->detect(*image, nmsThresh, boxThresh);
+    return true;
+}
+
+static jobjectArray MakeJObjectArray(JNIEnv *env, const std::vector<DetectionResult> &results)
+{
     jobjectArray jarr = env->NewObjectArray(results.size(), detectionResultClass, nullptr);
-    
+    if (jarr == nullptr) {
+        return nullptr; // OutOfMemoryError is pending
+    }
+
     for (size_t i = 0; i < results.size(); i++) {
         jobject obj = MakeJObject(env, results[i]);
         env->SetObjectArrayElement(jarr, i, obj);
@@ -155,4 +587,319 @@ JNIEXPORT jobjectArray JNICALL Java_org_atomstorm_coreml_CoreMLJNI_detect
     return jarr;
 }
 
-} // extern "C" 
\ No newline at end of file
+// Pack detections as rows of kResultStride floats, writing at most maxRows rows.
+// Returns the number of rows written.
+static size_t PackResults(const std::vector<DetectionResult> &results, jfloat *dst, size_t maxRows)
+{
+    size_t rows = std::min(results.size(), maxRows);
+    for (size_t i = 0; i < rows; i++) {
+        const DetectionResult &result = results[i];
+        jfloat *row = dst + i * kResultStride;
+        row[0] = result.x1;
+        row[1] = result.y1;
+        row[2] = result.x2;
+        row[3] = result.y2;
+        row[4] = result.confidence;
+        row[5] = static_cast<jfloat>(result.class_id);
+    }
+    return rows;
+}
+
+JNIEXPORT jobjectArray JNICALL Java_org_atomstorm_coreml_CoreMLJNI_detect
+  (JNIEnv *env, jclass, jlong detectorPtr, jlong imagePtr, jdouble nmsThresh, jdouble boxThresh)
+{
+    std::vector<DetectionResult> results;
+    if (!RunDetection(detectorPtr, imagePtr, nmsThresh, boxThresh, results)) {
+        return env->NewObjectArray(0, detectionResultClass, nullptr);
+    }
+
+    return MakeJObjectArray(env, results);
+}
+
+JNIEXPORT jobjectArray JNICALL Java_org_atomstorm_coreml_CoreMLJNI_detectFrame
+  (JNIEnv *env, jclass, jlong detectorPtr, jobject frame, jint format, jint width, jint height, jint stride,
+   jint chromaOffset, jint chromaStride, jdouble nmsThresh, jdouble boxThresh)
+{
+    if (detectorPtr == 0 || frame == nullptr) {
+        return env->NewObjectArray(0, detectionResultClass, nullptr);
+    }
+
+    const uint8_t* data = static_cast<const uint8_t*>(env->GetDirectBufferAddress(frame));
+    jlong capacity = env->GetDirectBufferCapacity(frame);
+    if (data == nullptr || capacity < 0) {
+        return env->NewObjectArray(0, detectionResultClass, nullptr); // Not a direct buffer
+    }
+
+    CoreMLContext* context = reinterpret_cast<CoreMLContext*>(detectorPtr);
+    if (context == nullptr || context->detector == nullptr) {
+        return env->NewObjectArray(0, detectionResultClass, nullptr);
+    }
+
+    if (nmsThresh < 0.0 || nmsThresh > 1.0 || boxThresh < 0.0 || boxThresh > 1.0) {
+        return env->NewObjectArray(0, detectionResultClass, nullptr);
+    }
+
+    if (format < static_cast<jint>(FrameFormat::NV12) || format > static_cast<jint>(FrameFormat::GRAY8)) {
+        return env->NewObjectArray(0, detectionResultClass, nullptr);
+    }
+
+    FrameDesc desc;
+    desc.data = data;
+    desc.capacity = static_cast<size_t>(capacity);
+    desc.format = static_cast<FrameFormat>(format);
+    desc.width = width;
+    desc.height = height;
+    desc.stride = stride;
+    desc.chromaOffset = chromaOffset;
+    desc.chromaStride = chromaStride;
+    return MakeJObjectArray(env, context->detector->detectFrame(desc, nmsThresh, boxThresh));
+}
+
+JNIEXPORT jint JNICALL Java_org_atomstorm_coreml_CoreMLJNI_detectInto__JJDDLjava_nio_FloatBuffer_2
+  (JNIEnv *env, jclass, jlong detectorPtr, jlong imagePtr, jdouble nmsThresh, jdouble boxThresh, jobject out)
+{
+    if (out == nullptr) {
+        return -1;
+    }
+
+    jfloat* dst = static_cast<jfloat*>(env->GetDirectBufferAddress(out));
+    jlong capacity = env->GetDirectBufferCapacity(out);
+    if (dst == nullptr || capacity < 0) {
+        return -1; // Not a direct buffer
+    }
+
+    std::vector<DetectionResult> results;
+    if (!RunDetection(detectorPtr, imagePtr, nmsThresh, boxThresh, results)) {
+        return 0;
+    }
+
+    return static_cast<jint>(PackResults(results, dst, static_cast<size_t>(capacity) / kResultStride));
+}
+
+JNIEXPORT jint JNICALL Java_org_atomstorm_coreml_CoreMLJNI_detectInto__JJDD_3F
+  (JNIEnv *env, jclass, jlong detectorPtr, jlong imagePtr, jdouble nmsThresh, jdouble boxThresh, jfloatArray out)
+{
+    if (out == nullptr) {
+        return -1;
+    }
+
+    std::vector<DetectionResult> results;
+    if (!RunDetection(detectorPtr, imagePtr, nmsThresh, boxThresh, results)) {
+        return 0;
+    }
+
+    size_t maxRows = static_cast<size_t>(env->GetArrayLength(out)) / kResultStride;
+    size_t rows = std::min(results.size(), maxRows);
+    if (rows == 0) {
+        return 0;
+    }
+
+    jfloat* dst = static_cast<jfloat*>(env->GetPrimitiveArrayCritical(out, nullptr));
+    if (dst == nullptr) {
+        return -1;
+    }
+    PackResults(results, dst, rows);
+    env->ReleasePrimitiveArrayCritical(out, dst, 0);
+
+    return static_cast<jint>(rows);
+}
+
+JNIEXPORT jint JNICALL Java_org_atomstorm_coreml_CoreMLJNI_frameThumbnail
+  (JNIEnv *env, jclass, jlong imagePtr, jbyteArray out)
+{
+    if (out == nullptr || env->GetArrayLength(out) < kThumbnailWidth * kThumbnailHeight) {
+        return -1;
+    }
+
+    cv::Mat* image = reinterpret_cast<cv::Mat*>(imagePtr);
+    if (image == nullptr || image->empty() || image->depth() != CV_8U) {
+        return 0;
+    }
+
+    // Pick a grid of kThumbnailSamples x kThumbnailSamples pixels per cell and average those,
+    // rather than every pixel, so the cost does not grow with the image. Colour conversion
+    // comes last so it only touches the thumbnail.
+    cv::Mat grid;
+    cv::resize(*image, grid, cv::Size(kThumbnailWidth * kThumbnailSamples, kThumbnailHeight * kThumbnailSamples),
+               0, 0, cv::INTER_NEAREST);
+    cv::Mat small;
+    cv::resize(grid, small, cv::Size(kThumbnailWidth, kThumbnailHeight), 0, 0, cv::INTER_AREA);
+    cv::Mat gray;
+    switch (small.channels()) {
+        case 1: gray = small; break;
+        case 3: cv::cvtColor(small, gray, cv::COLOR_BGR2GRAY); break;
+        case 4: cv::cvtColor(small, gray, cv::COLOR_BGRA2GRAY); break;
+        default: return 0;
+    }
+    if (!gray.isContinuous()) {
+        gray = gray.clone();
+    }
+
+    env->SetByteArrayRegion(out, 0, kThumbnailWidth * kThumbnailHeight, reinterpret_cast<const jbyte*>(gray.data));
+    return kThumbnailWidth * kThumbnailHeight;
+}
+
+JNIEXPORT jint JNICALL Java_org_atomstorm_coreml_CoreMLJNI_copyFrame
+  (JNIEnv *env, jclass, jlong imagePtr, jbyteArray out, jintArray shape)
+{
+    if (shape == nullptr || env->GetArrayLength(shape) < 3) {
+        return 0;
+    }
+
+    cv::Mat* image = reinterpret_cast<cv::Mat*>(imagePtr);
+    if (image == nullptr || image->empty() || image->dims != 2 || image->depth() != CV_8U) {
+        return 0;
+    }
+    const jint dims[3] = {image->cols, image->rows, image->channels()};
+    env->SetIntArrayRegion(shape, 0, 3, dims);
+
+    // Shape is written first so a caller whose array is too small knows what to allocate
+    const size_t rowBytes = static_cast<size_t>(image->cols) * image->elemSize();
+    const size_t bytes = rowBytes * image->rows;
+    if (out == nullptr || static_cast<size_t>(env->GetArrayLength(out)) < bytes) {
+        return -1;
+    }
+
+    if (image->isContinuous()) {
+        env->SetByteArrayRegion(out, 0, static_cast<jsize>(bytes), reinterpret_cast<const jbyte*>(image->data));
+    } else {
+        for (int y = 0; y < image->rows; y++) {
+            env->SetByteArrayRegion(out, static_cast<jsize>(rowBytes * y), static_cast<jsize>(rowBytes),
+                                    reinterpret_cast<const jbyte*>(image->ptr(y)));
+        }
+    }
+    return static_cast<jint>(bytes);
+}
+
+JNIEXPORT jlong JNICALL Java_org_atomstorm_coreml_CoreMLJNI_prepare
+  (JNIEnv *env, jclass, jlong detectorPtr, jlong imagePtr)
+{
+    if (detectorPtr == 0 || imagePtr == 0) {
+        return 0;
+    }
+
+    CoreMLContext* context = reinterpret_cast<CoreMLContext*>(detectorPtr);
+    if (context == nullptr || context->detector == nullptr) {
+        return 0;
+    }
+
+    cv::Mat* image = reinterpret_cast<cv::Mat*>(imagePtr);
+    return reinterpret_cast<jlong>(context->detector->prepare(*image));
+}
+
+JNIEXPORT jobjectArray JNICALL Java_org_atomstorm_coreml_CoreMLJNI_infer
+  (JNIEnv *env, jclass, jlong detectorPtr, jlong preparedPtr, jdouble nmsThresh, jdouble boxThresh)
+{
+    if (detectorPtr == 0 || preparedPtr == 0) {
+        return env->NewObjectArray(0, detectionResultClass, nullptr);
+    }
+
+    if (nmsThresh < 0.0 || nmsThresh > 1.0 || boxThresh < 0.0 || boxThresh > 1.0) {
+        return env->NewObjectArray(0, detectionResultClass, nullptr);
+    }
+
+    CoreMLContext* context = reinterpret_cast<CoreMLContext*>(detectorPtr);
+    if (context == nullptr || context->detector == nullptr) {
+        return env->NewObjectArray(0, detectionResultClass, nullptr);
+    }
+
+    PreparedFrame* frame = reinterpret_cast<PreparedFrame*>(preparedPtr);
+    return MakeJObjectArray(env, context->detector->infer(frame, nmsThresh, boxThresh));
+}
+
+JNIEXPORT void JNICALL Java_org_atomstorm_coreml_CoreMLJNI_releasePrepared
+  (JNIEnv *env, jclass, jlong preparedPtr)
+{
+    if (preparedPtr == 0) {
+        return;
+    }
+    CoreMLDetector::releaseFrame(reinterpret_cast<PreparedFrame*>(preparedPtr));
+}
+
+JNIEXPORT jobjectArray JNICALL Java_org_atomstorm_coreml_CoreMLJNI_detectBatch
+  (JNIEnv *env, jclass, jlong detectorPtr, jlongArray imagePtrs, jdouble nmsThresh, jdouble boxThresh)
+{
+    if (imagePtrs == nullptr) {
+        return env->NewObjectArray(0, detectionResultArrayClass, nullptr);
+    }
+
+    jsize count = env->GetArrayLength(imagePtrs);
+    jobjectArray jarr = env->NewObjectArray(count, detectionResultArrayClass, nullptr);
+    if (jarr == nullptr) {
+        return nullptr; // OutOfMemoryError is pending
+    }
+
+    std::vector<std::vector<DetectionResult>> results(count);
+    CoreMLContext* context = reinterpret_cast<CoreMLContext*>(detectorPtr);
+    bool valid = context != nullptr && context->detector != nullptr &&
+                 nmsThresh >= 0.0 && nmsThresh <= 1.0 && boxThresh >= 0.0 && boxThresh <= 1.0;
+
+    if (valid && count > 0) {
+        std::vector<jlong> ptrs(count);
+        env->GetLongArrayRegion(imagePtrs, 0, count, ptrs.data());
+
+        std::vector<const cv::Mat*> images;
+        images.reserve(count);
+        for (jlong ptr : ptrs) {
+            images.push_back(reinterpret_cast<const cv::Mat*>(ptr));
+        }
+        results = context->detector->detectBatch(images, nmsThresh, boxThresh);
+    }
+
+    for (jsize i = 0; i < count; i++) {
+        jobjectArray frameResults = MakeJObjectArray(env, results[i]);
+        if (frameResults == nullptr) {
+            return nullptr; // OutOfMemoryError is pending
+        }
+        env->SetObjectArrayElement(jarr, i, frameResults);
+        env->DeleteLocalRef(frameResults);
+    }
+
+    return jarr;
+}
+
+JNIEXPORT jobjectArray JNICALL Java_org_atomstorm_coreml_CoreMLJNI_detectAll
+  (JNIEnv *env, jclass, jlongArray detectorPtrs, jlong imagePtr, jdouble nmsThresh, jdouble boxThresh,
+   jboolean parallel)
+{
+    if (detectorPtrs == nullptr) {
+        return env->NewObjectArray(0, detectionResultArrayClass, nullptr);
+    }
+
+    jsize count = env->GetArrayLength(detectorPtrs);
+    jobjectArray jarr = env->NewObjectArray(count, detectionResultArrayClass, nullptr);
+    if (jarr == nullptr) {
+        return nullptr; // OutOfMemoryError is pending
+    }
+
+    std::vector<std::vector<DetectionResult>> results(count);
+    cv::Mat* image = reinterpret_cast<cv::Mat*>(imagePtr);
+    bool valid = image != nullptr &&
+                 nmsThresh >= 0.0 && nmsThresh <= 1.0 && boxThresh >= 0.0 && boxThresh <= 1.0;
+
+    if (valid && count > 0) {
+        std::vector<jlong> ptrs(count);
+        env->GetLongArrayRegion(detectorPtrs, 0, count, ptrs.data());
+
+        std::vector<CoreMLDetector*> detectors;
+        detectors.reserve(count);
+        for (jlong ptr : ptrs) {
+            CoreMLContext* context = reinterpret_cast<CoreMLContext*>(ptr);
+            detectors.push_back(context != nullptr ? context->detector : nullptr);
+        }
+        results = CoreMLDetector::detectAll(detectors, *image, nmsThresh, boxThresh, parallel == JNI_TRUE);
+    }
+
+    for (jsize i = 0; i < count; i++) {
+        jobjectArray modelResults = MakeJObjectArray(env, results[i]);
+        if (modelResults == nullptr) {
+            return nullptr; // OutOfMemoryError is pending
+        }
+        env->SetObjectArrayElement(jarr, i, modelResults);
+        env->DeleteLocalRef(modelResults);
+    }
+
+    return jarr;
+}
+
+} // extern "C"
\ No newline at end of file
@@ -10,15 +10,96 @@ extern "C" {
 JNIEXPORT jlong JNICALL Java_org_atomstorm_coreml_CoreMLJNI_create
   (JNIEnv *, jclass, jstring, jint, jint, jint);
 
+JNIEXPORT jint JNICALL Java_org_atomstorm_coreml_CoreMLJNI_compileModel
+  (JNIEnv *, jclass, jstring, jstring);
+
 JNIEXPORT jint JNICALL Java_org_atomstorm_coreml_CoreMLJNI_setCoreMask
+  (JNIEnv *, jclass, jlong, jobject);
+
+JNIEXPORT jint JNICALL Java_org_atomstorm_coreml_CoreMLJNI_getCoreMask
+  (JNIEnv *, jclass, jlong);
+
+JNIEXPORT jint JNICALL Java_org_atomstorm_coreml_CoreMLJNI_setFusedPreprocess
+  (JNIEnv *, jclass, jlong, jboolean);
+
+JNIEXPORT jboolean JNICALL Java_org_atomstorm_coreml_CoreMLJNI_isFusedPreprocess
+  (JNIEnv *, jclass, jlong);
+
+JNIEXPORT jint JNICALL Java_org_atomstorm_coreml_CoreMLJNI_setAspectMatching
+  (JNIEnv *, jclass, jlong, jboolean);
+
+JNIEXPORT jboolean JNICALL Java_org_atomstorm_coreml_CoreMLJNI_isAspectMatching
+  (JNIEnv *, jclass, jlong);
+
+JNIEXPORT jint JNICALL Java_org_atomstorm_coreml_CoreMLJNI_setFilter
+  (JNIEnv *, jclass, jlong, jfloat, jfloatArray, jintArray, jfloat, jfloat, jint);
+
+JNIEXPORT jint JNICALL Java_org_atomstorm_coreml_CoreMLJNI_getInputWidth
+  (JNIEnv *, jclass, jlong);
+
+JNIEXPORT jint JNICALL Java_org_atomstorm_coreml_CoreMLJNI_getInputHeight
+  (JNIEnv *, jclass, jlong);
+
+JNIEXPORT jintArray JNICALL Java_org_atomstorm_coreml_CoreMLJNI_getInputShapes
+  (JNIEnv *, jclass, jlong);
+
+JNIEXPORT jintArray JNICALL Java_org_atomstorm_coreml_CoreMLJNI_getInputSizeRange
+  (JNIEnv *, jclass, jlong);
+
+JNIEXPORT jintArray JNICALL Java_org_atomstorm_coreml_CoreMLJNI_getRawOutputShape
+  (JNIEnv *, jclass, jlong);
+
+JNIEXPORT jint JNICALL Java_org_atomstorm_coreml_CoreMLJNI_inferRaw
+  (JNIEnv *, jclass, jlong, jlong, jobject);
+
+JNIEXPORT jobject JNICALL Java_org_atomstorm_coreml_CoreMLJNI_getPoolStats
+  (JNIEnv *, jclass, jlong);
+
+JNIEXPORT jint JNICALL Java_org_atomstorm_coreml_CoreMLJNI_setPoolHighWaterMark
   (JNIEnv *, jclass, jlong, jint);
 
+JNIEXPORT jobject JNICALL Java_org_atomstorm_coreml_CoreMLJNI_getStats
+  (JNIEnv *, jclass, jlong);
+
+JNIEXPORT jint JNICALL Java_org_atomstorm_coreml_CoreMLJNI_resetStats
+  (JNIEnv *, jclass, jlong);
+
 JNIEXPORT void JNICALL Java_org_atomstorm_coreml_CoreMLJNI_destroy
   (JNIEnv *, jclass, jlong);
 
 JNIEXPORT jobjectArray JNICALL Java_org_atomstorm_coreml_CoreMLJNI_detect
   (JNIEnv *, jclass, jlong, jlong, jdouble, jdouble);
 
+JNIEXPORT jobjectArray JNICALL Java_org_atomstorm_coreml_CoreMLJNI_detectFrame
+  (JNIEnv *, jclass, jlong, jobject, jint, jint, jint, jint, jint, jint, jdouble, jdouble);
+
+JNIEXPORT jint JNICALL Java_org_atomstorm_coreml_CoreMLJNI_detectInto__JJDDLjava_nio_FloatBuffer_2
+  (JNIEnv *, jclass, jlong, jlong, jdouble, jdouble, jobject);
+
+JNIEXPORT jint JNICALL Java_org_atomstorm_coreml_CoreMLJNI_detectInto__JJDD_3F
+  (JNIEnv *, jclass, jlong, jlong, jdouble, jdouble, jfloatArray);
+
+JNIEXPORT jint JNICALL Java_org_atomstorm_coreml_CoreMLJNI_frameThumbnail
+  (JNIEnv *, jclass, jlong, jbyteArray);
+
+JNIEXPORT jint JNICALL Java_org_atomstorm_coreml_CoreMLJNI_copyFrame
+  (JNIEnv *, jclass, jlong, jbyteArray, jintArray);
+
+JNIEXPORT jlong JNICALL Java_org_atomstorm_coreml_CoreMLJNI_prepare
+  (JNIEnv *, jclass, jlong, jlong);
+
+JNIEXPORT jobjectArray JNICALL Java_org_atomstorm_coreml_CoreMLJNI_infer
+  (JNIEnv *, jclass, jlong, jlong, jdouble, jdouble);
+
+JNIEXPORT void JNICALL Java_org_atomstorm_coreml_CoreMLJNI_releasePrepared
+  (JNIEnv *, jclass, jlong);
+
+JNIEXPORT jobjectArray JNICALL Java_org_atomstorm_coreml_CoreMLJNI_detectBatch
+  (JNIEnv *, jclass, jlong, jlongArray, jdouble, jdouble);
+
+JNIEXPORT jobjectArray JNICALL Java_org_atomstorm_coreml_CoreMLJNI_detectAll
+  (JNIEnv *, jclass, jlongArray, jlong, jdouble, jdouble, jboolean);
+
 #ifdef __cplusplus
 }
 #endif
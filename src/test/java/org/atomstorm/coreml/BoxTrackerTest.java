@@ -0,0 +1,126 @@
+package org.atomstorm.coreml;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+public class BoxTrackerTest {
+
+    private static void detect(BoxTracker tracker, float[][] boxes, float[] scores, int[] classIds) {
+        float[] flat = new float[boxes.length * 4];
+        for (int i = 0; i < boxes.length; i++) {
+            System.arraycopy(boxes[i], 0, flat, 4 * i, 4);
+        }
+        tracker.predict();
+        tracker.update(flat, scores, classIds, boxes.length);
+    }
+
+    private static int indexOf(BoxTracker tracker, int id) {
+        for (int t = 0; t < tracker.size(); t++) {
+            if (tracker.id(t) == id) {
+                return t;
+            }
+        }
+        return -1;
+    }
+
+    @Test
+    public void testTracksKeepTheirIds() {
+        BoxTracker tracker = new BoxTracker(16, 0.3f, 2, 0.9f);
+        detect(tracker, new float[][] {{0, 0, 50, 50}, {200, 200, 260, 260}}, new float[] {0.9f, 0.8f}, new int[] {0, 1});
+        assertEquals(2, tracker.size());
+        int first = tracker.id(0);
+        int second = tracker.id(1);
+        assertNotEquals(first, second);
+
+        for (int frame = 1; frame <= 10; frame++) {
+            detect(tracker, new float[][] {{200 + frame, 200, 260 + frame, 260}, {frame, 0, 50 + frame, 50}},
+                new float[] {0.8f, 0.9f}, new int[] {1, 0});
+        }
+        assertEquals(2, tracker.size(), "Moving objects should stay on their tracks");
+        int t = indexOf(tracker, first);
+        assertTrue(t >= 0);
+        assertEquals(0, tracker.classId(t));
+        assertEquals(10, tracker.x1(t), 1.0);
+        assertEquals(1, tracker.classId(indexOf(tracker, second)));
+    }
+
+    @Test
+    public void testPredictionFollowsVelocity() {
+        BoxTracker tracker = new BoxTracker(4, 0.3f, 5, 0.9f);
+        for (int frame = 0; frame < 20; frame++) {
+            detect(tracker, new float[][] {{4 * frame, 100, 4 * frame + 80, 180}}, new float[] {0.9f}, new int[] {0});
+        }
+        // Coast for five frames; the box should keep moving at about 4 px per frame
+        for (int frame = 20; frame < 25; frame++) {
+            tracker.predict();
+        }
+        assertEquals(1, tracker.size());
+        assertEquals(4 * 24, tracker.x1(0), 3.0);
+        assertEquals(100, tracker.y1(0), 1.0);
+        assertEquals(80, tracker.x2(0) - tracker.x1(0), 2.0);
+        assertEquals(0.9f * Math.pow(0.9, 5), tracker.confidence(0), 1e-5, "Confidence decays while coasting");
+    }
+
+    @Test
+    public void testClassesDoNotMatch() {
+        BoxTracker tracker = new BoxTracker(4, 0.3f, 0, 1.0f);
+        detect(tracker, new float[][] {{0, 0, 50, 50}}, new float[] {0.9f}, new int[] {0});
+        int id = tracker.id(0);
+        detect(tracker, new float[][] {{0, 0, 50, 50}}, new float[] {0.9f}, new int[] {1});
+        assertEquals(1, tracker.size(), "The unmatched track should be dropped with maxMisses 0");
+        assertNotEquals(id, tracker.id(0));
+        assertEquals(1, tracker.classId(0));
+    }
+
+    @Test
+    public void testUnmatchedTracksExpire() {
+        BoxTracker tracker = new BoxTracker(4, 0.3f, 2, 1.0f);
+        // Tracks start best detection first
+        detect(tracker, new float[][] {{0, 0, 50, 50}, {100, 100, 150, 150}}, new float[] {0.6f, 0.9f}, new int[] {0, 0});
+        int kept = tracker.id(0);
+        int lost = tracker.id(1);
+        for (int i = 1; i <= 2; i++) {
+            detect(tracker, new float[][] {{100, 100, 150, 150}}, new float[] {0.9f}, new int[] {0});
+            assertEquals(2, tracker.size(), "A track survives up to maxMisses misses");
+            assertEquals(i, tracker.misses(indexOf(tracker, lost)));
+        }
+        detect(tracker, new float[][] {{100, 100, 150, 150}}, new float[] {0.9f}, new int[] {0});
+        assertEquals(1, tracker.size());
+        assertEquals(kept, tracker.id(0));
+    }
+
+    @Test
+    public void testBestDetectionWinsAContestedTrack() {
+        BoxTracker tracker = new BoxTracker(4, 0.3f, 2, 1.0f);
+        detect(tracker, new float[][] {{0, 0, 100, 100}}, new float[] {0.9f}, new int[] {0});
+        int id = tracker.id(0);
+        detect(tracker, new float[][] {{10, 10, 110, 110}, {2, 2, 102, 102}}, new float[] {0.5f, 0.95f}, new int[] {0, 0});
+        assertEquals(2, tracker.size());
+        int t = indexOf(tracker, id);
+        assertEquals(0.95f, tracker.confidence(t), "The higher scoring detection should keep the track");
+    }
+
+    @Test
+    public void testCapacityAndLowestConfidence() {
+        BoxTracker tracker = new BoxTracker(2, 0.3f, 2, 0.5f);
+        assertEquals(1.0f, tracker.lowestConfidence());
+        detect(tracker, new float[][] {{0, 0, 10, 10}, {20, 20, 30, 30}, {40, 40, 50, 50}},
+            new float[] {0.6f, 0.8f, 0.7f}, new int[] {0, 0, 0});
+        assertEquals(2, tracker.size(), "Only the best detections should be tracked when full");
+        assertEquals(0.7f, tracker.lowestConfidence());
+        tracker.predict();
+        assertEquals(0.35f, tracker.lowestConfidence(), 1e-6);
+        for (int t = 0; t < tracker.size(); t++) {
+            assertEquals(2 * tracker.confidence(t), tracker.score(t), 1e-6, "The score is not decayed");
+        }
+        assertTrue(tracker.decayedBelow(0.5f), "0.7 decayed to 0.35");
+        assertFalse(tracker.decayedBelow(0.3f));
+        assertFalse(tracker.decayedBelow(0.9f), "Tracks matched below the threshold do not count");
+
+        tracker.clear();
+        assertEquals(0, tracker.size());
+        assertThrows(IllegalArgumentException.class, () -> new BoxTracker(0, 0.3f, 1, 0.9f));
+        assertThrows(IllegalArgumentException.class, () -> new BoxTracker(4, 0.3f, 1, 0));
+    }
+}
@@ -1,8 +1,16 @@
 package org.atomstorm.coreml;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.atomstorm.coreml.CoreMLJNI.CoreMLResult;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 import org.opencv.core.Mat;
+import org.opencv.core.Rect2d;
 import static org.junit.jupiter.api.Assertions.*;
 
 public class CoreMLBaseTest {
@@ -92,4 +100,167 @@ public class CoreMLBaseTest {
         
         CoreMLJNI.destroy(ptr);
     }
-} 
\ No newline at end of file
+
+    @Test
+    public void testCompiledModelCache() throws Exception {
+        String modelPath = CoreMLTestUtils.loadTestModel("coral-640-640-yolov11s.mlmodel");
+        Path cacheDir = Files.createTempDirectory("coreml-cache");
+        CoreMLModelCache cache = new CoreMLModelCache(cacheDir, 1L << 30);
+
+        Path compiled = cache.prewarm(Paths.get(modelPath), CoreMLJNI.CoreMask.ALL);
+        assertTrue(Files.isDirectory(compiled), "Compiled model should be cached on disk");
+        assertEquals(1, cache.entries().size(), "Cache should hold one entry");
+
+        long ptr = cache.create(modelPath, 1, CoreMLJNI.ModelVersion.YOLO_V11, CoreMLJNI.CoreMask.ALL);
+        assertNotEquals(0, ptr, "Model creation from a cached compiled model should return valid pointer");
+        CoreMLJNI.destroy(ptr);
+        assertTrue(Files.isDirectory(compiled), "Destroying a detector must not delete the cached model");
+
+        cache.purgeAll();
+        assertEquals(0, cache.entries().size(), "Purge should empty the cache");
+    }
+
+    @Test
+    public void testCoreMaskHotSwap() throws Exception {
+        String modelPath = CoreMLTestUtils.loadTestModel("coral-640-640-yolov11s.mlmodel");
+        long ptr = CoreMLJNI.create(modelPath, 1, CoreMLJNI.ModelVersion.YOLO_V11.ordinal(), CoreMLJNI.CoreMask.ALL.ordinal());
+        assertEquals(CoreMLJNI.CoreMask.ALL.ordinal(), CoreMLJNI.getCoreMask(ptr), "Detector should load on the requested core mask");
+
+        Mat image = CoreMLTestUtils.loadTestImage("coral.jpeg");
+        CoreMLResult[] expected = CoreMLJNI.detect(ptr, image.getNativeObjAddr(), 0.5, 0.5);
+
+        // Keep detecting on another thread while the model is swapped
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicInteger mismatches = new AtomicInteger();
+        AtomicInteger frames = new AtomicInteger();
+        Thread detectThread = new Thread(() -> {
+            while (running.get()) {
+                if (!sameDetections(expected, CoreMLJNI.detect(ptr, image.getNativeObjAddr(), 0.5, 0.5), 0.5)) {
+                    mismatches.incrementAndGet();
+                }
+                frames.incrementAndGet();
+            }
+        });
+        detectThread.start();
+
+        int ret = CoreMLJNI.setCoreMaskAsync(ptr, CoreMLJNI.CoreMask.CPU_ONLY).get(60, TimeUnit.SECONDS);
+        assertEquals(0, ret, "Hot swap to CPU_ONLY should succeed");
+        assertEquals(CoreMLJNI.CoreMask.CPU_ONLY.ordinal(), CoreMLJNI.getCoreMask(ptr), "Swap should be visible once the future completes");
+
+        running.set(false);
+        detectThread.join();
+        assertTrue(frames.get() > 0, "Detection should keep running during the swap");
+        assertEquals(0, mismatches.get(), "Every frame should be served during the swap, within compute unit tolerance");
+
+        CoreMLJNI.destroy(ptr);
+        assertEquals(-1, CoreMLJNI.getCoreMask(0), "Invalid pointer should report -1");
+    }
+
+    @Test
+    public void testPixelBufferPoolStats() {
+        String modelPath = CoreMLTestUtils.loadTestModel("coral-640-640-yolov11s.mlmodel");
+        long ptr = CoreMLJNI.create(modelPath, 1, CoreMLJNI.ModelVersion.YOLO_V11.ordinal(), CoreMLJNI.CoreMask.ALL.ordinal());
+        Mat image = CoreMLTestUtils.loadTestImage("coral.jpeg");
+
+        CoreMLJNI.PoolStats initial = CoreMLJNI.getPoolStats(ptr);
+        assertEquals(0, initial.hits + initial.misses, "A new detector's pool should be unused");
+        assertEquals(5, initial.highWaterMark);
+
+        for (int i = 0; i < 5; i++) {
+            CoreMLJNI.detect(ptr, image.getNativeObjAddr(), 0.5, 0.5);
+        }
+        CoreMLJNI.PoolStats stats = CoreMLJNI.getPoolStats(ptr);
+        assertEquals(1, stats.misses, "Sequential detections should reuse one buffer: " + stats);
+        assertEquals(4, stats.hits);
+        assertEquals(0, stats.outstanding);
+        assertEquals(1, stats.idle);
+
+        // Holding more frames than the high-water mark evicts the excess on release
+        assertEquals(0, CoreMLJNI.setPoolHighWaterMark(ptr, 1));
+        long[] prepared = new long[3];
+        for (int i = 0; i < prepared.length; i++) {
+            prepared[i] = CoreMLJNI.prepare(ptr, image.getNativeObjAddr());
+        }
+        assertEquals(3, CoreMLJNI.getPoolStats(ptr).outstanding);
+        for (long frame : prepared) {
+            CoreMLJNI.releasePrepared(frame);
+        }
+        stats = CoreMLJNI.getPoolStats(ptr);
+        assertEquals(0, stats.outstanding);
+        assertEquals(1, stats.idle);
+        assertEquals(2, stats.evictions);
+
+        assertEquals(-1, CoreMLJNI.setPoolHighWaterMark(ptr, -1), "A negative high-water mark should be rejected");
+        assertNull(CoreMLJNI.getPoolStats(0), "An invalid pointer should yield no stats");
+        CoreMLJNI.destroy(ptr);
+    }
+
+    @Test
+    public void testStageStats() {
+        String modelPath = CoreMLTestUtils.loadTestModel("coral-640-640-yolov11s.mlmodel");
+        long ptr = CoreMLJNI.create(modelPath, 1, CoreMLJNI.ModelVersion.YOLO_V11.ordinal(), CoreMLJNI.CoreMask.ALL.ordinal());
+        Mat image = CoreMLTestUtils.loadTestImage("coral.jpeg");
+
+        CoreMLJNI.DetectorStats initial = CoreMLJNI.getStats(ptr);
+        assertEquals(0, initial.frames, "Warm-up should not be counted: " + initial);
+        assertEquals(0, initial.total.count);
+
+        for (int i = 0; i < 5; i++) {
+            CoreMLJNI.detect(ptr, image.getNativeObjAddr(), 0.5, 0.5);
+        }
+        CoreMLJNI.DetectorStats stats = CoreMLJNI.getStats(ptr);
+        assertEquals(5, stats.frames, "Every call should be counted: " + stats);
+        assertEquals(0, stats.errors, "No call should fail: " + stats);
+        assertEquals(5, stats.preprocess.count);
+        assertEquals(5, stats.inference.count);
+        assertEquals(5, stats.total.count);
+        assertTrue(stats.inference.p50Ms > 0 && stats.inference.p50Ms <= stats.inference.p99Ms);
+        assertTrue(stats.inference.p99Ms <= stats.inference.maxMs);
+        assertTrue(stats.total.maxMs >= stats.inference.maxMs, "A whole call includes its inference: " + stats);
+
+        assertEquals(0, CoreMLJNI.resetStats(ptr));
+        stats = CoreMLJNI.getStats(ptr);
+        assertEquals(0, stats.frames);
+        assertEquals(0, stats.inference.count);
+
+        assertNull(CoreMLJNI.getStats(0), "An invalid pointer should yield no stats");
+        assertEquals(-1, CoreMLJNI.resetStats(0));
+        CoreMLJNI.destroy(ptr);
+    }
+
+    // Compute units do not produce bit-identical outputs, so detections agree when every one
+    // clear of the threshold on either side has a counterpart of the same class with a close
+    // box and score
+    private static boolean sameDetections(CoreMLResult[] expected, CoreMLResult[] actual, double boxThresh) {
+        return covered(expected, actual, boxThresh) && covered(actual, expected, boxThresh);
+    }
+
+    private static boolean covered(CoreMLResult[] from, CoreMLResult[] to, double boxThresh) {
+        for (CoreMLResult a : from) {
+            if (a.conf < boxThresh + 0.05) {
+                continue;
+            }
+            boolean found = false;
+            for (CoreMLResult b : to) {
+                if (a.class_id == b.class_id && Math.abs(a.conf - b.conf) <= 0.05 && iou(a.rect, b.rect) >= 0.9) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static double iou(Rect2d a, Rect2d b) {
+        double w = Math.min(a.x + a.width, b.x + b.width) - Math.max(a.x, b.x);
+        double h = Math.min(a.y + a.height, b.y + b.height) - Math.max(a.y, b.y);
+        if (w <= 0 || h <= 0) {
+            return 0;
+        }
+        double inter = w * h;
+        return inter / (a.area() + b.area() - inter);
+    }
+}
@@ -1,5 +1,10 @@
 package org.atomstorm.coreml;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 import org.opencv.core.*;
@@ -134,4 +139,364 @@ public class CoreMLDetectionTest {
         
         CoreMLJNI.destroy(ptr);
     }
-} 
\ No newline at end of file
+
+    @Test
+    public void testThresholdChangesBetweenFrames() {
+        String modelPath = CoreMLTestUtils.loadTestModel("coral-640-640-yolov11s.mlmodel");
+        long ptr = CoreMLJNI.create(modelPath, 1, CoreMLJNI.ModelVersion.YOLO_V11.ordinal(), CoreMLJNI.CoreMask.ALL.ordinal());
+        Mat image = CoreMLTestUtils.loadTestImage("coral.jpeg");
+
+        // Inputs are reused across frames; changed thresholds must still reach the model
+        var low = CoreMLJNI.detect(ptr, image.getNativeObjAddr(), 0.5, 0.1);
+        var high = CoreMLJNI.detect(ptr, image.getNativeObjAddr(), 0.5, 0.9);
+        var lowAgain = CoreMLJNI.detect(ptr, image.getNativeObjAddr(), 0.5, 0.1);
+
+        assertTrue(high.length <= low.length, "A higher confidence threshold should not add detections");
+        assertArrayEquals(low, lowAgain, "Returning to a threshold should reproduce its detections");
+        for (var result : high) {
+            assertTrue(result.conf >= 0.9, "Detections below the current threshold should be filtered: " + result);
+        }
+
+        CoreMLJNI.destroy(ptr);
+    }
+
+    @Test
+    public void testDetectIntoMatchesDetect() {
+        String modelPath = CoreMLTestUtils.loadTestModel("coral-640-640-yolov11s.mlmodel");
+        long ptr = CoreMLJNI.create(modelPath, 1, CoreMLJNI.ModelVersion.YOLO_V11.ordinal(), CoreMLJNI.CoreMask.ALL.ordinal());
+        Mat image = CoreMLTestUtils.loadTestImage("coral.jpeg");
+
+        var expected = CoreMLJNI.detect(ptr, image.getNativeObjAddr(), 0.5, 0.5);
+
+        // Direct buffer path
+        DetectionView view = new DetectionView(64);
+        int count = view.detect(ptr, image.getNativeObjAddr(), 0.5, 0.5);
+        assertEquals(expected.length, count, "detectInto should return the same number of detections as detect");
+        assertArrayEquals(expected, view.toResults(), "detectInto rows should match detect results");
+
+        // Array path
+        float[] rows = new float[64 * DetectionView.STRIDE];
+        count = CoreMLJNI.detectInto(ptr, image.getNativeObjAddr(), 0.5, 0.5, rows);
+        assertEquals(expected.length, count, "Array detectInto should return the same number of detections as detect");
+
+        // Invalid arguments and undersized buffers
+        assertEquals(0, CoreMLJNI.detectInto(ptr, 0, 0.5, 0.5, view.buffer()), "Invalid image should write no rows");
+        assertEquals(0, CoreMLJNI.detectInto(ptr, image.getNativeObjAddr(), 0.5, 0.5, new float[DetectionView.STRIDE - 1]),
+            "Buffer smaller than one row should write no rows");
+
+        CoreMLJNI.destroy(ptr);
+    }
+
+    @Test
+    public void testPipelinedDetectionMatchesDetect() throws Exception {
+        String modelPath = CoreMLTestUtils.loadTestModel("coral-640-640-yolov11s.mlmodel");
+        long ptr = CoreMLJNI.create(modelPath, 1, CoreMLJNI.ModelVersion.YOLO_V11.ordinal(), CoreMLJNI.CoreMask.ALL.ordinal());
+        Mat image = CoreMLTestUtils.loadTestImage("coral.jpeg");
+
+        var expected = CoreMLJNI.detect(ptr, image.getNativeObjAddr(), 0.5, 0.5);
+
+        try (CoreMLPipeline pipeline = new CoreMLPipeline(ptr, 3, CoreMLPipeline.OverflowPolicy.BLOCK)) {
+            var futures = new ArrayList<CompletableFuture<CoreMLJNI.CoreMLResult[]>>();
+            for (int i = 0; i < 10; i++) {
+                futures.add(pipeline.submit(image.getNativeObjAddr(), 0.5, 0.5));
+            }
+            for (var future : futures) {
+                assertArrayEquals(expected, future.get(), "Pipelined detection should match synchronous detection");
+            }
+        }
+
+        assertEquals(0, CoreMLJNI.prepare(ptr, 0), "Preparing an invalid image should fail");
+        CoreMLJNI.destroy(ptr);
+    }
+
+    @Test
+    public void testDetectBatchMatchesDetect() {
+        String modelPath = CoreMLTestUtils.loadTestModel("coral-640-640-yolov11s.mlmodel");
+        long ptr = CoreMLJNI.create(modelPath, 1, CoreMLJNI.ModelVersion.YOLO_V11.ordinal(), CoreMLJNI.CoreMask.ALL.ordinal());
+        Mat image = CoreMLTestUtils.loadTestImage("coral.jpeg");
+        Mat empty = new Mat();
+
+        var expected = CoreMLJNI.detect(ptr, image.getNativeObjAddr(), 0.5, 0.5);
+        long[] frames = {image.getNativeObjAddr(), empty.getNativeObjAddr(), image.getNativeObjAddr()};
+        var batched = CoreMLJNI.detectBatch(ptr, frames, 0.5, 0.5);
+
+        assertEquals(3, batched.length, "Batch should return one result array per frame");
+        assertArrayEquals(expected, batched[0], "Batched detection should match single-frame detection");
+        assertEquals(0, batched[1].length, "An empty frame should yield no detections");
+        assertArrayEquals(expected, batched[2], "Batched detection should match single-frame detection");
+
+        CoreMLMicroBatcher batcher = new CoreMLMicroBatcher(ptr, 4, 1, TimeUnit.MILLISECONDS, 0.5, 0.5);
+        assertArrayEquals(expected, batcher.detect(image.getNativeObjAddr()), "Micro-batched detection should match");
+
+        empty.release();
+        CoreMLJNI.destroy(ptr);
+    }
+
+    @Test
+    public void testDetectAllMatchesDetect() {
+        long coral = CoreMLJNI.create(CoreMLTestUtils.loadTestModel("coral-640-640-yolov11s.mlmodel"), 1,
+            CoreMLJNI.ModelVersion.YOLO_V11.ordinal(), CoreMLJNI.CoreMask.ALL.ordinal());
+        long algae = CoreMLJNI.create(CoreMLTestUtils.loadTestModel("algae-640-640-yolov11s.mlmodel"), 1,
+            CoreMLJNI.ModelVersion.YOLO_V11.ordinal(), CoreMLJNI.CoreMask.ALL.ordinal());
+        Mat image = CoreMLTestUtils.loadTestImage("coral.jpeg");
+
+        var expectedCoral = CoreMLJNI.detect(coral, image.getNativeObjAddr(), 0.5, 0.5);
+        var expectedAlgae = CoreMLJNI.detect(algae, image.getNativeObjAddr(), 0.5, 0.5);
+        long coralFrames = CoreMLJNI.getStats(coral).preprocess.count;
+        long algaeFrames = CoreMLJNI.getStats(algae).preprocess.count;
+
+        for (boolean parallel : new boolean[] {false, true}) {
+            var results = CoreMLJNI.detectAll(new long[] {coral, 0, algae}, image.getNativeObjAddr(), 0.5, 0.5, parallel);
+            assertEquals(3, results.length, "Should return one result array per detector");
+            assertArrayEquals(expectedCoral, results[0], "Shared preprocessing should match separate detection");
+            assertEquals(0, results[1].length, "An invalid detector should yield no detections");
+            assertArrayEquals(expectedAlgae, results[2], "Shared preprocessing should match separate detection");
+        }
+        assertEquals(coralFrames + 2, CoreMLJNI.getStats(coral).preprocess.count, "The first model should prepare the frame");
+        assertEquals(algaeFrames, CoreMLJNI.getStats(algae).preprocess.count, "Models of the same size should share it");
+
+        var invalid = CoreMLJNI.detectAll(new long[] {coral, algae}, 0, 0.5, 0.5, true);
+        assertEquals(2, invalid.length);
+        assertEquals(0, invalid[0].length + invalid[1].length, "An invalid image should yield no detections");
+
+        CoreMLJNI.destroy(coral);
+        CoreMLJNI.destroy(algae);
+    }
+
+    @Test
+    public void testFrameChangeCacheSkipsStaticFrames() {
+        String modelPath = CoreMLTestUtils.loadTestModel("coral-640-640-yolov11s.mlmodel");
+        long ptr = CoreMLJNI.create(modelPath, 1, CoreMLJNI.ModelVersion.YOLO_V11.ordinal(), CoreMLJNI.CoreMask.ALL.ordinal());
+        Mat empty = CoreMLTestUtils.loadTestImage("empty.png");
+        Mat coral = CoreMLTestUtils.loadTestImage("coral.jpeg");
+
+        byte[] thumbnail = new byte[FrameChangeCache.THUMBNAIL_WIDTH * FrameChangeCache.THUMBNAIL_HEIGHT];
+        assertEquals(thumbnail.length, CoreMLJNI.frameThumbnail(coral.getNativeObjAddr(), thumbnail));
+        assertEquals(0, CoreMLJNI.frameThumbnail(new Mat().getNativeObjAddr(), thumbnail), "An empty image cannot be sampled");
+        assertEquals(-1, CoreMLJNI.frameThumbnail(coral.getNativeObjAddr(), new byte[8]), "A short array should be rejected");
+
+        var expected = CoreMLJNI.detect(ptr, coral.getNativeObjAddr(), 0.5, 0.5);
+        FrameChangeCache cache = new FrameChangeCache(ptr, 4, 30);
+        long frames = CoreMLJNI.getStats(ptr).frames;
+        for (int i = 0; i < 5; i++) {
+            cache.detect(empty.getNativeObjAddr(), 0.5, 0.5);
+        }
+        assertEquals(frames + 1, CoreMLJNI.getStats(ptr).frames, "Repeated static frames should run inference once");
+        assertArrayEquals(expected, cache.detect(coral.getNativeObjAddr(), 0.5, 0.5), "A changed frame should be detected");
+        assertEquals(4, cache.getStats().hits);
+        assertTrue(cache.getStats().meanHashMs < cache.getStats().meanInferenceMs, "Hashing should be cheaper than inference");
+
+        cache.close();
+    }
+
+    @Test
+    public void testFixedSizeModelIgnoresAspectMatching() {
+        String modelPath = CoreMLTestUtils.loadTestModel("coral-640-640-yolov11s.mlmodel");
+        long ptr = CoreMLJNI.create(modelPath, 1, CoreMLJNI.ModelVersion.YOLO_V11.ordinal(), CoreMLJNI.CoreMask.ALL.ordinal());
+        Mat image = CoreMLTestUtils.loadTestImage("coral.jpeg");
+
+        InputShapes shapes = InputShapes.of(ptr);
+        assertNotNull(shapes);
+        assertFalse(shapes.isFlexible(), "The test model has a single input size: " + shapes);
+        assertArrayEquals(new int[] {640, 640}, CoreMLJNI.getInputShapes(ptr));
+        assertNull(CoreMLJNI.getInputSizeRange(ptr));
+
+        assertTrue(CoreMLJNI.isAspectMatching(ptr), "Aspect matching should be on by default");
+        var matched = CoreMLJNI.detect(ptr, image.getNativeObjAddr(), 0.5, 0.5);
+        assertEquals(0, CoreMLJNI.setAspectMatching(ptr, false));
+        assertFalse(CoreMLJNI.isAspectMatching(ptr));
+        assertArrayEquals(matched, CoreMLJNI.detect(ptr, image.getNativeObjAddr(), 0.5, 0.5),
+            "A single-size model letterboxes the same either way");
+
+        assertNull(InputShapes.of(0));
+        assertEquals(-1, CoreMLJNI.setAspectMatching(0, true));
+        CoreMLJNI.destroy(ptr);
+    }
+
+    @Test
+    public void testFusedPreprocessMatchesOriginalPath() {
+        String modelPath = CoreMLTestUtils.loadTestModel("coral-640-640-yolov11s.mlmodel");
+        long ptr = CoreMLJNI.create(modelPath, 1, CoreMLJNI.ModelVersion.YOLO_V11.ordinal(), CoreMLJNI.CoreMask.ALL.ordinal());
+        Mat image = CoreMLTestUtils.loadTestImage("coral.jpeg");
+
+        assertTrue(CoreMLJNI.isFusedPreprocess(ptr), "Fused preprocessing should be on by default");
+        var fused = CoreMLJNI.detect(ptr, image.getNativeObjAddr(), 0.5, 0.5);
+
+        assertEquals(0, CoreMLJNI.setFusedPreprocess(ptr, false));
+        assertFalse(CoreMLJNI.isFusedPreprocess(ptr));
+        var original = CoreMLJNI.detect(ptr, image.getNativeObjAddr(), 0.5, 0.5);
+
+        assertArrayEquals(original, fused, "Both preprocessing paths should feed the model identical pixels");
+        assertEquals(-1, CoreMLJNI.setFusedPreprocess(0, true), "An invalid pointer should be rejected");
+        CoreMLJNI.destroy(ptr);
+    }
+
+    // Pack a BGR image as NV12, via OpenCV's planar I420
+    private static ByteBuffer toNv12(Mat bgr) {
+        Mat i420 = new Mat();
+        Imgproc.cvtColor(bgr, i420, Imgproc.COLOR_BGR2YUV_I420);
+        byte[] planar = new byte[(int) i420.total()];
+        i420.get(0, 0, planar);
+        i420.release();
+        int luma = bgr.cols() * bgr.rows();
+        int quarter = luma / 4;
+        ByteBuffer frame = ByteBuffer.allocateDirect(luma + 2 * quarter);
+        frame.put(planar, 0, luma);
+        for (int i = 0; i < quarter; i++) {
+            frame.put(planar[luma + i]);
+            frame.put(planar[luma + quarter + i]);
+        }
+        return frame;
+    }
+
+    private static void assertSameObjects(CoreMLJNI.CoreMLResult[] expected, CoreMLJNI.CoreMLResult[] actual, String message) {
+        assertTrue(actual.length > 0, message + ": should detect");
+        for (var want : expected) {
+            boolean found = false;
+            for (var got : actual) {
+                found |= got.class_id == want.class_id
+                    && Math.abs(got.rect.x - want.rect.x) <= 10 && Math.abs(got.rect.y - want.rect.y) <= 10
+                    && Math.abs(got.rect.width - want.rect.width) <= 10 && Math.abs(got.rect.height - want.rect.height) <= 10;
+            }
+            assertTrue(found, message + ": missing " + want);
+        }
+    }
+
+    @Test
+    public void testRawFramesMatchDetect() {
+        String modelPath = CoreMLTestUtils.loadTestModel("coral-640-640-yolov11s.mlmodel");
+        long ptr = CoreMLJNI.create(modelPath, 1, CoreMLJNI.ModelVersion.YOLO_V11.ordinal(), CoreMLJNI.CoreMask.ALL.ordinal());
+        Mat image = CoreMLTestUtils.loadTestImage("coral.jpeg");
+        // NV12 needs even dimensions
+        image = image.submat(0, image.rows() & ~1, 0, image.cols() & ~1).clone();
+        var expected = CoreMLJNI.detect(ptr, image.getNativeObjAddr(), 0.5, 0.5);
+
+        // BGRA frames take the same letterbox path as a Mat
+        Mat bgra = new Mat();
+        Imgproc.cvtColor(image, bgra, Imgproc.COLOR_BGR2BGRA);
+        byte[] pixels = new byte[(int) (bgra.total() * bgra.channels())];
+        bgra.get(0, 0, pixels);
+        ByteBuffer frame = ByteBuffer.allocateDirect(pixels.length).put(pixels);
+        var desc = FrameDescriptor.create(FrameDescriptor.Format.BGRA, image.cols(), image.rows());
+        assertArrayEquals(expected, CoreMLJNI.detect(ptr, frame, desc, 0.5, 0.5), "BGRA frames should match detect");
+
+        // YUV loses a little colour precision, so only the objects must match
+        desc = FrameDescriptor.create(FrameDescriptor.Format.NV12, image.cols(), image.rows());
+        assertSameObjects(expected, CoreMLJNI.detect(ptr, toNv12(image), desc, 0.5, 0.5), "NV12 frame");
+
+        // A frame of the model input size goes to Core ML as is
+        Mat input = new Mat();
+        Imgproc.resize(image, input, new Size(CoreMLJNI.getInputWidth(ptr), CoreMLJNI.getInputHeight(ptr)));
+        var inputExpected = CoreMLJNI.detect(ptr, input.getNativeObjAddr(), 0.5, 0.5);
+        desc = FrameDescriptor.create(FrameDescriptor.Format.NV12, input.cols(), input.rows());
+        assertSameObjects(inputExpected, CoreMLJNI.detect(ptr, toNv12(input), desc, 0.5, 0.5), "Input-sized NV12 frame");
+
+        assertThrows(IllegalArgumentException.class, () -> CoreMLJNI.detect(ptr, ByteBuffer.allocateDirect(16),
+            FrameDescriptor.create(FrameDescriptor.Format.GRAY8, 640, 480), 0.5, 0.5), "Undersized buffers should be rejected");
+
+        bgra.release();
+        input.release();
+        CoreMLJNI.destroy(ptr);
+    }
+
+    @Test
+    public void testRawBgraFrameWithoutFusedPreprocess() {
+        String modelPath = CoreMLTestUtils.loadTestModel("coral-640-640-yolov11s.mlmodel");
+        long ptr = CoreMLJNI.create(modelPath, 1, CoreMLJNI.ModelVersion.YOLO_V11.ordinal(), CoreMLJNI.CoreMask.ALL.ordinal());
+        assertEquals(0, CoreMLJNI.setFusedPreprocess(ptr, false));
+        Mat image = CoreMLTestUtils.loadTestImage("coral.jpeg");
+        assertNotEquals(CoreMLJNI.getInputWidth(ptr), image.cols(), "The frame must need letterboxing");
+        var expected = CoreMLJNI.detect(ptr, image.getNativeObjAddr(), 0.5, 0.5);
+        assertTrue(expected.length > 0);
+
+        Mat bgra = new Mat();
+        Imgproc.cvtColor(image, bgra, Imgproc.COLOR_BGR2BGRA);
+        byte[] pixels = new byte[(int) (bgra.total() * bgra.channels())];
+        bgra.get(0, 0, pixels);
+        ByteBuffer frame = ByteBuffer.allocateDirect(pixels.length).put(pixels);
+        var desc = FrameDescriptor.create(FrameDescriptor.Format.BGRA, image.cols(), image.rows());
+        assertArrayEquals(expected, CoreMLJNI.detect(ptr, frame, desc, 0.5, 0.5),
+            "BGRA frames should be letterboxed like a Mat without fused preprocessing");
+        assertArrayEquals(expected, CoreMLJNI.detect(ptr, bgra.getNativeObjAddr(), 0.5, 0.5),
+            "BGRA Mats should be letterboxed like BGR ones without fused preprocessing");
+
+        bgra.release();
+        CoreMLJNI.destroy(ptr);
+    }
+
+    @Test
+    public void testRawNv12FrameCoordinatesMatchBgr() {
+        String modelPath = CoreMLTestUtils.loadTestModel("coral-640-640-yolov11s.mlmodel");
+        long ptr = CoreMLJNI.create(modelPath, 1, CoreMLJNI.ModelVersion.YOLO_V11.ordinal(), CoreMLJNI.CoreMask.ALL.ordinal());
+        Mat image = CoreMLTestUtils.loadTestImage("coral.jpeg");
+        image = image.submat(0, image.rows() & ~1, 0, image.cols() & ~1).clone();
+
+        // The same pixels as BGR, so only the letterbox placement can differ
+        ByteBuffer nv12 = toNv12(image);
+        byte[] packed = new byte[nv12.capacity()];
+        nv12.duplicate().rewind().get(packed);
+        Mat yuv = new Mat(image.rows() * 3 / 2, image.cols(), CvType.CV_8UC1);
+        yuv.put(0, 0, packed);
+        Mat bgr = new Mat();
+        Imgproc.cvtColor(yuv, bgr, Imgproc.COLOR_YUV2BGR_NV12);
+        var expected = CoreMLJNI.detect(ptr, bgr.getNativeObjAddr(), 0.5, 0.5);
+        assertTrue(expected.length > 0);
+
+        var desc = FrameDescriptor.create(FrameDescriptor.Format.NV12, image.cols(), image.rows());
+        var actual = CoreMLJNI.detect(ptr, nv12, desc, 0.5, 0.5);
+        for (var want : expected) {
+            // The two colour conversions may round differently; skip boxes near the threshold
+            if (want.conf < 0.55) {
+                continue;
+            }
+            boolean found = false;
+            for (var got : actual) {
+                found |= got.class_id == want.class_id
+                    && Math.abs(got.rect.x - want.rect.x) <= 2 && Math.abs(got.rect.y - want.rect.y) <= 2
+                    && Math.abs(got.rect.width - want.rect.width) <= 2 && Math.abs(got.rect.height - want.rect.height) <= 2;
+            }
+            assertTrue(found, "NV12 boxes should land where the BGR ones do: missing " + want);
+        }
+
+        yuv.release();
+        bgr.release();
+        CoreMLJNI.destroy(ptr);
+    }
+
+    @Test
+    public void testNativeFilterMatchesReference() {
+        String modelPath = CoreMLTestUtils.loadTestModel("coral-640-640-yolov11s.mlmodel");
+        long ptr = CoreMLJNI.create(modelPath, 1, CoreMLJNI.ModelVersion.YOLO_V11.ordinal(), CoreMLJNI.CoreMask.ALL.ordinal());
+        Mat image = CoreMLTestUtils.loadTestImage("coral.jpeg");
+
+        float[] all = new float[256 * DetectionView.STRIDE];
+        int count = CoreMLJNI.detectInto(ptr, image.getNativeObjAddr(), 0.5, 0.1, all);
+        for (int i = 0; i < count; i++) {
+            assertTrue(all[i * DetectionView.STRIDE + DetectionView.CONF] >= 0.1f, "Boxes below boxThresh should be dropped");
+        }
+
+        DetectionFilter[] filters = {
+            new DetectionFilter(0.3f, null, null, 0, 0, 0),
+            new DetectionFilter(0, new float[] {0.6f}, null, 0, 0, 0),
+            new DetectionFilter(0, null, new int[] {1}, 0, 0, 0),
+            new DetectionFilter(0, null, null, 2000, 50000, 0),
+            new DetectionFilter(0.2f, null, null, 0, 0, 1),
+        };
+        for (DetectionFilter filter : filters) {
+            float[] expected = all.clone();
+            int kept = filter.apply(expected, count);
+
+            assertEquals(0, CoreMLJNI.setFilter(ptr, filter));
+            float[] actual = new float[all.length];
+            assertEquals(kept, CoreMLJNI.detectInto(ptr, image.getNativeObjAddr(), 0.5, 0.1, actual), filter.toString());
+            assertArrayEquals(Arrays.copyOf(expected, kept * DetectionView.STRIDE),
+                Arrays.copyOf(actual, kept * DetectionView.STRIDE), filter.toString());
+        }
+
+        assertEquals(0, CoreMLJNI.setFilter(ptr, null));
+        assertEquals(count, CoreMLJNI.detectInto(ptr, image.getNativeObjAddr(), 0.5, 0.1, new float[all.length]),
+            "Clearing the filter should keep every detection again");
+        assertEquals(-1, CoreMLJNI.setFilter(0, DetectionFilter.NONE), "An invalid pointer should be rejected");
+        CoreMLJNI.destroy(ptr);
+    }
+}
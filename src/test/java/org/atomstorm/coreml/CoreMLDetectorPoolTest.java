@@ -0,0 +1,187 @@
+package org.atomstorm.coreml;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.atomstorm.coreml.CoreMLJNI.CoreMLResult;
+import org.junit.jupiter.api.Test;
+
+public class CoreMLDetectorPoolTest {
+
+    /**
+     * Fake instance: reports its own index as the class ID, optionally sleeps to simulate
+     * inference, and can be held on a latch. Fails if two threads ever use it at once.
+     */
+    private static class FakeDetector implements CoreMLDetectorPool.Detector {
+        final int index;
+        final long sleepMillis;
+        final AtomicInteger active = new AtomicInteger();
+        final AtomicInteger calls = new AtomicInteger();
+        final List<Long> images = Collections.synchronizedList(new ArrayList<>());
+        volatile CountDownLatch gate = new CountDownLatch(0);
+        final CountDownLatch started = new CountDownLatch(1);
+        volatile boolean closed;
+
+        FakeDetector(int index, long sleepMillis) {
+            this.index = index;
+            this.sleepMillis = sleepMillis;
+        }
+
+        @Override
+        public CoreMLResult[] detect(long imagePtr, double nmsThresh, double boxThresh) {
+            assertFalse(closed, "Detector used after close");
+            assertEquals(1, active.incrementAndGet(), "Instance used by two threads at once");
+            try {
+                started.countDown();
+                images.add(imagePtr);
+                assertTrue(gate.await(10, TimeUnit.SECONDS), "Detector gate timed out");
+                Thread.sleep(sleepMillis);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            } finally {
+                active.decrementAndGet();
+            }
+            calls.incrementAndGet();
+            return new CoreMLResult[] {new CoreMLResult(0, 0, 1, 1, 1.0f, index)};
+        }
+
+        @Override
+        public void close() {
+            assertFalse(closed, "Detector closed twice");
+            closed = true;
+        }
+    }
+
+    private static List<FakeDetector> fakes(int count, long sleepMillis) {
+        List<FakeDetector> detectors = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            detectors.add(new FakeDetector(i, sleepMillis));
+        }
+        return detectors;
+    }
+
+    @Test
+    public void testConcurrentCallersUseAllInstances() throws Exception {
+        int numInstances = Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
+        List<FakeDetector> detectors = fakes(numInstances, 0);
+        CountDownLatch gate = new CountDownLatch(1);
+        detectors.forEach(d -> d.gate = gate);
+
+        try (CoreMLDetectorPool pool = new CoreMLDetectorPool(detectors, 10, TimeUnit.SECONDS)) {
+            ExecutorService executor = Executors.newFixedThreadPool(numInstances);
+            List<Future<CoreMLResult[]>> futures = new ArrayList<>();
+            for (int i = 0; i < numInstances; i++) {
+                long image = i;
+                futures.add(executor.submit(() -> pool.detect(image, 0.5, 0.5)));
+            }
+            // Every instance is running a frame at the same time
+            for (FakeDetector d : detectors) {
+                assertTrue(d.started.await(10, TimeUnit.SECONDS), "Instance " + d.index + " never used");
+            }
+            gate.countDown();
+            for (Future<CoreMLResult[]> future : futures) {
+                assertEquals(1, future.get(10, TimeUnit.SECONDS).length);
+            }
+            executor.shutdown();
+
+            for (CoreMLDetectorPool.InstanceStats stats : pool.getInstanceStats()) {
+                assertEquals(1, stats.detections, stats.toString());
+            }
+            assertEquals(numInstances, pool.getWaitStats().dispatched);
+        }
+        detectors.forEach(d -> assertTrue(d.closed, "Pool should close its detectors"));
+    }
+
+    @Test
+    public void testLeastLoadedPrefersFasterInstance() {
+        List<FakeDetector> detectors = new ArrayList<>();
+        detectors.add(new FakeDetector(0, 1));
+        detectors.add(new FakeDetector(1, 8));
+        try (CoreMLDetectorPool pool = new CoreMLDetectorPool(detectors, 10, TimeUnit.SECONDS)) {
+            for (int i = 0; i < 40; i++) {
+                pool.detect(i, 0.5, 0.5);
+            }
+            List<CoreMLDetectorPool.InstanceStats> stats = pool.getInstanceStats();
+            assertTrue(stats.get(0).detections > 2 * stats.get(1).detections,
+                "The faster instance should take most frames: " + stats);
+            assertTrue(stats.get(1).detections > 0, "The slower instance should still be used: " + stats);
+        }
+    }
+
+    @Test
+    public void testWaitIsBoundedAndCounted() throws Exception {
+        List<FakeDetector> detectors = fakes(1, 0);
+        FakeDetector only = detectors.get(0);
+        only.gate = new CountDownLatch(1);
+        try (CoreMLDetectorPool pool = new CoreMLDetectorPool(detectors, 50, TimeUnit.MILLISECONDS)) {
+            Thread holder = new Thread(() -> pool.detect(1, 0.5, 0.5));
+            holder.start();
+            assertTrue(only.started.await(10, TimeUnit.SECONDS));
+
+            long start = System.nanoTime();
+            assertThrows(RejectedExecutionException.class, () -> pool.detect(2, 0.5, 0.5));
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50), "Should wait the full bound");
+            assertEquals(1, pool.getWaitStats().timeouts);
+            assertEquals(0, pool.getQueueLength());
+
+            only.gate.countDown();
+            holder.join();
+            assertEquals(0, pool.detect(3, 0.5, 0.5)[0].class_id, "The pool should recover after a timeout");
+        }
+    }
+
+    @Test
+    public void testWaitersServedInArrivalOrder() throws Exception {
+        List<FakeDetector> detectors = fakes(1, 0);
+        FakeDetector only = detectors.get(0);
+        only.gate = new CountDownLatch(1);
+        try (CoreMLDetectorPool pool = new CoreMLDetectorPool(detectors, 10, TimeUnit.SECONDS)) {
+            List<Thread> threads = new ArrayList<>();
+            threads.add(new Thread(() -> pool.detect(0, 0.5, 0.5)));
+            threads.get(0).start();
+            assertTrue(only.started.await(10, TimeUnit.SECONDS));
+
+            for (int i = 1; i <= 5; i++) {
+                long image = i;
+                Thread waiter = new Thread(() -> pool.detect(image, 0.5, 0.5));
+                threads.add(waiter);
+                waiter.start();
+                // Queue the waiters one at a time so their arrival order is known
+                long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+                while (pool.getQueueLength() < i && System.nanoTime() < deadline) {
+                    Thread.sleep(1);
+                }
+                assertEquals(i, pool.getQueueLength());
+            }
+
+            only.gate.countDown();
+            for (Thread thread : threads) {
+                thread.join(10_000);
+            }
+            assertEquals(List.of(0L, 1L, 2L, 3L, 4L, 5L), only.images);
+            assertTrue(pool.getWaitStats().maxWaitMs > 0);
+        }
+    }
+
+    @Test
+    public void testClose() {
+        List<FakeDetector> detectors = fakes(2, 0);
+        CoreMLDetectorPool pool = new CoreMLDetectorPool(detectors, 1, TimeUnit.SECONDS);
+        assertEquals(2, pool.size());
+        pool.detect(1, 0.5, 0.5);
+        pool.close();
+        pool.close();
+        detectors.forEach(d -> assertTrue(d.closed));
+        assertThrows(RejectedExecutionException.class, () -> pool.detect(2, 0.5, 0.5));
+        assertThrows(IllegalArgumentException.class, () -> new CoreMLDetectorPool(List.of(), 1, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,184 @@
+package org.atomstorm.coreml;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.atomstorm.coreml.CoreMLJNI.CoreMLResult;
+import org.junit.jupiter.api.Test;
+
+public class CoreMLDetectorTest {
+
+    // Stand-in for a native detector that notices being used after it was freed
+    private static class FakeNative implements CoreMLDetector.Natives {
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger destroyed = new AtomicInteger();
+        final AtomicInteger useAfterFree = new AtomicInteger();
+        final AtomicLong detections = new AtomicLong();
+        volatile CountDownLatch blockDetect;
+        volatile CountDownLatch entered;
+
+        @Override
+        public CoreMLResult[] detect(long ptr, long imagePtr, double nmsThresh, double boxThresh) {
+            inFlight.incrementAndGet();
+            try {
+                check();
+                CountDownLatch block = blockDetect;
+                if (block != null) {
+                    entered.countDown();
+                    block.await();
+                }
+                // Widen the window for a racing destroy
+                for (int i = 0; i < (int) (imagePtr & 0xff); i++) {
+                    Thread.onSpinWait();
+                }
+                check();
+                detections.incrementAndGet();
+                return new CoreMLResult[] {new CoreMLResult(0, 0, 10, 10, 0.9f, (int) ptr)};
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        }
+
+        @Override
+        public void destroy(long ptr) {
+            if (inFlight.get() != 0) {
+                useAfterFree.incrementAndGet();
+            }
+            destroyed.incrementAndGet();
+        }
+
+        private void check() {
+            if (destroyed.get() != 0) {
+                useAfterFree.incrementAndGet();
+            }
+        }
+    }
+
+    @Test
+    public void testDetectAndClose() {
+        FakeNative natives = new FakeNative();
+        CoreMLDetector detector = new CoreMLDetector(42, natives);
+        assertEquals(42, detector.detect(0, 0.45, 0.25)[0].class_id);
+        assertEquals(42L, (long) detector.call(ptr -> ptr));
+        assertFalse(detector.isClosed());
+
+        detector.close();
+        assertTrue(detector.isClosed());
+        assertEquals(1, natives.destroyed.get());
+        assertThrows(IllegalStateException.class, () -> detector.detect(0, 0.45, 0.25));
+        assertThrows(IllegalStateException.class, () -> detector.call(ptr -> ptr));
+        detector.close();
+        assertEquals(1, natives.destroyed.get(), "The detector is freed once");
+        assertEquals(0, natives.useAfterFree.get());
+
+        assertThrows(IllegalArgumentException.class, () -> new CoreMLDetector(0, natives));
+    }
+
+    @Test
+    public void testCloseWaitsForCallsInFlight() throws InterruptedException {
+        FakeNative natives = new FakeNative();
+        natives.blockDetect = new CountDownLatch(1);
+        natives.entered = new CountDownLatch(1);
+        CoreMLDetector detector = new CoreMLDetector(1, natives);
+        Thread caller = new Thread(() -> detector.detect(0, 0.45, 0.25));
+        caller.start();
+        assertTrue(natives.entered.await(5, TimeUnit.SECONDS));
+
+        Thread closer = new Thread(detector::close);
+        closer.start();
+        closer.join(100);
+        assertTrue(closer.isAlive(), "close() waits for the detection in flight");
+        assertEquals(0, natives.destroyed.get());
+        assertTrue(detector.isClosed());
+        assertThrows(IllegalStateException.class, () -> detector.detect(0, 0.45, 0.25), "New calls fail at once");
+
+        natives.blockDetect.countDown();
+        caller.join(5000);
+        closer.join(5000);
+        assertFalse(closer.isAlive());
+        assertEquals(1, natives.destroyed.get());
+        assertEquals(1, natives.detections.get());
+        assertEquals(0, natives.useAfterFree.get());
+    }
+
+    @Test
+    public void testConcurrentCallsAndClose() throws InterruptedException {
+        for (int round = 0; round < 50; round++) {
+            FakeNative natives = new FakeNative();
+            CoreMLDetector detector = new CoreMLDetector(round + 1, natives);
+            AtomicBoolean failed = new AtomicBoolean();
+            AtomicLong rejected = new AtomicLong();
+            CountDownLatch started = new CountDownLatch(8);
+            List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                long seed = t;
+                Thread thread = new Thread(() -> {
+                    started.countDown();
+                    for (long i = seed; ; i += 7) {
+                        try {
+                            if (detector.detect(i, 0.45, 0.25).length != 1) {
+                                failed.set(true);
+                            }
+                        } catch (IllegalStateException e) {
+                            rejected.incrementAndGet();
+                            return;
+                        }
+                    }
+                });
+                threads.add(thread);
+                thread.start();
+            }
+            started.await();
+            Thread.sleep(2);
+            // Several threads race to close; only one frees the detector
+            Thread otherCloser = new Thread(detector::close);
+            otherCloser.start();
+            detector.close();
+            otherCloser.join();
+            for (Thread thread : threads) {
+                thread.join(5000);
+                assertFalse(thread.isAlive());
+            }
+
+            assertFalse(failed.get());
+            assertEquals(8, rejected.get(), "Every caller sees the handle closed");
+            assertEquals(1, natives.destroyed.get());
+            assertEquals(0, natives.useAfterFree.get(), "Round " + round);
+            assertTrue(natives.detections.get() > 0);
+        }
+    }
+
+    @Test
+    public void testCleanerFreesLeakedHandle() throws InterruptedException {
+        FakeNative natives = new FakeNative();
+        long leaked = CoreMLDetector.getLeakedCount();
+        leak(natives);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (natives.destroyed.get() == 0 && System.nanoTime() < deadline) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertEquals(1, natives.destroyed.get(), "An unreachable handle is freed");
+        assertEquals(leaked + 1, CoreMLDetector.getLeakedCount());
+
+        // A closed handle that is collected later is not a leak
+        CoreMLDetector closed = new CoreMLDetector(2, natives);
+        closed.close();
+        closed = null;
+        System.gc();
+        assertEquals(2, natives.destroyed.get());
+        assertEquals(leaked + 1, CoreMLDetector.getLeakedCount());
+    }
+
+    private static void leak(FakeNative natives) {
+        new CoreMLDetector(1, natives).detect(0, 0.45, 0.25);
+    }
+}
@@ -0,0 +1,78 @@
+package org.atomstorm.coreml;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.atomstorm.coreml.CoreMLJNI.DetectorStats;
+import org.junit.jupiter.api.Test;
+
+public class CoreMLMetricsTest {
+
+    private static DetectorStats stats(LatencyHistogram inference, long frames) {
+        LatencyHistogram empty = new LatencyHistogram();
+        return new DetectorStats(frames, 1, empty.snapshot(), inference.snapshot(), empty.snapshot(), empty.snapshot());
+    }
+
+    @Test
+    public void testCollectNamesEveryStage() {
+        LatencyHistogram inference = new LatencyHistogram();
+        inference.record(8000);
+        inference.record(12000);
+        CoreMLMetrics metrics = new CoreMLMetrics("coreml.front", () -> stats(inference, 2), () -> {}, false);
+
+        Map<String, Double> values = metrics.collect();
+        assertEquals(2 + 4 * 5, values.size());
+        assertEquals(2.0, values.get("coreml.front.frames"));
+        assertEquals(1.0, values.get("coreml.front.errors"));
+        assertEquals(2.0, values.get("coreml.front.inference.count"));
+        assertEquals(12.0, values.get("coreml.front.inference.max_ms"), 1e-9);
+        assertEquals(10.0, values.get("coreml.front.inference.mean_ms"), 1e-9);
+        assertEquals(0.0, values.get("coreml.front.total.count"));
+        assertEquals("coreml.front.frames", values.keySet().iterator().next(), "Names should keep a stable order");
+    }
+
+    @Test
+    public void testWindowedResetsAfterCollect() {
+        LatencyHistogram inference = new LatencyHistogram();
+        AtomicInteger resets = new AtomicInteger();
+        CoreMLMetrics metrics = new CoreMLMetrics("m", () -> stats(inference, inference.snapshot().count), () -> {
+            resets.incrementAndGet();
+            inference.reset();
+        }, true);
+
+        inference.record(5000);
+        assertEquals(1.0, metrics.collect().get("m.inference.count"));
+        assertEquals(0.0, metrics.collect().get("m.inference.count"), "Each window should start empty");
+        assertEquals(2, resets.get());
+    }
+
+    @Test
+    public void testPeriodicPublishing() throws InterruptedException {
+        CountDownLatch published = new CountDownLatch(3);
+        Map<String, Double> sink = new ConcurrentHashMap<>();
+        AtomicInteger calls = new AtomicInteger();
+        LatencyHistogram inference = new LatencyHistogram();
+        try (CoreMLMetrics metrics = new CoreMLMetrics("m", () -> {
+                // A failing collection must not stop later publications
+                if (calls.incrementAndGet() == 1) {
+                    throw new IllegalStateException("detector busy");
+                }
+                return stats(inference, 7);
+            }, () -> {}, false)) {
+            metrics.startPublishing(5, TimeUnit.MILLISECONDS, (name, value) -> {
+                sink.put(name, value);
+                if (name.equals("m.frames")) {
+                    published.countDown();
+                }
+            });
+            assertThrows(IllegalStateException.class, () -> metrics.startPublishing(5, TimeUnit.MILLISECONDS, (n, v) -> {}));
+            assertTrue(published.await(10, TimeUnit.SECONDS));
+        }
+        assertEquals(7.0, sink.get("m.frames"));
+        assertTrue(new CoreMLMetrics("m", () -> null, () -> {}, false).collect().isEmpty());
+    }
+}
@@ -0,0 +1,166 @@
+package org.atomstorm.coreml;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.atomstorm.coreml.CoreMLJNI.CoreMLResult;
+import org.atomstorm.coreml.CoreMLMicroBatcher.BatchStats;
+import org.junit.jupiter.api.Test;
+
+public class CoreMLMicroBatcherTest {
+
+    /** Fake batch detector that reports each image pointer back as the class ID. */
+    private static class FakeDetector implements CoreMLMicroBatcher.BatchDetector {
+        final List<Integer> batchSizes = new CopyOnWriteArrayList<>();
+
+        @Override
+        public CoreMLResult[][] detectBatch(long[] imagePtrs, double nmsThresh, double boxThresh) {
+            batchSizes.add(imagePtrs.length);
+            CoreMLResult[][] results = new CoreMLResult[imagePtrs.length][];
+            for (int i = 0; i < imagePtrs.length; i++) {
+                results[i] = new CoreMLResult[] {new CoreMLResult(0, 0, 1, 1, 1.0f, (int) imagePtrs[i])};
+            }
+            return results;
+        }
+    }
+
+    private static List<Thread> startCallers(CoreMLMicroBatcher batcher, int count, long[] classIds, CountDownLatch start) {
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            final int frame = i;
+            Thread t = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                classIds[frame] = batcher.detect(frame + 1)[0].class_id;
+            });
+            t.start();
+            threads.add(t);
+        }
+        return threads;
+    }
+
+    @Test
+    public void testSingleCallerRunsAlone() {
+        FakeDetector detector = new FakeDetector();
+        CoreMLMicroBatcher batcher = new CoreMLMicroBatcher(detector, 4, 1, TimeUnit.MILLISECONDS, 0.5, 0.5);
+
+        assertEquals(7, batcher.detect(7)[0].class_id);
+        assertEquals(List.of(1), detector.batchSizes, "A lone frame should run once the window expires");
+
+        List<BatchStats> stats = batcher.getStats();
+        assertEquals(1, stats.size());
+        assertEquals(1, stats.get(0).batchSize);
+        assertEquals(1, stats.get(0).batches);
+        assertTrue(stats.get(0).p99LatencyMs >= stats.get(0).p50LatencyMs);
+
+        batcher.resetStats();
+        assertTrue(batcher.getStats().isEmpty());
+    }
+
+    @Test
+    public void testConcurrentCallersShareBatches() throws Exception {
+        FakeDetector detector = new FakeDetector();
+        CoreMLMicroBatcher batcher = new CoreMLMicroBatcher(detector, 4, 500, TimeUnit.MILLISECONDS, 0.5, 0.5);
+
+        long[] classIds = new long[8];
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = startCallers(batcher, 8, classIds, start);
+        start.countDown();
+        for (Thread t : threads) {
+            t.join(10_000);
+        }
+
+        for (int i = 0; i < 8; i++) {
+            assertEquals(i + 1, classIds[i], "Each caller should receive its own frame's results");
+        }
+        int frames = detector.batchSizes.stream().mapToInt(Integer::intValue).sum();
+        assertEquals(8, frames);
+        assertTrue(detector.batchSizes.size() < 8, "Concurrent frames should be coalesced: " + detector.batchSizes);
+        assertTrue(detector.batchSizes.stream().allMatch(size -> size <= 4), "Batches must not exceed the maximum size");
+    }
+
+    @Test
+    public void testFullBatchDoesNotWaitForWindow() throws Exception {
+        FakeDetector detector = new FakeDetector();
+        CoreMLMicroBatcher batcher = new CoreMLMicroBatcher(detector, 2, 1, TimeUnit.HOURS, 0.5, 0.5);
+
+        long[] classIds = new long[2];
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = startCallers(batcher, 2, classIds, start);
+        start.countDown();
+        for (Thread t : threads) {
+            t.join(10_000);
+            assertFalse(t.isAlive(), "A full batch should run immediately");
+        }
+        assertEquals(List.of(2), detector.batchSizes);
+        assertEquals(2, batcher.getStats().get(0).batchSize);
+    }
+
+    @Test
+    public void testCloseRunsOpenBatch() throws Exception {
+        FakeDetector detector = new FakeDetector();
+        CoreMLMicroBatcher batcher = new CoreMLMicroBatcher(detector, 4, 1, TimeUnit.HOURS, 0.5, 0.5);
+
+        long[] classIds = new long[1];
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = startCallers(batcher, 1, classIds, start);
+        start.countDown();
+        Thread.sleep(50);
+        assertTrue(threads.get(0).isAlive(), "The lone frame waits for the window");
+
+        batcher.close();
+        threads.get(0).join(10_000);
+        assertFalse(threads.get(0).isAlive(), "Closing runs the open batch at once");
+        assertEquals(1, classIds[0]);
+        assertThrows(IllegalStateException.class, () -> batcher.detect(2));
+        batcher.close();
+    }
+
+    @Test
+    public void testFailurePropagatesToCallers() {
+        CoreMLMicroBatcher batcher = new CoreMLMicroBatcher(
+            (imagePtrs, nms, box) -> new CoreMLResult[0][], 2, 1, TimeUnit.MILLISECONDS, 0.5, 0.5);
+        assertThrows(IllegalStateException.class, () -> batcher.detect(1));
+        assertThrows(IllegalArgumentException.class,
+            () -> new CoreMLMicroBatcher(new FakeDetector(), 0, 1, TimeUnit.MILLISECONDS, 0.5, 0.5));
+    }
+
+    @Test
+    public void testErrorReachesEveryCaller() throws Exception {
+        CoreMLMicroBatcher batcher = new CoreMLMicroBatcher((imagePtrs, nms, box) -> {
+            throw new AssertionError("Native library missing");
+        }, 2, 1, TimeUnit.HOURS, 0.5, 0.5);
+
+        List<Throwable> errors = new CopyOnWriteArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            long frame = i + 1;
+            Thread t = new Thread(() -> {
+                try {
+                    batcher.detect(frame);
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            });
+            t.start();
+            threads.add(t);
+        }
+        for (Thread t : threads) {
+            t.join(10_000);
+            assertFalse(t.isAlive(), "No caller may wait forever on a batch that threw");
+        }
+        assertEquals(2, errors.size());
+        for (Throwable e : errors) {
+            assertTrue(e instanceof AssertionError, e.toString());
+        }
+        assertEquals(1, batcher.getStats().get(0).batches);
+        batcher.close();
+    }
+}
@@ -0,0 +1,139 @@
+package org.atomstorm.coreml;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.atomstorm.coreml.CoreMLJNI.CoreMask;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class CoreMLModelCacheTest {
+    @TempDir
+    Path tempDir;
+
+    /** Stand-in for the CoreML compiler: writes a fixed-size weights file and counts invocations. */
+    private static class FakeCompiler implements CoreMLModelCache.ModelCompiler {
+        final AtomicInteger compiles = new AtomicInteger();
+        final int outputBytes;
+
+        FakeCompiler(int outputBytes) {
+            this.outputBytes = outputBytes;
+        }
+
+        @Override
+        public void compile(Path source, Path destination) throws IOException {
+            compiles.incrementAndGet();
+            Files.createDirectories(destination);
+            Files.write(destination.resolve("weights.bin"), new byte[outputBytes]);
+        }
+    }
+
+    private Path makePackage(String name, String contents) throws IOException {
+        Path pkg = tempDir.resolve("models").resolve(name + ".mlpackage");
+        Path data = pkg.resolve("Data").resolve("com.apple.CoreML");
+        Files.createDirectories(data);
+        Files.writeString(data.resolve("model.mlmodel"), contents);
+        Files.writeString(pkg.resolve("Manifest.json"), "{}");
+        return pkg;
+    }
+
+    @Test
+    public void testHitDoesNotRecompile() throws IOException {
+        FakeCompiler compiler = new FakeCompiler(100);
+        CoreMLModelCache cache = new CoreMLModelCache(tempDir.resolve("cache"), 10_000, compiler);
+        Path pkg = makePackage("coral", "coral weights");
+
+        Path first = cache.prewarm(pkg, CoreMask.ALL);
+        Path second = cache.prewarm(pkg, CoreMask.ALL);
+
+        assertEquals(1, compiler.compiles.get(), "Second lookup should be served from the cache");
+        assertEquals(first, second);
+        assertTrue(first.getFileName().toString().endsWith(".mlmodelc"));
+        assertTrue(Files.exists(first.resolve("weights.bin")));
+
+        // A fresh instance over the same directory, e.g. after a restart, also hits
+        CoreMLModelCache reopened = new CoreMLModelCache(tempDir.resolve("cache"), 10_000, compiler);
+        assertEquals(first, reopened.prewarm(pkg, CoreMask.ALL));
+        assertEquals(1, compiler.compiles.get(), "Cache should persist across instances");
+    }
+
+    @Test
+    public void testKeyTracksContentsAndComputeUnits() throws IOException {
+        Path pkg = makePackage("coral", "coral weights");
+        String key = CoreMLModelCache.key(pkg, CoreMask.ALL);
+
+        assertEquals(key, CoreMLModelCache.key(pkg, CoreMask.ALL), "Key should be deterministic");
+        assertNotEquals(key, CoreMLModelCache.key(pkg, CoreMask.CPU_ONLY), "Compute units should be part of the key");
+
+        Files.writeString(pkg.resolve("Data").resolve("com.apple.CoreML").resolve("model.mlmodel"), "retrained weights");
+        assertNotEquals(key, CoreMLModelCache.key(pkg, CoreMask.ALL), "Changed contents should change the key");
+
+        assertThrows(IOException.class, () -> CoreMLModelCache.key(tempDir.resolve("missing"), CoreMask.ALL));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction() throws IOException {
+        FakeCompiler compiler = new FakeCompiler(400);
+        CoreMLModelCache cache = new CoreMLModelCache(tempDir.resolve("cache"), 1000, compiler);
+        Path a = makePackage("a", "a");
+        Path b = makePackage("b", "b");
+        Path c = makePackage("c", "c");
+
+        cache.prewarm(a, CoreMask.ALL);
+        cache.prewarm(b, CoreMask.ALL);
+        cache.prewarm(a, CoreMask.ALL); // a is now more recently used than b
+        cache.prewarm(c, CoreMask.ALL); // 1200 bytes > 1000, evicts b
+
+        List<CoreMLModelCache.Entry> entries = cache.entries();
+        assertEquals(2, entries.size());
+        assertEquals(CoreMLModelCache.key(a, CoreMask.ALL), entries.get(0).key, "Least recently used entry should be listed first");
+        assertEquals(CoreMLModelCache.key(c, CoreMask.ALL), entries.get(1).key);
+        assertEquals(800, cache.sizeBytes());
+        assertEquals(3, compiler.compiles.get());
+    }
+
+    @Test
+    public void testOversizedEntryIsKept() throws IOException {
+        FakeCompiler compiler = new FakeCompiler(2000);
+        CoreMLModelCache cache = new CoreMLModelCache(tempDir.resolve("cache"), 1000, compiler);
+
+        Path compiled = cache.prewarm(makePackage("big", "big"), CoreMask.ALL);
+        assertTrue(Files.isDirectory(compiled), "The entry just inserted should never be evicted");
+    }
+
+    @Test
+    public void testPurge() throws IOException {
+        FakeCompiler compiler = new FakeCompiler(10);
+        CoreMLModelCache cache = new CoreMLModelCache(tempDir.resolve("cache"), 1000, compiler);
+        Path a = makePackage("a", "a");
+        Path b = makePackage("b", "b");
+        cache.prewarm(a, CoreMask.ALL);
+        cache.prewarm(b, CoreMask.ALL);
+
+        assertTrue(cache.purge(CoreMLModelCache.key(a, CoreMask.ALL)));
+        assertFalse(cache.purge(CoreMLModelCache.key(a, CoreMask.ALL)), "Purging a missing entry should report false");
+        assertEquals(1, cache.entries().size());
+
+        cache.purgeAll();
+        assertTrue(cache.entries().isEmpty());
+        assertEquals(0, cache.sizeBytes());
+    }
+
+    @Test
+    public void testFailedCompileLeavesNoEntry() throws IOException {
+        CoreMLModelCache cache = new CoreMLModelCache(tempDir.resolve("cache"), 1000, (source, destination) -> {
+            Files.createDirectories(destination);
+            Files.writeString(destination.resolve("partial.bin"), "partial");
+            throw new IOException("compiler crashed");
+        });
+
+        assertThrows(IOException.class, () -> cache.prewarm(makePackage("a", "a"), CoreMask.ALL));
+        try (var children = Files.list(tempDir.resolve("cache"))) {
+            assertEquals(0, children.count(), "Partial output should be cleaned up");
+        }
+    }
+}
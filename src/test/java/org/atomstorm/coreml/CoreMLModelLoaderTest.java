@@ -0,0 +1,248 @@
+package org.atomstorm.coreml;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.atomstorm.coreml.CoreMLJNI.CoreMask;
+import org.atomstorm.coreml.CoreMLJNI.ModelVersion;
+import org.atomstorm.coreml.CoreMLModelLoader.LoadedModel;
+import org.atomstorm.coreml.CoreMLModelLoader.ModelSpec;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class CoreMLModelLoaderTest {
+    @TempDir
+    Path tempDir;
+
+    // Records every call; models named "bad-*" fail in the phase after the dash, and
+    // "throw-warmup" throws while warming up
+    private static class FakeBackend implements CoreMLModelLoader.Backend {
+        final AtomicLong nextPtr = new AtomicLong(1);
+        final AtomicInteger loading = new AtomicInteger();
+        final AtomicInteger maxLoading = new AtomicInteger();
+        final ConcurrentHashMap<Long, AtomicInteger> warmUps = new ConcurrentHashMap<>();
+        final List<Long> destroyed = Collections.synchronizedList(new ArrayList<>());
+        final Set<Long> throwing = ConcurrentHashMap.newKeySet();
+        volatile CountDownLatch gate;
+        volatile long loadMillis;
+
+        @Override
+        public String compile(ModelSpec spec) throws IOException {
+            if (spec.name.equals("bad-compile")) {
+                throw new IOException("Cannot compile " + spec.name);
+            }
+            return spec.modelPath + "c";
+        }
+
+        @Override
+        public long create(String path, ModelSpec spec) {
+            maxLoading.accumulateAndGet(loading.incrementAndGet(), Math::max);
+            try {
+                if (gate != null) {
+                    gate.countDown();
+                    gate.await(5, TimeUnit.SECONDS);
+                }
+                Thread.sleep(loadMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                loading.decrementAndGet();
+            }
+            if (spec.name.equals("bad-create")) {
+                return 0;
+            }
+            long ptr = nextPtr.getAndIncrement() * (spec.name.equals("bad-warmup") ? -1 : 1);
+            warmUps.put(ptr, new AtomicInteger());
+            if (spec.name.equals("throw-warmup")) {
+                throwing.add(ptr);
+            }
+            return ptr;
+        }
+
+        @Override
+        public boolean warmUp(long ptr) {
+            warmUps.get(ptr).incrementAndGet();
+            if (throwing.contains(ptr)) {
+                throw new IllegalStateException("Prediction crashed");
+            }
+            return ptr > 0;
+        }
+
+        @Override
+        public void destroy(long ptr) {
+            destroyed.add(ptr);
+        }
+    }
+
+    private static ModelSpec spec(String name, int warmUpRuns) {
+        return new ModelSpec(name, name + ".mlmodel", 1, ModelVersion.YOLO_V11, CoreMask.ALL, warmUpRuns);
+    }
+
+    @Test
+    public void testModelsLoadInParallel() throws Exception {
+        FakeBackend backend = new FakeBackend();
+        // Each load waits until all three are loading at once
+        backend.gate = new CountDownLatch(3);
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            CoreMLModelLoader loader = new CoreMLModelLoader(backend, executor);
+            List<LoadedModel> models = loader.loadAll(List.of(spec("common", 0), spec("coral", 0), spec("algae", 0)))
+                .get(5, TimeUnit.SECONDS);
+            assertEquals(3, models.size());
+            assertEquals("common", models.get(0).spec.name, "Models come back in the order requested");
+            assertEquals("algae", models.get(2).spec.name);
+            assertEquals(3, backend.maxLoading.get());
+            assertEquals(0, backend.gate.getCount());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testCachedCompilesRunInParallel() throws Exception {
+        // Each compile waits until all three are compiling at once
+        CountDownLatch compiling = new CountDownLatch(3);
+        AtomicInteger compiles = new AtomicInteger();
+        CoreMLModelCache cache = new CoreMLModelCache(tempDir.resolve("cache"), 1 << 20, (source, destination) -> {
+            compiling.countDown();
+            try {
+                compiling.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            compiles.incrementAndGet();
+            Files.createDirectories(destination);
+            Files.copy(source, destination.resolve("model.bin"));
+        });
+        // Compiles through the cache as the native loader does, with fake detectors
+        FakeBackend fake = new FakeBackend();
+        CoreMLModelLoader.Backend backend = new CoreMLModelLoader.Backend() {
+            final CoreMLModelLoader.NativeBackend nativeBackend = new CoreMLModelLoader.NativeBackend(cache);
+
+            @Override
+            public String compile(ModelSpec spec) throws IOException {
+                return nativeBackend.compile(spec);
+            }
+
+            @Override
+            public long create(String path, ModelSpec spec) {
+                return fake.create(path, spec);
+            }
+
+            @Override
+            public boolean warmUp(long ptr) {
+                return fake.warmUp(ptr);
+            }
+
+            @Override
+            public void destroy(long ptr) {
+                fake.destroy(ptr);
+            }
+        };
+
+        List<ModelSpec> specs = new ArrayList<>();
+        for (String name : new String[] {"common", "coral", "algae"}) {
+            Path source = Files.writeString(tempDir.resolve(name + ".mlmodel"), name);
+            specs.add(new ModelSpec(name, source.toString(), 1, ModelVersion.YOLO_V11, CoreMask.ALL, 0));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            CoreMLModelLoader loader = new CoreMLModelLoader(backend, executor);
+            List<LoadedModel> models = loader.loadAll(specs).get(10, TimeUnit.SECONDS);
+            assertEquals(3, models.size());
+            assertEquals(0, compiling.getCount(), "The three compiles should overlap");
+            assertEquals(3, compiles.get());
+            assertEquals(3, cache.entries().size());
+
+            // Loaded again, every model comes from the cache
+            loader.loadAll(specs).get(10, TimeUnit.SECONDS);
+            assertEquals(3, compiles.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testParallelismIsBounded() throws Exception {
+        FakeBackend backend = new FakeBackend();
+        backend.loadMillis = 20;
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            CoreMLModelLoader loader = new CoreMLModelLoader(backend, executor);
+            List<ModelSpec> specs = new ArrayList<>();
+            for (int i = 0; i < 6; i++) {
+                specs.add(spec("model" + i, 0));
+            }
+            assertEquals(6, loader.loadAll(specs).get(5, TimeUnit.SECONDS).size());
+            assertTrue(backend.maxLoading.get() <= 2, "At most two loads should overlap");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testWarmUpAndTimings() throws Exception {
+        FakeBackend backend = new FakeBackend();
+        backend.loadMillis = 15;
+        CoreMLModelLoader loader = new CoreMLModelLoader(backend, Runnable::run);
+
+        LoadedModel warm = loader.load(spec("coral", 3)).get();
+        assertEquals(3, backend.warmUps.get(warm.ptr).get());
+        assertTrue(warm.loadMs >= 10, "Load time should cover create: " + warm);
+        assertTrue(warm.compileMs >= 0 && warm.firstInferenceMs >= 0 && warm.warmUpMs >= warm.firstInferenceMs);
+        assertEquals(warm.compileMs + warm.loadMs + warm.warmUpMs, warm.totalMs(), 1e-9);
+
+        LoadedModel cold = loader.load(spec("algae", 0)).get();
+        assertEquals(0, backend.warmUps.get(cold.ptr).get());
+        assertTrue(Double.isNaN(cold.firstInferenceMs), "No warm-up means no first inference time");
+        assertTrue(backend.destroyed.isEmpty());
+    }
+
+    @Test
+    public void testFailuresAreReportedAndCleanedUp() throws Exception {
+        FakeBackend backend = new FakeBackend();
+        CoreMLModelLoader loader = new CoreMLModelLoader(backend, Runnable::run);
+
+        for (String name : new String[] {"bad-compile", "bad-create", "bad-warmup"}) {
+            CompletionException e = assertThrows(CompletionException.class, () -> loader.load(spec(name, 1)).join());
+            assertTrue(e.getCause() instanceof IOException, name);
+        }
+        assertEquals(1, backend.destroyed.size(), "A detector that failed to warm up should be destroyed");
+        assertTrue(backend.destroyed.get(0) < 0);
+
+        backend.destroyed.clear();
+        CompletionException thrown = assertThrows(CompletionException.class,
+            () -> loader.load(spec("throw-warmup", 2)).join());
+        assertTrue(thrown.getCause() instanceof IllegalStateException);
+        assertEquals(new ArrayList<>(backend.throwing), backend.destroyed,
+            "A detector whose warm-up threw should be destroyed");
+
+        // One failure fails the batch and releases the detectors that did load
+        backend.destroyed.clear();
+        CompletionException e = assertThrows(CompletionException.class,
+            () -> loader.loadAll(List.of(spec("common", 1), spec("bad-create", 1), spec("coral", 1))).join());
+        assertTrue(e.getCause() instanceof IOException);
+        assertEquals(2, backend.destroyed.size());
+        assertTrue(backend.destroyed.stream().allMatch(ptr -> ptr > 0));
+    }
+
+    @Test
+    public void testInvalidArguments() {
+        assertThrows(IllegalArgumentException.class, () -> spec("model", -1));
+        assertThrows(IllegalArgumentException.class, () -> new CoreMLModelLoader(0, null));
+    }
+}
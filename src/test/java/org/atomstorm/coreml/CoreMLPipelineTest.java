@@ -0,0 +1,188 @@
+package org.atomstorm.coreml;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.atomstorm.coreml.CoreMLJNI.CoreMLResult;
+import org.atomstorm.coreml.CoreMLPipeline.OverflowPolicy;
+import org.junit.jupiter.api.Test;
+
+public class CoreMLPipelineTest {
+
+    /**
+     * Fake stages: preprocessing returns the image pointer as the handle, inference reports it
+     * back as the class ID. Inference can be held on a latch to simulate a slow model.
+     */
+    private static class FakeStages implements CoreMLPipeline.Stages {
+        final Set<Long> live = ConcurrentHashMap.newKeySet();
+        final AtomicInteger released = new AtomicInteger();
+        final AtomicInteger inferring = new AtomicInteger();
+        final AtomicLong preprocessedWhileInferring = new AtomicLong();
+        volatile CountDownLatch inferGate = new CountDownLatch(0);
+        final CountDownLatch inferStarted = new CountDownLatch(1);
+
+        @Override
+        public long preprocess(long imagePtr) {
+            if (inferring.get() > 0) {
+                preprocessedWhileInferring.incrementAndGet();
+            }
+            live.add(imagePtr);
+            return imagePtr;
+        }
+
+        @Override
+        public CoreMLResult[] infer(long prepared, double nmsThresh, double boxThresh) {
+            inferring.incrementAndGet();
+            inferStarted.countDown();
+            try {
+                assertTrue(inferGate.await(10, TimeUnit.SECONDS), "Inference gate timed out");
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            } finally {
+                inferring.decrementAndGet();
+            }
+            return new CoreMLResult[] {new CoreMLResult(0, 0, 1, 1, 1.0f, (int) prepared)};
+        }
+
+        @Override
+        public void release(long prepared) {
+            assertTrue(live.remove(prepared), "Frame " + prepared + " released twice or never prepared");
+            released.incrementAndGet();
+        }
+    }
+
+    @Test
+    public void testResultsInSubmissionOrder() throws Exception {
+        FakeStages stages = new FakeStages();
+        try (CoreMLPipeline pipeline = new CoreMLPipeline(stages, 4, OverflowPolicy.BLOCK)) {
+            List<CompletableFuture<CoreMLResult[]>> futures = new ArrayList<>();
+            for (int i = 1; i <= 50; i++) {
+                futures.add(pipeline.submit(i, 0.5, 0.5));
+            }
+            for (int i = 1; i <= 50; i++) {
+                assertEquals(i, futures.get(i - 1).get(10, TimeUnit.SECONDS)[0].class_id);
+            }
+            assertEquals(0, pipeline.getInFlight());
+        }
+        assertEquals(50, stages.released.get(), "Every prepared frame should be released");
+        assertTrue(stages.live.isEmpty());
+    }
+
+    @Test
+    public void testPreprocessOverlapsInference() throws Exception {
+        FakeStages stages = new FakeStages();
+        stages.inferGate = new CountDownLatch(1);
+        try (CoreMLPipeline pipeline = new CoreMLPipeline(stages, 2, OverflowPolicy.BLOCK)) {
+            CompletableFuture<CoreMLResult[]> first = pipeline.submit(1, 0.5, 0.5);
+            assertTrue(stages.inferStarted.await(10, TimeUnit.SECONDS));
+            CompletableFuture<CoreMLResult[]> second = pipeline.submit(2, 0.5, 0.5);
+
+            // The second frame is preprocessed while the first is still in inference
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (stages.preprocessedWhileInferring.get() == 0 && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+            assertEquals(1, stages.preprocessedWhileInferring.get(), "Preprocessing should overlap inference");
+            assertFalse(first.isDone());
+
+            stages.inferGate.countDown();
+            assertEquals(1, first.get(10, TimeUnit.SECONDS)[0].class_id);
+            assertEquals(2, second.get(10, TimeUnit.SECONDS)[0].class_id);
+        }
+    }
+
+    @Test
+    public void testDropOldestKeepsNewestFrames() throws Exception {
+        FakeStages stages = new FakeStages();
+        stages.inferGate = new CountDownLatch(1);
+        try (CoreMLPipeline pipeline = new CoreMLPipeline(stages, 3, OverflowPolicy.DROP_OLDEST)) {
+            CompletableFuture<CoreMLResult[]> first = pipeline.submit(1, 0.5, 0.5);
+            assertTrue(stages.inferStarted.await(10, TimeUnit.SECONDS));
+
+            List<CompletableFuture<CoreMLResult[]>> futures = new ArrayList<>();
+            for (int i = 2; i <= 10; i++) {
+                futures.add(pipeline.submit(i, 0.5, 0.5)); // Never blocks: older waiting frames are dropped
+            }
+            assertTrue(pipeline.getInFlight() <= 3);
+
+            stages.inferGate.countDown();
+            assertEquals(1, first.get(10, TimeUnit.SECONDS)[0].class_id, "The frame in inference is never dropped");
+
+            int completed = 0;
+            for (CompletableFuture<CoreMLResult[]> future : futures) {
+                try {
+                    future.get(10, TimeUnit.SECONDS);
+                    completed++;
+                } catch (java.util.concurrent.CancellationException e) {
+                    // dropped
+                }
+            }
+            assertEquals(2, completed, "Only the newest frames should survive");
+            assertEquals(10, futures.get(futures.size() - 1).get()[0].class_id, "The newest frame should complete");
+            assertEquals(7, pipeline.getDroppedCount());
+        }
+        assertTrue(stages.live.isEmpty(), "Dropped frames should be released");
+    }
+
+    @Test
+    public void testBlockPolicyBoundsInFlight() throws Exception {
+        FakeStages stages = new FakeStages();
+        stages.inferGate = new CountDownLatch(1);
+        try (CoreMLPipeline pipeline = new CoreMLPipeline(stages, 2, OverflowPolicy.BLOCK)) {
+            pipeline.submit(1, 0.5, 0.5);
+            pipeline.submit(2, 0.5, 0.5);
+
+            CountDownLatch thirdSubmitted = new CountDownLatch(1);
+            Thread submitter = new Thread(() -> {
+                pipeline.submit(3, 0.5, 0.5);
+                thirdSubmitted.countDown();
+            });
+            submitter.start();
+            assertFalse(thirdSubmitted.await(200, TimeUnit.MILLISECONDS), "Submit should block on a full pipeline");
+
+            stages.inferGate.countDown();
+            assertTrue(thirdSubmitted.await(10, TimeUnit.SECONDS), "Submit should resume once a frame completes");
+            submitter.join();
+            assertEquals(0, pipeline.getDroppedCount());
+        }
+    }
+
+    @Test
+    public void testFailuresAndClose() throws Exception {
+        CoreMLPipeline.Stages failing = new CoreMLPipeline.Stages() {
+            @Override
+            public long preprocess(long imagePtr) {
+                if (imagePtr == 1) {
+                    return 0; // preprocessing failure yields no detections, like detect
+                }
+                return imagePtr;
+            }
+
+            @Override
+            public CoreMLResult[] infer(long prepared, double nmsThresh, double boxThresh) {
+                throw new IllegalStateException("model crashed");
+            }
+
+            @Override
+            public void release(long prepared) {}
+        };
+
+        CoreMLPipeline pipeline = new CoreMLPipeline(failing, 2, OverflowPolicy.BLOCK);
+        assertEquals(0, pipeline.submit(1, 0.5, 0.5).get(10, TimeUnit.SECONDS).length);
+        ExecutionException e = assertThrows(ExecutionException.class, () -> pipeline.submit(2, 0.5, 0.5).get(10, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof IllegalStateException);
+
+        pipeline.close();
+        ExecutionException rejected = assertThrows(ExecutionException.class, () -> pipeline.submit(3, 0.5, 0.5).get());
+        assertTrue(rejected.getCause() instanceof java.util.concurrent.RejectedExecutionException);
+    }
+}
@@ -0,0 +1,214 @@
+package org.atomstorm.coreml;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import edu.wpi.first.util.CombinedRuntimeLoader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongSupplier;
+import org.atomstorm.coreml.CoreMLJNI.CoreMLResult;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+public class CoreMLStreamDetectorTest {
+    private static final LongSupplier CLOCK = () -> System.nanoTime() / 1000;
+
+    @BeforeAll
+    public static void loadOpenCV() throws IOException {
+        CombinedRuntimeLoader.loadLibraries(CoreMLStreamDetectorTest.class, Core.NATIVE_LIBRARY_NAME);
+    }
+
+    // Numbers its frames and remembers which frame each buffer holds, keyed by its native address
+    private static class SyntheticSource implements CoreMLStreamDetector.FrameSource {
+        final Map<Long, Long> contents = new ConcurrentHashMap<>();
+        final Set<Mat> buffers = ConcurrentHashMap.newKeySet();
+        final long intervalNanos;
+        // Taken before each frame when set, so a test can pace the source
+        Semaphore gate;
+        long next;
+
+        SyntheticSource(long intervalNanos) {
+            this.intervalNanos = intervalNanos;
+        }
+
+        @Override
+        public long grabFrame(Mat image, double timeout) {
+            try {
+                if (gate != null && !gate.tryAcquire((long) (timeout * 1e9), TimeUnit.NANOSECONDS)) {
+                    return 0;
+                }
+                Thread.sleep(intervalNanos / 1_000_000, (int) (intervalNanos % 1_000_000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return 0;
+            }
+            image.create(4, 4, CvType.CV_8UC3);
+            buffers.add(image);
+            contents.put(image.getNativeObjAddr(), ++next);
+            return CLOCK.getAsLong();
+        }
+    }
+
+    // Reports the frame it saw as the class of its one detection, and counts frames changed under it
+    private static class FakeDetector implements CoreMLDetectorPool.Detector {
+        final SyntheticSource source;
+        final long detectMillis;
+        volatile int overwritten;
+        long failOn = -1;
+        Semaphore release;
+
+        FakeDetector(SyntheticSource source, long detectMillis) {
+            this.source = source;
+            this.detectMillis = detectMillis;
+        }
+
+        @Override
+        public CoreMLResult[] detect(long imagePtr, double nmsThresh, double boxThresh) {
+            try {
+                long frame = source.contents.get(imagePtr);
+                if (frame == failOn) {
+                    throw new IllegalStateException("Detection failed on frame " + frame);
+                }
+                Thread.sleep(detectMillis);
+                if (source.contents.get(imagePtr) != frame) {
+                    overwritten++;
+                }
+                return new CoreMLResult[] {new CoreMLResult(0, 0, 10, 10, 0.9f, (int) frame)};
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                if (release != null) {
+                    release.release();
+                }
+            }
+        }
+
+        @Override
+        public void close() {}
+    }
+
+    private static class Collector implements CoreMLStreamDetector.Listener {
+        final List<CoreMLStreamDetector.Result> results = new ArrayList<>();
+
+        @Override
+        public synchronized void onResult(Mat image, CoreMLStreamDetector.Result result) {
+            results.add(result);
+        }
+
+        synchronized List<CoreMLStreamDetector.Result> snapshot() {
+            return new ArrayList<>(results);
+        }
+    }
+
+    private static void await(BooleanSupplier condition) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "Timed out");
+            LockSupport.parkNanos(1_000_000);
+        }
+    }
+
+    @Test
+    public void testLatestFrameWins() {
+        // Frames every 1 ms, detections of 8 ms: most frames go stale and are replaced
+        SyntheticSource source = new SyntheticSource(1_000_000);
+        FakeDetector detector = new FakeDetector(source, 8);
+        Collector listener = new Collector();
+        CoreMLStreamDetector stream = new CoreMLStreamDetector(detector, source, listener, 0.45, 0.25, CLOCK);
+        await(() -> listener.snapshot().size() >= 10);
+        stream.close();
+
+        CoreMLStreamDetector.Stats stats = stream.getStats();
+        List<CoreMLStreamDetector.Result> results = listener.snapshot();
+        assertEquals(results.size(), stats.detected);
+        assertTrue(stats.dropped > 0, stats.toString());
+        // At most one frame was left in the slot at close
+        long unaccounted = stats.captured - stats.detected - stats.dropped;
+        assertTrue(unaccounted == 0 || unaccounted == 1, stats.toString());
+        assertEquals(0, detector.overwritten, "The capture thread never writes into the frame being detected");
+
+        long previous = 0;
+        for (CoreMLStreamDetector.Result result : results) {
+            assertTrue(result.frameNumber > previous, "Frames are detected newest first, never twice");
+            assertEquals(result.frameNumber, result.detections[0].class_id);
+            assertTrue(result.latencyMicros() >= 8_000, result.toString());
+            previous = result.frameNumber;
+        }
+        assertTrue(results.get(results.size() - 1).frameNumber > results.size(), "Stale frames are skipped");
+        assertEquals(stats.detected, stats.latency.count);
+        assertTrue(stats.latency.p50Ms >= 8.0, stats.latency.toString());
+
+        assertEquals(3, source.buffers.size(), "Frames are captured into three reused buffers");
+        for (Mat buffer : source.buffers) {
+            assertTrue(buffer.empty(), "Buffers are released on close");
+        }
+    }
+
+    @Test
+    public void testPacedSourceDetectsEveryFrame() {
+        // The source grabs a frame only after the previous one was detected
+        SyntheticSource source = new SyntheticSource(0);
+        source.gate = new Semaphore(1);
+        FakeDetector detector = new FakeDetector(source, 0);
+        detector.release = source.gate;
+        detector.failOn = 3;
+        Collector listener = new Collector();
+        CoreMLStreamDetector stream = new CoreMLStreamDetector(detector, source, listener, 0.45, 0.25, CLOCK);
+        await(() -> listener.snapshot().size() >= 20);
+        stream.close();
+
+        CoreMLStreamDetector.Stats stats = stream.getStats();
+        assertEquals(0, stats.dropped, stats.toString());
+        // Frame 3 failed in the detector and never reached the listener
+        assertEquals(1, stats.failures);
+        assertTrue(stream.getLastFailure() instanceof IllegalStateException);
+        List<CoreMLStreamDetector.Result> results = listener.snapshot();
+        for (int i = 0; i < 20; i++) {
+            long expected = i < 2 ? i + 1 : i + 2;
+            assertEquals(expected, results.get(i).frameNumber);
+        }
+    }
+
+    @Test
+    public void testFailingSourceAndListener() {
+        SyntheticSource frames = new SyntheticSource(1_000_000);
+        int[] calls = {0};
+        CoreMLStreamDetector.FrameSource source = (image, timeout) -> {
+            calls[0]++;
+            if (calls[0] == 1) {
+                return 0;
+            }
+            if (calls[0] == 2) {
+                throw new IllegalStateException("Camera disconnected");
+            }
+            return frames.grabFrame(image, timeout);
+        };
+        FakeDetector detector = new FakeDetector(frames, 0);
+        Collector collector = new Collector();
+        CoreMLStreamDetector stream = new CoreMLStreamDetector(detector, source, (image, result) -> {
+            collector.onResult(image, result);
+            if (collector.snapshot().size() == 1) {
+                throw new IllegalArgumentException("Listener failed");
+            }
+        }, 0.45, 0.25, CLOCK);
+        await(() -> collector.snapshot().size() >= 5);
+        stream.close();
+        stream.close();
+
+        CoreMLStreamDetector.Stats stats = stream.getStats();
+        assertEquals(2, stats.grabFailures);
+        assertEquals(1, stats.failures, "A failing listener does not stop the stream");
+        assertTrue(stats.detected >= 5);
+    }
+}
@@ -72,11 +72,53 @@ public class CoreMLThreadSafetyTest extends CoreMLBaseTest {
                     assertTrue(result.class_id >= 0, "Invalid class ID");
                 }
             }
+
+            // Every frame checked out one input buffer; no more than one per thread is ever live
+            CoreMLJNI.PoolStats stats = CoreMLJNI.getPoolStats(ptr);
+            assertEquals(NUM_ITERATIONS, stats.hits + stats.misses, "Each detection should check out one buffer: " + stats);
+            assertTrue(stats.misses <= NUM_THREADS, "Buffers should be reused across detections: " + stats);
+            assertEquals(0, stats.outstanding, "All buffers should be returned: " + stats);
         } finally {
             CoreMLJNI.destroy(ptr);
         }
     }
 
+    @Test
+    public void testDetectorPool() throws Exception {
+        Mat image = CoreMLTestUtils.loadTestImage("coral.jpeg");
+        String modelPath = CoreMLTestUtils.loadTestModel("coral-640-640-yolov11s.mlmodel");
+        List<CoreMLJNI.CoreMask> masks = List.of(CoreMLJNI.CoreMask.ALL, CoreMLJNI.CoreMask.CPU_AND_GPU);
+
+        try (CoreMLDetectorPool pool = CoreMLDetectorPool.create(
+                modelPath, 1, CoreMLJNI.ModelVersion.YOLO_V11, masks, 60, TimeUnit.SECONDS)) {
+            CoreMLResult[] expected = pool.detect(image.getNativeObjAddr(), NMS_THRESH, BOX_THRESH);
+
+            ExecutorService executor = Executors.newFixedThreadPool(NUM_THREADS);
+            List<Future<CoreMLResult[]>> futures = new ArrayList<>();
+            for (int i = 0; i < NUM_ITERATIONS; i++) {
+                futures.add(executor.submit(() -> {
+                    Mat threadImage = image.clone();
+                    return pool.detect(threadImage.getNativeObjAddr(), NMS_THRESH, BOX_THRESH);
+                }));
+            }
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(60, TimeUnit.SECONDS), "Test timed out");
+
+            for (Future<CoreMLResult[]> future : futures) {
+                assertEquals(expected.length, future.get().length, "Every instance should find the same objects");
+            }
+            long total = 0;
+            for (CoreMLDetectorPool.InstanceStats stats : pool.getInstanceStats()) {
+                assertTrue(stats.detections > 0, "Every instance should be used: " + stats);
+                total += stats.detections;
+            }
+            assertEquals(NUM_ITERATIONS + 1, total);
+            CoreMLDetectorPool.WaitStats waits = pool.getWaitStats();
+            assertEquals(NUM_ITERATIONS + 1, waits.dispatched, "Every call should be dispatched: " + waits);
+            assertTrue(waits.p99WaitMs >= waits.p50WaitMs, "Wait percentiles out of order: " + waits);
+        }
+    }
+
     @Test
     public void testStressDetection() throws InterruptedException {
         // Load test image
@@ -0,0 +1,100 @@
+package org.atomstorm.coreml;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+public class DetectionFilterTest {
+
+    // Rows of x1, y1, x2, y2, conf, classId
+    private static float[] rows(float[]... detections) {
+        float[] rows = new float[detections.length * DetectionView.STRIDE];
+        for (int i = 0; i < detections.length; i++) {
+            System.arraycopy(detections[i], 0, rows, i * DetectionView.STRIDE, DetectionView.STRIDE);
+        }
+        return rows;
+    }
+
+    private static float conf(float[] rows, int i) {
+        return rows[i * DetectionView.STRIDE + DetectionView.CONF];
+    }
+
+    @Test
+    public void testNoneKeepsEverything() {
+        float[] rows = rows(
+            new float[] {0, 0, 10, 10, 0.9f, 0},
+            new float[] {5, 5, 5, 5, 0.1f, 3});
+        float[] copy = rows.clone();
+        assertEquals(2, DetectionFilter.NONE.apply(rows, 2));
+        assertArrayEquals(copy, rows, "Survivors keep the model's order");
+    }
+
+    @Test
+    public void testConfidenceAndClassThresholds() {
+        DetectionFilter filter = new DetectionFilter(0.3f, new float[] {0.0f, 0.8f}, null, 0, 0, 0);
+        assertTrue(filter.accepts(0, 0, 1, 1, 0.3f, 0), "The floor is inclusive");
+        assertFalse(filter.accepts(0, 0, 1, 1, 0.29f, 0), "The global floor applies to every class");
+        assertFalse(filter.accepts(0, 0, 1, 1, 0.7f, 1), "Class 1 needs 0.8");
+        assertTrue(filter.accepts(0, 0, 1, 1, 0.8f, 1));
+        assertTrue(filter.accepts(0, 0, 1, 1, 0.4f, 7), "Classes without a threshold only need the floor");
+    }
+
+    @Test
+    public void testAllowlistAndArea() {
+        DetectionFilter filter = new DetectionFilter(0, null, new int[] {2, 5}, 100, 400, 0);
+        assertTrue(filter.accepts(0, 0, 10, 10, 0.5f, 2));
+        assertFalse(filter.accepts(0, 0, 10, 10, 0.5f, 3), "Class 3 is not allowed");
+        assertFalse(filter.accepts(0, 0, 9, 10, 0.5f, 5), "Area 90 is below the minimum");
+        assertTrue(filter.accepts(0, 0, 20, 20, 0.5f, 5), "The maximum is inclusive");
+        assertFalse(filter.accepts(0, 0, 21, 20, 0.5f, 5));
+
+        float[] rows = rows(
+            new float[] {0, 0, 10, 10, 0.5f, 3},
+            new float[] {0, 0, 10, 10, 0.6f, 2},
+            new float[] {0, 0, 1, 1, 0.7f, 2},
+            new float[] {0, 0, 15, 15, 0.4f, 5});
+        assertEquals(2, filter.apply(rows, 4));
+        assertEquals(0.6f, conf(rows, 0));
+        assertEquals(0.4f, conf(rows, 1));
+    }
+
+    @Test
+    public void testTopKKeepsTheBestFirst() {
+        DetectionFilter filter = new DetectionFilter(0.2f, null, null, 0, 0, 2);
+        float[] rows = rows(
+            new float[] {0, 0, 10, 10, 0.5f, 0},
+            new float[] {0, 0, 10, 10, 0.1f, 0},
+            new float[] {0, 0, 10, 10, 0.9f, 1},
+            new float[] {0, 0, 10, 10, 0.7f, 2});
+        assertEquals(2, filter.apply(rows, 4));
+        assertEquals(0.9f, conf(rows, 0));
+        assertEquals(0.7f, conf(rows, 1));
+        assertEquals(2, (int) rows[DetectionView.STRIDE + DetectionView.CLASS_ID]);
+
+        // Ties go to the later detection, like the native filter
+        rows = rows(
+            new float[] {0, 0, 10, 10, 0.5f, 0},
+            new float[] {0, 0, 10, 10, 0.5f, 1},
+            new float[] {0, 0, 10, 10, 0.5f, 2});
+        assertEquals(2, filter.apply(rows, 3));
+        assertEquals(2, (int) rows[DetectionView.CLASS_ID]);
+        assertEquals(1, (int) rows[DetectionView.STRIDE + DetectionView.CLASS_ID]);
+
+        assertEquals(1, new DetectionFilter(0, null, null, 0, 0, 5).apply(rows, 1), "Fewer rows than K are all kept");
+    }
+
+    @Test
+    public void testInvalidSettings() {
+        assertThrows(IllegalArgumentException.class, () -> new DetectionFilter(-0.1f, null, null, 0, 0, 0));
+        assertThrows(IllegalArgumentException.class, () -> new DetectionFilter(Float.NaN, null, null, 0, 0, 0));
+        assertThrows(IllegalArgumentException.class, () -> new DetectionFilter(0, new float[] {1.5f}, null, 0, 0, 0));
+        assertThrows(IllegalArgumentException.class, () -> new DetectionFilter(0, null, new int[] {-1}, 0, 0, 0));
+        assertThrows(IllegalArgumentException.class, () -> new DetectionFilter(0, null, null, 100, 50, 0));
+        assertThrows(IllegalArgumentException.class, () -> new DetectionFilter(0, null, null, 0, 0, -1));
+
+        float[] thresholds = {0.5f};
+        DetectionFilter filter = new DetectionFilter(0, thresholds, null, 0, 0, 0);
+        thresholds[0] = 0.0f;
+        assertEquals(0.5f, filter.classThresholds()[0], "The filter keeps its own copy");
+    }
+}
@@ -0,0 +1,171 @@
+package org.atomstorm.coreml;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import org.atomstorm.coreml.CoreMLJNI.CoreMLResult;
+import org.atomstorm.coreml.DetectionLog.Compression;
+import org.atomstorm.coreml.DetectionLog.Entry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class DetectionLogTest {
+    @TempDir
+    Path tempDir;
+
+    // A frame of smooth gradients, which compresses, or of noise, which does not
+    private static byte[] frame(int width, int height, int channels, boolean noise, int seed) {
+        byte[] pixels = new byte[width * height * channels];
+        if (noise) {
+            new Random(seed).nextBytes(pixels);
+        } else {
+            for (int i = 0; i < pixels.length; i++) {
+                pixels[i] = (byte) (i / channels % width + seed);
+            }
+        }
+        return pixels;
+    }
+
+    private static CoreMLResult[] results(int count, int seed) {
+        CoreMLResult[] results = new CoreMLResult[count];
+        for (int i = 0; i < count; i++) {
+            results[i] = new CoreMLResult(seed + i, 2 * i, seed + i + 40, 2 * i + 30, 0.5f + i * 0.01f, i % 3);
+        }
+        return results;
+    }
+
+    private static void assertEntry(Entry expected, Entry actual) {
+        assertEquals(expected.timestampNanos, actual.timestampNanos);
+        assertEquals(expected.latencyNanos, actual.latencyNanos);
+        assertEquals(expected.nmsThresh, actual.nmsThresh);
+        assertEquals(expected.boxThresh, actual.boxThresh);
+        assertEquals(expected.width, actual.width);
+        assertEquals(expected.height, actual.height);
+        assertEquals(expected.channels, actual.channels);
+        if (expected.frame == null) {
+            assertNull(actual.frame);
+        } else {
+            assertArrayEquals(Arrays.copyOf(expected.frame, expected.frameBytes()), actual.frame);
+        }
+        assertArrayEquals(expected.results, actual.results);
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        for (Compression compression : Compression.values()) {
+            Path dir = tempDir.resolve(compression.name());
+            Entry[] entries = {
+                new Entry(0, 9_000_000, 0.45, 0.25, 64, 48, 3, frame(64, 48, 3, false, 1), results(3, 10)),
+                new Entry(33_000_000, 8_500_000, 0.5, 0.3, 32, 16, 4, frame(32, 16, 4, true, 2), results(0, 0)),
+                new Entry(66_000_000, 100, 0.45, 0.25, 0, 0, 0, null, null),
+                // Frame arrays may be longer than the frame
+                new Entry(99_000_000, 7_000_000, 0.45, 0.25, 20, 10, 1, new byte[500], results(1, 5)),
+            };
+            try (DetectionLog.Writer writer = DetectionLog.create(dir, DetectionLog.DEFAULT_SEGMENT_BYTES, compression)) {
+                for (Entry entry : entries) {
+                    writer.append(entry);
+                }
+                assertEquals(entries.length, writer.records());
+            }
+            try (DetectionLog.Reader reader = DetectionLog.open(dir)) {
+                assertEquals(entries.length, reader.size());
+                // Records can be read in any order
+                for (int i = entries.length - 1; i >= 0; i--) {
+                    assertEntry(entries[i], reader.read(i));
+                    assertEquals(entries[i].timestampNanos, reader.timestampNanos(i));
+                }
+                assertThrows(IndexOutOfBoundsException.class, () -> reader.read(entries.length));
+            }
+        }
+    }
+
+    @Test
+    public void testCompressionShrinksSmoothFrames() throws IOException {
+        long[] bytes = new long[2];
+        for (Compression compression : Compression.values()) {
+            try (DetectionLog.Writer writer = DetectionLog.create(
+                    tempDir.resolve(compression.name()), DetectionLog.DEFAULT_SEGMENT_BYTES, compression)) {
+                writer.append(new Entry(0, 0, 0.45, 0.25, 320, 240, 3, frame(320, 240, 3, false, 0), null));
+                bytes[compression.ordinal()] = writer.bytes();
+            }
+        }
+        assertTrue(bytes[Compression.DEFLATE.ordinal()] * 10 < bytes[Compression.NONE.ordinal()],
+            "Deflated " + bytes[1] + " bytes, raw " + bytes[0]);
+    }
+
+    @Test
+    public void testRecordsSpillIntoNewSegments() throws IOException {
+        Entry small = new Entry(0, 0, 0.45, 0.25, 30, 10, 3, frame(30, 10, 3, true, 3), results(2, 0));
+        Entry large = new Entry(1, 0, 0.45, 0.25, 100, 50, 3, frame(100, 50, 3, true, 4), results(2, 0));
+        try (DetectionLog.Writer writer = DetectionLog.create(tempDir, 4096, Compression.NONE)) {
+            for (int i = 0; i < 10; i++) {
+                writer.append(small);
+            }
+            // Larger than a segment, so it gets one of its own
+            writer.append(large);
+            writer.append(small);
+        }
+        assertTrue(Files.exists(DetectionLog.segmentPath(tempDir, 3)), "Ten 1 kB records need three 4 kB segments");
+        assertTrue(Files.size(DetectionLog.segmentPath(tempDir, 3)) > 15000);
+        assertTrue(Files.exists(DetectionLog.segmentPath(tempDir, 4)));
+
+        try (DetectionLog.Reader reader = DetectionLog.open(tempDir)) {
+            assertEquals(12, reader.size());
+            assertEntry(small, reader.read(0));
+            assertEntry(small, reader.read(9));
+            assertEntry(large, reader.read(10));
+            assertEntry(small, reader.read(11));
+        }
+    }
+
+    @Test
+    public void testTruncatedAndCorruptLogs() throws IOException {
+        Entry entry = new Entry(0, 0, 0.45, 0.25, 16, 16, 1, frame(16, 16, 1, false, 0), results(1, 0));
+        try (DetectionLog.Writer writer = DetectionLog.create(tempDir, 4096, Compression.DEFLATE)) {
+            writer.append(entry);
+            writer.append(entry);
+        }
+        assertThrows(FileAlreadyExistsException.class, () -> DetectionLog.create(tempDir, 4096, Compression.NONE));
+
+        // An index entry cut short, as by a crash, is ignored
+        Path index = tempDir.resolve(DetectionLog.INDEX_FILE);
+        try (FileChannel channel = FileChannel.open(index, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 5);
+        }
+        try (DetectionLog.Reader reader = DetectionLog.open(tempDir)) {
+            assertEquals(1, reader.size());
+            assertEntry(entry, reader.read(0));
+        }
+
+        // A record length running past its segment is reported, not read
+        try (FileChannel channel = FileChannel.open(DetectionLog.segmentPath(tempDir, 0), StandardOpenOption.WRITE)) {
+            ByteBuffer length = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(1 << 20).flip();
+            channel.write(length, 8);
+        }
+        try (DetectionLog.Reader reader = DetectionLog.open(tempDir)) {
+            assertThrows(IOException.class, () -> reader.read(0));
+        }
+
+        Files.writeString(index, "not a log");
+        assertThrows(IOException.class, () -> DetectionLog.open(tempDir));
+        assertThrows(IOException.class, () -> DetectionLog.open(tempDir.resolve("missing")));
+    }
+
+    @Test
+    public void testInvalidArguments() {
+        assertThrows(IllegalArgumentException.class, () -> DetectionLog.create(tempDir, 100, Compression.NONE));
+        assertThrows(IllegalArgumentException.class, () -> DetectionLog.create(tempDir, 4096, null));
+        assertThrows(IllegalArgumentException.class, () -> new Entry(0, 0, 0.45, 0.25, 10, 10, 2, new byte[200], null));
+        assertThrows(IllegalArgumentException.class, () -> new Entry(0, 0, 0.45, 0.25, 10, 10, 3, new byte[200], null));
+        assertEquals(0, new Entry(0, 0, 0.45, 0.25, 10, 10, 3, null, null).frameBytes());
+    }
+}
@@ -0,0 +1,124 @@
+package org.atomstorm.coreml;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+public class DetectionMetricsTest {
+
+    private static float[] truth(float[]... rows) {
+        float[] out = new float[rows.length * DetectionMetrics.TRUTH_STRIDE];
+        for (int i = 0; i < rows.length; i++) {
+            System.arraycopy(rows[i], 0, out, i * DetectionMetrics.TRUTH_STRIDE, DetectionMetrics.TRUTH_STRIDE);
+        }
+        return out;
+    }
+
+    private static float[] predictions(float[]... rows) {
+        float[] out = new float[rows.length * DetectionView.STRIDE];
+        for (int i = 0; i < rows.length; i++) {
+            System.arraycopy(rows[i], 0, out, i * DetectionView.STRIDE, DetectionView.STRIDE);
+        }
+        return out;
+    }
+
+    @Test
+    public void testPerfectPredictions() {
+        DetectionMetrics metrics = new DetectionMetrics(2);
+        float[] truth = truth(new float[] {10, 10, 50, 50, 0}, new float[] {60, 20, 90, 80, 1});
+        // Listed out of confidence order; matching sorts them
+        float[] predictions = predictions(new float[] {60, 20, 90, 80, 0.6f, 1}, new float[] {10, 10, 50, 50, 0.9f, 0});
+        metrics.addImage(truth, 2, predictions, 2);
+        metrics.addImage(truth(new float[] {0, 0, 20, 20, 1}), 1, predictions(new float[] {0, 0, 20, 20, 0.8f, 1}), 1);
+
+        DetectionMetrics.Summary summary = metrics.summarize();
+        assertEquals(2, summary.images);
+        assertEquals(3, summary.truths);
+        assertEquals(3, summary.predictions);
+        assertEquals(1.0, summary.map50, 1e-9);
+        assertEquals(1.0, summary.map50to95, 1e-9);
+        assertEquals(1.0, summary.precision, 1e-9);
+        assertEquals(1.0, summary.recall, 1e-9);
+        assertEquals(1.0, summary.f1(), 1e-9);
+        assertEquals(0.6, summary.confidence, 1e-6);
+    }
+
+    @Test
+    public void testInterpolatedAveragePrecision() {
+        DetectionMetrics metrics = new DetectionMetrics(1);
+        float[] truth = truth(new float[] {0, 0, 10, 10, 0}, new float[] {100, 100, 110, 110, 0});
+        // A hit, a false positive, then the second hit: precision 1, 1/2, 2/3 at recall 1/2, 1/2, 1
+        float[] predictions = predictions(
+            new float[] {0, 0, 10, 10, 0.9f, 0},
+            new float[] {50, 50, 60, 60, 0.8f, 0},
+            new float[] {100, 100, 110, 110, 0.7f, 0});
+        metrics.addImage(truth, 2, predictions, 3);
+
+        DetectionMetrics.Summary summary = metrics.summarize();
+        // Recall points 0 to 0.5 get precision 1, the 50 above get the envelope's 2/3
+        double expected = (51 * 1.0 + 50 * 2.0 / 3) / 101;
+        assertEquals(expected, summary.map50, 1e-9);
+        assertEquals(expected, summary.classAp50[0], 1e-9);
+        assertEquals(expected, summary.map50to95, 1e-9, "Exact boxes match at every threshold");
+        // Best F1 keeps all three predictions: P = 2/3, R = 1
+        assertEquals(2.0 / 3, summary.precision, 1e-9);
+        assertEquals(1.0, summary.recall, 1e-9);
+        assertEquals(0.7, summary.confidence, 1e-6);
+    }
+
+    @Test
+    public void testIouThresholds() {
+        DetectionMetrics metrics = new DetectionMetrics(1);
+        // IoU 0.72: a hit at thresholds 0.50 to 0.70, a miss at 0.75 and above
+        metrics.addImage(truth(new float[] {0, 0, 100, 100, 0}), 1, predictions(new float[] {0, 0, 100, 72, 0.9f, 0}), 1);
+        DetectionMetrics.Summary summary = metrics.summarize();
+        assertEquals(1.0, summary.map50, 1e-9);
+        assertEquals(0.5, summary.map50to95, 1e-9);
+        assertEquals(0.7, DetectionMetrics.iouThreshold(4), 1e-9);
+    }
+
+    @Test
+    public void testDuplicatesClassesAndMisses() {
+        DetectionMetrics metrics = new DetectionMetrics(3);
+        float[] truth = truth(new float[] {0, 0, 10, 10, 0}, new float[] {20, 20, 30, 30, 0});
+        float[] predictions = predictions(
+            new float[] {0, 0, 10, 10, 0.9f, 0},
+            // A duplicate of the first: the box is taken, so it is a false positive
+            new float[] {0, 0, 10, 10, 0.8f, 0},
+            // Right box, wrong class: a false positive of class 1, which has no ground truth
+            new float[] {20, 20, 30, 30, 0.7f, 1},
+            // Classes the dataset does not have are ignored
+            new float[] {20, 20, 30, 30, 0.95f, 7});
+        metrics.addImage(truth, 2, predictions, 4);
+        // An image without objects only adds false positives
+        metrics.addImage(new float[0], 0, predictions(new float[] {0, 0, 5, 5, 0.1f, 0}), 1);
+
+        DetectionMetrics.Summary summary = metrics.summarize();
+        assertEquals(4, summary.predictions);
+        assertEquals(2, summary.truths);
+        // Class 0: one hit of two boxes at the top of the ranking; recall never passes 1/2
+        assertEquals(51.0 / 101, summary.classAp50[0], 1e-9);
+        assertTrue(Double.isNaN(summary.classAp50[1]));
+        assertTrue(Double.isNaN(summary.classAp50[2]));
+        assertEquals(51.0 / 101, summary.map50, 1e-9, "Classes without ground truth are left out");
+        assertEquals(1.0, summary.precision, 1e-9);
+        assertEquals(0.5, summary.recall, 1e-9);
+        assertEquals(0.9, summary.confidence, 1e-6);
+
+        metrics.reset();
+        DetectionMetrics.Summary empty = metrics.summarize();
+        assertEquals(0, empty.images);
+        assertEquals(0.0, empty.map50);
+        assertEquals(0.0, empty.f1());
+    }
+
+    @Test
+    public void testInvalidArguments() {
+        assertThrows(IllegalArgumentException.class, () -> new DetectionMetrics(0));
+        DetectionMetrics metrics = new DetectionMetrics(2);
+        assertThrows(IllegalArgumentException.class,
+            () -> metrics.addImage(truth(new float[] {0, 0, 1, 1, 2}), 1, new float[0], 0));
+        assertThrows(IllegalArgumentException.class, () -> metrics.addImage(new float[5], 2, new float[0], 0));
+        assertThrows(IllegalArgumentException.class, () -> metrics.addImage(new float[0], 0, new float[6], 2));
+    }
+}
@@ -0,0 +1,243 @@
+package org.atomstorm.coreml;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+import org.atomstorm.coreml.CoreMLJNI.CoreMLResult;
+import org.atomstorm.coreml.DetectionLog.Compression;
+import org.atomstorm.coreml.DetectionLog.Entry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class DetectionRecorderTest {
+    @TempDir
+    Path tempDir;
+
+    // One detection per frame, placed by the frame number the image pointer stands for
+    private static class FakeDetector implements CoreMLDetectorPool.Detector {
+        final AtomicBoolean closed = new AtomicBoolean();
+
+        @Override
+        public CoreMLResult[] detect(long imagePtr, double nmsThresh, double boxThresh) {
+            if (imagePtr < 0) {
+                return null;
+            }
+            int n = (int) imagePtr;
+            return new CoreMLResult[] {new CoreMLResult(n, n, n + 10, n + 20, 0.9f, n % 4)};
+        }
+
+        @Override
+        public void close() {
+            closed.set(true);
+        }
+    }
+
+    // Synthetic frames: 40x30 BGR, 80x60 from frame 100 on and 2-channel from frame 10000 on,
+    // filled with the frame number; negative pointers cannot be read
+    private static class FakeGrabber implements DetectionRecorder.FrameGrabber {
+        @Override
+        public int grab(long imagePtr, byte[] pixels, int[] shape) {
+            if (imagePtr < 0) {
+                return 0;
+            }
+            shape[0] = imagePtr < 100 ? 40 : 80;
+            shape[1] = imagePtr < 100 ? 30 : 60;
+            shape[2] = imagePtr < 10000 ? 3 : 2;
+            int bytes = shape[0] * shape[1] * shape[2];
+            if (pixels.length < bytes) {
+                return -1;
+            }
+            Arrays.fill(pixels, 0, bytes, (byte) imagePtr);
+            return bytes;
+        }
+    }
+
+    @Test
+    public void testRecordsFramesAndResults() throws IOException {
+        FakeDetector detector = new FakeDetector();
+        DetectionRecorder recorder = new DetectionRecorder(
+            detector, new FakeGrabber(), DetectionLog.create(tempDir, DetectionLog.DEFAULT_SEGMENT_BYTES, Compression.DEFLATE), 4);
+        List<CoreMLResult[]> returned = new ArrayList<>();
+        List<Long> frames = List.of(1L, 2L, 3L, -1L, 100L, 101L);
+        for (long frame : frames) {
+            returned.add(recorder.detect(frame, 0.45, 0.25 + frame * 0.001));
+            // Let the writer keep up so nothing is dropped from the small ring
+            Thread.yield();
+        }
+        recorder.close();
+        assertTrue(detector.closed.get());
+
+        DetectionRecorder.Stats stats = recorder.getStats();
+        assertEquals(frames.size(), stats.frames);
+        assertEquals(frames.size(), stats.recorded + stats.dropped);
+        assertEquals(1, stats.uncaptured);
+        assertTrue(stats.bytes > 0);
+
+        try (DetectionLog.Reader reader = DetectionLog.open(tempDir)) {
+            assertEquals(stats.recorded, reader.size());
+            long previous = -1;
+            for (int i = 0; i < reader.size(); i++) {
+                Entry entry = reader.read(i);
+                assertTrue(entry.timestampNanos > previous, "Records are in call order");
+                previous = entry.timestampNanos;
+                assertTrue(entry.latencyNanos >= 0);
+                assertEquals(0.45, entry.nmsThresh);
+                long frame = Math.round((entry.boxThresh - 0.25) / 0.001);
+                assertArrayEquals(returned.get(frames.indexOf(frame)), entry.results);
+                if (frame < 0) {
+                    assertNull(entry.frame);
+                } else {
+                    // The slot buffers grew when the frames did
+                    assertEquals(frame < 100 ? 40 : 80, entry.width);
+                    assertEquals(frame < 100 ? 30 : 60, entry.height);
+                    assertEquals(entry.frameBytes(), entry.frame.length);
+                    assertEquals((byte) frame, entry.frame[entry.frame.length - 1]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testUnsupportedFrameIsRecordedUncaptured() throws IOException {
+        DetectionRecorder recorder = new DetectionRecorder(
+            new FakeDetector(), new FakeGrabber(), DetectionLog.create(tempDir, DetectionLog.DEFAULT_SEGMENT_BYTES, Compression.NONE), 4);
+        CoreMLResult[] twoChannel = recorder.detect(10000, 0.45, 0.25);
+        Thread.yield();
+        recorder.detect(1, 0.45, 0.25);
+        recorder.close();
+
+        DetectionRecorder.Stats stats = recorder.getStats();
+        assertEquals(2, stats.recorded, "Recording goes on after a frame it cannot store");
+        assertEquals(0, stats.dropped);
+        assertEquals(1, stats.uncaptured);
+        try (DetectionLog.Reader reader = DetectionLog.open(tempDir)) {
+            Entry unsupported = reader.read(0);
+            assertNull(unsupported.frame);
+            assertEquals(0, unsupported.channels);
+            assertArrayEquals(twoChannel, unsupported.results, "The results of an uncaptured frame are kept");
+            assertEquals(3, reader.read(1).channels);
+        }
+    }
+
+    @Test
+    public void testCloseWritesFrameBeingRecorded() throws Exception {
+        CountDownLatch grabbing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        FakeGrabber grabber = new FakeGrabber() {
+            @Override
+            public int grab(long imagePtr, byte[] pixels, int[] shape) {
+                grabbing.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.grab(imagePtr, pixels, shape);
+            }
+        };
+        DetectionRecorder recorder = new DetectionRecorder(
+            new FakeDetector(), grabber, DetectionLog.create(tempDir, DetectionLog.DEFAULT_SEGMENT_BYTES, Compression.NONE), 4);
+        Thread caller = new Thread(() -> recorder.detect(1, 0.45, 0.25));
+        caller.start();
+        assertTrue(grabbing.await(5, TimeUnit.SECONDS));
+
+        // The frame holds a slot but is not published yet when close begins
+        Thread closer = new Thread(recorder::close);
+        closer.start();
+        closer.join(50);
+        assertTrue(closer.isAlive(), "close() waits for the frame being recorded");
+        release.countDown();
+        caller.join(5000);
+        closer.join(5000);
+        assertFalse(closer.isAlive());
+
+        DetectionRecorder.Stats stats = recorder.getStats();
+        assertEquals(1, stats.frames);
+        assertEquals(1, stats.recorded, stats.toString());
+        assertEquals(0, stats.dropped);
+        // A call after close is counted as dropped
+        recorder.detect(2, 0.45, 0.25);
+        stats = recorder.getStats();
+        assertEquals(stats.frames, stats.recorded + stats.dropped, stats.toString());
+    }
+
+    @Test
+    public void testConcurrentCallersNeverBlock() throws Exception {
+        FakeDetector detector = new FakeDetector();
+        DetectionRecorder recorder = new DetectionRecorder(
+            detector, new FakeGrabber(), DetectionLog.create(tempDir, 1 << 20, Compression.NONE), 8);
+        int threads = 4;
+        int perThread = 500;
+        List<Thread> callers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int first = t * perThread;
+            Thread caller = new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    recorder.detect(first + i, 0.45, 0.25);
+                }
+            });
+            callers.add(caller);
+            caller.start();
+        }
+        for (Thread caller : callers) {
+            caller.join();
+        }
+        recorder.close();
+
+        // A full ring drops frames rather than holding up detection, but every frame is accounted for
+        DetectionRecorder.Stats stats = recorder.getStats();
+        assertEquals(threads * perThread, stats.frames);
+        assertEquals(stats.frames, stats.recorded + stats.dropped, stats.toString());
+        assertTrue(stats.recorded > 0);
+        try (DetectionLog.Reader reader = DetectionLog.open(tempDir)) {
+            assertEquals(stats.recorded, reader.size());
+            for (int i = 0; i < reader.size(); i++) {
+                Entry entry = reader.read(i);
+                int frame = (int) entry.results[0].rect.x;
+                assertEquals(frame % 4, entry.results[0].class_id);
+                assertEquals((byte) frame, entry.frame[0], "Frame and results stay together");
+            }
+        }
+    }
+
+    @Test
+    public void testWriteFailureStopsRecording() throws IOException {
+        FakeDetector detector = new FakeDetector();
+        DetectionLog.Writer log = DetectionLog.create(tempDir, 4096, Compression.NONE);
+        // Segments can no longer be created once the directory is gone
+        try (Stream<Path> files = Files.list(tempDir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(tempDir);
+
+        DetectionRecorder recorder = new DetectionRecorder(detector, new FakeGrabber(), log, 4);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i, (int) recorder.detect(i, 0.45, 0.25)[0].rect.x, "Detection goes on regardless");
+        }
+        UncheckedIOException e = assertThrows(UncheckedIOException.class, recorder::close);
+        assertTrue(e.getCause() != null);
+        assertTrue(detector.closed.get());
+        DetectionRecorder.Stats stats = recorder.getStats();
+        assertEquals(0, stats.recorded);
+        assertEquals(5, stats.dropped);
+    }
+
+    @Test
+    public void testInvalidArguments() throws IOException {
+        DetectionLog.Writer log = DetectionLog.create(tempDir, 4096, Compression.NONE);
+        assertThrows(IllegalArgumentException.class, () -> new DetectionRecorder(new FakeDetector(), new FakeGrabber(), log, 0));
+        log.close();
+    }
+}
@@ -0,0 +1,137 @@
+package org.atomstorm.coreml;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.atomstorm.coreml.CoreMLJNI.CoreMLResult;
+import org.atomstorm.coreml.DetectionLog.Compression;
+import org.atomstorm.coreml.DetectionLog.Entry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class DetectionReplayTest {
+    @TempDir
+    Path tempDir;
+
+    // Synthetic frames carry their frame number in the first pixel, which the loader passes on as the image pointer
+    private static class FakeLoader implements DetectionReplay.FrameLoader {
+        final List<Long> released = new ArrayList<>();
+
+        @Override
+        public long load(Entry entry) {
+            return entry.frame[0];
+        }
+
+        @Override
+        public void release(long imagePtr) {
+            released.add(imagePtr);
+        }
+    }
+
+    // Two detections per frame, moved along by the frame number; shift offsets frames from shiftFrom on
+    private static class FakeDetector implements CoreMLDetectorPool.Detector {
+        int shift;
+        int shiftFrom = Integer.MAX_VALUE;
+        boolean dropSecond;
+
+        @Override
+        public CoreMLResult[] detect(long imagePtr, double nmsThresh, double boxThresh) {
+            int n = (int) imagePtr;
+            int dx = n >= shiftFrom ? shift : 0;
+            CoreMLResult first = new CoreMLResult(n + dx, 10, n + dx + 50, 60, 0.9f, 0);
+            CoreMLResult second = new CoreMLResult(200, n, 260, n + 40, 0.7f, 1);
+            return dropSecond && n >= shiftFrom ? new CoreMLResult[] {first} : new CoreMLResult[] {first, second};
+        }
+
+        @Override
+        public void close() {}
+    }
+
+    // Record frames through the fake detector, spaced by the given interval
+    private void record(int frames, long intervalNanos) throws IOException {
+        FakeDetector detector = new FakeDetector();
+        try (DetectionLog.Writer writer = DetectionLog.create(tempDir, 1 << 16, Compression.DEFLATE)) {
+            for (int i = 0; i < frames; i++) {
+                byte[] frame = new byte[16 * 8 * 3];
+                frame[0] = (byte) i;
+                writer.append(new Entry(i * intervalNanos, 2_000_000, 0.45, 0.25, 16, 8, 3, frame,
+                    detector.detect(i, 0.45, 0.25)));
+            }
+            // A record without a frame cannot be replayed
+            writer.append(new Entry(frames * intervalNanos, 0, 0.45, 0.25, 0, 0, 0, null, new CoreMLResult[0]));
+        }
+    }
+
+    @Test
+    public void testReplayMatchesRecording() throws IOException {
+        record(20, 1_000_000);
+        FakeDetector detector = new FakeDetector();
+        FakeLoader loader = new FakeLoader();
+        try (DetectionLog.Reader log = DetectionLog.open(tempDir)) {
+            DetectionReplay.Report report = new DetectionReplay(detector, loader, 0.5).run(log, false);
+            assertEquals(20, report.frames);
+            assertEquals(1, report.skipped);
+            assertTrue(report.matches(), report.toString());
+            assertEquals(40, report.matched);
+            assertEquals(-1, report.firstMismatch);
+            assertEquals(2.0, report.meanRecordedMs, 1e-9);
+            assertTrue(report.fps() > 0);
+            assertEquals(20, loader.released.size(), "Every loaded frame is released");
+
+            // Small shifts stay above the IoU threshold, large ones do not
+            detector.shiftFrom = 12;
+            detector.shift = 5;
+            assertTrue(new DetectionReplay(detector, loader, 0.5).run(log, false).matches());
+            detector.shift = 40;
+            DetectionReplay.Report shifted = new DetectionReplay(detector, loader, 0.5).run(log, false);
+            assertEquals(12, shifted.matchingFrames);
+            assertEquals(12, shifted.firstMismatch);
+            assertEquals(8, shifted.missing);
+            assertEquals(8, shifted.extra);
+
+            detector.shift = 0;
+            detector.dropSecond = true;
+            DetectionReplay.Report dropped = new DetectionReplay(detector, loader, 0.5).run(log, 10, 15, false);
+            assertEquals(5, dropped.frames);
+            assertEquals(2, dropped.matchingFrames);
+            assertEquals(3, dropped.missing);
+            assertEquals(0, dropped.extra);
+            assertThrows(IndexOutOfBoundsException.class,
+                () -> new DetectionReplay(detector, loader, 0.5).run(log, 15, 10, false));
+        }
+    }
+
+    @Test
+    public void testRecordedRate() throws IOException {
+        record(5, 20_000_000);
+        try (DetectionLog.Reader log = DetectionLog.open(tempDir)) {
+            DetectionReplay replay = new DetectionReplay(new FakeDetector(), new FakeLoader(), 0.5);
+            DetectionReplay.Report paced = replay.run(log, true);
+            assertTrue(paced.elapsedMs >= 80, "Frames keep their recorded 20 ms spacing: " + paced);
+            DetectionReplay.Report fast = replay.run(log, false);
+            assertTrue(fast.elapsedMs < paced.elapsedMs, fast.toString());
+            assertEquals(paced.matched, fast.matched);
+        }
+    }
+
+    @Test
+    public void testPair() {
+        CoreMLResult a = new CoreMLResult(0, 0, 100, 100, 0.9f, 0);
+        CoreMLResult b = new CoreMLResult(200, 200, 300, 300, 0.8f, 0);
+        CoreMLResult nearA = new CoreMLResult(10, 0, 110, 100, 0.5f, 0);
+        CoreMLResult otherClass = new CoreMLResult(0, 0, 100, 100, 0.9f, 1);
+
+        assertEquals(2, DetectionReplay.pair(new CoreMLResult[] {a, b}, new CoreMLResult[] {b, a}, 0.5));
+        assertEquals(1, DetectionReplay.pair(new CoreMLResult[] {a}, new CoreMLResult[] {nearA}, 0.8));
+        assertEquals(0, DetectionReplay.pair(new CoreMLResult[] {a}, new CoreMLResult[] {nearA}, 0.9));
+        assertEquals(0, DetectionReplay.pair(new CoreMLResult[] {a}, new CoreMLResult[] {otherClass}, 0.5));
+        // Each replayed detection pairs at most once
+        assertEquals(1, DetectionReplay.pair(new CoreMLResult[] {a, a}, new CoreMLResult[] {nearA}, 0.5));
+        assertEquals(0, DetectionReplay.pair(null, new CoreMLResult[] {a}, 0.5));
+        assertEquals(0, DetectionReplay.pair(new CoreMLResult[] {a}, null, 0.5));
+        assertThrows(IllegalArgumentException.class, () -> new DetectionReplay(new FakeDetector(), new FakeLoader(), 0));
+    }
+}
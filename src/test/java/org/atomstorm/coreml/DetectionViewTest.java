@@ -0,0 +1,70 @@
+package org.atomstorm.coreml;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import org.atomstorm.coreml.CoreMLJNI.CoreMLResult;
+import org.junit.jupiter.api.Test;
+
+public class DetectionViewTest {
+
+    private static void putRow(FloatBuffer buffer, int row, float x1, float y1, float x2, float y2, float conf, int classId) {
+        int base = row * DetectionView.STRIDE;
+        buffer.put(base + DetectionView.X1, x1);
+        buffer.put(base + DetectionView.Y1, y1);
+        buffer.put(base + DetectionView.X2, x2);
+        buffer.put(base + DetectionView.Y2, y2);
+        buffer.put(base + DetectionView.CONF, conf);
+        buffer.put(base + DetectionView.CLASS_ID, classId);
+    }
+
+    @Test
+    public void testAccessorsReadPackedRows() {
+        DetectionView view = new DetectionView(4);
+        assertEquals(4, view.capacity());
+        assertEquals(0, view.size());
+        assertTrue(view.buffer().isDirect(), "Backing buffer should be direct");
+
+        putRow(view.buffer(), 0, 10.5f, 20.25f, 110.5f, 220.25f, 0.9f, 0);
+        putRow(view.buffer(), 1, 1f, 2f, 3f, 4f, 0.5f, 7);
+        view.setSize(2);
+
+        assertEquals(2, view.size());
+        assertEquals(10.5f, view.x1(0));
+        assertEquals(20.25f, view.y1(0));
+        assertEquals(110.5f, view.x2(0));
+        assertEquals(220.25f, view.y2(0));
+        assertEquals(100f, view.width(0));
+        assertEquals(200f, view.height(0));
+        assertEquals(0.9f, view.confidence(0));
+        assertEquals(0, view.classId(0));
+        assertEquals(7, view.classId(1));
+    }
+
+    @Test
+    public void testToResultsMatchesDetectLayout() {
+        DetectionView view = new DetectionView(2);
+        putRow(view.buffer(), 0, 10.7f, 20.2f, 30.9f, 40.1f, 0.75f, 3);
+        view.setSize(1);
+
+        CoreMLResult[] results = view.toResults();
+        assertEquals(1, results.length);
+        assertEquals(new CoreMLResult(10, 20, 30, 40, 0.75f, 3), results[0]);
+    }
+
+    @Test
+    public void testIndexOutsideSizeIsRejected() {
+        DetectionView view = new DetectionView(2);
+        view.setSize(1);
+        assertThrows(IndexOutOfBoundsException.class, () -> view.x1(1));
+        assertThrows(IndexOutOfBoundsException.class, () -> view.setSize(3));
+    }
+
+    @Test
+    public void testRejectsHeapBuffers() {
+        assertThrows(IllegalArgumentException.class, () -> new DetectionView(FloatBuffer.allocate(12)));
+        assertThrows(IllegalArgumentException.class,
+            () -> new DetectionView(ByteBuffer.allocateDirect(48).asFloatBuffer()));
+    }
+}
@@ -0,0 +1,176 @@
+package org.atomstorm.coreml;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.atomstorm.coreml.CoreMLJNI.CoreMLResult;
+import org.junit.jupiter.api.Test;
+
+public class FrameChangeCacheTest {
+
+    // Detector whose results name the frame they were inferred on
+    private static class CountingDetector implements CoreMLDetectorPool.Detector {
+        int calls;
+        boolean closed;
+
+        @Override
+        public CoreMLResult[] detect(long imagePtr, double nmsThresh, double boxThresh) {
+            calls++;
+            return new CoreMLResult[] {new CoreMLResult(0, 0, 10, 10, 0.9f, (int) imagePtr)};
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    // Serves registered thumbnails by image pointer; unknown pointers cannot be sampled
+    private static class FakeSampler implements FrameChangeCache.Sampler {
+        final Map<Long, byte[]> frames = new HashMap<>();
+
+        @Override
+        public int sample(long imagePtr, byte[] thumbnail) {
+            byte[] frame = frames.get(imagePtr);
+            if (frame == null) {
+                return 0;
+            }
+            System.arraycopy(frame, 0, thumbnail, 0, frame.length);
+            return frame.length;
+        }
+    }
+
+    // Thumbnail with a bright left half, so every row has one edge
+    private static byte[] edges(int column) {
+        byte[] thumbnail = new byte[FrameChangeCache.THUMBNAIL_WIDTH * FrameChangeCache.THUMBNAIL_HEIGHT];
+        for (int y = 0; y < FrameChangeCache.THUMBNAIL_HEIGHT; y++) {
+            for (int x = 0; x <= column; x++) {
+                thumbnail[y * FrameChangeCache.THUMBNAIL_WIDTH + x] = (byte) 200;
+            }
+        }
+        return thumbnail;
+    }
+
+    @Test
+    public void testDifferenceHash() {
+        byte[] flat = new byte[FrameChangeCache.THUMBNAIL_WIDTH * FrameChangeCache.THUMBNAIL_HEIGHT];
+        assertEquals(0, FrameChangeCache.differenceHash(flat));
+
+        // Noise within the dead band does not flip bits
+        for (int i = 0; i < flat.length; i++) {
+            flat[i] = (byte) (100 + (i % 3));
+        }
+        assertEquals(0, FrameChangeCache.differenceHash(flat));
+
+        long hash = FrameChangeCache.differenceHash(edges(3));
+        assertEquals(8, Long.bitCount(hash), "One edge per row");
+        assertEquals(1L << 3, hash & 0xFF, "The edge sits between columns 3 and 4");
+        assertEquals(16, FrameChangeCache.distance(hash, FrameChangeCache.differenceHash(edges(4))));
+        assertEquals(0, FrameChangeCache.distance(hash, hash));
+    }
+
+    @Test
+    public void testSample() {
+        // 18x16 BGR image: left 10 columns white, the rest black
+        int width = 18;
+        int height = 16;
+        byte[] pixels = new byte[width * height * 3];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < 10; x++) {
+                int p = (y * width + x) * 3;
+                pixels[p] = pixels[p + 1] = pixels[p + 2] = (byte) 255;
+            }
+        }
+        byte[] thumbnail = new byte[FrameChangeCache.THUMBNAIL_WIDTH * FrameChangeCache.THUMBNAIL_HEIGHT];
+        assertEquals(thumbnail.length, FrameChangeCache.sample(pixels, width, height, 3, thumbnail));
+        assertEquals(255, thumbnail[0] & 0xFF);
+        assertEquals(255, thumbnail[3] & 0xFF);
+        assertEquals(0, thumbnail[5] & 0xFF);
+        assertEquals(1L << 4, FrameChangeCache.differenceHash(thumbnail) & 0xFF);
+
+        assertEquals(0, FrameChangeCache.sample(pixels, width, height, 2, thumbnail), "Two channels are unsupported");
+        assertEquals(0, FrameChangeCache.sample(pixels, width, height * 2, 3, thumbnail), "The pixels are too short");
+    }
+
+    @Test
+    public void testSimilarFramesReuseResults() {
+        CountingDetector detector = new CountingDetector();
+        FakeSampler sampler = new FakeSampler();
+        sampler.frames.put(1L, edges(3));
+        byte[] nudged = edges(3);
+        nudged[4] = (byte) 200; // One row's edge moves by a pixel: 2 bits
+        sampler.frames.put(2L, nudged);
+        sampler.frames.put(3L, edges(6));
+
+        FrameChangeCache cache = new FrameChangeCache(detector, sampler, 2, 10);
+        CoreMLResult[] first = cache.detect(1, 0.5, 0.5);
+        assertEquals(1, first[0].class_id);
+
+        CoreMLResult[] second = cache.detect(2, 0.5, 0.5);
+        assertEquals(1, detector.calls, "A near-identical frame should not run inference");
+        assertEquals(1, second[0].class_id, "It gets the last inferred frame's results");
+        assertFalse(first == second, "Each call gets its own array");
+
+        assertEquals(3, cache.detect(3, 0.5, 0.5)[0].class_id, "A changed frame runs inference");
+        assertEquals(3, cache.detect(3, 0.5, 0.25)[0].class_id);
+        assertEquals(3, detector.calls, "Different thresholds run inference");
+
+        cache.invalidate();
+        cache.detect(3, 0.5, 0.25);
+        assertEquals(4, detector.calls, "Invalidating forces inference");
+
+        FrameChangeCache.Stats stats = cache.getStats();
+        assertEquals(5, stats.frames);
+        assertEquals(1, stats.hits);
+        assertEquals(4, stats.misses);
+        assertEquals(0.2, stats.hitRate(), 1e-9);
+        assertTrue(stats.meanHashMs >= 0 && stats.meanInferenceMs >= 0);
+
+        cache.resetStats();
+        assertEquals(0, cache.getStats().frames);
+        assertEquals(0.0, cache.getStats().hitRate());
+
+        cache.close();
+        assertTrue(detector.closed);
+    }
+
+    @Test
+    public void testStalenessBound() {
+        CountingDetector detector = new CountingDetector();
+        FakeSampler sampler = new FakeSampler();
+        sampler.frames.put(1L, edges(3));
+
+        FrameChangeCache cache = new FrameChangeCache(detector, sampler, 0, 2);
+        for (int i = 0; i < 7; i++) {
+            cache.detect(1, 0.5, 0.5);
+        }
+        // Inference, 2 cached, inference, 2 cached, inference
+        assertEquals(3, detector.calls);
+        assertEquals(4, cache.getStats().hits);
+
+        FrameChangeCache disabled = new FrameChangeCache(detector, sampler, 64, 0);
+        disabled.detect(1, 0.5, 0.5);
+        disabled.detect(1, 0.5, 0.5);
+        assertEquals(5, detector.calls, "A staleness bound of 0 disables the cache");
+    }
+
+    @Test
+    public void testUnsampledFramesAlwaysInfer() {
+        CountingDetector detector = new CountingDetector();
+        FakeSampler sampler = new FakeSampler();
+        sampler.frames.put(1L, edges(3));
+        FrameChangeCache cache = new FrameChangeCache(detector, sampler, 64, 10);
+
+        cache.detect(7, 0.5, 0.5);
+        cache.detect(7, 0.5, 0.5);
+        assertEquals(2, detector.calls, "Frames that cannot be sampled are never cached");
+
+        cache.detect(1, 0.5, 0.5);
+        cache.detect(7, 0.5, 0.5);
+        assertEquals(4, detector.calls);
+
+        assertThrows(IllegalArgumentException.class, () -> new FrameChangeCache(detector, sampler, 65, 1));
+        assertThrows(IllegalArgumentException.class, () -> new FrameChangeCache(detector, sampler, 0, -1));
+    }
+}
@@ -0,0 +1,67 @@
+package org.atomstorm.coreml;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import org.atomstorm.coreml.FrameDescriptor.Format;
+import org.junit.jupiter.api.Test;
+
+public class FrameDescriptorTest {
+
+    @Test
+    public void testPackedLayouts() {
+        assertEquals(640 * 4, FrameDescriptor.create(Format.BGRA, 640, 480).stride);
+        assertEquals(640 * 480 * 4, FrameDescriptor.create(Format.BGRA, 640, 480).requiredBytes());
+        assertEquals(640 * 480 * 2, FrameDescriptor.create(Format.YUYV, 640, 480).requiredBytes());
+        assertEquals(640 * 480, FrameDescriptor.create(Format.GRAY8, 640, 480).requiredBytes());
+
+        FrameDescriptor nv12 = FrameDescriptor.create(Format.NV12, 640, 480);
+        assertEquals(640, nv12.stride);
+        assertEquals(640 * 480, nv12.chromaOffset);
+        assertEquals(640, nv12.chromaStride);
+        assertEquals(640 * 480 * 3 / 2, nv12.requiredBytes());
+    }
+
+    @Test
+    public void testPaddedRows() {
+        // The last row needs no padding after it
+        FrameDescriptor bgra = FrameDescriptor.create(Format.BGRA, 100, 10, 448);
+        assertEquals(448L * 9 + 400, bgra.requiredBytes());
+
+        FrameDescriptor nv12 = FrameDescriptor.create(Format.NV12, 100, 10, 128);
+        assertEquals(128 * 10, nv12.chromaOffset);
+        assertEquals(128L * 10 + 128 * 4 + 100, nv12.requiredBytes());
+
+        FrameDescriptor planes = FrameDescriptor.nv12(100, 10, 100, 4096, 112);
+        assertEquals(4096L + 112 * 4 + 100, planes.requiredBytes());
+    }
+
+    @Test
+    public void testInvalidLayouts() {
+        assertThrows(IllegalArgumentException.class, () -> FrameDescriptor.create(null, 10, 10));
+        assertThrows(IllegalArgumentException.class, () -> FrameDescriptor.create(Format.GRAY8, 0, 10));
+        assertThrows(IllegalArgumentException.class, () -> FrameDescriptor.create(Format.GRAY8, 10, -1));
+        assertThrows(IllegalArgumentException.class, () -> FrameDescriptor.create(Format.NV12, 11, 10));
+        assertThrows(IllegalArgumentException.class, () -> FrameDescriptor.create(Format.NV12, 10, 11));
+        assertThrows(IllegalArgumentException.class, () -> FrameDescriptor.create(Format.YUYV, 11, 10));
+        assertDoesNotThrow(() -> FrameDescriptor.create(Format.YUYV, 10, 11));
+        assertThrows(IllegalArgumentException.class, () -> FrameDescriptor.create(Format.BGRA, 10, 10, 39));
+        assertThrows(IllegalArgumentException.class, () -> FrameDescriptor.nv12(10, 10, 10, 99, 10),
+            "The CbCr plane must not overlap the Y plane");
+        assertThrows(IllegalArgumentException.class, () -> FrameDescriptor.nv12(10, 10, 10, 100, 9));
+    }
+
+    @Test
+    public void testCheckBuffer() {
+        FrameDescriptor desc = FrameDescriptor.create(Format.NV12, 64, 48);
+        desc.checkBuffer(ByteBuffer.allocateDirect(64 * 48 * 3 / 2));
+        assertThrows(IllegalArgumentException.class, () -> desc.checkBuffer(ByteBuffer.allocateDirect(64 * 48 * 3 / 2 - 1)));
+        assertThrows(IllegalArgumentException.class, () -> desc.checkBuffer(ByteBuffer.allocate(64 * 48 * 3 / 2)));
+        assertThrows(IllegalArgumentException.class, () -> desc.checkBuffer(null));
+
+        // The position does not move the frame
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 48 * 3 / 2);
+        buffer.position(100);
+        desc.checkBuffer(buffer);
+    }
+}
@@ -0,0 +1,90 @@
+package org.atomstorm.coreml;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+public class InputShapesTest {
+
+    @Test
+    public void testFixedAlwaysUsesTheDefault() {
+        InputShapes shapes = InputShapes.fixed(640, 640);
+        assertFalse(shapes.isFlexible());
+        LetterboxGeometry g = shapes.select(1280, 720);
+        assertEquals(640, g.inputWidth);
+        assertEquals(640, g.inputHeight);
+        assertEquals(140, g.roiY);
+    }
+
+    @Test
+    public void testEnumeratedPicksTheSmallestCoveringSize() {
+        InputShapes shapes = InputShapes.enumerated(640, 640, 640, 384, 640, 480, 384, 640, 320, 192);
+        assertTrue(shapes.isFlexible());
+
+        // 16:9 scales to 640x360 in the default input: 640x384 holds it
+        LetterboxGeometry wide = shapes.select(1280, 720);
+        assertEquals(640, wide.inputWidth);
+        assertEquals(384, wide.inputHeight);
+        assertEquals(0.5f, wide.scale, "The frame keeps the resolution it had in the default input");
+        assertEquals(12, wide.roiY);
+        assertTrue(wide.paddingFraction() < 0.07);
+
+        LetterboxGeometry fourThree = shapes.select(640, 480);
+        assertEquals(480, fourThree.inputHeight);
+        assertEquals(0.0, fourThree.paddingFraction());
+
+        LetterboxGeometry portrait = shapes.select(720, 1280);
+        assertEquals(384, portrait.inputWidth);
+        assertEquals(640, portrait.inputHeight);
+
+        // Nothing smaller than the default holds a square frame at its default scale
+        LetterboxGeometry square = shapes.select(1000, 1000);
+        assertEquals(640, square.inputWidth);
+        assertEquals(640, square.inputHeight);
+
+        // Small frames are upscaled to the default's scale too, so 320x192 is not enough
+        assertEquals(384, shapes.select(320, 180).inputHeight);
+    }
+
+    @Test
+    public void testRangeRoundsUpToTheAlignment() {
+        InputShapes shapes = InputShapes.range(640, 640, 256, 640, 256, 640);
+        assertTrue(shapes.isFlexible());
+
+        LetterboxGeometry wide = shapes.select(1280, 720);
+        assertEquals(640, wide.inputWidth);
+        assertEquals(384, wide.inputHeight, "360 rounds up to the next multiple of 32");
+
+        LetterboxGeometry panorama = shapes.select(1920, 400);
+        assertEquals(640, panorama.inputWidth);
+        assertEquals(256, panorama.inputHeight, "Heights are clamped to the range");
+
+        assertEquals(640, shapes.select(500, 500).inputHeight);
+    }
+
+    @Test
+    public void testCoordinatesMapBackToTheFrame() {
+        InputShapes shapes = InputShapes.enumerated(640, 640, 640, 384);
+        LetterboxGeometry padded = LetterboxGeometry.of(1280, 720, 640, 640);
+        LetterboxGeometry matched = shapes.select(1280, 720);
+
+        // The same frame point lands on the same image coordinates through either input
+        for (float x : new float[] {0, 100, 777, 1280}) {
+            for (float y : new float[] {0, 50, 360, 720}) {
+                assertEquals(x, matched.toImageX(matched.toInputX(x)), 1e-3f);
+                assertEquals(y, matched.toImageY(matched.toInputY(y)), 1e-3f);
+                assertEquals(padded.toInputX(x), matched.toInputX(x), 1e-3f);
+                assertEquals(padded.toInputY(y) - 128, matched.toInputY(y), 1e-3f);
+            }
+        }
+    }
+
+    @Test
+    public void testInvalidShapes() {
+        assertThrows(IllegalArgumentException.class, () -> InputShapes.fixed(0, 640));
+        assertThrows(IllegalArgumentException.class, () -> InputShapes.enumerated(640, 640, 640));
+        assertThrows(IllegalArgumentException.class, () -> InputShapes.enumerated(640, 640, 640, -1));
+        assertThrows(IllegalArgumentException.class, () -> InputShapes.range(640, 640, 256, 128, 256, 640));
+        assertThrows(IllegalArgumentException.class, () -> InputShapes.fixed(640, 640).select(0, 10));
+    }
+}
@@ -0,0 +1,92 @@
+package org.atomstorm.coreml;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.atomstorm.coreml.CoreMLJNI.StageStats;
+import org.junit.jupiter.api.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBucketsAreContiguous() {
+        assertEquals(0, LatencyHistogram.bucketLowerBound(0));
+        for (int i = 1; i < LatencyHistogram.BUCKET_COUNT; i++) {
+            assertEquals(LatencyHistogram.bucketUpperBound(i - 1) + 1, LatencyHistogram.bucketLowerBound(i), "Bucket " + i);
+        }
+        for (int i = 0; i < LatencyHistogram.BUCKET_COUNT; i++) {
+            assertEquals(i, LatencyHistogram.bucketIndex(LatencyHistogram.bucketLowerBound(i)));
+            assertEquals(i, LatencyHistogram.bucketIndex(LatencyHistogram.bucketUpperBound(i)));
+        }
+        // Values beyond the range share the last bucket
+        assertEquals(LatencyHistogram.BUCKET_COUNT - 1, LatencyHistogram.bucketIndex(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testBucketWidthBoundsRelativeError() {
+        for (int i = 8; i < LatencyHistogram.BUCKET_COUNT; i++) {
+            long lower = LatencyHistogram.bucketLowerBound(i);
+            long upper = LatencyHistogram.bucketUpperBound(i);
+            assertTrue(upper - lower + 1 <= lower / 8.0, "Bucket " + i + " is too wide: " + lower + ".." + upper);
+        }
+    }
+
+    @Test
+    public void testPercentilesMatchExactValues() {
+        Random random = new Random(1);
+        LatencyHistogram histogram = new LatencyHistogram();
+        long[] values = new long[10_000];
+        for (int i = 0; i < values.length; i++) {
+            // Log-normal around 10 ms, like inference latencies
+            values[i] = (long) Math.exp(Math.log(10_000) + random.nextGaussian() * 0.5);
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+
+        StageStats stats = histogram.snapshot();
+        assertEquals(values.length, stats.count);
+        assertEquals(values[values.length - 1] / 1e3, stats.maxMs, 1e-9);
+        double exactP50 = values[values.length / 2 - 1] / 1e3;
+        double exactP99 = values[(int) Math.ceil(0.99 * values.length) - 1] / 1e3;
+        assertTrue(stats.p50Ms >= exactP50 && stats.p50Ms <= exactP50 * 1.125, stats + " vs " + exactP50);
+        assertTrue(stats.p99Ms >= exactP99 && stats.p99Ms <= exactP99 * 1.125, stats + " vs " + exactP99);
+        assertEquals(Arrays.stream(values).average().getAsDouble() / 1e3, stats.meanMs, 1e-6);
+    }
+
+    @Test
+    public void testSingleValueIsExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1000);
+        StageStats stats = histogram.snapshot();
+        assertEquals(1.0, stats.p50Ms, 1e-9, "Percentiles are capped at the maximum");
+        assertEquals(1.0, stats.p99Ms, 1e-9);
+
+        histogram.reset();
+        stats = histogram.snapshot();
+        assertEquals(0, stats.count);
+        assertEquals(0, stats.maxMs);
+    }
+
+    @Test
+    public void testConcurrentRecording() throws InterruptedException {
+        LatencyHistogram histogram = new LatencyHistogram();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        for (int t = 0; t < 4; t++) {
+            executor.submit(() -> {
+                for (int i = 0; i < 100_000; i++) {
+                    histogram.record(i % 5000);
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+
+        StageStats stats = histogram.snapshot();
+        assertEquals(400_000, stats.count, "No recording should be lost");
+        assertEquals(4.999, stats.maxMs, 1e-9);
+    }
+}
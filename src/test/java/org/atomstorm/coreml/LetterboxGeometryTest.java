@@ -0,0 +1,75 @@
+package org.atomstorm.coreml;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+public class LetterboxGeometryTest {
+
+    @Test
+    public void testLandscapeImagePadsVertically() {
+        LetterboxGeometry g = LetterboxGeometry.of(1280, 720, 640, 640);
+        assertEquals(0.5f, g.scale);
+        assertEquals(640, g.scaledWidth);
+        assertEquals(360, g.scaledHeight);
+        assertEquals(0, g.roiX);
+        assertEquals(140, g.roiY);
+        assertEquals(140, g.padTop());
+        assertEquals(140, g.padBottom());
+        assertEquals(0, g.padLeft());
+        assertEquals(0, g.padRight());
+        assertEquals(0.4375, g.paddingFraction(), 1e-9);
+        assertEquals(0.0, LetterboxGeometry.of(1280, 720, 640, 360).paddingFraction());
+    }
+
+    @Test
+    public void testOddPaddingRoundsLikeNative() {
+        // 640 - 427 = 213 rows of padding: the native code rounds 106.5 up, putting the odd row below
+        LetterboxGeometry g = LetterboxGeometry.of(1200, 800, 640, 640);
+        assertEquals(640, g.scaledWidth);
+        assertEquals(427, g.scaledHeight);
+        assertEquals(106.5f, g.padHeight);
+        assertEquals(107, g.roiY);
+        assertEquals(106, g.padBottom());
+        assertEquals(640, g.padTop() + g.scaledHeight + g.padBottom());
+    }
+
+    @Test
+    public void testPaddingBandsPartitionInput() {
+        int[][] cases = {{640, 480}, {480, 640}, {1920, 1080}, {333, 777}, {640, 640}, {17, 3}, {4000, 10}};
+        for (int[] c : cases) {
+            LetterboxGeometry g = LetterboxGeometry.of(c[0], c[1], 640, 384);
+            assertTrue(g.padTop() >= 0 && g.padBottom() >= 0 && g.padLeft() >= 0 && g.padRight() >= 0, g.toString());
+            assertEquals(g.inputWidth, g.padLeft() + g.scaledWidth + g.padRight(), g.toString());
+            assertEquals(g.inputHeight, g.padTop() + g.scaledHeight + g.padBottom(), g.toString());
+            assertTrue(g.scaledWidth == g.inputWidth || g.scaledHeight == g.inputHeight,
+                "The image should touch two edges of the input: " + g);
+
+            int covered = 0;
+            for (int y = 0; y < g.inputHeight; y++) {
+                for (int x = 0; x < g.inputWidth; x++) {
+                    if (g.inImage(x, y)) {
+                        covered++;
+                    }
+                }
+            }
+            assertEquals(g.scaledWidth * g.scaledHeight, covered, g.toString());
+        }
+    }
+
+    @Test
+    public void testCoordinateRoundTrip() {
+        LetterboxGeometry g = LetterboxGeometry.of(1280, 720, 640, 640);
+        assertEquals(100.0f, g.toImageX(g.toInputX(100.0f)), 1e-3);
+        assertEquals(500.0f, g.toImageY(g.toInputY(500.0f)), 1e-3);
+        assertEquals(0.0f, g.toImageY(10.0f), "Points in the padding clamp to the image edge");
+        assertEquals(720.0f, g.toImageY(630.0f), "Points in the padding clamp to the image edge");
+    }
+
+    @Test
+    public void testInvalidDimensions() {
+        assertThrows(IllegalArgumentException.class, () -> LetterboxGeometry.of(0, 10, 640, 640));
+        assertThrows(IllegalArgumentException.class, () -> LetterboxGeometry.of(10, 10, 640, -1));
+        assertThrows(IllegalArgumentException.class, () -> LetterboxGeometry.of(100000, 1, 640, 640));
+    }
+}
@@ -0,0 +1,178 @@
+package org.atomstorm.coreml;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongPredicate;
+import org.atomstorm.coreml.ModelEvaluator.Report;
+import org.atomstorm.coreml.ModelEvaluator.Sample;
+import org.atomstorm.coreml.ModelEvaluator.Variant;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ModelEvaluatorTest {
+    @TempDir
+    Path tempDir;
+
+    // 100x50 images whose pointer is the number in the file name; "bad" files fail to decode
+    private static class FakeDecoder implements ModelEvaluator.ImageDecoder {
+        final AtomicInteger decoding = new AtomicInteger();
+        final AtomicInteger maxDecoding = new AtomicInteger();
+        final AtomicInteger open = new AtomicInteger();
+
+        @Override
+        public ModelEvaluator.Image decode(Path path) throws IOException {
+            String name = path.getFileName().toString();
+            if (name.startsWith("bad")) {
+                throw new IOException("Cannot decode " + name);
+            }
+            maxDecoding.accumulateAndGet(decoding.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(2);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                decoding.decrementAndGet();
+            }
+            open.incrementAndGet();
+            long ptr = Long.parseLong(name.substring(0, name.indexOf('.')));
+            return new ModelEvaluator.Image(ptr, 100, 50, open::decrementAndGet);
+        }
+    }
+
+    // Predicts the labelled box of image n, shifted out of place on images where miss says so
+    private static ModelEvaluator.RowDetector detector(LongPredicate miss) {
+        return (imagePtr, nmsThresh, boxThresh, out) -> {
+            float dx = miss.test(imagePtr) ? 15 : 0;
+            float[] row = {40 + dx, 15, 60 + dx, 35, 0.9f, imagePtr % 2};
+            System.arraycopy(row, 0, out, 0, row.length);
+            return 1;
+        };
+    }
+
+    // Image n holds one object of class n % 2 in the centre: 20x20 pixels of a 100x50 image
+    private List<Sample> dataset(int images) throws IOException {
+        Path imageDir = Files.createDirectories(tempDir.resolve("images"));
+        Path labelDir = Files.createDirectories(tempDir.resolve("labels"));
+        for (int i = 0; i < images; i++) {
+            Files.write(imageDir.resolve(i + ".jpg"), new byte[0]);
+            Files.writeString(labelDir.resolve(i + ".txt"), (i % 2) + " 0.5 0.5 0.2 0.4\n");
+        }
+        return ModelEvaluator.findSamples(tempDir);
+    }
+
+    @Test
+    public void testEvaluateVariants() throws IOException {
+        List<Sample> samples = dataset(20);
+        assertEquals(20, samples.size());
+        FakeDecoder decoder = new FakeDecoder();
+        List<Variant> variants = List.of(
+            new Variant("exact", detector(n -> false)),
+            new Variant("half", detector(n -> n % 4 >= 2)));
+        List<Report> reports = new ModelEvaluator(variants, decoder, 4, 2, 0.45, 0.001, 2).evaluate(samples);
+
+        assertEquals(2, reports.size());
+        Report exact = reports.get(0);
+        assertEquals("exact", exact.name);
+        assertEquals(20, exact.metrics.images);
+        assertEquals(1.0, exact.metrics.map50to95, 1e-9);
+        assertTrue(exact.p50Ms <= exact.p90Ms && exact.p90Ms <= exact.p99Ms);
+
+        Report half = reports.get(1);
+        assertEquals(0.5, half.metrics.recall, 1e-9);
+        assertTrue(half.metrics.map50 < 0.6, half.toString());
+
+        assertTrue(decoder.maxDecoding.get() > 1, "Images should decode in parallel");
+        assertEquals(0, decoder.open.get(), "Every image is released");
+    }
+
+    @Test
+    public void testKeepsMostConfidentDetections() throws IOException {
+        // 1500 weak boxes away from the object, then the right one: more than the first buffer
+        // holds, and far more than the detections kept per image
+        ModelEvaluator.RowDetector crowded = (imagePtr, nmsThresh, boxThresh, out) -> {
+            int rows = Math.min(1501, out.length / DetectionView.STRIDE);
+            for (int i = 0; i < rows; i++) {
+                boolean last = i == 1500;
+                float[] row = last ? new float[] {40, 15, 60, 35, 0.9f, imagePtr % 2}
+                    : new float[] {0, 0, 5, 5, 0.01f + i * 1e-5f, imagePtr % 2};
+                System.arraycopy(row, 0, out, i * DetectionView.STRIDE, row.length);
+            }
+            return rows;
+        };
+        List<Report> reports = new ModelEvaluator(List.of(new Variant("crowded", crowded)), new FakeDecoder(),
+            1, 2, 0.45, 0.001, 0).evaluate(dataset(4));
+        assertEquals(1.0, reports.get(0).metrics.recall, 1e-9, "The confident box must survive the cut");
+        assertEquals(1.0, reports.get(0).metrics.map50, 1e-9);
+    }
+
+    @Test
+    public void testDecodeFailure() throws IOException {
+        List<Sample> samples = new ArrayList<>(dataset(6));
+        samples.add(3, new Sample(tempDir.resolve("bad.jpg"), tempDir.resolve("bad.txt")));
+        FakeDecoder decoder = new FakeDecoder();
+        ModelEvaluator evaluator = new ModelEvaluator(
+            List.of(new Variant("exact", detector(n -> false))), decoder, 2, 2, 0.45, 0.001, 0);
+        IOException e = assertThrows(IOException.class, () -> evaluator.evaluate(samples));
+        assertTrue(e.getMessage().contains("bad.jpg"));
+
+        // A label of a class the dataset does not have is an error too
+        Files.writeString(tempDir.resolve("labels").resolve("2.txt"), "5 0.5 0.5 0.1 0.1\n");
+        assertThrows(IOException.class, () -> evaluator.evaluate(ModelEvaluator.findSamples(tempDir)));
+    }
+
+    @Test
+    public void testReadLabels() {
+        float[] truth = new float[3 * DetectionMetrics.TRUTH_STRIDE];
+        int count = ModelEvaluator.readLabels(List.of("1 0.5 0.25 0.5 0.5", "", "  0 0.1 0.1 0.2 0.2  "), 200, 100, 2, truth);
+        assertEquals(2, count);
+        assertArrayEquals(new float[] {50, 0, 150, 50, 1}, Arrays.copyOf(truth, 5), 1e-4f);
+        assertArrayEquals(new float[] {0, 0, 40, 20, 0}, Arrays.copyOfRange(truth, 5, 10), 1e-4f);
+
+        assertThrows(IllegalArgumentException.class, () -> ModelEvaluator.readLabels(List.of("0 0.5 0.5"), 10, 10, 1, truth));
+        assertThrows(IllegalArgumentException.class, () -> ModelEvaluator.readLabels(List.of("x 0.5 0.5 1 1"), 10, 10, 1, truth));
+        assertThrows(IllegalArgumentException.class, () -> ModelEvaluator.readLabels(List.of("3 0.5 0.5 1 1"), 10, 10, 2, truth));
+    }
+
+    @Test
+    public void testFindSamplesSideBySide() throws IOException {
+        Path sub = Files.createDirectories(tempDir.resolve("field"));
+        Files.write(sub.resolve("b.PNG"), new byte[0]);
+        Files.write(tempDir.resolve("a.jpeg"), new byte[0]);
+        Files.writeString(tempDir.resolve("a.txt"), "0 0.5 0.5 0.1 0.1\n");
+        Files.writeString(tempDir.resolve("notes.md"), "not an image");
+
+        List<Sample> samples = ModelEvaluator.findSamples(tempDir);
+        assertEquals(2, samples.size());
+        assertEquals(tempDir.resolve("a.txt"), samples.get(0).labels);
+        assertEquals(sub.resolve("b.txt"), samples.get(1).labels);
+    }
+
+    @Test
+    public void testFastestWithinBudget() {
+        DetectionMetrics.Summary accurate = summary(1.0);
+        DetectionMetrics.Summary close = summary(0.87);
+        List<Report> reports = List.of(
+            new Report("fp32", accurate, 20, 22, 25, 20),
+            new Report("fp16", close, 12, 13, 15, 12),
+            new Report("int8", summary(0.5), 8, 9, 10, 8));
+        assertEquals("fp32", ModelEvaluator.fastestWithin(reports, 0.01).name);
+        // IoU 0.87 passes eight of the ten thresholds
+        assertEquals(0.8, close.map50to95, 1e-9);
+        assertEquals("fp16", ModelEvaluator.fastestWithin(reports, 0.2).name);
+        assertEquals("int8", ModelEvaluator.fastestWithin(reports, 1.0).name);
+    }
+
+    // Summary of one image whose single prediction overlaps its box by the given IoU
+    private static DetectionMetrics.Summary summary(double iou) {
+        DetectionMetrics metrics = new DetectionMetrics(1);
+        metrics.addImage(new float[] {0, 0, 100, 100, 0}, 1, new float[] {0, 0, 100, (float) (100 * iou), 0.9f, 0}, 1);
+        return metrics.summarize();
+    }
+}
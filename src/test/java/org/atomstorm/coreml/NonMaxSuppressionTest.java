@@ -0,0 +1,73 @@
+package org.atomstorm.coreml;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+public class NonMaxSuppressionTest {
+
+    @Test
+    public void testSortByScoreKeepsBestTopK() {
+        Random random = new Random(42);
+        int count = 500;
+        float[] scores = new float[count];
+        for (int i = 0; i < count; i++) {
+            scores[i] = random.nextFloat();
+        }
+        long[] keys = new long[count];
+        int[] order = new int[50];
+
+        assertEquals(50, NonMaxSuppression.sortByScore(scores, count, 50, keys, order));
+
+        float[] sorted = scores.clone();
+        Arrays.sort(sorted);
+        for (int k = 0; k < 50; k++) {
+            assertEquals(sorted[count - 1 - k], scores[order[k]], "Rank " + k);
+        }
+    }
+
+    @Test
+    public void testSortByScoreWithFewerCandidates() {
+        float[] scores = {0.2f, 0.9f, 0.5f};
+        int[] order = new int[10];
+        assertEquals(3, NonMaxSuppression.sortByScore(scores, 3, 10, new long[3], order));
+        assertArrayEquals(new int[] {1, 2, 0}, Arrays.copyOf(order, 3));
+        assertEquals(0, NonMaxSuppression.sortByScore(scores, 0, 10, new long[3], order));
+    }
+
+    @Test
+    public void testIou() {
+        float[] boxes = {
+            0, 0, 10, 10,
+            5, 0, 15, 10,
+            20, 20, 30, 30,
+        };
+        assertEquals(1.0f, NonMaxSuppression.iou(boxes, 0, 0), 1e-6);
+        assertEquals(50.0f / 150.0f, NonMaxSuppression.iou(boxes, 0, 1), 1e-6);
+        assertEquals(0.0f, NonMaxSuppression.iou(boxes, 0, 2));
+    }
+
+    @Test
+    public void testSuppressIsClassAware() {
+        float[] boxes = {
+            0, 0, 10, 10,
+            1, 0, 11, 10, // Overlaps box 0 heavily
+            1, 0, 11, 10, // Same box, other class
+            50, 50, 60, 60,
+        };
+        int[] classes = {0, 0, 1, 0};
+        int[] order = {0, 1, 2, 3};
+        int[] keep = new int[4];
+
+        int kept = NonMaxSuppression.suppress(boxes, classes, order, 4, 0.5f, 4, keep);
+        assertArrayEquals(new int[] {0, 2, 3}, Arrays.copyOf(keep, kept));
+
+        kept = NonMaxSuppression.suppress(boxes, null, order, 4, 0.5f, 4, keep);
+        assertArrayEquals(new int[] {0, 3}, Arrays.copyOf(keep, kept), "Agnostic NMS ignores classes");
+
+        kept = NonMaxSuppression.suppress(boxes, classes, order, 4, 0.5f, 1, keep);
+        assertArrayEquals(new int[] {0}, Arrays.copyOf(keep, kept), "maxKeep bounds the result");
+    }
+}
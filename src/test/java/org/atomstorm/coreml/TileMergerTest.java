@@ -0,0 +1,85 @@
+package org.atomstorm.coreml;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.atomstorm.coreml.CoreMLJNI.CoreMLResult;
+import org.junit.jupiter.api.Test;
+
+public class TileMergerTest {
+    // Two 640x640 tiles side by side with 128 px overlap, over a 1152x640 frame
+    private static final TilePlan PLAN = TilePlan.create(1152, 640, 640, 640, 0.2f, false);
+
+    @Test
+    public void testMapsIntoFrameCoordinates() {
+        TileMerger merger = new TileMerger(TileMerger.Mode.NMS, 0.5f, 100);
+        merger.add(PLAN, 0, new CoreMLResult[] {new CoreMLResult(10, 20, 30, 40, 0.9f, 1)});
+        merger.add(PLAN, 1, new CoreMLResult[] {new CoreMLResult(300, 20, 330, 40, 0.8f, 2)});
+        merger.add(PLAN, 1, null);
+        assertEquals(2, merger.size());
+
+        CoreMLResult[] merged = merger.merge();
+        assertEquals(2, merged.length);
+        assertEquals(new CoreMLResult(10, 20, 30, 40, 0.9f, 1), merged[0]);
+        assertEquals(new CoreMLResult(812, 20, 842, 40, 0.8f, 2), merged[1]);
+        assertEquals(0, merger.size(), "Merging should start over");
+    }
+
+    @Test
+    public void testDuplicateInOverlapIsMerged() {
+        TileMerger merger = new TileMerger(TileMerger.Mode.NMS, 0.5f, 100);
+        // The same object at x 540..600 in the frame, seen whole by both tiles
+        merger.add(PLAN, 0, new CoreMLResult[] {new CoreMLResult(540, 100, 600, 160, 0.7f, 0)});
+        merger.add(PLAN, 1, new CoreMLResult[] {new CoreMLResult(29, 101, 89, 161, 0.9f, 0)});
+        CoreMLResult[] merged = merger.merge();
+        assertEquals(1, merged.length);
+        assertEquals(new CoreMLResult(541, 101, 601, 161, 0.9f, 0), merged[0]);
+    }
+
+    @Test
+    public void testCutBoxYieldsToWholeObject() {
+        TileMerger merger = new TileMerger(TileMerger.Mode.NMS, 0.5f, 100);
+        // Frame x 600..700: tile 0 ends at 640 and sees only the left part, with higher confidence
+        merger.add(PLAN, 0, new CoreMLResult[] {new CoreMLResult(600, 100, 640, 160, 0.95f, 0)});
+        merger.add(PLAN, 1, new CoreMLResult[] {new CoreMLResult(88, 100, 188, 160, 0.8f, 0)});
+        CoreMLResult[] merged = merger.merge();
+        assertEquals(1, merged.length);
+        assertEquals(new CoreMLResult(600, 100, 700, 160, 0.95f, 0), merged[0],
+            "The uncut box should win and keep the group's best confidence");
+    }
+
+    @Test
+    public void testObjectCutByEveryTileBecomesUnion() {
+        TileMerger merger = new TileMerger(TileMerger.Mode.WEIGHTED_FUSION, 0.5f, 100);
+        // Frame x 450..800 is wider than the overlap: tile 0 sees 450..640, tile 1 sees 512..800
+        merger.add(PLAN, 0, new CoreMLResult[] {new CoreMLResult(450, 100, 640, 300, 0.8f, 0)});
+        merger.add(PLAN, 1, new CoreMLResult[] {new CoreMLResult(0, 110, 288, 290, 0.7f, 0)});
+        CoreMLResult[] merged = merger.merge();
+        assertEquals(1, merged.length);
+        assertEquals(new CoreMLResult(450, 100, 800, 300, 0.8f, 0), merged[0]);
+    }
+
+    @Test
+    public void testWeightedFusionAveragesUncutBoxes() {
+        TileMerger merger = new TileMerger(TileMerger.Mode.WEIGHTED_FUSION, 0.5f, 100);
+        merger.add(PLAN, 0, new CoreMLResult[] {new CoreMLResult(540, 100, 600, 160, 0.6f, 0)});
+        merger.add(PLAN, 1, new CoreMLResult[] {new CoreMLResult(38, 110, 98, 170, 0.6f, 0)});
+        CoreMLResult[] merged = merger.merge();
+        assertEquals(1, merged.length);
+        assertEquals(new CoreMLResult(545, 105, 605, 165, 0.6f, 0), merged[0]);
+    }
+
+    @Test
+    public void testClassesAndLimit() {
+        TileMerger merger = new TileMerger(TileMerger.Mode.NMS, 0.5f, 2);
+        merger.add(PLAN, 0, new CoreMLResult[] {
+            new CoreMLResult(100, 100, 160, 160, 0.9f, 0),
+            new CoreMLResult(100, 100, 160, 160, 0.8f, 1),
+            new CoreMLResult(300, 300, 360, 360, 0.7f, 0),
+        });
+        CoreMLResult[] merged = merger.merge();
+        assertEquals(2, merged.length, "maxDetections bounds the result");
+        assertEquals(0, merged[0].class_id);
+        assertEquals(1, merged[1].class_id, "Boxes of different classes never merge");
+        assertEquals(0, merger.merge().length);
+    }
+}
@@ -0,0 +1,64 @@
+package org.atomstorm.coreml;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+public class TilePlanTest {
+
+    @Test
+    public void testTilesCoverTheFrameWithOverlap() {
+        TilePlan plan = TilePlan.create(1920, 1080, 640, 640, 0.2f, false);
+        // 1920 needs four 640 tiles with 128 px overlap, 1080 needs two
+        assertEquals(8, plan.count());
+        for (int i = 0; i < plan.count(); i++) {
+            assertEquals(640, plan.width(i));
+            assertEquals(640, plan.height(i));
+            assertTrue(plan.x(i) >= 0 && plan.x(i) + plan.width(i) <= 1920, "Tile " + i + " leaves the frame");
+            assertTrue(plan.y(i) >= 0 && plan.y(i) + plan.height(i) <= 1080, "Tile " + i + " leaves the frame");
+            assertFalse(plan.isFullFrame(i));
+        }
+        assertEquals(0, plan.x(0));
+        assertEquals(1280, plan.x(3), "The last column should end at the frame edge");
+        assertEquals(440, plan.y(4), "The last row should end at the frame edge");
+        for (int i = 1; i < 4; i++) {
+            int overlap = plan.x(i - 1) + plan.width(i - 1) - plan.x(i);
+            assertTrue(overlap >= 128, "Overlap between columns " + (i - 1) + " and " + i + " is " + overlap);
+        }
+    }
+
+    @Test
+    public void testSmallFrameIsOneTile() {
+        TilePlan plan = TilePlan.create(640, 480, 640, 640, 0.2f, true);
+        assertEquals(1, plan.count(), "A frame that fits a tile needs no full-frame tile");
+        assertEquals(640, plan.width(0));
+        assertEquals(480, plan.height(0));
+        assertFalse(plan.isFullFrame(0));
+    }
+
+    @Test
+    public void testFullFrameTileComesLast() {
+        TilePlan plan = TilePlan.create(1280, 640, 640, 640, 0.0f, true);
+        assertEquals(3, plan.count());
+        assertEquals(640, plan.x(1));
+        assertTrue(plan.isFullFrame(2));
+        assertEquals(1280, plan.width(2));
+        assertEquals(640, plan.height(2));
+        assertTrue(plan.fits(1280, 640));
+        assertFalse(plan.fits(1920, 1080));
+    }
+
+    @Test
+    public void testOverlapRoundingUpToTheTile() {
+        // ceil(0.95 * 10) is the whole tile; tiles still advance one pixel at a time
+        TilePlan plan = TilePlan.create(20, 10, 10, 10, 0.95f, false);
+        assertEquals(11, plan.count());
+        assertEquals(10, plan.x(plan.count() - 1));
+    }
+
+    @Test
+    public void testRejectsInvalidArguments() {
+        assertThrows(IllegalArgumentException.class, () -> TilePlan.create(0, 1080, 640, 640, 0.2f, false));
+        assertThrows(IllegalArgumentException.class, () -> TilePlan.create(1920, 1080, 640, 640, 1.0f, false));
+    }
+}
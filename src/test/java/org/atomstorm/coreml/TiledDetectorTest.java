@@ -0,0 +1,119 @@
+package org.atomstorm.coreml;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.atomstorm.coreml.CoreMLJNI.CoreMLResult;
+import org.junit.jupiter.api.Test;
+
+public class TiledDetectorTest {
+    private static final TileMerger.Mode MODE = TileMerger.Mode.NMS;
+
+    // Fake tile images: the pointer is the tile index; every tile sees one object at its center
+    private static CoreMLResult[] detectTile(long tilePtr) {
+        return new CoreMLResult[] {new CoreMLResult(300, 300, 340, 340, 0.5f + tilePtr * 0.01f, 0)};
+    }
+
+    private static long[] tilePtrs(TilePlan plan) {
+        long[] ptrs = new long[plan.count()];
+        for (int i = 0; i < ptrs.length; i++) {
+            ptrs[i] = i;
+        }
+        return ptrs;
+    }
+
+    @Test
+    public void testBatchedTilesAreMapped() {
+        List<Integer> batchSizes = new ArrayList<>();
+        TiledDetector detector = TiledDetector.batched((ptrs, nms, box) -> {
+            batchSizes.add(ptrs.length);
+            CoreMLResult[][] results = new CoreMLResult[ptrs.length][];
+            for (int i = 0; i < ptrs.length; i++) {
+                results[i] = detectTile(ptrs[i]);
+            }
+            return results;
+        }, 640, 640, 0.2f, false, new TileMerger(MODE, 0.5f, 100));
+
+        TilePlan plan = detector.planFor(1920, 1080);
+        assertSame(plan, detector.planFor(1920, 1080), "The plan should be reused for the same frame size");
+        CoreMLResult[] results = detector.detect(plan, tilePtrs(plan), 0.45, 0.25);
+        assertEquals(List.of(8), batchSizes, "All tiles should run as one batch");
+        assertEquals(8, results.length);
+        for (CoreMLResult result : results) {
+            int tile = Math.round((result.conf - 0.5f) / 0.01f);
+            assertEquals(plan.x(tile) + 300, result.rect.x, 1e-9);
+            assertEquals(plan.y(tile) + 300, result.rect.y, 1e-9);
+        }
+    }
+
+    @Test
+    public void testConcurrentTilesUseEveryInstance() throws InterruptedException {
+        int instances = 3;
+        CountDownLatch allBusy = new CountDownLatch(instances);
+        List<Long> seen = Collections.synchronizedList(new ArrayList<>());
+        List<CoreMLDetectorPool.Detector> detectors = new ArrayList<>();
+        for (int i = 0; i < instances; i++) {
+            detectors.add(new CoreMLDetectorPool.Detector() {
+                @Override
+                public CoreMLResult[] detect(long imagePtr, double nmsThresh, double boxThresh) {
+                    seen.add(imagePtr);
+                    allBusy.countDown();
+                    try {
+                        // Only returns once the instances have all been busy at the same time
+                        assertTrue(allBusy.await(10, TimeUnit.SECONDS), "Tiles did not run concurrently");
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    return detectTile(imagePtr);
+                }
+
+                @Override
+                public void close() {}
+            });
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(instances);
+        try (CoreMLDetectorPool pool = new CoreMLDetectorPool(detectors, 10, TimeUnit.SECONDS)) {
+            TiledDetector detector = TiledDetector.concurrent(pool, executor, 640, 640, 0.2f, true,
+                new TileMerger(MODE, 0.5f, 100));
+            TilePlan plan = detector.planFor(1920, 1080);
+            assertEquals(9, plan.count());
+            CoreMLResult[] results = detector.detect(plan, tilePtrs(plan), 0.45, 0.25);
+            assertEquals(9, seen.size());
+            // The full-frame tile's object lies inside a sliced tile's object and merges into it
+            assertEquals(8, results.length);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testTileFailureIsRethrown() {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        List<CoreMLDetectorPool.Detector> detectors = List.of(new CoreMLDetectorPool.Detector() {
+            @Override
+            public CoreMLResult[] detect(long imagePtr, double nmsThresh, double boxThresh) {
+                if (imagePtr == 1) {
+                    throw new IllegalStateException("tile failed");
+                }
+                return detectTile(imagePtr);
+            }
+
+            @Override
+            public void close() {}
+        });
+        try (CoreMLDetectorPool pool = new CoreMLDetectorPool(detectors, 10, TimeUnit.SECONDS)) {
+            TiledDetector detector = TiledDetector.concurrent(pool, executor, 640, 640, 0.2f, false,
+                new TileMerger(MODE, 0.5f, 100));
+            TilePlan plan = detector.planFor(1280, 640);
+            assertThrows(IllegalStateException.class, () -> detector.detect(plan, tilePtrs(plan), 0.45, 0.25));
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
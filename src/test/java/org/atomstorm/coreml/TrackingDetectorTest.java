@@ -0,0 +1,101 @@
+package org.atomstorm.coreml;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.atomstorm.coreml.CoreMLJNI.CoreMLResult;
+import org.junit.jupiter.api.Test;
+
+public class TrackingDetectorTest {
+
+    /** Fake detector: one object moving 2 px per frame, the image pointer being the frame number. */
+    private static class MovingObject implements CoreMLDetectorPool.Detector {
+        final List<Long> detected = new ArrayList<>();
+        float conf = 0.9f;
+        boolean fail;
+        boolean closed;
+
+        @Override
+        public CoreMLResult[] detect(long imagePtr, double nmsThresh, double boxThresh) {
+            detected.add(imagePtr);
+            if (fail) {
+                return null;
+            }
+            int x = (int) (2 * imagePtr);
+            return new CoreMLResult[] {new CoreMLResult(x, 50, x + 40, 90, conf, 3)};
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    @Test
+    public void testDetectsOnCadence() {
+        MovingObject detector = new MovingObject();
+        TrackingDetector tracking = new TrackingDetector(detector, new BoxTracker(8, 0.3f, 2, 1.0f), 4, 0);
+        for (long frame = 0; frame < 12; frame++) {
+            assertEquals(frame % 4 == 0, tracking.process(frame, 0.5, 0.5), "Frame " + frame);
+            assertEquals(1, tracking.getTracker().size());
+        }
+        assertEquals(List.of(0L, 4L, 8L), detector.detected);
+        assertEquals(12, tracking.getFrameCount());
+        assertEquals(3, tracking.getInferenceCount());
+
+        // Tracked frames should follow the motion between detections
+        BoxTracker tracker = tracking.getTracker();
+        assertEquals(1, tracker.id(0), "The object should keep one track");
+        assertEquals(22, tracker.x1(0), 4.0);
+
+        CoreMLResult[] results = tracking.getResults();
+        assertEquals(1, results.length);
+        assertEquals(3, results[0].class_id);
+        tracking.close();
+        assertTrue(detector.closed);
+    }
+
+    @Test
+    public void testDetectsEarlyWhenConfidenceDecays() {
+        MovingObject detector = new MovingObject();
+        // 0.9 * 0.8^2 falls below 0.5 on the third frame after a detection
+        TrackingDetector tracking = new TrackingDetector(detector, new BoxTracker(8, 0.3f, 2, 0.8f), 10, 0.5f);
+        for (long frame = 0; frame < 7; frame++) {
+            tracking.process(frame, 0.5, 0.5);
+        }
+        assertEquals(List.of(0L, 3L, 6L), detector.detected);
+    }
+
+    @Test
+    public void testWeakDetectionKeepsCadence() {
+        MovingObject detector = new MovingObject();
+        // Detected below minConfidence to begin with: only the cadence triggers inference
+        detector.conf = 0.4f;
+        TrackingDetector tracking = new TrackingDetector(detector, new BoxTracker(8, 0.3f, 2, 0.8f), 4, 0.5f);
+        for (long frame = 0; frame < 9; frame++) {
+            tracking.process(frame, 0.5, 0.5);
+        }
+        assertEquals(List.of(0L, 4L, 8L), detector.detected);
+    }
+
+    @Test
+    public void testRequestAndFailedDetection() {
+        MovingObject detector = new MovingObject();
+        TrackingDetector tracking = new TrackingDetector(detector, new BoxTracker(8, 0.3f, 2, 1.0f), 5, 0);
+        tracking.process(0, 0.5, 0.5);
+        assertFalse(tracking.process(1, 0.5, 0.5));
+        tracking.requestDetection();
+        assertTrue(tracking.process(2, 0.5, 0.5));
+
+        detector.fail = true;
+        for (long frame = 3; frame < 8; frame++) {
+            tracking.process(frame, 0.5, 0.5);
+        }
+        assertEquals(List.of(0L, 2L, 7L), detector.detected);
+        assertTrue(tracking.process(8, 0.5, 0.5), "A failed detection should be retried on the next frame");
+        assertEquals(1, tracking.getTracker().size(), "Tracks should survive a failed detection");
+        assertThrows(IllegalArgumentException.class,
+            () -> new TrackingDetector(detector, new BoxTracker(8, 0.3f, 2, 1.0f), 0, 0));
+    }
+}
@@ -0,0 +1,121 @@
+package org.atomstorm.coreml;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.FloatBuffer;
+import org.atomstorm.coreml.CoreMLJNI.ModelVersion;
+import org.junit.jupiter.api.Test;
+
+public class YoloDecoderTest {
+
+    // 64x64 input: 8x8 + 4x4 + 2x2 cells
+    private static final int CELLS = 64 + 16 + 4;
+
+    // Write one anchor-free prediction into a [4 + numClasses, N] tensor
+    private static void putV8(FloatBuffer out, int n, int numClasses, int i,
+                              float cx, float cy, float w, float h, int cls, float score) {
+        out.put(i, cx);
+        out.put(n + i, cy);
+        out.put(2 * n + i, w);
+        out.put(3 * n + i, h);
+        for (int c = 0; c < numClasses; c++) {
+            out.put((4 + c) * n + i, c == cls ? score : 0.01f);
+        }
+    }
+
+    @Test
+    public void testAnchorFreeLayout() {
+        YoloDecoder decoder = new YoloDecoder(ModelVersion.YOLO_V8, 3, 64, 64);
+        assertEquals(CELLS, decoder.numAnchors());
+        assertEquals(CELLS * 7, decoder.outputSize());
+
+        FloatBuffer out = DetectionView.allocate(CELLS * 7 / DetectionView.STRIDE + 1);
+        putV8(out, CELLS, 3, 10, 20, 20, 10, 10, 2, 0.9f);
+        putV8(out, CELLS, 3, 11, 21, 20, 10, 10, 2, 0.8f); // Suppressed by the first
+        putV8(out, CELLS, 3, 12, 21, 20, 10, 10, 1, 0.7f); // Same place, other class
+        putV8(out, CELLS, 3, 40, 50, 50, 8, 8, 0, 0.3f); // Below threshold
+
+        // 128x128 image letterboxed into 64x64: scale 0.5, no padding
+        LetterboxGeometry geometry = LetterboxGeometry.of(128, 128, 64, 64);
+        DetectionView view = new DetectionView(10);
+        assertEquals(2, decoder.decode(out, geometry, 0.45, 0.5, view));
+
+        assertEquals(2, view.classId(0));
+        assertEquals(0.9f, view.confidence(0), 1e-6);
+        assertEquals(30, view.x1(0), 1e-4);
+        assertEquals(30, view.y1(0), 1e-4);
+        assertEquals(50, view.x2(0), 1e-4);
+        assertEquals(50, view.y2(0), 1e-4);
+        assertEquals(1, view.classId(1));
+        assertEquals(0.7f, view.confidence(1), 1e-6);
+    }
+
+    @Test
+    public void testV5GridDecode() {
+        YoloDecoder decoder = new YoloDecoder(ModelVersion.YOLO_V5, 2, 64, 64);
+        assertEquals(CELLS * 3, decoder.numAnchors());
+        int width = 7;
+        FloatBuffer out = DetectionView.allocate(CELLS * 3 * width / DetectionView.STRIDE + 1);
+
+        // Stride 8, anchor 1 (16x30), cell (x=3, y=2): row = 1 * 64 + 2 * 8 + 3
+        int row = 64 + 2 * 8 + 3;
+        int base = row * width;
+        out.put(base, 0.25f); // cx = (0.25 * 2 - 0.5 + 3) * 8 = 24
+        out.put(base + 1, 0.5f); // cy = (0.5 * 2 - 0.5 + 2) * 8 = 20
+        out.put(base + 2, 0.5f); // w = (0.5 * 2)^2 * 16 = 16
+        out.put(base + 3, 0.5f); // h = (0.5 * 2)^2 * 30 = 30
+        out.put(base + 4, 0.8f);
+        out.put(base + 5, 0.5f);
+        out.put(base + 6, 1.0f);
+
+        // Objectness alone passes, but objectness * class does not
+        int weak = 5 * width;
+        out.put(weak + 4, 0.9f);
+        out.put(weak + 5, 0.1f);
+        out.put(weak + 6, 0.1f);
+
+        LetterboxGeometry geometry = LetterboxGeometry.of(64, 64, 64, 64);
+        DetectionView view = new DetectionView(10);
+        assertEquals(1, decoder.decode(out, geometry, 0.45, 0.5, view));
+        assertEquals(1, view.classId(0));
+        assertEquals(0.8f, view.confidence(0), 1e-6);
+        assertEquals(16, view.x1(0), 1e-4);
+        assertEquals(5, view.y1(0), 1e-4);
+        assertEquals(32, view.x2(0), 1e-4);
+        assertEquals(35, view.y2(0), 1e-4);
+    }
+
+    @Test
+    public void testTopKAndCapacityBoundDetections() {
+        YoloDecoder decoder = new YoloDecoder(ModelVersion.YOLO_V8, 1, 64, 64, 5);
+        FloatBuffer out = DetectionView.allocate(CELLS * 5 / DetectionView.STRIDE + 1);
+        // Disjoint boxes with rising scores
+        for (int i = 0; i < 20; i++) {
+            putV8(out, CELLS, 1, i, 3 * i + 1, 1, 2, 2, 0, 0.5f + i * 0.02f);
+        }
+        LetterboxGeometry geometry = LetterboxGeometry.of(64, 64, 64, 64);
+
+        DetectionView view = new DetectionView(10);
+        assertEquals(5, decoder.decode(out, geometry, 0.45, 0.25, view), "topK bounds the candidates");
+        assertEquals(0.5f + 19 * 0.02f, view.confidence(0), 1e-6);
+
+        DetectionView small = new DetectionView(2);
+        assertEquals(2, decoder.decode(out, geometry, 0.45, 0.25, small), "Capacity bounds the detections");
+
+        // Decoding again into the same view reuses it
+        putV8(out, CELLS, 1, 19, 58, 1, 2, 2, 0, 0.0f);
+        assertEquals(5, decoder.decode(out, geometry, 0.45, 0.25, view));
+        assertEquals(0.5f + 18 * 0.02f, view.confidence(0), 1e-6);
+    }
+
+    @Test
+    public void testRejectsMismatchedInputs() {
+        assertThrows(IllegalArgumentException.class, () -> new YoloDecoder(ModelVersion.YOLO_V8, 80, 630, 640));
+        YoloDecoder decoder = new YoloDecoder(ModelVersion.YOLO_V8, 80, 64, 64);
+        DetectionView view = new DetectionView(10);
+        assertThrows(IllegalArgumentException.class, () -> decoder.decode(
+            FloatBuffer.allocate(10), LetterboxGeometry.of(64, 64, 64, 64), 0.45, 0.25, view));
+        assertThrows(IllegalArgumentException.class, () -> decoder.decode(
+            FloatBuffer.allocate(decoder.outputSize()), LetterboxGeometry.of(64, 64, 128, 128), 0.45, 0.25, view));
+    }
+}